@@ -27,6 +27,9 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.zip.GZIPInputStream;
 
+import uk.me.parabola.util.BZip2InputStream;
+import uk.me.parabola.util.ReadAheadInputStream;
+
 /**
  * Some miscellaneous functions that are used within the .img code.
  *
@@ -199,12 +202,16 @@ public class Utils {
 	 */
 	public static InputStream openFile(String name) throws FileNotFoundException {
 		InputStream is = new FileInputStream(name);
-		if (name.endsWith(".gz")) {
-			try {
-				is = new GZIPInputStream(is);
-			} catch (IOException e) {
-				throw new FileNotFoundException( "Could not read as compressed file");
+		try {
+			if (name.endsWith(".gz")) {
+				// inflate on another thread while the caller is parsing
+				is = new ReadAheadInputStream(new GZIPInputStream(is));
+			} else if (name.endsWith(".bz2")) {
+				int nThreads = Runtime.getRuntime().availableProcessors();
+				is = new BZip2InputStream(is, nThreads);
 			}
+		} catch (IOException e) {
+			throw new FileNotFoundException( "Could not read as compressed file");
 		}
 		return is;
 	}
@@ -145,6 +145,10 @@ public class NODFile extends ImgFile {
 		nodHeader.setBoundarySize(writer.position());
 	}
 
+	public void setDriveOnLeft(boolean dol) {
+		nodHeader.setDriveOnLeft(dol);
+	}
+
 	public void setNetwork(List<RouteCenter> centers, List<RoadDef> roads, List<RouteNode> boundary) {
 		this.centers = centers;
 		this.roads = roads;
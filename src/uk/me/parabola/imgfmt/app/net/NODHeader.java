@@ -37,7 +37,7 @@ public class NODHeader extends CommonHeader {
 
 	private final char align = DEF_ALIGN;
 
-	private static boolean driveOnLeft;
+	private boolean driveOnLeft;
 
 	public NODHeader() {
 		super(HEADER_LEN, "GARMIN NOD");
@@ -106,7 +106,7 @@ public class NODHeader extends CommonHeader {
 		return boundary;
 	}
 
-	public static void setDriveOnLeft(boolean dol) {
+	public void setDriveOnLeft(boolean dol) {
 		driveOnLeft = dol;
 	}
 }
@@ -210,6 +210,7 @@ public class MapBuilder implements Configurable {
 			NODFile nodFile = map.getNodFile();
 			if (nodFile != null) {
 				nodFile.setNetwork(network.getCenters(), network.getRoadDefs(), network.getBoundary());
+				nodFile.setDriveOnLeft(network.isDriveOnLeft());
 				nodFile.write();
 			}
 			netFile.write(lblFile.numCities(), lblFile.numZips());
@@ -79,4 +79,10 @@ public interface MapCollector {
 	 *
 	 */
 	public void addThroughRoute(long junctionNodeId, long roadIdA, long roadIdB);
+
+	/**
+	 * Set whether vehicles drive on the left in this map.  This is part of
+	 * the map and not global, so that maps can be made at the same time.
+	 */
+	public void setDriveOnLeft(boolean dol);
 }
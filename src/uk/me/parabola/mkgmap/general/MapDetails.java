@@ -123,6 +123,10 @@ public class MapDetails implements MapCollector, MapDataSource {
 		roadNetwork.addThroughRoute(junctionNodeId, roadIdA, roadIdB);
 	}
 
+	public void setDriveOnLeft(boolean dol) {
+		roadNetwork.setDriveOnLeft(dol);
+	}
+
 	/**
 	 * Add the given point to the total bounds for the map.
 	 *
@@ -19,6 +19,7 @@ package uk.me.parabola.mkgmap.general;
 import java.awt.*;
 import java.awt.geom.PathIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import uk.me.parabola.imgfmt.app.Area;
@@ -31,6 +32,11 @@ import uk.me.parabola.imgfmt.app.Coord;
  * @author Steve Ratcliffe
  */
 public class PolygonClipper {
+	// The sides of the box
+	static final int LEFT = 0;
+	static final int RIGHT = 1;
+	static final int BOTTOM = 2;
+	static final int TOP = 3;
 
 	/**
 	 * Clip the input polygon to the given area.
@@ -56,6 +62,308 @@ public class PolygonClipper {
 		if (!foundOutside)
 			return null;
 
+		List<List<Coord>> result = clipToBox(bbox, coords);
+		if (result == null)
+			result = clipWithArea(bbox, coords);
+		return result;
+	}
+
+	/**
+	 * Clip the polygon to the box one side at a time, working in the
+	 * integer coordinates of the points.  The parts of the polygon that
+	 * are inside each side are joined along that side, so that a polygon
+	 * that is cut into several pieces gives several polygons rather than
+	 * one that is joined by lines along the edge of the box.
+	 *
+	 * Points of the original that are kept are used as they are, only
+	 * the points where the polygon crosses the box are new.  The result
+	 * covers the same area as intersecting with java.awt.geom.Area
+	 * would, except that a polygon that crosses itself is not split
+	 * up where it does so.
+	 *
+	 * @return The clipped polygons, each one closed.  Null if the polygon
+	 * is one that this can't handle, for example one that crosses itself
+	 * on the edge of the box.
+	 */
+	static List<List<Coord>> clipToBox(Area bbox, List<Coord> coords) {
+		List<Coord> ring = new ArrayList<Coord>(coords);
+		if (ring.size() > 1 && ring.get(0).equals(ring.get(ring.size() - 1)))
+			ring.remove(ring.size() - 1);
+		if (ring.size() < 3)
+			return new ArrayList<List<Coord>>();
+
+		List<List<Coord>> rings = new ArrayList<List<Coord>>();
+		rings.add(ring);
+		for (int side = 0; side < 4; side++) {
+			int edge;
+			switch (side) {
+			case LEFT: edge = bbox.getMinLong(); break;
+			case RIGHT: edge = bbox.getMaxLong(); break;
+			case BOTTOM: edge = bbox.getMinLat(); break;
+			default: edge = bbox.getMaxLat(); break;
+			}
+
+			List<List<Coord>> clipped = new ArrayList<List<Coord>>();
+			for (List<Coord> r : rings) {
+				if (!clipToSide(r, side, edge, clipped))
+					return null;
+			}
+			rings = clipped;
+		}
+
+		for (List<Coord> r : rings)
+			r.add(r.get(0));
+		return rings;
+	}
+
+	/**
+	 * Clip an unclosed ring to one side of the box, adding the pieces to
+	 * the output list.
+	 *
+	 * @return False if the pieces can't be joined up properly.
+	 */
+	private static boolean clipToSide(List<Coord> ring, int side, int edge, List<List<Coord>> out) {
+		List<Chain> chains = new ArrayList<Chain>();
+		findChains(ring, side, edge, chains, out);
+		if (chains.isEmpty())
+			return true;
+
+		long area = signedArea(ring);
+		if (area == 0)
+			return false;
+		return joinChains(chains, side, area > 0, out);
+	}
+
+	/**
+	 * Find the parts of an unclosed ring that are inside one side of the
+	 * box.  A ring that is all inside is added to the output as it is.
+	 *
+	 * @param chains Each part that is inside is added here, with the
+	 * points where it crosses the edge.
+	 */
+	static void findChains(List<Coord> ring, int side, int edge, List<Chain> chains, List<List<Coord>> out) {
+		int n = ring.size();
+		int start = -1;
+		for (int i = 0; i < n; i++) {
+			if (!inside(ring.get(i), side, edge)) {
+				start = i;
+				break;
+			}
+		}
+		if (start < 0) {
+			out.add(ring);
+			return;
+		}
+
+		// Walk round from an outside point, collecting each run of points
+		// that is inside along with the points where it enters and leaves.
+		Chain chain = null;
+		Coord prev = ring.get(start);
+		boolean prevIn = false;
+		for (int k = 1; k <= n; k++) {
+			Coord co = ring.get((start + k) % n);
+			boolean in = inside(co, side, edge);
+			if (in) {
+				if (!prevIn) {
+					chain = new Chain();
+					if (!onEdge(co, side, edge))
+						chain.points.add(intersection(prev, co, side, edge));
+				}
+				chain.points.add(co);
+			} else if (prevIn) {
+				if (!onEdge(prev, side, edge))
+					chain.points.add(intersection(prev, co, side, edge));
+
+				// A part that just touches the edge has nothing inside
+				if (!allOnEdge(chain.points, side, edge))
+					chains.add(chain);
+				chain = null;
+			}
+			prev = co;
+			prevIn = in;
+		}
+	}
+
+	/**
+	 * Join the parts that are inside one side of the box into closed
+	 * pieces, by going along the edge from where each part leaves to where
+	 * the next one enters.  The parts may come from several rings, as long
+	 * as the area that they enclose is on the same side of all of them;
+	 * so an outer ring must go the opposite way round to its holes.
+	 *
+	 * @param anticlockwise True if the area is on the left of the parts,
+	 * as it is inside an anti-clockwise ring.
+	 * @return False if the parts can't be joined up properly.
+	 */
+	static boolean joinChains(List<Chain> chains, int side, boolean anticlockwise, List<List<Coord>> out) {
+		// Going round the clipped polygon in the same direction as the
+		// original, the path along the edge from where it leaves goes in a
+		// fixed direction to where it next enters.  Which way depends on
+		// the side and the winding of the ring.
+		boolean vertical = side == LEFT || side == RIGHT;
+		int dir = (side == LEFT || side == TOP) ? -1 : 1;
+		if (!anticlockwise)
+			dir = -dir;
+
+		// Along the edge, in the direction of travel, each exit must be
+		// followed by the entry that it joins to.  If they don't alternate
+		// like that then the polygon crosses itself.
+		int nChains = chains.size();
+		long[] events = new long[2 * nChains];
+		for (int i = 0; i < nChains; i++) {
+			Chain c = chains.get(i);
+			long entry = dir * along(c.points.get(0), vertical);
+			long exit = dir * along(c.points.get(c.points.size() - 1), vertical);
+
+			// position in the high bits, then the chain and whether it is
+			// the entry
+			events[2 * i] = (exit << 32) | (i << 1);
+			events[2 * i + 1] = (entry << 32) | (i << 1) | 1;
+		}
+		Arrays.sort(events);
+
+		// Where several are at the same place they can be taken in any
+		// order, so take them in the order that is needed.
+		Chain from = null;
+		int i = 0;
+		while (i < events.length) {
+			int groupEnd = i + 1;
+			while (groupEnd < events.length && events[groupEnd] >> 32 == events[i] >> 32)
+				groupEnd++;
+
+			for (int k = i; k < groupEnd; k++) {
+				boolean wantEntry = from != null;
+				int found = k;
+				while (found < groupEnd && ((events[found] & 1) != 0) != wantEntry)
+					found++;
+				if (found == groupEnd)
+					return false;
+				long ev = events[found];
+				events[found] = events[k];
+				events[k] = ev;
+
+				Chain c = chains.get((int) (ev & 0xffffffffL) >> 1);
+				if (wantEntry) {
+					from.next = c;
+					from = null;
+				} else {
+					from = c;
+				}
+			}
+			i = groupEnd;
+		}
+
+		for (Chain c : chains) {
+			if (c.done)
+				continue;
+
+			List<Coord> piece = new ArrayList<Coord>();
+			Chain cur = c;
+			do {
+				for (Coord co : cur.points) {
+					if (piece.isEmpty() || !piece.get(piece.size() - 1).equals(co))
+						piece.add(co);
+				}
+				cur.done = true;
+				cur = cur.next;
+			} while (!cur.done);
+			if (cur != c)
+				return false;
+
+			if (piece.size() > 1 && piece.get(0).equals(piece.get(piece.size() - 1)))
+				piece.remove(piece.size() - 1);
+			if (piece.size() >= 3 && signedArea(piece) != 0)
+				out.add(piece);
+		}
+		return true;
+	}
+
+	private static boolean inside(Coord co, int side, int edge) {
+		switch (side) {
+		case LEFT: return co.getLongitude() >= edge;
+		case RIGHT: return co.getLongitude() <= edge;
+		case BOTTOM: return co.getLatitude() >= edge;
+		default: return co.getLatitude() <= edge;
+		}
+	}
+
+	private static boolean onEdge(Coord co, int side, int edge) {
+		if (side == LEFT || side == RIGHT)
+			return co.getLongitude() == edge;
+		else
+			return co.getLatitude() == edge;
+	}
+
+	private static boolean allOnEdge(List<Coord> points, int side, int edge) {
+		for (Coord co : points) {
+			if (!onEdge(co, side, edge))
+				return false;
+		}
+		return true;
+	}
+
+	private static int along(Coord co, boolean vertical) {
+		return vertical ? co.getLatitude() : co.getLongitude();
+	}
+
+	/**
+	 * The point where the line between two points crosses the edge, which
+	 * it must do.  The position along the edge is rounded to the nearest
+	 * unit.
+	 */
+	private static Coord intersection(Coord c1, Coord c2, int side, int edge) {
+		if (side == LEFT || side == RIGHT) {
+			int lat = interpolate(c1.getLongitude(), c1.getLatitude(),
+					c2.getLongitude(), c2.getLatitude(), edge);
+			return new Coord(lat, edge);
+		} else {
+			int lon = interpolate(c1.getLatitude(), c1.getLongitude(),
+					c2.getLatitude(), c2.getLongitude(), edge);
+			return new Coord(edge, lon);
+		}
+	}
+
+	private static int interpolate(int a1, int b1, int a2, int b2, int a) {
+		long num = (long) (b2 - b1) * (a - a1);
+		long den = a2 - a1;
+		if (den < 0) {
+			num = -num;
+			den = -den;
+		}
+		long q = num >= 0 ? (2 * num + den) / (2 * den) : -((-2 * num + den) / (2 * den));
+		return (int) (b1 + q);
+	}
+
+	/**
+	 * Twice the area of an unclosed ring, positive if it goes
+	 * anti-clockwise.
+	 */
+	static long signedArea(List<Coord> ring) {
+		long sum = 0;
+		Coord prev = ring.get(ring.size() - 1);
+		for (Coord co : ring) {
+			sum += (long) prev.getLongitude() * co.getLatitude()
+					- (long) co.getLongitude() * prev.getLatitude();
+			prev = co;
+		}
+		return sum;
+	}
+
+	/**
+	 * A part of the polygon that lies inside one side of the box, from
+	 * where it enters to where it leaves.
+	 */
+	static class Chain {
+		private final List<Coord> points = new ArrayList<Coord>();
+		private Chain next;
+		private boolean done;
+	}
+
+	/**
+	 * Clip using the java.awt.geom.Area class, for the polygons that
+	 * {@link #clipToBox} cannot deal with.
+	 */
+	private static List<List<Coord>> clipWithArea(Area bbox, List<Coord> coords) {
 		// Convert to a awt polygon
 		Polygon polygon = new Polygon();
 		for (Coord co : coords)
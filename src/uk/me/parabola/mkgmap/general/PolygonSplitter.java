@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.general;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * Cuts the holes out of a polygon, working in the integer coordinates of
+ * the points rather than with java.awt.geom.Area.
+ *
+ * The polygon is split along a line that goes through one or more of its
+ * holes, by clipping the outer ring and those holes together to each side
+ * of the line.  Repeating that until every hole has been cut leaves
+ * pieces that have no holes, which is what a Garmin polygon needs.
+ *
+ * The rings are unclosed lists of points.  Outer rings go anti-clockwise
+ * and holes clockwise, so that the inside of the polygon is always on the
+ * left.  The rings may touch each other, at a point or along an edge, but
+ * must not cross; {@link #prepareRings} checks that, so that the caller
+ * can use Area for the ones that do.
+ */
+public class PolygonSplitter {
+	private PolygonSplitter() {
+	}
+
+	/**
+	 * Get the rings that a closed way encloses, clipped to a box.
+	 *
+	 * @param points The points of the way.
+	 * @param bbox The box to clip to, or null to leave it as it is.
+	 * @return Anti-clockwise rings, one for each separate part, the way is
+	 * split where it touches itself.  Null if the way crosses itself, or
+	 * if it touches itself so as to leave a hole.
+	 */
+	public static List<List<Coord>> makeRings(List<Coord> points, Area bbox) {
+		List<List<Coord>> rings = new ArrayList<List<Coord>>();
+		List<Coord> ring = clean(points);
+		if (ring.size() < 3)
+			return rings;
+		long area = PolygonClipper.signedArea(ring);
+		if (area == 0)
+			return rings;
+		if (area < 0)
+			Collections.reverse(ring);
+
+		if (!prepareRings(Collections.singletonList(ring)))
+			return null;
+
+		List<List<Coord>> clipped = null;
+		if (bbox != null && !allInside(bbox, ring)) {
+			ring.add(ring.get(0));
+			clipped = PolygonClipper.clipToBox(bbox, ring);
+			if (clipped == null)
+				return null;
+			for (List<Coord> r : clipped)
+				r.remove(r.size() - 1);
+		} else {
+			clipped = Collections.singletonList(ring);
+		}
+
+		for (List<Coord> r : clipped) {
+			if (!splitAtRepeats(r, rings, null))
+				return null;
+		}
+		return rings;
+	}
+
+	private static boolean allInside(Area bbox, List<Coord> ring) {
+		for (Coord co : ring) {
+			if (!bbox.contains(co))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Make a ring go round in the given direction.
+	 *
+	 * @param ring An unclosed ring, it is reversed if necessary.
+	 * @param anticlockwise True for an outer ring, false for a hole.
+	 */
+	public static void orient(List<Coord> ring, boolean anticlockwise) {
+		if (PolygonClipper.signedArea(ring) > 0 != anticlockwise)
+			Collections.reverse(ring);
+	}
+
+	/**
+	 * Check that the rings of a polygon only touch each other and get them
+	 * ready to be cut.  Wherever a point of one ring lies on an edge of
+	 * another, or of itself, the point is added to that edge, so that the
+	 * rings only ever meet at their points.
+	 *
+	 * @param rings The rings, outer ones anti-clockwise and holes clockwise.
+	 * They are changed in place.
+	 * @return False if two edges cross, or if the rings overlap where they
+	 * meet.  The rings must then be treated as the general shapes that
+	 * java.awt.geom.Area deals with.
+	 */
+	public static boolean prepareRings(List<List<Coord>> rings) {
+		int nEdges = 0;
+		for (List<Coord> ring : rings)
+			nEdges += ring.size();
+
+		// The edges in order of their smallest longitude, with each edge
+		// numbered by its first point.
+		Coord[] starts = new Coord[nEdges];
+		Coord[] ends = new Coord[nEdges];
+		long[] order = new long[nEdges];
+		int e = 0;
+		for (List<Coord> ring : rings) {
+			int n = ring.size();
+			for (int i = 0; i < n; i++) {
+				Coord a = ring.get(i);
+				Coord b = ring.get((i + 1) % n);
+				starts[e] = a;
+				ends[e] = b;
+				int minLon = Math.min(a.getLongitude(), b.getLongitude());
+				order[e] = ((long) minLon << 32) | e;
+				e++;
+			}
+		}
+		Arrays.sort(order);
+
+		// Sweep across, checking each edge against the earlier ones that
+		// overlap it in longitude.
+		Map<Integer, List<Coord>> splits = new HashMap<Integer, List<Coord>>();
+		int[] active = new int[nEdges];
+		int nActive = 0;
+		for (long o : order) {
+			int e1 = (int) o;
+			Coord a = starts[e1];
+			Coord b = ends[e1];
+			int minLon = Math.min(a.getLongitude(), b.getLongitude());
+			int minLat = Math.min(a.getLatitude(), b.getLatitude());
+			int maxLat = Math.max(a.getLatitude(), b.getLatitude());
+
+			int k = 0;
+			for (int j = 0; j < nActive; j++) {
+				int e2 = active[j];
+				Coord c = starts[e2];
+				Coord d = ends[e2];
+				if (Math.max(c.getLongitude(), d.getLongitude()) < minLon)
+					continue;
+				active[k++] = e2;
+
+				if (Math.max(c.getLatitude(), d.getLatitude()) < minLat
+						|| Math.min(c.getLatitude(), d.getLatitude()) > maxLat)
+					continue;
+
+				long d1 = orient(c, d, a);
+				long d2 = orient(c, d, b);
+				long d3 = orient(a, b, c);
+				long d4 = orient(a, b, d);
+				if (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0))
+						&& ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)))
+					return false;
+
+				if (d1 == 0 && within(c, d, a))
+					addSplit(splits, e2, a);
+				if (d2 == 0 && within(c, d, b))
+					addSplit(splits, e2, b);
+				if (d3 == 0 && within(a, b, c))
+					addSplit(splits, e1, c);
+				if (d4 == 0 && within(a, b, d))
+					addSplit(splits, e1, d);
+			}
+			nActive = k;
+			active[nActive++] = e1;
+		}
+
+		if (!splits.isEmpty())
+			addSplits(rings, splits);
+
+		return checkJoins(rings);
+	}
+
+	/**
+	 * Cut a polygon along a line, keeping the part on one side of it.
+	 *
+	 * @param outer The outer ring.
+	 * @param holes The holes that the line goes through.  They must be
+	 * inside the outer ring, and prepared with it by {@link #prepareRings}.
+	 * @param longitude True if the line is one of constant longitude,
+	 * false for latitude.
+	 * @param line The position of the line.
+	 * @param below True to keep the part where the coordinate is less than
+	 * the line, false for the part where it is greater.
+	 * @param pieces The separate pieces of that part are added here.  They
+	 * have no holes, except for those added to holesLeft.
+	 * @param holesLeft Holes that are still holes on this side, because
+	 * the line only touches them, are added here.
+	 * @return False if the rings can't be joined up properly.
+	 */
+	public static boolean cut(List<Coord> outer, Collection<List<Coord>> holes,
+			boolean longitude, int line, boolean below,
+			List<List<Coord>> pieces, List<List<Coord>> holesLeft) {
+		int side;
+		if (longitude)
+			side = below ? PolygonClipper.RIGHT : PolygonClipper.LEFT;
+		else
+			side = below ? PolygonClipper.TOP : PolygonClipper.BOTTOM;
+
+		List<PolygonClipper.Chain> chains = new ArrayList<PolygonClipper.Chain>();
+		List<List<Coord>> rings = new ArrayList<List<Coord>>();
+		PolygonClipper.findChains(outer, side, line, chains, rings);
+		for (List<Coord> hole : holes)
+			PolygonClipper.findChains(hole, side, line, chains, rings);
+		if (!chains.isEmpty() && !PolygonClipper.joinChains(chains, side, true, rings))
+			return false;
+
+		for (List<Coord> ring : rings) {
+			if (!splitAtRepeats(ring, pieces, holesLeft))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the inside of one ring is inside another.  The rings must
+	 * not cross, but they may touch.
+	 */
+	public static boolean encloses(List<Coord> ring, List<Coord> other) {
+		// Coordinates are doubled so that the middle of an edge can be
+		// tried when every point is on the ring.
+		for (Coord co : other) {
+			int where = locate(ring, 2L * co.getLongitude(), 2L * co.getLatitude());
+			if (where != 0)
+				return where > 0;
+		}
+
+		Coord prev = other.get(other.size() - 1);
+		for (Coord co : other) {
+			int where = locate(ring, (long) prev.getLongitude() + co.getLongitude(),
+					(long) prev.getLatitude() + co.getLatitude());
+			if (where != 0)
+				return where > 0;
+			prev = co;
+		}
+		return false;
+	}
+
+	/**
+	 * Where a point is with respect to a ring, in doubled coordinates.
+	 *
+	 * @return 1 if it is inside, -1 if outside and 0 if it is on the ring.
+	 */
+	private static int locate(List<Coord> ring, long x, long y) {
+		boolean inside = false;
+		Coord last = ring.get(ring.size() - 1);
+		long px = 2L * last.getLongitude();
+		long py = 2L * last.getLatitude();
+		for (Coord co : ring) {
+			long cx = 2L * co.getLongitude();
+			long cy = 2L * co.getLatitude();
+			long o = (cx - px) * (y - py) - (cy - py) * (x - px);
+			if (o == 0 && x >= Math.min(px, cx) && x <= Math.max(px, cx)
+					&& y >= Math.min(py, cy) && y <= Math.max(py, cy))
+				return 0;
+
+			// Count the edges that cross a line going right from the point
+			if ((cy > y) != (py > y) && (cy > py ? o > 0 : o < 0))
+				inside = !inside;
+			px = cx;
+			py = cy;
+		}
+		return inside ? 1 : -1;
+	}
+
+	/**
+	 * Remove repeated points, and spikes where the ring goes out and back
+	 * along the same line, as they enclose nothing.
+	 *
+	 * @return A new unclosed ring.
+	 */
+	private static List<Coord> clean(List<Coord> points) {
+		List<Coord> ring = new ArrayList<Coord>(points.size());
+		for (Coord co : points) {
+			int n = ring.size();
+			while (n >= 2 && isSpike(ring.get(n - 2), ring.get(n - 1), co))
+				ring.remove(--n);
+			if (n == 0 || !ring.get(n - 1).equals(co))
+				ring.add(co);
+		}
+
+		// The same where the ring joins up
+		boolean changed = true;
+		while (changed && ring.size() >= 3) {
+			int n = ring.size();
+			changed = true;
+			if (ring.get(0).equals(ring.get(n - 1)))
+				ring.remove(n - 1);
+			else if (isSpike(ring.get(n - 2), ring.get(n - 1), ring.get(0)))
+				ring.remove(n - 1);
+			else if (isSpike(ring.get(n - 1), ring.get(0), ring.get(1)))
+				ring.remove(0);
+			else
+				changed = false;
+		}
+		return ring;
+	}
+
+	/**
+	 * True if going from a to b to c turns straight back.
+	 */
+	private static boolean isSpike(Coord a, Coord b, Coord c) {
+		if (orient(a, b, c) != 0)
+			return false;
+		long dot = (long) (b.getLongitude() - a.getLongitude()) * (c.getLongitude() - b.getLongitude())
+				+ (long) (b.getLatitude() - a.getLatitude()) * (c.getLatitude() - b.getLatitude());
+		return dot < 0;
+	}
+
+	/**
+	 * Split a ring into loops wherever it goes through the same point
+	 * twice.
+	 *
+	 * @param pieces Anti-clockwise loops are added here.
+	 * @param holes Clockwise loops are added here.
+	 * @return False if there is a clockwise loop and holes is null.
+	 */
+	private static boolean splitAtRepeats(List<Coord> ring, List<List<Coord>> pieces, List<List<Coord>> holes) {
+		Map<Long, Integer> seen = new HashMap<Long, Integer>();
+		List<Coord> path = new ArrayList<Coord>(ring.size());
+		for (Coord co : ring) {
+			Long key = key(co);
+			Integer at = seen.get(key);
+			if (at == null) {
+				seen.put(key, path.size());
+				path.add(co);
+				continue;
+			}
+
+			// Take out the loop since the last time at this point, the
+			// point itself stays on the path.
+			int n = path.size();
+			for (int i = at + 1; i < n; i++)
+				seen.remove(key(path.get(i)));
+			List<Coord> loop = path.subList(at, n);
+			if (!addLoop(new ArrayList<Coord>(loop), pieces, holes))
+				return false;
+			loop.subList(1, loop.size()).clear();
+		}
+		return addLoop(path, pieces, holes);
+	}
+
+	private static boolean addLoop(List<Coord> loop, List<List<Coord>> pieces, List<List<Coord>> holes) {
+		if (loop.size() < 3)
+			return true;
+		long area = PolygonClipper.signedArea(loop);
+		if (area > 0) {
+			pieces.add(loop);
+		} else if (area < 0) {
+			if (holes == null)
+				return false;
+			holes.add(loop);
+		}
+		return true;
+	}
+
+	private static void addSplit(Map<Integer, List<Coord>> splits, int edge, Coord co) {
+		List<Coord> list = splits.get(edge);
+		if (list == null) {
+			list = new ArrayList<Coord>(2);
+			splits.put(edge, list);
+		}
+		list.add(co);
+	}
+
+	/**
+	 * Add the points that lie on the edges of the rings, in order along
+	 * each edge.
+	 */
+	private static void addSplits(List<List<Coord>> rings, Map<Integer, List<Coord>> splits) {
+		int e = 0;
+		for (List<Coord> ring : rings) {
+			int n = ring.size();
+			List<Coord> newRing = null;
+			for (int i = 0; i < n; i++, e++) {
+				List<Coord> list = splits.get(e);
+				if (list == null) {
+					if (newRing != null)
+						newRing.add(ring.get(i));
+					continue;
+				}
+
+				if (newRing == null) {
+					newRing = new ArrayList<Coord>(n + list.size());
+					newRing.addAll(ring.subList(0, i));
+				}
+
+				final Coord a = ring.get(i);
+				newRing.add(a);
+				Collections.sort(list, new Comparator<Coord>() {
+					public int compare(Coord c1, Coord c2) {
+						long d1 = Math.abs((long) c1.getLongitude() - a.getLongitude())
+								+ Math.abs((long) c1.getLatitude() - a.getLatitude());
+						long d2 = Math.abs((long) c2.getLongitude() - a.getLongitude())
+								+ Math.abs((long) c2.getLatitude() - a.getLatitude());
+						return d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
+					}
+				});
+				for (Coord co : list) {
+					if (!co.equals(newRing.get(newRing.size() - 1)))
+						newRing.add(co);
+				}
+			}
+
+			if (newRing != null) {
+				ring.clear();
+				ring.addAll(newRing);
+			}
+		}
+	}
+
+	/**
+	 * Check that where the rings go through the same point they only touch
+	 * there.  The inside of the polygon is on the left of every edge, so
+	 * going anti-clockwise round the point the edges must alternate between
+	 * ones going out, which have the inside after them, and ones coming in,
+	 * which have the outside after them.  An edge going out and one coming
+	 * in along the same line are where two rings share an edge, and can be
+	 * in either order.
+	 */
+	private static boolean checkJoins(List<List<Coord>> rings) {
+		Map<Long, Integer> first = new HashMap<Long, Integer>();
+		Map<Long, List<Integer>> repeats = null;
+		int[] ringStart = new int[rings.size() + 1];
+		int v = 0;
+		for (int r = 0; r < rings.size(); r++) {
+			ringStart[r] = v;
+			for (Coord co : rings.get(r)) {
+				Long key = key(co);
+				Integer prev = first.put(key, v);
+				if (prev != null) {
+					if (repeats == null)
+						repeats = new HashMap<Long, List<Integer>>();
+					List<Integer> list = repeats.get(key);
+					if (list == null) {
+						list = new ArrayList<Integer>();
+						list.add(prev);
+						repeats.put(key, list);
+					}
+					list.add(v);
+				}
+				v++;
+			}
+		}
+		ringStart[rings.size()] = v;
+		if (repeats == null)
+			return true;
+
+		for (List<Integer> passes : repeats.values()) {
+			int k = passes.size();
+
+			// The direction of each edge from the point, and 1 for an edge
+			// going out or 0 for one coming in.
+			long[][] edges = new long[2 * k][];
+			for (int i = 0; i < k; i++) {
+				int pass = passes.get(i);
+				int r = 0;
+				while (ringStart[r + 1] <= pass)
+					r++;
+				List<Coord> ring = rings.get(r);
+				int n = ring.size();
+				int idx = pass - ringStart[r];
+				Coord co = ring.get(idx);
+				Coord next = ring.get((idx + 1) % n);
+				Coord prev = ring.get((idx + n - 1) % n);
+				edges[2 * i] = new long[] {
+						next.getLongitude() - co.getLongitude(), next.getLatitude() - co.getLatitude(), 1
+				};
+				edges[2 * i + 1] = new long[] {
+						prev.getLongitude() - co.getLongitude(), prev.getLatitude() - co.getLatitude(), 0
+				};
+				if (compareAngle(edges[2 * i][0], edges[2 * i][1], edges[2 * i + 1][0], edges[2 * i + 1][1]) == 0)
+					return false;
+			}
+
+			Arrays.sort(edges, new Comparator<long[]>() {
+				public int compare(long[] e1, long[] e2) {
+					return compareAngle(e1[0], e1[1], e2[0], e2[1]);
+				}
+			});
+
+			long last = -1;
+			long firstSeen = -1;
+			for (int i = 0; i < 2 * k; ) {
+				int j = i + 1;
+				while (j < 2 * k && compareAngle(edges[i][0], edges[i][1], edges[j][0], edges[j][1]) == 0)
+					j++;
+				if (j - i > 2 || (j - i == 2 && edges[i][2] == edges[i + 1][2]))
+					return false;
+				if (j - i == 1) {
+					long dir = edges[i][2];
+					if (dir == last)
+						return false;
+					if (firstSeen < 0)
+						firstSeen = dir;
+					last = dir;
+				}
+				i = j;
+			}
+			if (last >= 0 && last == firstSeen)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare the directions of two vectors, by their angle anti-clockwise
+	 * from the direction of increasing longitude.
+	 */
+	private static int compareAngle(long x1, long y1, long x2, long y2) {
+		int h1 = (y1 < 0 || (y1 == 0 && x1 < 0)) ? 1 : 0;
+		int h2 = (y2 < 0 || (y2 == 0 && x2 < 0)) ? 1 : 0;
+		if (h1 != h2)
+			return h1 - h2;
+		long cross = x1 * y2 - y1 * x2;
+		return cross > 0 ? -1 : cross < 0 ? 1 : 0;
+	}
+
+	/**
+	 * Twice the area of the triangle abc, positive if it goes
+	 * anti-clockwise.
+	 */
+	private static long orient(Coord a, Coord b, Coord c) {
+		return (long) (b.getLongitude() - a.getLongitude()) * (c.getLatitude() - a.getLatitude())
+				- (long) (b.getLatitude() - a.getLatitude()) * (c.getLongitude() - a.getLongitude());
+	}
+
+	/**
+	 * True if a point that is on the line through a and b lies between
+	 * them.
+	 */
+	private static boolean within(Coord a, Coord b, Coord co) {
+		int lon = co.getLongitude();
+		int lat = co.getLatitude();
+		return lon >= Math.min(a.getLongitude(), b.getLongitude())
+				&& lon <= Math.max(a.getLongitude(), b.getLongitude())
+				&& lat >= Math.min(a.getLatitude(), b.getLatitude())
+				&& lat <= Math.max(a.getLatitude(), b.getLatitude())
+				&& !co.equals(a) && !co.equals(b);
+	}
+
+	private static Long key(Coord co) {
+		return ((long) co.getLatitude() << 32) | (co.getLongitude() & 0xffffffffL);
+	}
+}
@@ -69,6 +69,7 @@ public class RoadNetwork {
 	private boolean reportSimilarArcs;
 	private boolean outputCurveData;
 	private int reportDeadEnds = 0;
+	private boolean driveOnLeft;
 
 	public void config(EnhancedProperties props) {
 		String ath = props.getProperty("adjust-turn-headings");
@@ -288,4 +289,12 @@ public class RoadNetwork {
 
 		node.addThroughRoute(roadIdA, roadIdB);
 	}
+
+	public boolean isDriveOnLeft() {
+		return driveOnLeft;
+	}
+
+	public void setDriveOnLeft(boolean driveOnLeft) {
+		this.driveOnLeft = driveOnLeft;
+	}
 }
@@ -138,16 +138,15 @@ public class MapMaker implements MapProcessor {
 	private LoadableMapDataSource loadFromFile(CommandArgs args, String name) throws
 			FileNotFoundException, FormatException
 	{
-		LoadableMapDataSource src;
-		// work around non-reentrancy of GType priority stuff
-		// by serialising the map reading
-		synchronized(MapMaker.class) {
-			src = MapReader.createMapReader(name);
-			src.config(args.getProperties());
-			log.info("Started loading " + name);
-			src.load(name);
-			log.info("Finished loading " + name);
-		}
+		// With max-jobs several maps are loaded at once.  They share the
+		// style from StyleImpl.readStyle, its rules keep nothing while
+		// they run (or keep it for each thread), and everything else that
+		// is found while loading belongs to the map.
+		LoadableMapDataSource src = MapReader.createMapReader(name);
+		src.config(args.getProperties());
+		log.info("Started loading " + name);
+		src.load(name);
+		log.info("Finished loading " + name);
 		return src;
 	}
 
@@ -716,6 +716,9 @@ public class StyleTester implements OsmConverter {
 
 		public void addThroughRoute(long junctionNodeId, long roadIdA, long roadIdB) {
 		}
+
+		public void setDriveOnLeft(boolean dol) {
+		}
 	}
 
 	/**
@@ -759,6 +762,9 @@ public class StyleTester implements OsmConverter {
 		public void addThroughRoute(long junctionNodeId, long roadIdA, long roadIdB) {
 		}
 
+		public void setDriveOnLeft(boolean dol) {
+		}
+
 		public long getStart() {
 			return start;
 		}
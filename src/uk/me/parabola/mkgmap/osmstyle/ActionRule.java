@@ -20,6 +20,7 @@ import java.util.List;
 
 import uk.me.parabola.mkgmap.osmstyle.actions.Action;
 import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.osmstyle.eval.TagValues;
 import uk.me.parabola.mkgmap.reader.osm.Element;
 import uk.me.parabola.mkgmap.reader.osm.GType;
 import uk.me.parabola.mkgmap.reader.osm.Relation;
@@ -54,10 +55,28 @@ public class ActionRule implements Rule {
 		this.type = null;
 	}
 	public void resolveType(Element el, TypeResult result) {
+		if (expression != null && !expression.eval(el))
+			return;
+		resolveMatched(el, result);
+	}
+
+	/**
+	 * Resolve the type, getting the tags from values that are shared with
+	 * the other rules that are run on the element.
+	 */
+	void resolveType(TagValues values, TypeResult result) {
+		if (expression != null && !expression.eval(values))
+			return;
+		resolveMatched(values.getElement(), result);
+	}
+
+	/**
+	 * Run the actions on an element that is already known to match the
+	 * expression, and save the type.
+	 */
+	void resolveMatched(Element el, TypeResult result) {
 		Element element = el;
 		if (expression != null) {
-			if (!expression.eval(element))
-				return;
 			// If this is a continue and we are not to propagate the effects
 			// of the action on the element to further rules, then make
 			// a copy of the element so that the original is unsullied.
@@ -74,6 +93,18 @@ public class ActionRule implements Rule {
 		result.add(element, type);
 	}
 
+	Op getExpression() {
+		return expression;
+	}
+
+	List<Action> getActions() {
+		return actions;
+	}
+
+	GType getType() {
+		return type;
+	}
+
 	public String toString() {
 		StringBuilder fmt = new StringBuilder();
 		if (expression != null)
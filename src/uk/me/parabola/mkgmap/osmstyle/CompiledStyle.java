@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.log.Logger;
+import uk.me.parabola.mkgmap.Version;
+
+/**
+ * A style that has been read and prepared, saved in a single file so that
+ * later runs can load it without reading and parsing the style files
+ * again.
+ *
+ * The file also holds the names of all the style files that were looked
+ * at when the style was read and a checksum over their contents.  Before
+ * the saved style is used those files are read again and the checksum
+ * compared, so if any of them has been changed, added or removed, the style
+ * is read from its files as normal and the saved copy is replaced.
+ *
+ * @see StyleImpl#readStyle
+ */
+public class CompiledStyle {
+	private static final Logger log = Logger.getLogger(CompiledStyle.class);
+
+	// Saved styles from another version of the program are not used.
+	private static final String MAGIC = "mkgmap compiled style " + Version.VERSION;
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	private CompiledStyle() {
+	}
+
+	/**
+	 * Get a style from the compiled style directory.  If it is not there, or
+	 * the style files have changed since it was saved, then the style is read
+	 * from its files and saved for next time.
+	 *
+	 * @param dir The directory that holds the compiled styles.
+	 * @param loc The location of the style, can be null.
+	 * @param name The name of the style, can be null if loc isn't.
+	 * @return The style, with its rules prepared.  No command line options
+	 * have been applied to it.
+	 * @throws FileNotFoundException If the style doesn't exist.
+	 */
+	static StyleImpl getStyle(String dir, String loc, String name) throws FileNotFoundException {
+		File file = new File(dir, fileName(loc, name));
+		StyleImpl style = load(file, loc, name);
+		if (style != null) {
+			log.info("loaded compiled style", file);
+			return style;
+		}
+
+		Sources sources = new Sources();
+		style = new StyleImpl(loc, name, sources);
+		save(file, loc, name, style, sources);
+		return style;
+	}
+
+	private static String fileName(String loc, String name) {
+		String key = loc + '\0' + name;
+		return String.format("style-%08x.bin", key.hashCode());
+	}
+
+	/**
+	 * Read a saved style.
+	 * @return The style, or null if there isn't one or it is out of date.
+	 */
+	private static StyleImpl load(File file, String loc, String name) {
+		if (!file.exists())
+			return null;
+
+		try {
+			CompiledStyleReader in = new CompiledStyleReader(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (!MAGIC.equals(in.readUTF()))
+					return null;
+
+				// The file name is only a hash, so check it is the right style
+				if (!same(loc, in.readString()) || !same(name, in.readString()))
+					return null;
+
+				int n = in.readInt();
+				String[][] files = new String[n][];
+				for (int i = 0; i < n; i++)
+					files[i] = new String[] {in.readString(), in.readString(), in.readString()};
+
+				if (in.readLong() != Sources.checksum(files)) {
+					log.info("style has changed since it was compiled to", file);
+					return null;
+				}
+
+				return new StyleImpl(loc, in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("could not read compiled style", file, e.getMessage());
+		}
+		return null;
+	}
+
+	private static boolean same(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	/**
+	 * Save the style.  It is written to a temporary file first, so that
+	 * another run reading the style at the same time never sees a partly
+	 * written file.
+	 */
+	private static void save(File file, String loc, String name, StyleImpl style, Sources sources) {
+		File dir = file.getParentFile();
+		dir.mkdirs();
+		try {
+			File tmp = File.createTempFile("style", ".tmp", dir);
+			CompiledStyleWriter out = new CompiledStyleWriter(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeUTF(MAGIC);
+				out.writeString(loc);
+				out.writeString(name);
+
+				List<String[]> files = sources.getFiles();
+				out.writeInt(files.size());
+				for (String[] f : files) {
+					for (String s : f)
+						out.writeString(s);
+				}
+				out.writeLong(sources.getChecksum());
+
+				style.write(out);
+			} finally {
+				out.close();
+			}
+
+			file.delete();
+			if (tmp.renameTo(file))
+				log.info("saved compiled style", file);
+			else
+				tmp.delete();
+		} catch (IOException e) {
+			log.warn("could not save compiled style", file, e.getMessage());
+		}
+	}
+
+	/**
+	 * Compile a style into the given directory, so that it is ready for
+	 * the first run that uses it.
+	 *
+	 * Usage: CompiledStyle dir style-file [style-name]
+	 */
+	public static void main(String[] args) throws FileNotFoundException {
+		if (args.length < 2) {
+			System.err.println("Usage: CompiledStyle dir style-file [style-name]");
+			System.exit(1);
+		}
+
+		String dir = args[0];
+		String loc = args[1];
+		String name = null;
+		if (args.length > 2)
+			name = args[2];
+
+		Sources sources = new Sources();
+		StyleImpl style = new StyleImpl(loc, name, sources);
+		File file = new File(dir, fileName(loc, name));
+		save(file, loc, name, style, sources);
+		System.out.println(file);
+	}
+
+	/**
+	 * Keeps track of every file that is opened when reading a style, and
+	 * makes a checksum over their contents.  The files that are asked for
+	 * but don't exist are part of the checksum too.
+	 */
+	static class Sources {
+		private final List<String[]> files = new ArrayList<String[]>();
+		private final CRC32 crc = new CRC32();
+
+		/**
+		 * Create a loader for the style in the same way as
+		 * {@link StyleFileLoader#createStyleLoader}, where all the files
+		 * that it opens are recorded.
+		 */
+		StyleFileLoader createStyleLoader(String loc, String name) throws FileNotFoundException {
+			try {
+				return new RecordingLoader(StyleFileLoader.createStyleLoader(loc, name), loc, name);
+			} catch (FileNotFoundException e) {
+				add(loc, name, null, null);
+				throw e;
+			}
+		}
+
+		List<String[]> getFiles() {
+			return files;
+		}
+
+		long getChecksum() {
+			return crc.getValue();
+		}
+
+		private void add(String loc, String name, String filename, String contents) {
+			files.add(new String[] {loc, name, filename});
+			update(loc);
+			update(name);
+			update(filename);
+			update(contents);
+		}
+
+		private void update(String s) {
+			if (s == null) {
+				crc.update(0);
+				return;
+			}
+
+			byte[] b = s.getBytes(UTF8);
+			int len = b.length;
+			crc.update(new byte[] {1, (byte) (len >> 24), (byte) (len >> 16), (byte) (len >> 8), (byte) len});
+			crc.update(b);
+		}
+
+		/**
+		 * Open the same files again, in the same order, and make the checksum
+		 * of their contents as they are now.
+		 */
+		static long checksum(String[][] files) {
+			Sources sources = new Sources();
+			Map<String, StyleFileLoader> loaders = new HashMap<String, StyleFileLoader>();
+			try {
+				for (String[] f : files) {
+					String key = f[0] + '\0' + f[1];
+					try {
+						StyleFileLoader loader = loaders.get(key);
+						if (loader == null) {
+							loader = sources.createStyleLoader(f[0], f[1]);
+							loaders.put(key, loader);
+						}
+						if (f[2] != null)
+							loader.open(f[2]);
+					} catch (FileNotFoundException e) {
+						// This has been recorded as a missing file
+					}
+				}
+			} finally {
+				for (StyleFileLoader loader : loaders.values())
+					loader.close();
+			}
+			return sources.getChecksum();
+		}
+
+		/**
+		 * Reads each file completely as it is opened, so that it can be added
+		 * to the checksum.
+		 */
+		private class RecordingLoader extends StyleFileLoader {
+			private final StyleFileLoader loader;
+			private final String loc;
+			private final String name;
+
+			RecordingLoader(StyleFileLoader loader, String loc, String name) {
+				this.loader = loader;
+				this.loc = loc;
+				this.name = name;
+			}
+
+			public Reader open(String filename) throws FileNotFoundException {
+				Reader r;
+				try {
+					r = loader.open(filename);
+				} catch (FileNotFoundException e) {
+					add(loc, name, filename, null);
+					throw e;
+				}
+
+				StringBuilder sb = new StringBuilder();
+				try {
+					char[] buf = new char[4096];
+					int n;
+					while ((n = r.read(buf)) > 0)
+						sb.append(buf, 0, n);
+					r.close();
+				} catch (IOException e) {
+					throw new ExitException("Could not read style file " + filename, e);
+				}
+
+				String contents = sb.toString();
+				add(loc, name, filename, contents);
+				return new StringReader(contents);
+			}
+
+			public void close() {
+				loader.close();
+			}
+
+			public String[] list() {
+				return loader.list();
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.mkgmap.osmstyle.actions.Action;
+import uk.me.parabola.mkgmap.osmstyle.actions.AddTagAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.DeleteAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.EchoAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.NameAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.RenameAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.SubAction;
+import uk.me.parabola.mkgmap.osmstyle.eval.AndOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.BinaryOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.EqualsOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.ExistsOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.GTEOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.GTOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.LTEOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.LTOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.LinkedOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.NotEqualOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.NotExistsOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.NotOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.osmstyle.eval.OrOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.RegexOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.ValueOp;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.Rule;
+
+import static uk.me.parabola.mkgmap.osmstyle.CompiledStyleWriter.*;
+
+/**
+ * Reads the parts of a style that were written by
+ * {@link CompiledStyleWriter}.  The objects are made with the same
+ * constructors and setters that are used when the style files are read,
+ * but without having to parse anything.
+ */
+class CompiledStyleReader extends DataInputStream {
+	// The rules and linked operations in the order they were first seen.
+	private final List<Object> refs = new ArrayList<Object>();
+
+	CompiledStyleReader(InputStream in) {
+		super(in);
+	}
+
+	String readString() throws IOException {
+		if (readBoolean())
+			return readUTF();
+		return null;
+	}
+
+	List<String> readStrings() throws IOException {
+		int n = readInt();
+		if (n < 0)
+			return null;
+
+		List<String> list = new ArrayList<String>(n);
+		for (int i = 0; i < n; i++)
+			list.add(readUTF());
+		return list;
+	}
+
+	Rule readRule() throws IOException {
+		int ref = readInt();
+		if (ref >= 0)
+			return (Rule) refs.get(ref);
+
+		// Keep the place for this rule, as ops inside it come after it
+		int slot = refs.size();
+		refs.add(null);
+
+		Rule rule;
+		int kind = readByte();
+		if (kind == EXPRESSION_RULE) {
+			Op expr = readOp();
+			rule = new ExpressionRule(expr, readType());
+		} else if (kind == ACTION_RULE) {
+			Op expr = readOp();
+			List<Action> actions = readActions();
+			rule = new ActionRule(expr, actions, readType());
+		} else {
+			throw new IOException("Unknown rule kind " + kind);
+		}
+
+		refs.set(slot, rule);
+		return rule;
+	}
+
+	Op readOp() throws IOException {
+		char type = (char) readByte();
+		if (type == 0)
+			return null;
+
+		if (type == LINKED_OP) {
+			int ref = readInt();
+			if (ref >= 0)
+				return (Op) refs.get(ref);
+
+			int slot = refs.size();
+			refs.add(null);
+
+			Op wrapped = readOp();
+			LinkedOp lop = LinkedOp.create(wrapped, readBoolean());
+			refs.set(slot, lop);
+
+			LinkedOp link = (LinkedOp) readOp();
+			if (link != null)
+				lop.setLink(link);
+			return lop;
+		}
+
+		if (type == Op.VALUE)
+			return new ValueOp(readUTF());
+
+		Op op = createOp(type);
+		op.setFirst(readOp());
+		if (op instanceof BinaryOp)
+			((BinaryOp) op).setSecond(readOp());
+		return op;
+	}
+
+	private static Op createOp(char type) throws IOException {
+		switch (type) {
+		case Op.EQUALS: return new EqualsOp();
+		case Op.NOT_EQUALS: return new NotEqualOp();
+		case Op.GT: return new GTOp();
+		case Op.GTE: return new GTEOp();
+		case Op.LT: return new LTOp();
+		case Op.LTE: return new LTEOp();
+		case Op.EXISTS: return new ExistsOp();
+		case Op.NOT_EXISTS: return new NotExistsOp();
+		case Op.AND: return new AndOp();
+		case Op.OR: return new OrOp();
+		case Op.NOT: return new NotOp();
+		case Op.REGEX: return new RegexOp();
+		default:
+			throw new IOException("Unknown operation " + type);
+		}
+	}
+
+	List<Action> readActions() throws IOException {
+		int n = readInt();
+		List<Action> actions = new ArrayList<Action>(n);
+		for (int i = 0; i < n; i++)
+			actions.add(readAction());
+		return actions;
+	}
+
+	private Action readAction() throws IOException {
+		int kind = readByte();
+		switch (kind) {
+		case ADD_TAG_ACTION:
+			String tag = readUTF();
+			boolean modify = readBoolean();
+			List<String> values = readStrings();
+			AddTagAction ata = new AddTagAction(tag, values.get(0), modify);
+			for (int i = 1; i < values.size(); i++)
+				ata.add(values.get(i));
+			return ata;
+
+		case DELETE_ACTION:
+			return new DeleteAction(readUTF());
+
+		case ECHO_ACTION:
+			return new EchoAction(readUTF());
+
+		case NAME_ACTION:
+			NameAction na = new NameAction();
+			for (String s : readStrings())
+				na.add(s);
+			return na;
+
+		case RENAME_ACTION:
+			String from = readUTF();
+			return new RenameAction(from, readUTF());
+
+		case SUB_ACTION:
+			String role = readString();
+			SubAction sa = new SubAction(role, readBoolean());
+			for (Action a : readActions())
+				sa.add(a);
+			return sa;
+
+		default:
+			throw new IOException("Unknown action " + kind);
+		}
+	}
+
+	GType readType() throws IOException {
+		if (!readBoolean())
+			return null;
+
+		int kind = readByte();
+		GType gt = new GType(kind, String.valueOf(readInt()));
+		gt.setMinResolution(readByte());
+		gt.setMaxResolution(readByte());
+		int minLevel = readInt();
+		gt.setLevels(minLevel, readInt());
+		gt.setDefaultName(readString());
+		if (readBoolean()) {
+			gt.setRoadClass(readInt());
+			gt.setRoadSpeed(readInt());
+		}
+		gt.setContinueSearch(readBoolean());
+		gt.propagateActions(readBoolean());
+		return gt;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.mkgmap.osmstyle.actions.Action;
+import uk.me.parabola.mkgmap.osmstyle.actions.AddTagAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.DeleteAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.EchoAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.NameAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.RenameAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.SubAction;
+import uk.me.parabola.mkgmap.osmstyle.actions.ValueBuilder;
+import uk.me.parabola.mkgmap.osmstyle.eval.BinaryOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.LinkedOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.Rule;
+
+/**
+ * Writes the parts of a style in the compiled form that is read back by
+ * {@link CompiledStyleReader}.
+ *
+ * Rules and linked operations can be used in more than one place.  They
+ * are written out in full the first time they are seen and after that
+ * just by number, so that they are shared in the same way when they are
+ * read.
+ */
+class CompiledStyleWriter extends DataOutputStream {
+	// Marks an operation as a LinkedOp, it is not one of the Op types.
+	static final int LINKED_OP = '@';
+
+	static final int EXPRESSION_RULE = 'E';
+	static final int ACTION_RULE = 'A';
+
+	static final int ADD_TAG_ACTION = 'a';
+	static final int DELETE_ACTION = 'd';
+	static final int ECHO_ACTION = 'e';
+	static final int NAME_ACTION = 'n';
+	static final int RENAME_ACTION = 'r';
+	static final int SUB_ACTION = 's';
+
+	private final Map<Object, Integer> refs = new IdentityHashMap<Object, Integer>();
+
+	CompiledStyleWriter(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Write a string that can be null.
+	 */
+	void writeString(String s) throws IOException {
+		writeBoolean(s != null);
+		if (s != null)
+			writeUTF(s);
+	}
+
+	/**
+	 * Write a collection of strings, the collection can be null.
+	 */
+	void writeStrings(Collection<String> list) throws IOException {
+		if (list == null) {
+			writeInt(-1);
+			return;
+		}
+
+		writeInt(list.size());
+		for (String s : list)
+			writeUTF(s);
+	}
+
+	void writeRule(Rule rule) throws IOException {
+		if (writeRef(rule))
+			return;
+
+		if (rule instanceof ExpressionRule) {
+			ExpressionRule er = (ExpressionRule) rule;
+			writeByte(EXPRESSION_RULE);
+			writeOp(er.getExpression());
+			writeType(er.getType());
+		} else if (rule instanceof ActionRule) {
+			ActionRule ar = (ActionRule) rule;
+			writeByte(ACTION_RULE);
+			writeOp(ar.getExpression());
+			writeActions(ar.getActions());
+			writeType(ar.getType());
+		} else {
+			throw new IOException("Cannot compile rule of type " + rule.getClass().getName());
+		}
+	}
+
+	/**
+	 * Write an operation and all the operations below it.  The expression
+	 * of a rule can be null.
+	 */
+	void writeOp(Op op) throws IOException {
+		if (op == null) {
+			writeByte(0);
+			return;
+		}
+
+		// Check this first, as a LinkedOp has the type of the op it wraps.
+		if (op instanceof LinkedOp) {
+			writeByte(LINKED_OP);
+			LinkedOp lop = (LinkedOp) op;
+			if (writeRef(lop))
+				return;
+			writeOp(lop.getWrapped());
+			writeBoolean(lop.isFirst());
+			writeOp(lop.getLink());
+			return;
+		}
+
+		writeByte(op.getType());
+		if (op.isType(Op.VALUE)) {
+			writeUTF(op.value());
+			return;
+		}
+
+		writeOp(op.getFirst());
+		if (op instanceof BinaryOp)
+			writeOp(((BinaryOp) op).getSecond());
+	}
+
+	void writeActions(List<Action> actions) throws IOException {
+		writeInt(actions.size());
+		for (Action a : actions)
+			writeAction(a);
+	}
+
+	private void writeAction(Action a) throws IOException {
+		if (a instanceof AddTagAction) {
+			AddTagAction ata = (AddTagAction) a;
+			writeByte(ADD_TAG_ACTION);
+			writeUTF(ata.getTag());
+			writeBoolean(ata.isModify());
+			writeValues(ata.getValues());
+		} else if (a instanceof DeleteAction) {
+			writeByte(DELETE_ACTION);
+			writeUTF(((DeleteAction) a).getTag());
+		} else if (a instanceof EchoAction) {
+			writeByte(ECHO_ACTION);
+			writeUTF(((EchoAction) a).getValue().getPattern());
+		} else if (a instanceof NameAction) {
+			writeByte(NAME_ACTION);
+			writeValues(((NameAction) a).getNames());
+		} else if (a instanceof RenameAction) {
+			RenameAction ra = (RenameAction) a;
+			writeByte(RENAME_ACTION);
+			writeUTF(ra.getFrom());
+			writeUTF(ra.getTo());
+		} else if (a instanceof SubAction) {
+			SubAction sa = (SubAction) a;
+			writeByte(SUB_ACTION);
+			writeString(sa.getRole());
+			writeBoolean(sa.isOnce());
+			writeActions(sa.getActions());
+		} else {
+			throw new IOException("Cannot compile action of type " + a.getClass().getName());
+		}
+	}
+
+	private void writeValues(List<ValueBuilder> values) throws IOException {
+		writeInt(values.size());
+		for (ValueBuilder vb : values)
+			writeUTF(vb.getPattern());
+	}
+
+	/**
+	 * Write a garmin type, which can be null.  The levels are written as
+	 * they are, so they do not have to be worked out again.
+	 */
+	void writeType(GType gt) throws IOException {
+		writeBoolean(gt != null);
+		if (gt == null)
+			return;
+
+		writeByte(gt.getFeatureKind());
+		writeInt(gt.getType());
+		writeByte(gt.getMinResolution());
+		writeByte(gt.getMaxResolution());
+		writeInt(gt.getMinLevel());
+		writeInt(gt.getMaxLevel());
+		writeString(gt.getDefaultName());
+		writeBoolean(gt.isRoad());
+		if (gt.isRoad()) {
+			writeInt(gt.getRoadClass());
+			writeInt(gt.getRoadSpeed());
+		}
+		writeBoolean(gt.isContinueSearch());
+		writeBoolean(gt.isPropagateActionsOnContinue());
+	}
+
+	/**
+	 * If the object has been written before, write its number.  Otherwise
+	 * it is given the next number and the caller has to write it out.
+	 *
+	 * @return True if the object has been written before.
+	 */
+	private boolean writeRef(Object o) throws IOException {
+		Integer n = refs.get(o);
+		if (n != null) {
+			writeInt(n);
+			return true;
+		}
+
+		refs.put(o, refs.size());
+		writeInt(-1);
+		return false;
+	}
+}
@@ -17,6 +17,7 @@
 package uk.me.parabola.mkgmap.osmstyle;
 
 import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.osmstyle.eval.TagValues;
 import uk.me.parabola.mkgmap.reader.osm.Element;
 import uk.me.parabola.mkgmap.reader.osm.GType;
 import uk.me.parabola.mkgmap.reader.osm.Rule;
@@ -42,6 +43,31 @@ public class ExpressionRule implements Rule {
 			result.add(el, gtype);
 	}
 
+	/**
+	 * Resolve the type, getting the tags from values that are shared with
+	 * the other rules that are run on the element.
+	 */
+	void resolveType(TagValues values, TypeResult result) {
+		if (expression.eval(values))
+			result.add(values.getElement(), gtype);
+	}
+
+	/**
+	 * Save the type for an element that is already known to match the
+	 * expression.
+	 */
+	void resolveMatched(Element el, TypeResult result) {
+		result.add(el, gtype);
+	}
+
+	Op getExpression() {
+		return expression;
+	}
+
+	GType getType() {
+		return gtype;
+	}
+
 	public String toString() {
 		return expression.toString() + ' ' + gtype;
 	}
@@ -59,6 +59,16 @@ public class OverlayReader {
 		this.filename = filename;
 	}
 
+	/**
+	 * Create from overlays that have already been read, when loading a
+	 * compiled style.
+	 */
+	OverlayReader(Map<Integer, List<Integer>> overlays) {
+		reader = null;
+		filename = null;
+		this.overlays.putAll(overlays);
+	}
+
 	public void readOverlays() {
 		TokenScanner ts = new TokenScanner(filename, reader);
 		while (!ts.isEndOfFile()) {
@@ -101,6 +111,10 @@ public class OverlayReader {
 		return l;
 	}
 
+	Map<Integer, List<Integer>> getOverlays() {
+		return overlays;
+	}
+
 	public void addLine(MapLine line, LineAdder adder) {
 		int origType = line.getType();
 		List<Integer> integerList = overlays.get(origType);
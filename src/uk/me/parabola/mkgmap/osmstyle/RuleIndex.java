@@ -12,9 +12,11 @@
  */
 package uk.me.parabola.mkgmap.osmstyle;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,6 +26,7 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import uk.me.parabola.mkgmap.reader.osm.Rule;
+import uk.me.parabola.mkgmap.reader.osm.TagDict;
 
 /**
  * An index to reduce the number of rules that have to be executed.
@@ -72,6 +75,10 @@ public class RuleIndex {
 	// Maps a rule number to the tags that might be changed by that rule
 	private final Map<Integer, List<String>> changeTags = new HashMap<Integer, List<String>>();
 
+	// Made by prepare(), the rules for each tag indexed by the id of its
+	// key in the TagDict.
+	private KeyRules[] keyRules = new KeyRules[0];
+
 	private boolean inited;
 
 	/**
@@ -120,32 +127,28 @@ public class RuleIndex {
 	}
 
 	/**
-	 * Get a list of rules that might be matched by this tag.
-	 * @param tagval The tag and its value eg highway=primary.
-	 * @return A list of rules, it may contain duplicates.  It appears to be
-	 * faster just to skip duplicates, rather than using sets to ensure that
-	 * there are none for example.
-	 * If there are no rules then null will be returned.
+	 * Get the rules that might be matched by this tag.  Only valid after
+	 * {@link #prepare} has been called.
+	 * @param keyId The id of the tag key in the {@link TagDict}.
+	 * @param value The tag value.
+	 * @return The rule numbers in order.  The array is shared and must not
+	 * be changed.  If there are no rules then null will be returned.
 	 */
-	public List<Integer> getRulesForTag(String tagval) {
-		List<Integer> set = null;
-		Set<Integer> integers = tagVals.get(tagval);
-		if (integers != null) {
-			set = new ArrayList<Integer>();
-			set.addAll(integers);
-		}
+	public int[] getRulesForTag(int keyId, String value) {
+		if (keyId >= keyRules.length)
+			return null;
+		KeyRules kr = keyRules[keyId];
+		if (kr == null)
+			return null;
 
-		// Need to also look up all rules that might match highway=*
-		int i = tagval.indexOf('=');
-		String s2 = tagval.substring(0, i);
-		Set<Integer> integerSet = existKeys.get(s2);
-		if (integerSet != null) {
-			if (set == null)
-				set = new ArrayList<Integer>();
-			set.addAll(integerSet);
+		if (kr.valueRules != null) {
+			int[] rules = kr.valueRules.get(value);
+			if (rules != null)
+				return rules;
 		}
 
-		return set;
+		// Nothing for this value, so just the rules that might match highway=*
+		return kr.existRules;
 	}
 
 	/**
@@ -208,9 +211,64 @@ public class RuleIndex {
 			} while (!newChanged.isEmpty());
 		}
 
+		makeRuleArrays();
 		inited = true;
 	}
 
+	/**
+	 * Save the rule numbers from the index sets as arrays by key id, so
+	 * that the lookup does not have to make any strings or copy or sort
+	 * the rule numbers.
+	 */
+	private void makeRuleArrays() {
+		TagDict dict = TagDict.getInstance();
+		Map<Integer, KeyRules> byId = new HashMap<Integer, KeyRules>();
+		int maxId = 0;
+
+		for (Map.Entry<String, Set<Integer>> ent : existKeys.entrySet()) {
+			int id = dict.xlate(ent.getKey());
+			maxId = Math.max(maxId, id);
+			KeyRules kr = new KeyRules();
+			kr.existRules = toArray(ent.getValue());
+			byId.put(id, kr);
+		}
+
+		for (Map.Entry<String, Set<Integer>> ent : tagVals.entrySet()) {
+			String tagval = ent.getKey();
+			int ind = tagval.indexOf('=');
+			String key = tagval.substring(0, ind);
+			int id = dict.xlate(key);
+			maxId = Math.max(maxId, id);
+
+			KeyRules kr = byId.get(id);
+			if (kr == null) {
+				kr = new KeyRules();
+				byId.put(id, kr);
+			}
+			if (kr.valueRules == null)
+				kr.valueRules = new HashMap<String, int[]>();
+
+			Set<Integer> rules = new TreeSet<Integer>(ent.getValue());
+			Set<Integer> exists = existKeys.get(key);
+			if (exists != null)
+				rules.addAll(exists);
+			kr.valueRules.put(tagval.substring(ind + 1), toArray(rules));
+		}
+
+		KeyRules[] arr = new KeyRules[maxId + 1];
+		for (Map.Entry<Integer, KeyRules> ent : byId.entrySet())
+			arr[ent.getKey()] = ent.getValue();
+		keyRules = arr;
+	}
+
+	private static int[] toArray(Set<Integer> set) {
+		int[] arr = new int[set.size()];
+		int n = 0;
+		for (int i : set)
+			arr[n++] = i;
+		return arr;
+	}
+
 	private void addExists(String keystring, int ruleNumber) {
 		addNumberToMap(existKeys, keystring, ruleNumber);
 	}
@@ -249,7 +307,101 @@ public class RuleIndex {
 		tags.addAll(changeableTags);
 	}
 
+	/**
+	 * The rules for one tag key.  Every rule number array is in order
+	 * and has no duplicates.
+	 */
+	private static class KeyRules {
+		// The rules for tag=*, or null if there are none
+		private int[] existRules;
+
+		// The rules for each tag=value, including the ones for tag=*
+		private Map<String, int[]> valueRules;
+	}
+
 	public List<RuleDetails> getRuleDetails() {
 		return ruleDetails;
 	}
+
+	boolean isPrepared() {
+		return inited;
+	}
+
+	/**
+	 * Write the index as part of a compiled style.  If it has been prepared
+	 * then the index sets are written as they are, so that it does not have
+	 * to be prepared again when it is read.
+	 */
+	void write(CompiledStyleWriter out) throws IOException {
+		out.writeBoolean(inited);
+		out.writeInt(ruleDetails.size());
+		for (RuleDetails rd : ruleDetails) {
+			out.writeUTF(rd.getKeystring());
+			out.writeRule(rd.getRule());
+			out.writeStrings(rd.getChangingTags());
+		}
+
+		if (inited) {
+			writeMap(out, existKeys);
+			writeMap(out, tagVals);
+			writeMap(out, tagnames);
+		}
+	}
+
+	/**
+	 * Read an index that was written by {@link #write}.  This index must
+	 * be empty.
+	 */
+	void read(CompiledStyleReader in) throws IOException {
+		boolean prepared = in.readBoolean();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			String keystring = in.readUTF();
+			Rule rule = in.readRule();
+			Set<String> changingTags = new HashSet<String>(in.readStrings());
+			RuleDetails rd = new RuleDetails(keystring, rule, changingTags);
+			if (prepared)
+				ruleDetails.add(rd);
+			else
+				addRuleToIndex(rd);
+		}
+
+		if (prepared) {
+			readMap(in, existKeys);
+			readMap(in, tagVals);
+			readMap(in, tagnames);
+			makeRuleArrays();
+			inited = true;
+		}
+	}
+
+	private static void writeMap(CompiledStyleWriter out, Map<String, Set<Integer>> map) throws IOException {
+		out.writeInt(map.size());
+		for (Map.Entry<String, Set<Integer>> ent : map.entrySet()) {
+			out.writeUTF(ent.getKey());
+			out.writeInt(ent.getValue().size());
+			for (int i : ent.getValue())
+				out.writeInt(i);
+		}
+	}
+
+	private static void readMap(CompiledStyleReader in, Map<String, Set<Integer>> map) throws IOException {
+		int size = in.readInt();
+		for (int i = 0; i < size; i++) {
+			String key = in.readUTF();
+			int n = in.readInt();
+			Set<Integer> set = new TreeSet<Integer>();
+			for (int j = 0; j < n; j++)
+				set.add(in.readInt());
+			map.put(key, set);
+		}
+	}
+
+	/**
+	 * Get the tag names that are used in the first term of any rule.  An
+	 * element that has none of these tags can never match a rule.
+	 */
+	public Set<String> getUsedTags() {
+		return Collections.unmodifiableSet(tagnames.keySet());
+	}
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.mkgmap.osmstyle.eval.BinaryOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.LinkedOp;
+import uk.me.parabola.mkgmap.osmstyle.eval.Op;
+import uk.me.parabola.mkgmap.osmstyle.eval.TagValues;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.Rule;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+
+/**
+ * The expressions of all the rules in a rule set, joined together so that
+ * a test that appears in many rules is only run once for each element.
+ *
+ * <p>The rules are still chosen by the {@link RuleIndex} and tried in order,
+ * so the first match still wins.  But each simple test such as
+ * <code>highway=*</code> or <code>access!=private</code> becomes a single
+ * shared node, whatever number of rules it appears in, and the result is
+ * remembered in the {@link State} for the element being resolved.  When a
+ * rule matches, its actions may have changed the tags, so all the
+ * remembered results are forgotten.
+ *
+ * <p>The tests get the tags from the {@link TagValues} for the element, so
+ * each tag is fetched only once, whatever number of tests look at it.
+ *
+ * <p>The AND, OR and NOT operations are not shared, they just join the
+ * shared tests together for each rule.
+ */
+class RuleNetwork {
+	private final Rule[] rules;
+
+	// The expression of each rule.  Null if the rule has no expression or
+	// it is not of a kind that we know about.
+	private final Node[] conditions;
+
+	// The shared tests, the index of each is its slot in the State
+	private final List<Op> tests = new ArrayList<Op>();
+
+	// The number of OR expressions that were split into linked rules
+	private int chainCount;
+
+	RuleNetwork(Rule[] rules) {
+		this.rules = rules;
+		conditions = new Node[rules.length];
+
+		Map<LinkedOp, Integer> chains = findChains(rules);
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		for (int i = 0; i < rules.length; i++)
+			conditions[i] = compile(expressionOf(rules[i]), slots, chains);
+	}
+
+	/**
+	 * Run a rule using the shared tests.
+	 *
+	 * @param ruleNumber The number of the rule in the rule set.
+	 * @param values The tags of the element being resolved.
+	 * @param result Where the type is saved if the rule matches.
+	 * @param state The results of the tests that have been run on this
+	 * element so far.
+	 */
+	void resolveType(int ruleNumber, TagValues values, TypeResult result, State state) {
+		Element el = values.getElement();
+		Rule rule = rules[ruleNumber];
+		Node cond = conditions[ruleNumber];
+		if (rule instanceof ExpressionRule) {
+			if (cond.eval(values, state))
+				((ExpressionRule) rule).resolveMatched(el, result);
+		} else if (rule instanceof ActionRule) {
+			if (cond == null || cond.eval(values, state))
+				((ActionRule) rule).resolveMatched(el, result);
+		} else {
+			rule.resolveType(el, result);
+		}
+	}
+
+	int getTestCount() {
+		return tests.size();
+	}
+
+	private static Op expressionOf(Rule rule) {
+		if (rule instanceof ExpressionRule)
+			return ((ExpressionRule) rule).getExpression();
+		else if (rule instanceof ActionRule)
+			return ((ActionRule) rule).getExpression();
+		return null;
+	}
+
+	/**
+	 * Give every OR expression that was split into separate rules a number,
+	 * so that once one of its parts has matched, the others can be skipped.
+	 */
+	private Map<LinkedOp, Integer> findChains(Rule[] rules) {
+		Map<LinkedOp, Integer> chains = new IdentityHashMap<LinkedOp, Integer>();
+		for (Rule rule : rules) {
+			Op op = expressionOf(rule);
+			if (op instanceof LinkedOp && ((LinkedOp) op).isFirst()) {
+				int id = chainCount++;
+				for (LinkedOp lop = (LinkedOp) op; lop != null; lop = lop.getLink())
+					chains.put(lop, id);
+			}
+		}
+		return chains;
+	}
+
+	private Node compile(Op op, Map<String, Integer> slots, Map<LinkedOp, Integer> chains) {
+		if (op == null)
+			return null;
+
+		// Check this first, as a LinkedOp has the type of the op it wraps.
+		if (op instanceof LinkedOp) {
+			LinkedOp lop = (LinkedOp) op;
+			Integer id = chains.get(lop);
+			if (id == null) {
+				id = chainCount++;
+				chains.put(lop, id);
+			}
+			return new LinkNode(id, compile(lop.getWrapped(), slots, chains));
+		}
+
+		switch (op.getType()) {
+		case Op.AND:
+			return new AndNode(compile(op.getFirst(), slots, chains),
+					compile(((BinaryOp) op).getSecond(), slots, chains));
+		case Op.OR:
+			return new OrNode(compile(op.getFirst(), slots, chains),
+					compile(((BinaryOp) op).getSecond(), slots, chains));
+		case Op.NOT:
+			return new NotNode(compile(op.getFirst(), slots, chains));
+		default:
+			String key = testKey(op);
+			Integer slot = slots.get(key);
+			if (slot == null) {
+				slot = tests.size();
+				tests.add(op);
+				slots.put(key, slot);
+			}
+			return new TestNode(slot, tests.get(slot));
+		}
+	}
+
+	/**
+	 * A string that is the same for two tests only if they test the
+	 * same thing.
+	 */
+	private static String testKey(Op op) {
+		StringBuilder sb = new StringBuilder();
+		appendKey(sb, op);
+		return sb.toString();
+	}
+
+	private static void appendKey(StringBuilder sb, Op op) {
+		sb.append(op.getType());
+		if (op.isType(Op.VALUE)) {
+			sb.append(op.value()).append('\0');
+			return;
+		}
+
+		appendKey(sb, op.getFirst());
+		if (op instanceof BinaryOp)
+			appendKey(sb, ((BinaryOp) op).getSecond());
+	}
+
+	/**
+	 * The results of the tests for the element that is being resolved.
+	 * One is kept for each thread along with the rule candidates.
+	 *
+	 * Instead of clearing the arrays for each element, the results are
+	 * marked with a number that is changed whenever they become out of date.
+	 */
+	static class State {
+		private int[] testStamp = new int[0];
+		private boolean[] testResult = new boolean[0];
+		private int generation = 1;
+
+		private int[] chainStamp = new int[0];
+		private int element = 1;
+
+		/**
+		 * Start on a new element.
+		 */
+		void reset(RuleNetwork network) {
+			if (testStamp.length < network.tests.size()) {
+				testStamp = new int[network.tests.size()];
+				testResult = new boolean[network.tests.size()];
+			}
+			if (chainStamp.length < network.chainCount)
+				chainStamp = new int[network.chainCount];
+
+			tagsChanged();
+			if (++element == 0) {
+				Arrays.fill(chainStamp, 0);
+				element = 1;
+			}
+		}
+
+		/**
+		 * The tags of the element may have been changed, so none of the
+		 * saved test results can be used any more.
+		 */
+		void tagsChanged() {
+			if (++generation == 0) {
+				Arrays.fill(testStamp, 0);
+				generation = 1;
+			}
+		}
+	}
+
+	private abstract static class Node {
+		abstract boolean eval(TagValues values, State state);
+	}
+
+	/**
+	 * A shared test.  The test is only run the first time it is needed for
+	 * an element.
+	 */
+	private static class TestNode extends Node {
+		private final int slot;
+		private final Op op;
+
+		TestNode(int slot, Op op) {
+			this.slot = slot;
+			this.op = op;
+		}
+
+		boolean eval(TagValues values, State state) {
+			if (state.testStamp[slot] == state.generation)
+				return state.testResult[slot];
+
+			boolean b = op.eval(values);
+			state.testStamp[slot] = state.generation;
+			state.testResult[slot] = b;
+			return b;
+		}
+	}
+
+	private static class AndNode extends Node {
+		private final Node first;
+		private final Node second;
+
+		AndNode(Node first, Node second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		boolean eval(TagValues values, State state) {
+			return first.eval(values, state) && second.eval(values, state);
+		}
+	}
+
+	private static class OrNode extends Node {
+		private final Node first;
+		private final Node second;
+
+		OrNode(Node first, Node second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		boolean eval(TagValues values, State state) {
+			return first.eval(values, state) || second.eval(values, state);
+		}
+	}
+
+	private static class NotNode extends Node {
+		private final Node first;
+
+		NotNode(Node first) {
+			this.first = first;
+		}
+
+		boolean eval(TagValues values, State state) {
+			return !first.eval(values, state);
+		}
+	}
+
+	/**
+	 * One part of an OR expression that was split into several rules, see
+	 * {@link LinkedOp}.  Once any part has matched the element, the others
+	 * are false.
+	 */
+	private static class LinkNode extends Node {
+		private final int chain;
+		private final Node wrapped;
+
+		LinkNode(int chain, Node wrapped) {
+			this.chain = chain;
+			this.wrapped = wrapped;
+		}
+
+		boolean eval(TagValues values, State state) {
+			if (state.chainStamp[chain] == state.element)
+				return false;
+
+			boolean b = wrapped.eval(values, state);
+			if (b)
+				state.chainStamp[chain] = state.element;
+			return b;
+		}
+	}
+}
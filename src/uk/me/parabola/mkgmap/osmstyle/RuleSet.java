@@ -16,15 +16,18 @@
  */
 package uk.me.parabola.mkgmap.osmstyle;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import uk.me.parabola.mkgmap.osmstyle.eval.TagValues;
 import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
 import uk.me.parabola.mkgmap.reader.osm.Rule;
+import uk.me.parabola.mkgmap.reader.osm.TagVisitor;
 import uk.me.parabola.mkgmap.reader.osm.TypeResult;
 import uk.me.parabola.mkgmap.reader.osm.WatchableTypeResult;
 
@@ -40,6 +43,18 @@ public class RuleSet implements Rule, Iterable<Rule> {
 
 	private RuleIndex index = new RuleIndex();
 
+	// Shares the tests between the rules, null unless makeNetwork is called
+	private RuleNetwork network;
+
+	// The types found for each set of tags, null unless makeCache is called
+	private TypeCache cache;
+
+	private static final ThreadLocal<Candidates> candidates = new ThreadLocal<Candidates>() {
+		protected Candidates initialValue() {
+			return new Candidates();
+		}
+	};
+
 	/**
 	 * Resolve the type for this element by running the rules in order.
 	 *
@@ -53,29 +68,108 @@ public class RuleSet implements Rule, Iterable<Rule> {
 	 * be saved.
 	 */
 	public void resolveType(Element el, TypeResult result) {
-		WatchableTypeResult a = new WatchableTypeResult(result);
-
-		// Get all the rules that could match from the index.  The list
-		// could contain duplicates.
-		List<Integer> candidates = new ArrayList<Integer>();
-		for (String s : el) {
-			List<Integer> integerSet = index.getRulesForTag(s);
-			if (integerSet != null)
-				candidates.addAll(integerSet);
+		TypeCache c = cache;
+		if (c == null) {
+			resolve(el, result);
+			return;
+		}
+
+		TypeCache.TagSet tags = new TypeCache.TagSet(el);
+		GType[] types = c.get(tags);
+		if (types != null) {
+			for (GType type : types)
+				result.add(el, type);
+			return;
+		}
+
+		final List<GType> found = new ArrayList<GType>();
+		final TypeResult next = result;
+		boolean tagsOnly = resolve(el, new TypeResult() {
+			public void add(Element el, GType type) {
+				found.add(type);
+				next.add(el, type);
+			}
+		});
+		if (tagsOnly)
+			c.put(tags, found);
+		else
+			c.notSaved();
+	}
+
+	/**
+	 * Run the rules for the element.
+	 * @return True if the result depends only on the tags of the element,
+	 * that is no rule with actions was matched.
+	 */
+	private boolean resolve(Element el, TypeResult result) {
+		Candidates cand = candidates.get();
+		if (cand.inUse) {
+			// A type result has resolved another element on this thread
+			cand = new Candidates();
 		}
-		Collections.sort(candidates);
-
-		int lastNum = -1;
-		for (Integer i : candidates) {
-			// Filter any duplicates here
-			if (i == lastNum)
-				continue;
-			lastNum = i;
-
-			a.reset();
-			rules[i].resolveType(el, a);
-			if (a.isResolved())
-				return;
+
+		cand.inUse = true;
+		try {
+			// Get the rule lists for each tag from the index, the rules
+			// are taken from them in order by Candidates.next().
+			cand.clear();
+			cand.index = index;
+			el.visitTags(cand);
+
+			boolean tagsOnly = true;
+			WatchableTypeResult a = new WatchableTypeResult(result);
+			RuleNetwork net = network;
+
+			// The tag values are shared by the rules, so that each tag
+			// is only fetched once.
+			TagValues values = cand.values;
+			values.setElement(el);
+			if (net == null) {
+				for (int i = cand.next(); i >= 0; i = cand.next()) {
+					a.reset();
+					Rule rule = rules[i];
+					if (rule instanceof ExpressionRule) {
+						((ExpressionRule) rule).resolveType(values, a);
+					} else if (rule instanceof ActionRule) {
+						((ActionRule) rule).resolveType(values, a);
+					} else {
+						rule.resolveType(el, a);
+						values.clear();
+					}
+					if (a.isFound() || a.isActionsOnly()) {
+						if (!(rule instanceof ExpressionRule))
+							tagsOnly = false;
+						if (a.isResolved())
+							break;
+
+						// The actions may have changed the tags.
+						values.clear();
+					}
+				}
+			} else {
+				RuleNetwork.State state = cand.state;
+				state.reset(net);
+				for (int i = cand.next(); i >= 0; i = cand.next()) {
+					a.reset();
+					net.resolveType(i, values, a, state);
+					if (a.isFound() || a.isActionsOnly()) {
+						if (!(rules[i] instanceof ExpressionRule))
+							tagsOnly = false;
+						if (a.isResolved())
+							break;
+
+						// The actions, or whatever the result did with the
+						// element, may have changed the tags.
+						state.tagsChanged();
+						values.clear();
+					}
+				}
+			}
+			return tagsOnly;
+		} finally {
+			cand.index = null;
+			cand.values.setElement(null);
+			cand.inUse = false;
 		}
 	}
 
@@ -135,6 +229,95 @@ public class RuleSet implements Rule, Iterable<Rule> {
 
 		index = newIndex;
 		rules = newIndex.getRules();
+		network = null;
+		cache = null;
+	}
+
+	/**
+	 * Get the tag names that can cause any of the rules in this set to be
+	 * tried.  If an element has none of them then it will never match.
+	 */
+	public Set<String> getUsedTags() {
+		return index.getUsedTags();
+	}
+
+	/**
+	 * The rule lists for the tags of the element being resolved, and how far
+	 * through each one we have got.  One is kept for each thread so that
+	 * nothing has to be allocated for each element.
+	 */
+	private static class Candidates implements TagVisitor {
+		private RuleIndex index;
+		private int[][] lists = new int[16][];
+		private int[] pos = new int[16];
+		private int size;
+		private boolean inUse;
+		private final TagValues values = new TagValues();
+		private final RuleNetwork.State state = new RuleNetwork.State();
+
+		void clear() {
+			for (int i = 0; i < size; i++)
+				lists[i] = null;
+			size = 0;
+		}
+
+		public void visit(int keyId, String value) {
+			int[] rulesForTag = index.getRulesForTag(keyId, value);
+			if (rulesForTag != null)
+				add(rulesForTag);
+		}
+
+		void add(int[] list) {
+			if (size == lists.length) {
+				int[][] newLists = new int[size * 2][];
+				System.arraycopy(lists, 0, newLists, 0, size);
+				lists = newLists;
+				int[] newPos = new int[size * 2];
+				System.arraycopy(pos, 0, newPos, 0, size);
+				pos = newPos;
+			}
+			lists[size] = list;
+			pos[size++] = 0;
+		}
+
+		/**
+		 * Get the lowest rule number that has not been returned yet from
+		 * any of the lists.  A rule that is in several lists is only
+		 * returned once.
+		 * @return The rule number, or -1 when there are no more.
+		 */
+		int next() {
+			int min = Integer.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				if (pos[i] < lists[i].length && lists[i][pos[i]] < min)
+					min = lists[i][pos[i]];
+			}
+			if (min == Integer.MAX_VALUE)
+				return -1;
+
+			for (int i = 0; i < size; i++) {
+				if (pos[i] < lists[i].length && lists[i][pos[i]] == min)
+					pos[i]++;
+			}
+			return min;
+		}
+	}
+
+	/**
+	 * Write this rule set as part of a compiled style.
+	 */
+	void write(CompiledStyleWriter out) throws IOException {
+		index.write(out);
+	}
+
+	/**
+	 * Read the rules of a compiled style into this empty rule set.  If the
+	 * rule set was prepared when it was written, then it is ready to use.
+	 */
+	void read(CompiledStyleReader in) throws IOException {
+		index.read(in);
+		if (index.isPrepared())
+			rules = index.getRules();
 	}
 
 	/**
@@ -145,4 +328,35 @@ public class RuleSet implements Rule, Iterable<Rule> {
 		index.prepare();
 		rules = index.getRules();
 	}
+
+	/**
+	 * Join the rules into a {@link RuleNetwork}, so that a test that is
+	 * used in several rules is only run once for each element.  The rules
+	 * are matched in the same way as without it.
+	 */
+	public void makeNetwork() {
+		if (rules == null)
+			prepare();
+		if (network == null)
+			network = new RuleNetwork(rules);
+	}
+
+	/**
+	 * Remember the types that are found for each set of tags, so that
+	 * elements with the same tags as an earlier one do not have to be
+	 * matched against the rules again.
+	 * @param size The largest number of tag sets to remember.
+	 */
+	public void makeCache(int size) {
+		if (cache == null)
+			cache = new TypeCache(size);
+	}
+
+	/**
+	 * Get the type cache, so that its hit rate can be reported.
+	 * @return The cache, or null if there isn't one.
+	 */
+	public TypeCache getCache() {
+		return cache;
+	}
 }
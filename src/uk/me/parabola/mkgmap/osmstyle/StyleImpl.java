@@ -27,6 +27,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -93,6 +94,9 @@ public class StyleImpl implements Style {
 	private final StyleFileLoader fileLoader;
 	private final String location;
 
+	// If set, all the files that are read for the style are recorded here.
+	private final CompiledStyle.Sources sources;
+
 	// The general information in the 'info' file.
 	private StyleInfo info = new StyleInfo();
 
@@ -112,6 +116,21 @@ public class StyleImpl implements Style {
 
 	private OverlayReader overlays;
 
+	// The prepared rules, made the first time they are asked for
+	private RuleSet wayRules;
+	private boolean nodesPrepared;
+	private boolean relationsPrepared;
+
+	// Set to join the rules into a RuleNetwork when they are prepared
+	private boolean ruleNetwork;
+
+	// The size of the type cache for the node and way rules, 0 for none
+	private int typeCacheSize;
+
+	// Styles that have been read by readStyle, so that they can be used by
+	// all the tiles.
+	private static final Map<String, Style> styleCache = new HashMap<String, Style>();
+
 	/**
 	 * Create a style from the given location and name.
 	 * @param loc The location of the style. Can be null to mean just check
@@ -122,8 +141,22 @@ public class StyleImpl implements Style {
 	 * include the version file being missing.
 	 */
 	public StyleImpl(String loc, String name) throws FileNotFoundException {
+		this(loc, name, null);
+	}
+
+	/**
+	 * Create a style, recording the files that are read so that it can be
+	 * saved as a compiled style.
+	 * @param sources The record of the files, or null if there is no need
+	 * to know.
+	 */
+	StyleImpl(String loc, String name, CompiledStyle.Sources sources) throws FileNotFoundException {
 		location = loc;
-		fileLoader = StyleFileLoader.createStyleLoader(loc, name);
+		this.sources = sources;
+		if (sources == null)
+			fileLoader = StyleFileLoader.createStyleLoader(loc, name);
+		else
+			fileLoader = sources.createStyleLoader(loc, name);
 
 		// There must be a version file, if not then we don't create the style.
 		checkVersion();
@@ -144,6 +177,104 @@ public class StyleImpl implements Style {
 			mergeRules(baseStyle);
 	}
 
+	/**
+	 * Create a style from its compiled form, which was written by
+	 * {@link #write}.  Its rules are already prepared.
+	 */
+	StyleImpl(String loc, CompiledStyleReader in) throws IOException {
+		location = loc;
+		fileLoader = null;
+		sources = null;
+
+		info.setVersion(in.readString());
+		info.setSummary(in.readString());
+		info.setLongDescription(in.readString());
+		String baseName = in.readString();
+		if (baseName != null)
+			info.setBaseStyleName(baseName);
+
+		List<String> names = in.readStrings();
+		if (names != null)
+			nameTagList = names.toArray(new String[names.size()]);
+
+		int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			generalOptions.put(in.readUTF(), in.readUTF());
+
+		n = in.readInt();
+		if (n >= 0) {
+			Map<Integer, List<Integer>> map = new HashMap<Integer, List<Integer>>();
+			for (int i = 0; i < n; i++) {
+				int type = in.readInt();
+				List<Integer> replacements = new ArrayList<Integer>();
+				for (int j = in.readInt(); j > 0; j--)
+					replacements.add(in.readInt());
+				map.put(type, replacements);
+			}
+			overlays = new OverlayReader(map);
+		}
+
+		lines.read(in);
+		polygons.read(in);
+		nodes.read(in);
+		relations.read(in);
+		wayRules = new RuleSet();
+		wayRules.read(in);
+
+		nodesPrepared = true;
+		relationsPrepared = true;
+	}
+
+	/**
+	 * Get the style for the given location and name with the command line
+	 * options applied.  The style is only read the first time it is asked
+	 * for, after that the same one is returned, so all the tiles that are
+	 * made in a run share one style.  It is not changed after it is made,
+	 * so it can be used by any number of threads.
+	 *
+	 * If the style-cache option is given, then the style is loaded from a
+	 * compiled copy in that directory, see {@link CompiledStyle}.
+	 *
+	 * @param loc The location of the style, can be null.
+	 * @param name The name of the style, can be null if loc isn't.
+	 * @param config The command line options, the ones that can override
+	 * the style are part of the key for the cache.
+	 * @throws FileNotFoundException If the style doesn't exist.
+	 */
+	public static Style readStyle(String loc, String name, Properties config)
+			throws FileNotFoundException
+	{
+		StringBuilder key = new StringBuilder();
+		key.append(loc).append('\0').append(name);
+		key.append('\0').append(config.getProperty("name-tag-list"));
+		key.append('\0').append(config.containsKey("style-rule-network"));
+		key.append('\0').append(config.getProperty("style-type-cache"));
+		for (String opt : OPTION_LIST) {
+			if (!DONT_OVERRIDE.contains(opt))
+				key.append('\0').append(config.getProperty(opt));
+		}
+
+		synchronized (styleCache) {
+			Style style = styleCache.get(key.toString());
+			if (style == null) {
+				String cacheDir = config.getProperty("style-cache");
+				StyleImpl si;
+				if (cacheDir == null)
+					si = new StyleImpl(loc, name);
+				else
+					si = CompiledStyle.getStyle(cacheDir, loc, name);
+				si.applyOptionOverride(config);
+				si.ruleNetwork = config.containsKey("style-rule-network");
+				String cacheSize = config.getProperty("style-type-cache");
+				if (cacheSize != null)
+					si.typeCacheSize = cacheSize.length() > 0 ? Integer.parseInt(cacheSize) : 50000;
+				style = si;
+				styleCache.put(key.toString(), style);
+			}
+			return style;
+		}
+	}
+
 	public String[] getNameTagList() {
 		return nameTagList;
 	}
@@ -187,24 +318,57 @@ public class StyleImpl implements Style {
 		}
 	}
 
-	public Rule getNodeRules() {
-		nodes.prepare();
+	public synchronized Rule getNodeRules() {
+		if (!nodesPrepared) {
+			nodes.prepare();
+			nodesPrepared = true;
+		}
+		if (ruleNetwork)
+			nodes.makeNetwork();
+		if (typeCacheSize > 0)
+			nodes.makeCache(typeCacheSize);
 		return nodes;
 	}
 
-	public Rule getWayRules() {
-		RuleSet r = new RuleSet();
-		r.addAll(lines);
-		r.addAll(polygons);
-		r.prepare();
-		return r;
+	public synchronized Rule getWayRules() {
+		if (wayRules == null) {
+			RuleSet r = new RuleSet();
+			r.addAll(lines);
+			r.addAll(polygons);
+			r.prepare();
+			wayRules = r;
+		}
+		if (ruleNetwork)
+			wayRules.makeNetwork();
+		if (typeCacheSize > 0)
+			wayRules.makeCache(typeCacheSize);
+		return wayRules;
 	}
 
-	public Rule getRelationRules() {
-		relations.prepare();
+	public synchronized Rule getRelationRules() {
+		if (!relationsPrepared) {
+			relations.prepare();
+			relationsPrepared = true;
+		}
+		if (ruleNetwork)
+			relations.makeNetwork();
 		return relations;
 	}
 
+	public Set<String> getUsedWayTags() {
+		Set<String> used = new HashSet<String>();
+		used.addAll(lines.getUsedTags());
+		used.addAll(polygons.getUsedTags());
+
+		// The name tags are copied to the name tag before the rules are run
+		if (nameTagList != null && used.contains("name"))
+			used.addAll(Arrays.asList(nameTagList));
+
+		// Types can be given directly without using the rules
+		used.add("mkgmap:gtype");
+		return used;
+	}
+
 	public LineAdder getOverlays(final LineAdder lineAdder) {
 		LineAdder adder = null;
 
@@ -448,7 +612,7 @@ public class StyleImpl implements Style {
 			return;
 
 		try {
-			baseStyle = new StyleImpl(location, name);
+			baseStyle = new StyleImpl(location, name, sources);
 		} catch (SyntaxException e) {
 			System.err.println("Error in style: " + e.getMessage());
 		} catch (FileNotFoundException e) {
@@ -458,7 +622,7 @@ public class StyleImpl implements Style {
 			log.debug("could not open base style file", e);
 
 			try {
-				baseStyle = new StyleImpl(null, name);
+				baseStyle = new StyleImpl(null, name, sources);
 			} catch (SyntaxException se) {
 				System.err.println("Error in style: " + se.getMessage());
 			} catch (FileNotFoundException e1) {
@@ -523,6 +687,49 @@ public class StyleImpl implements Style {
 		}
 	}
 
+	/**
+	 * Write the style in its compiled form, with the rules prepared, so
+	 * that it can be loaded again without reading the style files.  This
+	 * is done before the command line options are applied.
+	 */
+	void write(CompiledStyleWriter out) throws IOException {
+		getNodeRules();
+		getWayRules();
+		getRelationRules();
+
+		out.writeString(info.getVersion());
+		out.writeString(info.getSummary());
+		out.writeString(info.getLongDescription());
+		out.writeString(info.getBaseStyleName());
+
+		out.writeStrings(nameTagList == null ? null : Arrays.asList(nameTagList));
+
+		out.writeInt(generalOptions.size());
+		for (Map.Entry<String, String> ent : generalOptions.entrySet()) {
+			out.writeUTF(ent.getKey());
+			out.writeUTF(ent.getValue());
+		}
+
+		if (overlays == null) {
+			out.writeInt(-1);
+		} else {
+			Map<Integer, List<Integer>> map = overlays.getOverlays();
+			out.writeInt(map.size());
+			for (Map.Entry<Integer, List<Integer>> ent : map.entrySet()) {
+				out.writeInt(ent.getKey());
+				out.writeInt(ent.getValue().size());
+				for (int type : ent.getValue())
+					out.writeInt(type);
+			}
+		}
+
+		lines.write(out);
+		polygons.write(out);
+		nodes.write(out);
+		relations.write(out);
+		wayRules.write(out);
+	}
+
 	/**
 	 * Writes out this file to the given writer in the single file format.
 	 * This produces a valid style file, although it is mostly used
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+
+/**
+ * Runs the style rules on a number of worker threads, while the results
+ * are passed on to the map in the same order as the elements were given.
+ *
+ * Elements are gathered into batches, and each batch is styled on one of
+ * the workers.  The batches that are waiting or being styled are held in
+ * a queue of limited length, when it is full the oldest batch is waited
+ * for and its results are collected on the calling thread.  So only the
+ * rule matching is done in parallel; everything that adds to the map is
+ * done by the calling thread in exactly the order it would be done
+ * without the pipeline, and the map is the same.
+ *
+ * The styling of an element must only change that element (or copies of
+ * it), which is true of the style rules.
+ */
+class StylePipeline {
+	private static final int BATCH_SIZE = 256;
+
+	private final Styler styler;
+	private final TypeResult collector;
+	private final ExecutorService workers;
+	private final int maxPending;
+
+	private final LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+	private Batch current = new Batch();
+
+	/**
+	 * The part of the conversion that runs on the workers.
+	 */
+	interface Styler {
+		/**
+		 * Work out the types of an element.
+		 *
+		 * @param el The element to style.
+		 * @param result Each resolved element and type is added here.
+		 */
+		public void style(Element el, TypeResult result);
+	}
+
+	/**
+	 * @param styler Styles the elements, it is called from the workers.
+	 * @param collector Takes the results, it is always called from the
+	 * thread that uses the pipeline.
+	 * @param nThreads The number of workers.
+	 */
+	StylePipeline(Styler styler, TypeResult collector, int nThreads) {
+		this.styler = styler;
+		this.collector = collector;
+		this.maxPending = nThreads * 4;
+
+		workers = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "style");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Add an element to be styled.  Its results will be collected after
+	 * those of every element that was added before it.
+	 */
+	public void add(Element el) {
+		current.elements.add(el);
+		if (current.elements.size() >= BATCH_SIZE)
+			submit();
+	}
+
+	/**
+	 * Wait for all the elements that have been added so far and collect
+	 * their results.
+	 */
+	public void flush() {
+		if (!current.elements.isEmpty())
+			submit();
+		while (!pending.isEmpty())
+			collectNext();
+	}
+
+	/**
+	 * Collect everything that is outstanding and stop the workers.
+	 */
+	public void shutdown() {
+		try {
+			flush();
+		} finally {
+			workers.shutdown();
+		}
+	}
+
+	private void submit() {
+		if (pending.size() >= maxPending)
+			collectNext();
+
+		final Batch batch = current;
+		current = new Batch();
+		pending.add(workers.submit(new Callable<Batch>() {
+			public Batch call() {
+				batch.style(styler);
+				return batch;
+			}
+		}));
+	}
+
+	private void collectNext() {
+		Batch batch;
+		try {
+			batch = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted while styling", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		}
+
+		List<Element> els = batch.resultElements;
+		List<GType> types = batch.resultTypes;
+		for (int i = 0, n = els.size(); i < n; i++)
+			collector.add(els.get(i), types.get(i));
+	}
+
+	/**
+	 * A group of elements that are styled together, and their results in
+	 * order.
+	 */
+	private static class Batch implements TypeResult {
+		private final List<Element> elements = new ArrayList<Element>(BATCH_SIZE);
+		private final List<Element> resultElements = new ArrayList<Element>(BATCH_SIZE);
+		private final List<GType> resultTypes = new ArrayList<GType>(BATCH_SIZE);
+
+		void style(Styler styler) {
+			for (Element el : elements)
+				styler.style(el, this);
+		}
+
+		public void add(Element el, GType type) {
+			resultElements.add(el);
+			resultTypes.add(type);
+		}
+	}
+}
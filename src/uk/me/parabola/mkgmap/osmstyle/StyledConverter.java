@@ -31,7 +31,6 @@ import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.imgfmt.app.CoordNode;
 import uk.me.parabola.imgfmt.app.Exit;
 import uk.me.parabola.imgfmt.app.Label;
-import uk.me.parabola.imgfmt.app.net.NODHeader;
 import uk.me.parabola.imgfmt.app.trergn.ExtTypeAttributes;
 import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.filters.LineSizeSplitterFilter;
@@ -154,6 +153,19 @@ public class StyledConverter implements OsmConverter {
 		}
 	};
 
+	// Takes the results of styling a node or way and adds them to the map
+	private final TypeResult elementAdder = new TypeResult() {
+		public void add(Element el, GType type) {
+			if (el instanceof Way)
+				addConvertedWay((Way) el, type);
+			else
+				addPoint((Node) el, type);
+		}
+	};
+
+	// Runs the rules on other threads when style-threads is given, else null
+	private StylePipeline pipeline;
+
 	public StyledConverter(Style style, MapCollector collector, Properties props) {
 		this.collector = collector;
 
@@ -163,13 +175,28 @@ public class StyledConverter implements OsmConverter {
 		relationRules = style.getRelationRules();
 		ignoreMaxspeeds = props.getProperty("ignore-maxspeeds") != null;
 		driveOnLeft = props.getProperty("drive-on-left") != null;
-		NODHeader.setDriveOnLeft(driveOnLeft);
+		collector.setDriveOnLeft(driveOnLeft);
 		driveOnRight = props.getProperty("drive-on-right") != null;
 		checkRoundabouts = props.getProperty("check-roundabouts") != null;
 
 		LineAdder overlayAdder = style.getOverlays(lineAdder);
 		if (overlayAdder != null)
 			lineAdder = overlayAdder;
+
+		String threads = props.getProperty("style-threads");
+		if (threads != null) {
+			int nThreads = threads.length() > 0 ? Integer.parseInt(threads)
+					: Runtime.getRuntime().availableProcessors();
+			if (nThreads > 1)
+				pipeline = new StylePipeline(new StylePipeline.Styler() {
+					public void style(Element el, TypeResult result) {
+						if (el instanceof Way)
+							styleWay((Way) el, result);
+						else
+							styleNode((Node) el, result);
+					}
+				}, elementAdder, nThreads);
+		}
 	}
 
 	private static final Pattern commaPattern = Pattern.compile(",");
@@ -262,7 +289,19 @@ public class StyledConverter implements OsmConverter {
 	 *
 	 * @param way The OSM way.
 	 */
-	public void convertWay(final Way way) {
+	public void convertWay(Way way) {
+		if (pipeline != null)
+			pipeline.add(way);
+		else
+			styleWay(way, elementAdder);
+	}
+
+	/**
+	 * Run the rules on a way, passing each type that it resolves to on
+	 * to the result.  This does not change anything except the way and
+	 * so it can be run on any thread.
+	 */
+	private void styleWay(final Way way, final TypeResult result) {
 		if (way.getPoints().size() < 2)
 			return;
 
@@ -270,7 +309,7 @@ public class StyledConverter implements OsmConverter {
 			GType foundType = makeGTypeFromTags(way);
 			if(foundType == null)
 				return;
-			addConvertedWay(way, foundType);
+			result.add(way, foundType);
 			return;
 		}
 
@@ -287,7 +326,7 @@ public class StyledConverter implements OsmConverter {
 					// originalWay.put(el, way);
 				}
 				postConvertRules(el, type);
-				addConvertedWay((Way) el, type);
+				result.add(el, type);
 			}
 		});
 	}
@@ -310,14 +349,23 @@ public class StyledConverter implements OsmConverter {
 	 *
 	 * @param node The node to convert.
 	 */
-	public void convertNode(final Node node) {
+	public void convertNode(Node node) {
+		if (pipeline != null)
+			pipeline.add(node);
+		else
+			styleNode(node, elementAdder);
+	}
 
+	/**
+	 * Run the rules on a node, as {@link #styleWay} does for ways.
+	 */
+	private void styleNode(final Node node, final TypeResult result) {
 		if(node.getTag("mkgmap:gtype") != null) {
 			GType foundType = makeGTypeFromTags(node);
 			if(foundType == null)
 				return;
 
-			addPoint(node, foundType);
+			result.add(node, foundType);
 			return;
 		}
 
@@ -334,7 +382,7 @@ public class StyledConverter implements OsmConverter {
 					// originalWay.put(el, way);
 				}
 				postConvertRules(el, type);
-				addPoint((Node) el, type);
+				result.add(el, type);
 			}
 		});
 	}
@@ -382,7 +430,28 @@ public class StyledConverter implements OsmConverter {
 		this.bbox = bbox;
 	}
 
+	/**
+	 * Report how well the type cache is working, if there is one.  It is
+	 * shared by all the maps that use the style, so the numbers include
+	 * the maps that have been made before this one.
+	 */
+	private static void reportCache(String kind, Rule rules) {
+		if (rules instanceof RuleSet) {
+			TypeCache cache = ((RuleSet) rules).getCache();
+			if (cache != null)
+				log.info(kind, "rules", cache);
+		}
+	}
+
 	public void end() {
+		if (pipeline != null) {
+			pipeline.shutdown();
+			pipeline = null;
+		}
+
+		reportCache("way", wayRules);
+		reportCache("node", nodeRules);
+
 		Collection<List<RestrictionRelation>> lists = restrictions.values();
 		for (List<RestrictionRelation> l : lists) {
 
@@ -444,6 +513,10 @@ public class StyledConverter implements OsmConverter {
 	 * @param relation The relation to convert.
 	 */
 	public void convertRelation(Relation relation) {
+		// The relation rules can change the tags of the members
+		if (pipeline != null)
+			pipeline.flush();
+
 		// Relations never resolve to a GType and so we ignore the return
 		// value.
 		relationRules.resolveType(relation, TypeResult.NULL_RESULT);
@@ -500,6 +573,9 @@ public class StyledConverter implements OsmConverter {
 	}
 
 	private void addShape(Way way, GType gt) {
+		// the shape keeps the points
+		way.unpackPoints();
+
 		final MapShape shape = new MapShape();
 		elementSetup(shape, gt, way);
 		shape.setPoints(way.getPoints());
@@ -680,6 +756,8 @@ public class StyledConverter implements OsmConverter {
 	}
 
 	void addRoad(Way way, GType gt) {
+		// the points are changed and must keep their identity
+		way.unpackPoints();
 
 		String oneWay = way.getTag("oneway");
 		if("-1".equals(oneWay) || "reverse".equals(oneWay)) {
@@ -734,7 +812,7 @@ public class StyledConverter implements OsmConverter {
 							if(clockwise) {
 								log.info("Roundabout " + way.getId() + " is clockwise so assuming vehicles should drive on left side of road (" + centre.toOSMURL() + ")");
 								driveOnLeft = true;
-								NODHeader.setDriveOnLeft(true);
+								collector.setDriveOnLeft(true);
 							}
 							else {
 								log.info("Roundabout " + way.getId() + " is anti-clockwise so assuming vehicles should drive on right side of road (" + centre.toOSMURL() + ")");
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.TagVisitor;
+
+/**
+ * Remembers the types that a rule set gave for each set of tags, so that
+ * the next element with exactly the same tags does not have to go through
+ * the rules again.  Many ways have the same tags, for example just
+ * building=yes or highway=residential.
+ *
+ * Only results that depend on nothing but the tags are saved.  If any
+ * rule that matched has actions, then the element may have been changed
+ * and the result is not saved.
+ *
+ * The cache is shared by all the threads that use the rule set.  When it
+ * is full, no more tag sets are added to it.
+ */
+public class TypeCache {
+	private static final GType[] NO_TYPES = new GType[0];
+
+	private final ConcurrentMap<TagSet, GType[]> cache = new ConcurrentHashMap<TagSet, GType[]>();
+	private final int maxSize;
+
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong notSaved = new AtomicLong();
+
+	/**
+	 * @param maxSize The largest number of tag sets that will be kept.
+	 */
+	TypeCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the types for an element with the given tags.
+	 * @return The types in the order they were found, or null if these
+	 * tags have not been seen before.
+	 */
+	GType[] get(TagSet tags) {
+		lookups.incrementAndGet();
+		GType[] types = cache.get(tags);
+		if (types != null)
+			hits.incrementAndGet();
+		return types;
+	}
+
+	/**
+	 * Save the types that were found for the tags.
+	 */
+	void put(TagSet tags, List<GType> types) {
+		if (cache.size() < maxSize)
+			cache.putIfAbsent(tags, types.isEmpty() ? NO_TYPES : types.toArray(new GType[types.size()]));
+	}
+
+	/**
+	 * A rule with actions matched, so the result for these tags could not
+	 * be saved.  Only used to report how well the cache works.
+	 */
+	void notSaved() {
+		notSaved.incrementAndGet();
+	}
+
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public String toString() {
+		long n = lookups.get();
+		long h = hits.get();
+		return String.format("type cache: %d hits from %d lookups (%.1f%%), %d not saved because of actions, %d tag sets",
+				h, n, n == 0 ? 0.0 : h * 100.0 / n, notSaved.get(), cache.size());
+	}
+
+	/**
+	 * The tags of an element in a form that can be compared with those of
+	 * another element.  The keys are sorted by their id in the TagDict.
+	 */
+	static class TagSet implements TagVisitor {
+		private int[] keys = new int[4];
+		private String[] values = new String[4];
+		private int size;
+		private int hash;
+
+		TagSet(Element el) {
+			el.visitTags(this);
+			for (int i = 1; i < size; i++) {
+				int k = keys[i];
+				String v = values[i];
+				int j = i - 1;
+				for (; j >= 0 && keys[j] > k; j--) {
+					keys[j + 1] = keys[j];
+					values[j + 1] = values[j];
+				}
+				keys[j + 1] = k;
+				values[j + 1] = v;
+			}
+
+			int h = size;
+			for (int i = 0; i < size; i++)
+				h = 31 * (31 * h + keys[i]) + values[i].hashCode();
+			hash = h;
+		}
+
+		public void visit(int keyId, String value) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			keys[size] = keyId;
+			values[size++] = value;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof TagSet))
+				return false;
+
+			TagSet other = (TagSet) o;
+			if (hash != other.hash || size != other.size)
+				return false;
+			for (int i = 0; i < size; i++) {
+				if (keys[i] != other.keys[i] || !values[i].equals(other.values[i]))
+					return false;
+			}
+			return true;
+		}
+	}
+}
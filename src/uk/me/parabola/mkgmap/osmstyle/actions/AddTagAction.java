@@ -32,9 +32,6 @@ public class AddTagAction implements Action {
 	private final String tag;
 	private final List<ValueBuilder> values = new ArrayList<ValueBuilder>();
 
-	// The tags used to build the value.
-	private Element valueTags;
-
 	/**
 	 * Create an action to add the given tag with a value.
 	 * If the modify flag is true, then we change the tag if it
@@ -47,12 +44,19 @@ public class AddTagAction implements Action {
 	}
 
 	public void perform(Element el) {
+		perform(el, el);
+	}
+
+	/**
+	 * Add the tag, taking the values to build it from another element.
+	 * @param el The element to add the tag to.
+	 * @param tags The element whose tags are used to build the value.
+	 */
+	public void perform(Element el, Element tags) {
 		String tv = el.getTag(tag);
 		if (tv != null && !modify)
 			return;
 
-		Element tags = valueTags!=null? valueTags: el;
-
 		for (ValueBuilder value : values) {
 			String newval = value.build(tags, el);
 			if (newval != null) {
@@ -66,8 +70,16 @@ public class AddTagAction implements Action {
 		values.add(new ValueBuilder(value));
 	}
 
-	public void setValueTags(Element valueTags) {
-		this.valueTags = valueTags;
+	public String getTag() {
+		return tag;
+	}
+
+	public boolean isModify() {
+		return modify;
+	}
+
+	public List<ValueBuilder> getValues() {
+		return values;
 	}
 
 	public String toString() {
@@ -37,7 +37,11 @@ public class ConvertFilter extends ValueFilter {
 		if (value == null) return null;
 		
 		try {
-			double d = Double.parseDouble(value);
+			double d;
+			if (isWholeNumber(value))
+				d = Integer.parseInt(value);
+			else
+				d = Double.parseDouble(value);
 
 			double res = d * factor;
 			res = Math.round(res);
@@ -46,4 +50,20 @@ public class ConvertFilter extends ValueFilter {
 			return value;
 		}
 	}
+
+	/**
+	 * Plain whole numbers are the usual case.  They can be read much more
+	 * quickly than with Double.parseDouble and give exactly the same value.
+	 */
+	private static boolean isWholeNumber(String value) {
+		int len = value.length();
+		if (len == 0 || len > 9)
+			return false;
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
 }
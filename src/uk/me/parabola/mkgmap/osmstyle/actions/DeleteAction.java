@@ -34,6 +34,10 @@ public class DeleteAction implements Action {
 		el.deleteTag(tag);
 	}
 
+	public String getTag() {
+		return tag;
+	}
+
 	public String toString() {
 		return "delete " + tag + ";";
 	}
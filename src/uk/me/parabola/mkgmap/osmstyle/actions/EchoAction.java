@@ -33,4 +33,8 @@ public class EchoAction implements Action {
 		String e = value.build(el, el);
 		System.err.println(el.getId() + ": " + e);
 	}
+
+	public ValueBuilder getValue() {
+		return value;
+	}
 }
@@ -31,8 +31,8 @@ public class HighwaySymbolFilter extends ValueFilter {
 	private static final Map<String, String>symbols = new HashMap<String, String>();
 	private static final int MAX_REF_LENGTH = 8; // enough for "A6144(M)" (RIP)
 
-	private int maxAlphaNum = MAX_REF_LENGTH; // Max. length for alphanumeric (e.g., 'A67')
-	private int maxAlpha = MAX_REF_LENGTH; // Max. length for alpha only signs (e.g., 'QEW')
+	private final int maxAlphaNum; // Max. length for alphanumeric (e.g., 'A67')
+	private final int maxAlpha; // Max. length for alpha only signs (e.g., 'QEW')
 
 	static {
 		//symbols.put("ele", "\u001f"); // name.height separator
@@ -58,6 +58,10 @@ public class NameAction implements Action {
 		names.add(new ValueBuilder(val));
 	}
 
+	public List<ValueBuilder> getNames() {
+		return names;
+	}
+
 	public String toString() {
 		StringBuilder sb = new  StringBuilder();
 		sb.append("name ");
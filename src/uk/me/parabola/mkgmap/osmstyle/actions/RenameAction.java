@@ -39,4 +39,12 @@ public class RenameAction implements Action {
 			el.deleteTag(from);
 		}
 	}
+
+	public String getFrom() {
+		return from;
+	}
+
+	public String getTo() {
+		return to;
+	}
 }
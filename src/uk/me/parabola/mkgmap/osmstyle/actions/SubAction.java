@@ -51,18 +51,20 @@ public class SubAction implements Action {
 	private void performOnSubElements(Relation rel) {
 		List<Map.Entry<String,Element>> elements = rel.getElements();
 
-		for (Action a : actionList)
-			if (a instanceof AddTagAction)
-				((AddTagAction) a).setValueTags(rel);
-
 		HashSet<Element> elems = once ? new HashSet<Element>() : null;
 
 		for (Map.Entry<String,Element> r_el : elements) {
 			if ((role == null || role.equals(r_el.getKey())) &&
 				(!once || elems.add(r_el.getValue()))) {
 
-				for (Action a : actionList)
-					a.perform(r_el.getValue());
+				// The values of tags that are added are taken from
+				// the relation.
+				for (Action a : actionList) {
+					if (a instanceof AddTagAction)
+						((AddTagAction) a).perform(r_el.getValue(), rel);
+					else
+						a.perform(r_el.getValue());
+				}
 			}
 		}
 	}
@@ -71,6 +73,18 @@ public class SubAction implements Action {
 		actionList.add(act);
 	}
 
+	public List<Action> getActions() {
+		return actionList;
+	}
+
+	public String getRole() {
+		return role;
+	}
+
+	public boolean isOnce() {
+		return once;
+	}
+
 	public String toString() {
 		Formatter fmt = new Formatter();
 		fmt.format(once ? "apply_once" : "apply");
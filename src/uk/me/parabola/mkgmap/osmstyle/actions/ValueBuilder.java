@@ -32,9 +32,21 @@ import uk.me.parabola.mkgmap.reader.osm.Element;
 public class ValueBuilder {
 
 	private final List<ValueItem> items = new ArrayList<ValueItem>();
+	private final String pattern;
+
+	// The items as an array, for build()
+	private final ValueItem[] parts;
+
+	private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+		protected StringBuilder initialValue() {
+			return new StringBuilder();
+		}
+	};
 
 	public ValueBuilder(String pattern) {
+		this.pattern = pattern;
 		compile(pattern);
+		parts = items.toArray(new ValueItem[items.size()]);
 	}
 
 	/**
@@ -49,22 +61,23 @@ public class ValueBuilder {
 	 * are missing then it returns null.
 	 */
 	public String build(Element el, Element lel) {
-		// Check early for no match and return early
-		for (ValueItem item : items) {
-			if (item.getValue(el, lel) == null)
+		// A common case is that there is just one item, so return it
+		// directly.
+		if (parts.length == 1)
+			return parts[0].getValue(el, lel);
+
+		// Each value is only got once, and the result is made in a buffer
+		// that is kept for the thread.  If any value is missing, then
+		// whatever has been added to the buffer is just ignored.
+		StringBuilder sb = buffer.get();
+		sb.setLength(0);
+		for (ValueItem item : parts) {
+			String value = item.getValue(el, lel);
+			if (value == null)
 				return null;
+			sb.append(value);
 		}
 
-		// If we get here we can build the final string.  A common case
-		// is that there is just one, so return it directly.
-		if (items.size() == 1)
-			return items.get(0).getValue(el, lel);
-
-		// OK we have to construct the result.
-		StringBuilder sb = new StringBuilder();
-		for (ValueItem item : items)
-			sb.append(item.getValue(el, lel));
-
 		return sb.toString();
 	}
 
@@ -137,15 +150,15 @@ public class ValueBuilder {
 	}
 
 	private void addTagValue(String tagname, boolean is_local) {
-		ValueItem item = new ValueItem();
+		ValueItem item;
 		if (tagname.contains("|")) {
 			String[] parts = tagname.split("\\|");
 			assert parts.length > 1;
-			item.setTagname(parts[0], is_local);
+			item = new ValueItem(parts[0], is_local);
 			for (int i = 1; i < parts.length; i++)
 				addFilter(item, parts[i]);
 		} else {
-			item.setTagname(tagname, is_local);
+			item = new ValueItem(tagname, is_local);
 		}
 		items.add(item);
 	}
@@ -174,6 +187,13 @@ public class ValueBuilder {
 		}
 	}
 
+	/**
+	 * Get the string that this value was made from.
+	 */
+	public String getPattern() {
+		return pattern;
+	}
+
 	public String toString() {
 		StringBuilder sb = new StringBuilder("'");
 		for (ValueItem v : items) {
@@ -17,40 +17,53 @@
 package uk.me.parabola.mkgmap.osmstyle.actions;
 
 import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.TagDict;
 
 /**
  * Part of a substitution string.  This can represent a constant
  * value or value that is taken from the element tags.
+ *
+ * Only the filters are added after it is made, while the pattern is
+ * compiled, so one item can be used on several threads at once.
  * 
  * @author Steve Ratcliffe
  */
 public class ValueItem {
-	private String tagname;
-	private boolean tagname_is_local;
+	private final String tagname;
+	private final int keyId;
+	private final boolean tagname_is_local;
 	private ValueFilter filter;
-	private String value;
+	private final String value;
 
-	public ValueItem() {
+	/**
+	 * An item that takes its value from a tag.
+	 * @param tagname The tag name.
+	 * @param local True if the tag is taken from the local element, as
+	 * with $(tag), rather than from the element being styled.
+	 */
+	public ValueItem(String tagname, boolean local) {
+		this.tagname = tagname;
+		this.tagname_is_local = local;
+		keyId = TagDict.getInstance().xlate(tagname);
+		value = null;
 	}
 
 	public ValueItem(String value) {
 		this.value = value;
+		tagname = null;
+		keyId = 0;
+		tagname_is_local = false;
 	}
 
 	public String getValue(Element el, Element local_el) {
-		if (tagname == null && value != null)
+		if (tagname == null)
 			return value;   // already known
 
-		if (tagname != null) {
-			Element e = tagname_is_local ? local_el : el;
-			String tagval = e.getTag(tagname);
-			if (filter != null)
-				value = filter.filter(tagval,el);
-			else
-				value = tagval;
-		}
-
-		return value;
+		Element e = tagname_is_local ? local_el : el;
+		String tagval = e.getTag(keyId);
+		if (filter != null)
+			return filter.filter(tagval, el);
+		return tagval;
 	}
 
 	public void addFilter(ValueFilter f) {
@@ -60,11 +73,6 @@ public class ValueItem {
 			filter.add(f);
 	}
 
-	public void setTagname(String tagname, boolean local) {
-		this.tagname = tagname;
-		this.tagname_is_local = local;
-	}
-
 	public String toString() {
 		if (tagname == null)
 			return value;
@@ -16,6 +16,8 @@
  */
 package uk.me.parabola.mkgmap.osmstyle.eval;
 
+import uk.me.parabola.mkgmap.reader.osm.TagDict;
+
 /**
  * A base class that can be used as the superclass of an operation.
  *
@@ -26,6 +28,10 @@ public abstract class AbstractOp implements Op {
 	protected Op first;
 	private char type;
 
+	// The id of the tag key in the TagDict, for an operation whose first
+	// operand is the name of a tag.
+	protected int keyId;
+
 	public static Op createOp(String value) {
 		char c = value.charAt(0);
 		Op op;
@@ -74,6 +80,17 @@ public abstract class AbstractOp implements Op {
 
 	public void setFirst(Op first) {
 		this.first = first;
+		if (first.isType(VALUE))
+			keyId = TagDict.getInstance().xlate(first.value());
+	}
+
+	/**
+	 * Evaluate against the element that the values are for.  The operations
+	 * that test a tag, and those that are made of other operations,
+	 * override this to use the values.
+	 */
+	public boolean eval(TagValues values) {
+		return eval(values.getElement());
 	}
 
 	public char getType() {
@@ -34,6 +34,10 @@ public class AndOp extends AbstractBinaryOp {
 		return getFirst().eval(el) && getSecond().eval(el);
 	}
 
+	public boolean eval(TagValues values) {
+		return getFirst().eval(values) && getSecond().eval(values);
+	}
+
 	public int priority() {
 		return 5;
 	}
@@ -42,10 +42,19 @@ public class EqualsOp extends AbstractBinaryOp {
 	}
 
 	public boolean eval(Element el) {
-		String s = el.getTag(key);
-		if (s == null)
-			return false;
-		return s.equals(value);
+		return matches(el.getTag(keyId));
+	}
+
+	public boolean eval(TagValues values) {
+		return matches(values.get(keyId));
+	}
+
+	/**
+	 * Is the tag value the one that we are looking for?
+	 * @param s The value, null if the element does not have the tag.
+	 */
+	protected boolean matches(String s) {
+		return s != null && s.equals(value);
 	}
 
 	public int priority() {
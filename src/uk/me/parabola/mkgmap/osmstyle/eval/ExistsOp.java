@@ -37,7 +37,11 @@ public class ExistsOp extends AbstractOp {
 	}
 
 	public boolean eval(Element el) {
-		return el.getTag(key) != null;
+		return el.getTag(keyId) != null;
+	}
+
+	public boolean eval(TagValues values) {
+		return values.get(keyId) != null;
 	}
 
 	public int priority() {
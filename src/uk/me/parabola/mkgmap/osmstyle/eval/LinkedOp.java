@@ -41,7 +41,10 @@ public class LinkedOp implements Op {
 	protected final Op wrapped;
 	private final boolean first;
 	private LinkedOp link;
-	private Element current;
+
+	// The element that has been matched, kept for each thread as elements
+	// can be styled on several threads at once.
+	private final ThreadLocal<Element> current = new ThreadLocal<Element>();
 
 	public LinkedOp(Op wrapped, boolean first) {
 		this.wrapped = wrapped;
@@ -49,7 +52,7 @@ public class LinkedOp implements Op {
 	}
 
 	public boolean eval(Element el) {
-		if (el == current)
+		if (el == current.get())
 			return false;
 
 		boolean b = wrapped.eval(el);
@@ -58,6 +61,17 @@ public class LinkedOp implements Op {
 		return b;
 	}
 
+	public boolean eval(TagValues values) {
+		Element el = values.getElement();
+		if (el == current.get())
+			return false;
+
+		boolean b = wrapped.eval(values);
+		if (link != null && b)
+			link.setMatched(el);
+		return b;
+	}
+
 	public String toString() {
 		if (first) {
 			StringBuilder sb = new StringBuilder();
@@ -112,11 +126,23 @@ public class LinkedOp implements Op {
 	 * @param el The element to mark as being matched.
 	 */
 	private void setMatched(Element el) {
-		this.current = el;
+		current.set(el);
 		if (link != null)
 			link.setMatched(el);
 	}
 
+	public Op getWrapped() {
+		return wrapped;
+	}
+
+	public boolean isFirst() {
+		return first;
+	}
+
+	public LinkedOp getLink() {
+		return link;
+	}
+
 	public void setLink(LinkedOp link) {
 		if (this.link == null)
 			this.link = link;
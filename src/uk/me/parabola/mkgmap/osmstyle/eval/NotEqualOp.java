@@ -16,8 +16,6 @@
  */
 package uk.me.parabola.mkgmap.osmstyle.eval;
 
-import uk.me.parabola.mkgmap.reader.osm.Element;
-
 /**
  * True when the tag does not have the given value.
  *
@@ -28,8 +26,8 @@ public class NotEqualOp extends EqualsOp {
 		setType(NOT_EQUALS);
 	}
 
-	public boolean eval(Element el) {
-		return !super.eval(el);
+	protected boolean matches(String s) {
+		return !super.matches(s);
 	}
 
 	public String toString() {
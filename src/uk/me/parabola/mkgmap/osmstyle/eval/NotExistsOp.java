@@ -28,7 +28,11 @@ public class NotExistsOp extends AbstractOp {
 	}
 
 	public boolean eval(Element el) {
-		return el.getTag(first.value()) == null;
+		return el.getTag(keyId) == null;
+	}
+
+	public boolean eval(TagValues values) {
+		return values.get(keyId) == null;
 	}
 
 	public int priority() {
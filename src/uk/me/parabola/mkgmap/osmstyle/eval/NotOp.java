@@ -32,6 +32,10 @@ public class NotOp extends AbstractOp {
 		return !first.eval(el);
 	}
 
+	public boolean eval(TagValues values) {
+		return !first.eval(values);
+	}
+
 	public int priority() {
 		return 50;
 	}
@@ -27,6 +27,20 @@ import uk.me.parabola.mkgmap.reader.osm.Element;
  * @author Steve Ratcliffe
  */
 public abstract class NumericOp extends AbstractBinaryOp {
+	private static final int CACHE_SIZE = 16;
+
+	// The most recently parsed tag values on each thread.  Several rules
+	// often test the same tag of an element, eg. maxspeed>50 and
+	// maxspeed<30, so the value only has to be parsed for the first one.
+	private static final ThreadLocal<Parsed[]> parsedValues = new ThreadLocal<Parsed[]>() {
+		protected Parsed[] initialValue() {
+			return new Parsed[CACHE_SIZE];
+		}
+	};
+
+	// The value that the tag is compared against, it is always the same
+	// so it is only parsed once.
+	private ValueWithUnit ourVal;
 
 	/**
 	 * This is passed the result of a compareTo and the subclass
@@ -38,25 +52,51 @@ public abstract class NumericOp extends AbstractBinaryOp {
 		return 10;
 	}
 
+	public void setSecond(Op second) {
+		super.setSecond(second);
+		ourVal = new ValueWithUnit(second.value());
+	}
+
 	/**
 	 * This evaluation routine works for all numeric tests.  Implement the
 	 * {@link #doesCompare} routine instead of this.
 	 */
 	public final boolean eval(Element el) {
-		// get the value of the tag, if it doesn't exist then false.
-		String val = el.getTag(getFirst().value());
+		return compare(el.getTag(keyId));
+	}
+
+	public final boolean eval(TagValues values) {
+		return compare(values.get(keyId));
+	}
+
+	private boolean compare(String val) {
+		// if the tag doesn't exist then false.
 		if (val == null)
 			return false;
 
-		ValueWithUnit result = new ValueWithUnit(val);
-		ValueWithUnit ourVal = new ValueWithUnit(getSecond().value());  // TODO optimise
-
+		ValueWithUnit result = parse(val);
 		if (!result.isValid() || !ourVal.isValid())
 			return false;
 		int inter = result.compareTo(ourVal);
 		return doesCompare(inter);
 	}
 
+	/**
+	 * Parse a tag value, or get it from the cache if the same value was
+	 * parsed recently on this thread.
+	 */
+	private static ValueWithUnit parse(String val) {
+		Parsed[] cache = parsedValues.get();
+		int ind = val.hashCode() & (CACHE_SIZE - 1);
+		Parsed p = cache[ind];
+		if (p != null && p.str.equals(val))
+			return p.value;
+
+		ValueWithUnit v = new ValueWithUnit(val);
+		cache[ind] = new Parsed(val, v);
+		return v;
+	}
+
 	public String toString() {
 		return "(" + first + getTypeRep() + getSecond() + ')';
 	}
@@ -73,4 +113,17 @@ public abstract class NumericOp extends AbstractBinaryOp {
 		default: return "?";
 		}
 	}
+
+	/**
+	 * A tag value and its parsed form.
+	 */
+	private static class Parsed {
+		private final String str;
+		private final ValueWithUnit value;
+
+		Parsed(String str, ValueWithUnit value) {
+			this.str = str;
+			this.value = value;
+		}
+	}
 }
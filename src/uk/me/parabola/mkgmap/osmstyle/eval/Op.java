@@ -46,6 +46,14 @@ public interface Op {
 	 */
 	public boolean eval(Element el);
 
+	/**
+	 * Evaluate the expression, taking the tag values from the given
+	 * holder so that each tag is only fetched from the element once.
+	 * @param values The tags of the element to be tested.
+	 * @return True if the expression is true for the element.
+	 */
+	public boolean eval(TagValues values);
+
 	/**
 	 * Does this operation have a higher priority that the other one?
 	 * @param other The other operation.
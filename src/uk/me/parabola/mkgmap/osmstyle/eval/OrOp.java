@@ -33,6 +33,10 @@ public class OrOp extends AbstractBinaryOp {
 		return getFirst().eval(el) || getSecond().eval(el);
 	}
 
+	public boolean eval(TagValues values) {
+		return getFirst().eval(values) || getSecond().eval(values);
+	}
+
 	public int priority() {
 		return 3;
 	}
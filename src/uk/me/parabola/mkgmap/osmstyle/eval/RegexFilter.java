@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.eval;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cheap tests that are made on a tag value before the regular expression
+ * is run on it.
+ *
+ * <p>The expression is looked at once when the rule is read to find the
+ * plain text that any matching value must contain.  For example, any
+ * value that matches <code>grade[2-6]</code> must start with 'grade' and
+ * any value that matches <code>.*(mountain|alpine)_hiking</code> must end
+ * with '_hiking' and contain 'mountain' or 'alpine'.  Most values fail
+ * these tests, and then the regular expression does not have to be run.
+ *
+ * <p>Some expressions are simple enough that the tests give the answer on
+ * their own, for example <code>.*(Bus|Tram).*</code> is the same as
+ * checking that the value contains one of the words.  Then the regular
+ * expression is only needed for the rare values that have a line break.
+ *
+ * <p>Only the common parts of the regular expression syntax are
+ * understood.  If anything else is found, such as flags, anchors or
+ * look-ahead, then there is no filter and the regular expression is always
+ * used.
+ */
+public class RegexFilter {
+	/** The value does not match. */
+	public static final int NO_MATCH = 0;
+	/** The value matches. */
+	public static final int MATCH = 1;
+	/** The regular expression must be run to know. */
+	public static final int UNKNOWN = 2;
+
+	// When the tests give the full answer, the kind of test.
+	private static final int PARTIAL = 0;
+	private static final int EQUALS = 1;
+	private static final int STARTS_WITH = 2;
+	private static final int ENDS_WITH = 3;
+	private static final int CONTAINS = 4;
+
+	private final int kind;
+
+	// The alternatives, for the tests that give the full answer
+	private String[] words;
+
+	// The text that must be at the start and the end of the value
+	private String prefix = "";
+	private String suffix = "";
+	// Text that must come in this order between the prefix and suffix
+	private final List<String> inner = new ArrayList<String>();
+	// One of the words from each of these must be somewhere in the value
+	private final List<String[]> oneOf = new ArrayList<String[]>();
+	private int minLength;
+
+	private RegexFilter(int kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * Make the filter for a regular expression.
+	 * @param regex The expression, as it will be given to
+	 * {@link java.util.regex.Pattern#compile(String)}.
+	 * @return The filter, or null if the expression is not understood or
+	 * there is nothing that can be tested without it.
+	 */
+	public static RegexFilter create(String regex) {
+		List<Item> items;
+		try {
+			Parser p = new Parser(regex);
+			List<List<Item>> alternatives = p.parseAlternatives();
+			if (p.pos != regex.length() || alternatives.size() != 1)
+				return null;
+			items = alternatives.get(0);
+		} catch (UnsupportedSyntax e) {
+			return null;
+		}
+
+		RegexFilter filter = createFull(items);
+		if (filter != null)
+			return filter;
+		return createPartial(items);
+	}
+
+	/**
+	 * Test the value.
+	 * @return {@link #NO_MATCH} or {@link #MATCH} if the tests give the
+	 * answer, otherwise {@link #UNKNOWN}.
+	 */
+	public int test(String value) {
+		if (kind != PARTIAL) {
+			if (!testWords(value))
+				return NO_MATCH;
+
+			// The .* does not match a line break
+			if (kind != EQUALS && hasLineBreak(value))
+				return UNKNOWN;
+			return MATCH;
+		}
+
+		int len = value.length();
+		if (len < minLength)
+			return NO_MATCH;
+		if (!value.startsWith(prefix) || !value.endsWith(suffix))
+			return NO_MATCH;
+
+		int start = prefix.length();
+		int end = len - suffix.length();
+		for (String s : inner) {
+			int ind = value.indexOf(s, start);
+			if (ind < 0 || ind + s.length() > end)
+				return NO_MATCH;
+			start = ind + s.length();
+		}
+
+		for (String[] alts : oneOf) {
+			if (!containsAny(value, alts))
+				return NO_MATCH;
+		}
+		return UNKNOWN;
+	}
+
+	private boolean testWords(String value) {
+		for (String w : words) {
+			switch (kind) {
+			case EQUALS:
+				if (value.equals(w))
+					return true;
+				break;
+			case STARTS_WITH:
+				if (value.startsWith(w))
+					return true;
+				break;
+			case ENDS_WITH:
+				if (value.endsWith(w))
+					return true;
+				break;
+			default:
+				if (value.contains(w))
+					return true;
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static boolean containsAny(String value, String[] alts) {
+		for (String s : alts) {
+			if (value.contains(s))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean hasLineBreak(String value) {
+		for (int i = 0, n = value.length(); i < n; i++) {
+			char c = value.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * If the expression is just plain text or a choice of plain text, with
+	 * or without .* at either end, then it can be tested without the
+	 * regular expression.
+	 */
+	private static RegexFilter createFull(List<Item> items) {
+		int first = 0;
+		int last = items.size();
+		boolean anyStart = last > 0 && items.get(0).isAnyText();
+		if (anyStart)
+			first++;
+		boolean anyEnd = last > first && items.get(last - 1).isAnyText();
+		if (anyEnd)
+			last--;
+		if (first >= last)
+			return null;
+
+		String[] words;
+		if (last - first == 1 && items.get(first).kind == Item.WORDS && items.get(first).isOnce()) {
+			words = items.get(first).words;
+		} else {
+			StringBuilder sb = new StringBuilder();
+			for (Item item : items.subList(first, last)) {
+				if (item.kind != Item.CHAR || !item.isOnce())
+					return null;
+				sb.append(item.text);
+			}
+			words = new String[] {sb.toString()};
+		}
+
+		int kind;
+		if (anyStart && anyEnd)
+			kind = CONTAINS;
+		else if (anyStart)
+			kind = ENDS_WITH;
+		else if (anyEnd)
+			kind = STARTS_WITH;
+		else
+			kind = EQUALS;
+
+		RegexFilter filter = new RegexFilter(kind);
+		filter.words = words;
+		return filter;
+	}
+
+	/**
+	 * Find the plain text that every matching value must contain.
+	 */
+	private static RegexFilter createPartial(List<Item> items) {
+		RegexFilter filter = new RegexFilter(PARTIAL);
+
+		// Split into runs of plain characters that are each matched once
+		List<String> runs = new ArrayList<String>();
+		StringBuilder run = new StringBuilder();
+		boolean startsWithRun = !items.isEmpty() && items.get(0).kind == Item.CHAR && items.get(0).isOnce();
+		boolean endsWithRun = false;
+		for (Item item : items) {
+			if (item.kind == Item.CHAR && item.isOnce()) {
+				run.append(item.text);
+				endsWithRun = true;
+				continue;
+			}
+
+			endsWithRun = false;
+			if (run.length() > 0) {
+				runs.add(run.toString());
+				run.setLength(0);
+			}
+			if (item.kind == Item.WORDS && item.min > 0)
+				filter.oneOf.add(item.words);
+			filter.minLength += item.min;
+		}
+		if (run.length() > 0)
+			runs.add(run.toString());
+
+		if (startsWithRun)
+			filter.prefix = runs.remove(0);
+		if (endsWithRun && !runs.isEmpty())
+			filter.suffix = runs.remove(runs.size() - 1);
+		filter.inner.addAll(runs);
+
+		filter.minLength += filter.prefix.length() + filter.suffix.length();
+		for (String s : runs)
+			filter.minLength += s.length();
+
+		if (filter.minLength == 0 && filter.oneOf.isEmpty())
+			return null;
+		return filter;
+	}
+
+	/**
+	 * One part of the expression with its repeat count.  Only the
+	 * minimum count is needed.
+	 */
+	private static class Item {
+		static final int CHAR = 0;
+		static final int ANY = 1;
+		static final int WORDS = 2;
+		static final int OTHER = 3;
+
+		private final int kind;
+		// The character of a CHAR item, as a string as it may need two
+		// chars in the UTF-16 form
+		private String text;
+		private String[] words;
+
+		// The fewest characters that this item can match
+		private int min = 1;
+		private boolean quantified;
+		private boolean repeated;
+
+		Item(int kind) {
+			this.kind = kind;
+		}
+
+		/**
+		 * Is the item matched exactly once?
+		 */
+		boolean isOnce() {
+			return !quantified;
+		}
+
+		/**
+		 * Is this .* that matches any text?
+		 */
+		boolean isAnyText() {
+			return kind == ANY && min == 0 && repeated;
+		}
+	}
+
+	/**
+	 * A simple reader for the regular expression syntax.
+	 */
+	private static class Parser {
+		private final String re;
+		private int pos;
+
+		Parser(String re) {
+			this.re = re;
+		}
+
+		List<List<Item>> parseAlternatives() {
+			List<List<Item>> alternatives = new ArrayList<List<Item>>();
+			alternatives.add(parseSequence());
+			while (pos < re.length() && re.charAt(pos) == '|') {
+				pos++;
+				alternatives.add(parseSequence());
+			}
+			return alternatives;
+		}
+
+		private List<Item> parseSequence() {
+			List<Item> items = new ArrayList<Item>();
+			while (pos < re.length()) {
+				char c = re.charAt(pos);
+				if (c == '|' || c == ')')
+					break;
+
+				Item item = parseAtom();
+				parseQuantifier(item);
+				items.add(item);
+			}
+			return items;
+		}
+
+		private Item parseAtom() {
+			int c = re.codePointAt(pos);
+			pos += Character.charCount(c);
+			switch (c) {
+			case '.':
+				return new Item(Item.ANY);
+			case '[':
+				skipClass();
+				return new Item(Item.OTHER);
+			case '(':
+				return parseGroup();
+			case '\\':
+				return parseEscape();
+			case '^':
+			case '$':
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw new UnsupportedSyntax();
+			default:
+				return charItem(c);
+			}
+		}
+
+		/**
+		 * An item for a single character, which is a code point so that a
+		 * quantifier after a supplementary character applies to all of it.
+		 */
+		private static Item charItem(int c) {
+			Item item = new Item(Item.CHAR);
+			item.text = new String(Character.toChars(c));
+			item.min = item.text.length();
+			return item;
+		}
+
+		private Item parseGroup() {
+			if (re.startsWith("?", pos)) {
+				if (!re.startsWith("?:", pos))
+					throw new UnsupportedSyntax();
+				pos += 2;
+			}
+
+			List<List<Item>> alternatives = parseAlternatives();
+			if (pos >= re.length() || re.charAt(pos) != ')')
+				throw new UnsupportedSyntax();
+			pos++;
+
+			// A choice of plain words
+			String[] words = new String[alternatives.size()];
+			for (int i = 0; i < words.length; i++) {
+				StringBuilder sb = new StringBuilder();
+				for (Item item : alternatives.get(i)) {
+					if (item.kind != Item.CHAR || !item.isOnce())
+						return otherGroup();
+					sb.append(item.text);
+				}
+				if (sb.length() == 0)
+					return otherGroup();
+				words[i] = sb.toString();
+			}
+
+			Item item = new Item(Item.WORDS);
+			item.words = words;
+			item.min = Integer.MAX_VALUE;
+			for (String w : words)
+				item.min = Math.min(item.min, w.length());
+			return item;
+		}
+
+		/**
+		 * A group that is not just a choice of words.  We only need to know
+		 * the fewest characters that it can match, and it is simplest to
+		 * say that is none.
+		 */
+		private Item otherGroup() {
+			Item item = new Item(Item.OTHER);
+			item.min = 0;
+			return item;
+		}
+
+		private Item parseEscape() {
+			if (pos >= re.length())
+				throw new UnsupportedSyntax();
+
+			int c = re.codePointAt(pos);
+			pos += Character.charCount(c);
+			if (!Character.isLetterOrDigit(c))
+				return charItem(c);
+
+			switch (c) {
+			case 'd': case 'D': case 's': case 'S': case 'w': case 'W':
+			case 't': case 'n': case 'r': case 'f': case 'a': case 'e':
+				return new Item(Item.OTHER);
+			case 'p': case 'P':
+				skipProperty();
+				return new Item(Item.OTHER);
+			default:
+				// Anchors, back references, hex and octal characters and
+				// the rest.
+				throw new UnsupportedSyntax();
+			}
+		}
+
+		private void skipProperty() {
+			if (pos >= re.length())
+				throw new UnsupportedSyntax();
+			if (re.charAt(pos) == '{') {
+				int end = re.indexOf('}', pos);
+				if (end < 0)
+					throw new UnsupportedSyntax();
+				pos = end + 1;
+			} else {
+				pos++;
+			}
+		}
+
+		/**
+		 * Skip to the end of a character class, allowing for classes inside
+		 * it.
+		 */
+		private void skipClass() {
+			if (re.startsWith("^", pos))
+				pos++;
+			// A ] straight after the opening is part of the class
+			if (re.startsWith("]", pos))
+				pos++;
+
+			int depth = 1;
+			while (pos < re.length()) {
+				char c = re.charAt(pos++);
+				if (c == '\\') {
+					if (pos < re.length() && re.charAt(pos) == 'Q')
+						throw new UnsupportedSyntax();
+					pos++;
+				} else if (c == '[') {
+					depth++;
+				} else if (c == ']') {
+					if (--depth == 0)
+						return;
+				}
+			}
+			throw new UnsupportedSyntax();
+		}
+
+		private void parseQuantifier(Item item) {
+			if (pos >= re.length())
+				return;
+
+			char c = re.charAt(pos);
+			switch (c) {
+			case '*':
+				item.min = 0;
+				item.repeated = true;
+				break;
+			case '+':
+				item.repeated = true;
+				break;
+			case '?':
+				item.min = 0;
+				break;
+			case '{':
+				int end = re.indexOf('}', pos);
+				if (end < 0)
+					throw new UnsupportedSyntax();
+				String count = re.substring(pos + 1, end);
+				int comma = count.indexOf(',');
+				int n;
+				try {
+					n = Integer.parseInt(comma < 0 ? count : count.substring(0, comma));
+				} catch (NumberFormatException e) {
+					throw new UnsupportedSyntax();
+				}
+				item.min *= n;
+				item.repeated = true;
+				pos = end;
+				break;
+			default:
+				return;
+			}
+			item.quantified = true;
+			pos++;
+
+			// Lazy is fine, as the whole value has to match anyway.  But
+			// possessive changes what can match.
+			if (pos < re.length()) {
+				if (re.charAt(pos) == '?')
+					pos++;
+				else if (re.charAt(pos) == '+')
+					throw new UnsupportedSyntax();
+			}
+		}
+	}
+
+	/**
+	 * Thrown when part of the expression is not understood.
+	 */
+	private static class UnsupportedSyntax extends RuntimeException {
+	}
+}
@@ -26,16 +26,30 @@ import uk.me.parabola.mkgmap.reader.osm.Element;
  */
 public class RegexOp extends AbstractBinaryOp {
 	private Pattern pattern;
+	// Quick tests on the value, null if there are none for this pattern
+	private RegexFilter filter;
 
 	public RegexOp() {
 		setType(REGEX);
 	}
 
 	public boolean eval(Element el) {
-		String tagval = el.getTag(getFirst().value());
+		return matches(el.getTag(keyId));
+	}
+
+	public boolean eval(TagValues values) {
+		return matches(values.get(keyId));
+	}
+
+	private boolean matches(String tagval) {
 		if (tagval == null)
 			return false;
 
+		if (filter != null) {
+			int res = filter.test(tagval);
+			if (res != RegexFilter.UNKNOWN)
+				return res == RegexFilter.MATCH;
+		}
 		return pattern.matcher(tagval).matches();
 	}
 
@@ -47,5 +61,6 @@ public class RegexOp extends AbstractBinaryOp {
 		assert second.isType(VALUE);
 		super.setSecond(second);
 		pattern = Pattern.compile(second.value());
+		filter = RegexFilter.create(second.value());
 	}
 }
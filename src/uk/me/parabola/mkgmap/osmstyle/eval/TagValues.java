@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.eval;
+
+import uk.me.parabola.mkgmap.reader.osm.Element;
+
+/**
+ * The tag values of the element that the rules are being run on.  Each
+ * tag is only fetched from the element the first time that a test asks
+ * for it, so when several tests in the rules look at the same tag, eg.
+ * <code>highway=primary | highway=secondary</code>, the later ones get the
+ * value from here.
+ *
+ * Only a few different tags are looked at for each element, so they are
+ * kept in a short list that is searched in order.  One of these is kept
+ * for each thread and used again for each element.
+ */
+public class TagValues {
+	private Element element;
+
+	private int[] keys = new int[8];
+	private String[] values = new String[8];
+	private int size;
+
+	/**
+	 * Start on a new element.
+	 * @param el The element, or null when there is none any more.
+	 */
+	public void setElement(Element el) {
+		element = el;
+		size = 0;
+	}
+
+	public Element getElement() {
+		return element;
+	}
+
+	/**
+	 * The tags of the element may have been changed, so the values must be
+	 * fetched again.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Get the value of a tag of the element.
+	 * @param keyId The id of the tag key in the TagDict.
+	 * @return The value, or null if the element doesn't have the tag.
+	 */
+	public String get(int keyId) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == keyId)
+				return values[i];
+		}
+
+		String value = element.getTag(keyId);
+		if (size == keys.length) {
+			int[] newKeys = new int[size * 2];
+			System.arraycopy(keys, 0, newKeys, 0, size);
+			keys = newKeys;
+			String[] newValues = new String[size * 2];
+			System.arraycopy(values, 0, newValues, 0, size);
+			values = newValues;
+		}
+		keys[size] = keyId;
+		values[size++] = value;
+		return value;
+	}
+}
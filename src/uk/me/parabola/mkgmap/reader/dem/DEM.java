@@ -69,7 +69,11 @@ public abstract class DEM {
 
 	protected abstract void read(int minLon, int minLat, int maxLon, int maxLat);
 
-	public static void createContours(LoadableMapDataSource mapData, EnhancedProperties config) {
+	/**
+	 * Add contour lines to the map.  The contour tracing uses static
+	 * fields, so only one map can have its contours made at a time.
+	 */
+	public static synchronized void createContours(LoadableMapDataSource mapData, EnhancedProperties config) {
 		Area bounds = mapData.getBounds();
 
 		double minLat = Utils.toDegrees(bounds.getMinLat());
@@ -128,8 +132,7 @@ public abstract class DEM {
 
 		OsmConverter converter;
 		try {
-			Style style = new StyleImpl(loc, name);
-			style.applyOptionOverride(config);
+			Style style = StyleImpl.readStyle(loc, name, config);
 
 			converter = new StyledConverter(style, ((MapperBasedMapDataSource) dest).getMapper(), config);
 		} catch (SyntaxException e) {
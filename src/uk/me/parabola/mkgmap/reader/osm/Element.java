@@ -46,6 +46,16 @@ public abstract class Element implements Iterable<String> {
 		return tags.get(key);
 	}
 
+	/**
+	 * Get a tag by the id of its key in the {@link TagDict}.  This saves
+	 * looking up the key when the same one is used again and again.
+	 */
+	public String getTag(int keyId) {
+		if (tags == null)
+			return null;
+		return tags.get(keyId);
+	}
+
 	public void deleteTag(String tagname) {
 		if(tags != null)
 			tags.remove(tagname);
@@ -58,6 +68,15 @@ public abstract class Element implements Iterable<String> {
 		return tags.iterator();
 	}
 
+	/**
+	 * Call the visitor for each tag of this element, with the key as its
+	 * id in the {@link TagDict}.
+	 */
+	public void visitTags(TagVisitor visitor) {
+		if (tags != null)
+			tags.visit(visitor);
+	}
+
 	public long getId() {
 		return id;
 	}
@@ -161,6 +161,15 @@ public class GType {
 		return maxLevel;
 	}
 
+	/**
+	 * Set the levels directly, for a type that has been saved after
+	 * {@link #fixLevels} was called.
+	 */
+	public void setLevels(int minLevel, int maxLevel) {
+		this.minLevel = minLevel;
+		this.maxLevel = maxLevel;
+	}
+
 	public int getRoadClass() {
 		return roadClass;
 	}
@@ -195,6 +204,14 @@ public class GType {
 		return !continueSearch || propogateActionsOnContinue;
 	}
 
+	/**
+	 * The propagate setting as it was given, whether or not this is
+	 * a continue type.
+	 */
+	public boolean isPropagateActionsOnContinue() {
+		return propogateActionsOnContinue;
+	}
+
 	public void setContinueSearch(boolean continueSearch) {
 		this.continueSearch = continueSearch;
 	}
@@ -25,6 +25,7 @@ import java.util.logging.Level;
 
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.log.Logger;
+import uk.me.parabola.mkgmap.general.PolygonSplitter;
 
 /**
  * Representation of an OSM Multipolygon Relation.<br/>
@@ -40,6 +41,9 @@ public class MultiPolygonRelation extends Relation {
 	private final Map<Long, Way> tileWayMap;
 	private final Map<Long, String> roleMap = new HashMap<Long, String>();
 
+	// the polygons that are to be added to the way map
+	private final List<Way> mpPolygons = new ArrayList<Way>();
+
 	private ArrayList<BitSet> containsMatrix;
 	private ArrayList<JoinedWay> polygons;
 	private Set<JoinedWay> intersectingPolygons;
@@ -428,7 +432,7 @@ public class MultiPolygonRelation extends Relation {
 
 			if (remove) {
 				// check if the polygon contains the complete bounding box
-				if (w.getBounds().contains(bboxArea.getBounds())) {
+				if (w.getBounds().contains(getBboxRectangle())) {
 					remove = false;
 				}
 			}
@@ -519,6 +523,17 @@ public class MultiPolygonRelation extends Relation {
 	 * ways with the role "inner" to the way with the role "outer"
 	 */
 	public void processElements() {
+		resolvePolygons();
+		addPolygonsToWayMap(false);
+	}
+
+	/**
+	 * Work out the polygons of this relation, without adding them to the
+	 * way map.  This changes nothing outside the relation apart from the
+	 * tags of its own ways, so relations that do not share any ways can be
+	 * resolved at the same time on different threads.
+	 */
+	public void resolvePolygons() {
 		log.info("Processing multipolygon", toBrowseURL());
 
 		// don't care about outer and inner declaration
@@ -534,11 +549,6 @@ public class MultiPolygonRelation extends Relation {
 			}
 		}
 
-		// create an Area for the bbox to clip the polygons
-		bboxArea = new Area(new Rectangle(bbox.getMinLong(), bbox
-			.getMinLat(), bbox.getMaxLong() - bbox.getMinLong(),
-			bbox.getMaxLat() - bbox.getMinLat()));
-
 		// join all single ways to polygons, try to close ways and remove non closed ways 
 		polygons = joinWays(allWays);
 		closeWays(polygons);
@@ -740,11 +750,8 @@ public class MultiPolygonRelation extends Relation {
 					}
 				}
 
-				for (Way mpWay : singularOuterPolygons) {
-					// put the cut out polygons to the
-					// final way map
-					tileWayMap.put(mpWay.getId(), mpWay);
-				}
+				// the cut out polygons go to the final way map
+				mpPolygons.addAll(singularOuterPolygons);
 			}
 		}
 		
@@ -773,6 +780,24 @@ public class MultiPolygonRelation extends Relation {
 		cleanup();
 	}
 
+	/**
+	 * Put the polygons that were made by {@link #resolvePolygons} into the
+	 * way map.
+	 *
+	 * @param newIds Give each polygon a new id first.  This is used when the
+	 * relations are resolved on several threads, so that the ids are
+	 * given out in the order of the relations rather than the order in
+	 * which the threads happened to run.
+	 */
+	public void addPolygonsToWayMap(boolean newIds) {
+		for (Way mpWay : mpPolygons) {
+			if (newIds)
+				mpWay.setId(FakeIdGenerator.makeFakeId());
+			tileWayMap.put(mpWay.getId(), mpWay);
+		}
+		mpPolygons.clear();
+	}
+
 	private void runIntersectionCheck(BitSet unfinishedPolys) {
 		if (intersectingPolygons.isEmpty()) {
 			// nothing to do
@@ -882,22 +907,38 @@ public class MultiPolygonRelation extends Relation {
 		intersectingPolygons = null;
 	}
 
+	private Rectangle getBboxRectangle() {
+		return new Rectangle(bbox.getMinLong(), bbox.getMinLat(),
+				bbox.getMaxLong() - bbox.getMinLong(),
+				bbox.getMaxLat() - bbox.getMinLat());
+	}
+
+	/**
+	 * Get an Area for the bbox, to clip the polygons that can only be
+	 * dealt with by Area.
+	 */
+	private Area getBboxArea() {
+		if (bboxArea == null)
+			bboxArea = new Area(getBboxRectangle());
+		return bboxArea;
+	}
+
 	private CutPoint calcNextCutPoint(AreaCutData areaData) {
-		if (areaData.innerAreas == null || areaData.innerAreas.isEmpty()) {
+		if (areaData.innerRings.isEmpty()) {
 			return null;
 		}
 		
-		if (areaData.innerAreas.size() == 1) {
+		if (areaData.innerRings.size() == 1) {
 			// make it short if there is only one inner area
-			Rectangle outerBounds = areaData.outerArea.getBounds();
+			Rectangle outerBounds = areaData.outerRing.bounds;
 			CoordinateAxis axis = (outerBounds.width < outerBounds.height ? CoordinateAxis.LONGITUDE : CoordinateAxis.LATITUDE);
 			CutPoint oneCutPoint = new CutPoint(axis);
-			oneCutPoint.addArea(areaData.innerAreas.get(0));
+			oneCutPoint.addArea(areaData.innerRings.get(0));
 			return oneCutPoint;
 		}
 		
-		ArrayList<Area> innerStart = new ArrayList<Area>(
-				areaData.innerAreas);
+		ArrayList<Ring> innerStart = new ArrayList<Ring>(
+				areaData.innerRings);
 		
 		ArrayList<CutPoint> bestCutPoints = new ArrayList<CutPoint>(CoordinateAxis.values().length);
 		
@@ -907,9 +948,9 @@ public class MultiPolygonRelation extends Relation {
 
 			Collections.sort(innerStart, (axis == CoordinateAxis.LONGITUDE ? COMP_LONG_START: COMP_LAT_START));
 
-			Iterator<Area> startIter = innerStart.iterator();
+			Iterator<Ring> startIter = innerStart.iterator();
 			while (startIter.hasNext()) {
-				Area nextStart = startIter.next();
+				Ring nextStart = startIter.next();
 				currentCutPoint.addArea(nextStart);
 
 				if (currentCutPoint.compareTo(bestCutPoint) > 0) {
@@ -943,59 +984,41 @@ public class MultiPolygonRelation extends Relation {
 			return Collections.singletonList(outerWay);
 		}
 
-		// use the java.awt.geom.Area class because it's a quick
-		// implementation of what's needed
+		// The holes are cut out in the integer coordinates of the points.
+		// Where the rings cross each other that is not possible and the
+		// java.awt.geom.Area class is used for that step instead.
 
-		// this list contains all non overlapping and singular areas
+		// this list contains all non overlapping and singular rings
 		// of the outerPolygon
 		Queue<AreaCutData> areasToCut = new LinkedList<AreaCutData>();
-		Collection<Area> finishedAreas = new ArrayList<Area>(innerPolygons.size());
+		Collection<Ring> finishedRings = new ArrayList<Ring>(innerPolygons.size());
 		
-		// create a list of Area objects from the outerPolygon (clipped to the bounding box)
-		List<Area> outerAreas = createAreas(outerPolygon, true);
+		// create a list of rings from the outerPolygon (clipped to the bounding box)
+		List<Ring> outerRings = createRings(outerPolygon, true);
 		
-		// create the inner areas
-		List<Area> innerAreas = new ArrayList<Area>(innerPolygons.size()+2);
+		// create the inner rings, they are clipped too so that they lie
+		// within the clipped outer rings
+		List<Ring> innerRings = new ArrayList<Ring>(innerPolygons.size()+2);
 		for (Way innerPolygon : innerPolygons) {
-			// don't need to clip to the bounding box because 
-			// these polygons are just used to cut out holes
-			innerAreas.addAll(createAreas(innerPolygon, false));
+			innerRings.addAll(createRings(innerPolygon, false));
 		}
 
 		// initialize the cut data queue
-		if (innerAreas.isEmpty()) {
-			// this is a multipolygon without any inner areas
-			// nothing to cut
-			finishedAreas.addAll(outerAreas);
-		} else if (outerAreas.size() == 1) {
-			// there is one outer area only
-			// it is checked before that all inner areas are inside this outer area
-			AreaCutData initialCutData = new AreaCutData();
-			initialCutData.outerArea = outerAreas.get(0);
-			initialCutData.innerAreas = innerAreas;
-			areasToCut.add(initialCutData);
-		} else {
-			// multiple outer areas
-			for (Area outerArea : outerAreas) {
-				AreaCutData initialCutData = new AreaCutData();
-				initialCutData.outerArea = outerArea;
-				initialCutData.innerAreas = new ArrayList<Area>(innerAreas
-						.size());
-				for (Area innerArea : innerAreas) {
-					if (outerArea.getBounds().intersects(
-						innerArea.getBounds())) {
-						initialCutData.innerAreas.add(innerArea);
-					}
-				}
-				
-				if (initialCutData.innerAreas.isEmpty()) {
-					// this is either an error
-					// or the outer area has been cut into pieces on the tile bounds
-					finishedAreas.add(outerArea);
-				} else {
-					areasToCut.add(initialCutData);
+		for (Ring outerRing : outerRings) {
+			AreaCutData initialCutData = new AreaCutData(outerRing);
+			for (Ring innerRing : innerRings) {
+				if (outerRing.bounds.intersects(innerRing.bounds)) {
+					initialCutData.innerRings.add(innerRing);
 				}
 			}
+			
+			if (initialCutData.innerRings.isEmpty()) {
+				// this is either an error
+				// or the outer area has been cut into pieces on the tile bounds
+				finishedRings.add(outerRing);
+			} else {
+				areasToCut.add(initialCutData);
+			}
 		}
 
 		while (areasToCut.isEmpty() == false) {
@@ -1003,98 +1026,228 @@ public class MultiPolygonRelation extends Relation {
 			CutPoint cutPoint = calcNextCutPoint(areaCutData);
 			
 			if (cutPoint == null) {
-				finishedAreas.add(areaCutData.outerArea);
+				finishedRings.add(areaCutData.outerRing);
 				continue;
 			}
 			
 			assert cutPoint.getNumberOfAreas() > 0 : "Number of cut areas == 0 in mp "+getId();
-			
-			// cut out the holes
-			for (Area cutArea : cutPoint.getAreas()) {
-				areaCutData.outerArea.subtract(cutArea);
+
+			List<AreaCutData> cuttedAreas = cutWithRings(areaCutData, cutPoint);
+			if (cuttedAreas == null) {
+				if (log.isDebugEnabled()) {
+					log.debug("Cannot cut the rings of mp", getId(), "in integer coordinates, using Area");
+				}
+				cuttedAreas = cutWithArea(areaCutData, cutPoint);
 			}
-			
-			if (areaCutData.outerArea.isEmpty()) {
-				// this outer area space can be abandoned
-				continue;
-			} 
-			
-			// the inner areas of the cut point have been processed
-			// they are no longer needed
-			areaCutData.innerAreas.removeAll(cutPoint.getAreas());
-
-			if (areaCutData.outerArea.isSingular()) {
-				// the area is singular
-				// => no further splits necessary
-				if (areaCutData.innerAreas.isEmpty()) {
-					// this area is finished and needs no further cutting
-					finishedAreas.add(areaCutData.outerArea);
+
+			for (AreaCutData nextCutData : cuttedAreas) {
+				if (nextCutData.innerRings.isEmpty()) {
+					finishedRings.add(nextCutData.outerRing);
 				} else {
-					// readd this area to further processing
-					areasToCut.add(areaCutData);
+					areasToCut.add(nextCutData);
+				}
+			}
+		}
+		
+		// convert the rings back to the mkgmap way
+		List<Way> cuttedOuterPolygon = new ArrayList<Way>(finishedRings.size());
+		for (Ring ring : finishedRings) {
+			if (ring.points.size() < 3) {
+				continue;
+			}
+			Way w = new Way(FakeIdGenerator.makeFakeId());
+			for (Coord co : ring.points) {
+				w.addPoint(new Coord(co.getLatitude(), co.getLongitude()));
+			}
+			w.addPoint(w.getPoints().get(0));
+			w.copyTags(outerPolygon);
+			cuttedOuterPolygon.add(w);
+			if (log.isDebugEnabled()) {
+				log.debug("Way", outerPolygon.getId(), "splitted to way", w.getId());
+			}
+		}
+
+		return cuttedOuterPolygon;
+	}
+
+	/**
+	 * Cut the outer ring along the line of the cut point in integer
+	 * coordinates, taking out all the inner rings that the line goes
+	 * through.
+	 * 
+	 * @param areaData the outer ring and its inner rings
+	 * @param cutPoint the cut point
+	 * @return the pieces on both sides of the line with the inner rings
+	 *         that are left in each of them, or null if the rings cross
+	 *         each other so that Area must be used. If some of the inner
+	 *         rings are outside the outer ring it is returned without them
+	 *         and is not cut.
+	 */
+	private List<AreaCutData> cutWithRings(AreaCutData areaData, CutPoint cutPoint) {
+		List<List<Coord>> rings = new ArrayList<List<Coord>>(areaData.innerRings.size() + 1);
+		rings.add(areaData.outerRing.points);
+		for (Ring innerRing : areaData.innerRings) {
+			rings.add(innerRing.points);
+		}
+		if (PolygonSplitter.prepareRings(rings) == false) {
+			return null;
+		}
+
+		// the rings do not cross, so an inner ring that is not inside
+		// the outer ring is outside of it and can be ignored
+		AreaCutData enclosedData = new AreaCutData(areaData.outerRing);
+		for (Ring innerRing : areaData.innerRings) {
+			if (PolygonSplitter.encloses(areaData.outerRing.points, innerRing.points)) {
+				enclosedData.innerRings.add(innerRing);
+			}
+		}
+		if (enclosedData.innerRings.size() < areaData.innerRings.size()) {
+			return Collections.singletonList(enclosedData);
+		}
+
+		CoordinateAxis axis = cutPoint.getAxis();
+		int line = cutPoint.getCutPoint();
+		if (!cutsThrough(areaData.innerRings, axis, line)) {
+			// the line only touches the inner rings, cut through the
+			// middle of one of them instead so that it is taken out
+			line = Integer.MIN_VALUE;
+			for (Ring ring : cutPoint.getAreas()) {
+				int start = axis.getStart(ring.bounds);
+				int stop = axis.getStop(ring.bounds);
+				if (stop - start >= 2) {
+					line = start + (stop - start) / 2;
+					break;
 				}
+			}
+			if (line == Integer.MIN_VALUE) {
+				return null;
+			}
+		}
+
+		List<List<Coord>> cutHoles = new ArrayList<List<Coord>>();
+		List<Ring> remainingRings = new ArrayList<Ring>();
+		for (Ring innerRing : areaData.innerRings) {
+			if (axis.getStart(innerRing.bounds) <= line && axis.getStop(innerRing.bounds) >= line) {
+				cutHoles.add(innerRing.points);
 			} else {
-				// we need to cut the area into two halfs to get singular areas
-				Rectangle r1 = cutPoint.getCutRectangleForArea(areaCutData.outerArea, true);
-				Rectangle r2 = cutPoint.getCutRectangleForArea(areaCutData.outerArea, false);
-
-				// Now find the intersection of these two boxes with the
-				// original polygon. This will make two new areas, and each
-				// area will be one (or more) polygons.
-				Area a1 = areaCutData.outerArea;
-				Area a2 = (Area) a1.clone();
-				a1.intersect(new Area(r1));
-				a2.intersect(new Area(r2));
-
-				if (areaCutData.innerAreas.isEmpty()) {
-					finishedAreas.addAll(areaToSingularAreas(a1));
-					finishedAreas.addAll(areaToSingularAreas(a2));
-				} else {
-					ArrayList<Area> cuttedAreas = new ArrayList<Area>();
-					cuttedAreas.addAll(areaToSingularAreas(a1));
-					cuttedAreas.addAll(areaToSingularAreas(a2));
-					
-					for (Area nextOuterArea : cuttedAreas) {
-						ArrayList<Area> nextInnerAreas = null;
-						// go through all remaining inner areas and check if they
-						// must be further processed with the nextOuterArea 
-						for (Area nonProcessedInner : areaCutData.innerAreas) {
-							if (nextOuterArea.intersects(nonProcessedInner.getBounds2D())) {
-								if (nextInnerAreas == null) {
-									nextInnerAreas = new ArrayList<Area>();
-								}
-								nextInnerAreas.add(nonProcessedInner);
-							}
-						}
-						
-						if (nextInnerAreas == null || nextInnerAreas.isEmpty()) {
-							finishedAreas.add(nextOuterArea);
-						} else {
-							AreaCutData outCutData = new AreaCutData();
-							outCutData.outerArea = nextOuterArea;
-							outCutData.innerAreas= nextInnerAreas;
-							areasToCut.add(outCutData);
-						}
+				remainingRings.add(innerRing);
+			}
+		}
+
+		List<AreaCutData> cuttedAreas = new ArrayList<AreaCutData>();
+		for (boolean below : new boolean[] { true, false }) {
+			List<List<Coord>> pieces = new ArrayList<List<Coord>>();
+			List<List<Coord>> holesLeft = new ArrayList<List<Coord>>();
+			if (PolygonSplitter.cut(areaData.outerRing.points, cutHoles,
+					axis == CoordinateAxis.LONGITUDE, line, below, pieces,
+					holesLeft) == false) {
+				return null;
+			}
+
+			// holes that the line only touches are still holes on this side
+			List<Ring> holes = new ArrayList<Ring>(remainingRings);
+			for (List<Coord> hole : holesLeft) {
+				holes.add(new Ring(hole, false));
+			}
+
+			for (List<Coord> piece : pieces) {
+				AreaCutData nextCutData = new AreaCutData(new Ring(piece, true));
+				for (Ring hole : holes) {
+					if (PolygonSplitter.encloses(piece, hole.points)) {
+						nextCutData.innerRings.add(hole);
 					}
 				}
+				cuttedAreas.add(nextCutData);
 			}
-			
 		}
-		
-		// convert the java.awt.geom.Area back to the mkgmap way
-		List<Way> cuttedOuterPolygon = new ArrayList<Way>(finishedAreas.size());
-		for (Area area : finishedAreas) {
-			Way w = singularAreaToWay(area, FakeIdGenerator.makeFakeId());
-			if (w != null) {
-				w.copyTags(outerPolygon);
-				cuttedOuterPolygon.add(w);
-				if (log.isDebugEnabled()) {
-					log.debug("Way", outerPolygon.getId(), "splitted to way", w.getId());
-				}
+		return cuttedAreas;
+	}
+
+	/**
+	 * Check if the line goes through the middle of at least one ring.
+	 */
+	private static boolean cutsThrough(List<Ring> rings, CoordinateAxis axis, int line) {
+		for (Ring ring : rings) {
+			if (axis.getStart(ring.bounds) < line && axis.getStop(ring.bounds) > line) {
+				return true;
 			}
 		}
+		return false;
+	}
 
-		return cuttedOuterPolygon;
+	/**
+	 * Cut the outer ring along the line of the cut point using the
+	 * java.awt.geom.Area class, which copes with rings that cross each
+	 * other.
+	 * 
+	 * @param areaData the outer ring and its inner rings
+	 * @param cutPoint the cut point
+	 * @return the singular pieces with the inner rings that are left in
+	 *         each of them
+	 */
+	private List<AreaCutData> cutWithArea(AreaCutData areaData, CutPoint cutPoint) {
+		CoordinateAxis axis = cutPoint.getAxis();
+		int line = cutPoint.getCutPoint();
+		Area outerArea = new Area(createPolygon(areaData.outerRing.points));
+
+		// cut out the holes
+		List<Ring> remainingRings = new ArrayList<Ring>();
+		for (Ring innerRing : areaData.innerRings) {
+			if (axis.getStart(innerRing.bounds) <= line && axis.getStop(innerRing.bounds) >= line) {
+				outerArea.subtract(new Area(createPolygon(innerRing.points)));
+			} else {
+				remainingRings.add(innerRing);
+			}
+		}
+
+		if (outerArea.isEmpty()) {
+			// this outer area space can be abandoned
+			return Collections.emptyList();
+		}
+
+		List<Area> cuttedAreas;
+		if (outerArea.isSingular()) {
+			// the area is singular
+			// => no further splits necessary
+			cuttedAreas = Collections.singletonList(outerArea);
+		} else {
+			// we need to cut the area into two halfs to get singular areas
+			Rectangle r1 = cutPoint.getCutRectangleForArea(areaData.outerRing, true);
+			Rectangle r2 = cutPoint.getCutRectangleForArea(areaData.outerRing, false);
+
+			// Now find the intersection of these two boxes with the
+			// original polygon. This will make two new areas, and each
+			// area will be one (or more) polygons.
+			Area a1 = outerArea;
+			Area a2 = (Area) a1.clone();
+			a1.intersect(new Area(r1));
+			a2.intersect(new Area(r2));
+
+			cuttedAreas = new ArrayList<Area>();
+			cuttedAreas.addAll(areaToSingularAreas(a1));
+			cuttedAreas.addAll(areaToSingularAreas(a2));
+		}
+
+		List<AreaCutData> cuttedData = new ArrayList<AreaCutData>(cuttedAreas.size());
+		for (Area nextOuterArea : cuttedAreas) {
+			List<Ring> nextInnerRings = new ArrayList<Ring>();
+			// go through all remaining inner rings and check if they
+			// must be further processed with the nextOuterArea 
+			for (Ring nonProcessedInner : remainingRings) {
+				if (nextOuterArea.intersects(nonProcessedInner.bounds)) {
+					nextInnerRings.add(nonProcessedInner);
+				}
+			}
+
+			List<Ring> pieces = new ArrayList<Ring>(1);
+			addRings(singularAreaToPoints(nextOuterArea), true, pieces);
+			for (Ring piece : pieces) {
+				AreaCutData nextCutData = new AreaCutData(piece);
+				nextCutData.innerRings.addAll(nextInnerRings);
+				cuttedData.add(nextCutData);
+			}
+		}
+		return cuttedData;
 	}
 
 	/**
@@ -1186,9 +1339,9 @@ public class MultiPolygonRelation extends Relation {
 	 */
 	private List<Area> createAreas(Way w, boolean clipBbox) {
 		Area area = new Area(createPolygon(w.getPoints()));
-		if (clipBbox && bboxArea.contains(area.getBounds())==false) {
+		if (clipBbox && getBboxArea().contains(area.getBounds())==false) {
 			// the area intersects the bounding box => clip it
-			area.intersect(bboxArea);
+			area.intersect(getBboxArea());
 		}
 		List<Area> areaList = areaToSingularAreas(area);
 		if (log.isDebugEnabled()) {
@@ -1198,24 +1351,65 @@ public class MultiPolygonRelation extends Relation {
 	}
 
 	/**
-	 * Convert an area to an mkgmap way. The caller must ensure that the area is singular.
-	 * Otherwise only the first part of the area is converted.
+	 * Create the rings that are enclosed by the way, clipped to the
+	 * bounding box. Usually the result is only one ring, but a way that
+	 * touches itself or goes out of the bounding box and back is split.
+	 * Ways that cross themselves are dealt with by the Area class.
+	 * 
+	 * @param w a closed way
+	 * @param outer true for the rings of an outer polygon; false for holes
+	 * @return a list of enclosed rings
+	 */
+	private List<Ring> createRings(Way w, boolean outer) {
+		List<Ring> rings = new ArrayList<Ring>();
+		List<List<Coord>> pointLists = PolygonSplitter.makeRings(w.getPoints(), bbox);
+		if (pointLists != null) {
+			for (List<Coord> points : pointLists) {
+				rings.add(new Ring(points, outer));
+			}
+		} else {
+			for (Area area : createAreas(w, true)) {
+				addRings(singularAreaToPoints(area), outer, rings);
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Bbox clipped way",w.getId()+"=>",rings.size(),"distinct ring(s).");
+		}
+		return rings;
+	}
+
+	/**
+	 * Add the rings of points that have come from an Area, removing the
+	 * repeated points that Area may leave.
+	 */
+	private static void addRings(List<Coord> points, boolean outer, List<Ring> rings) {
+		if (points == null) {
+			return;
+		}
+		List<List<Coord>> pointLists = PolygonSplitter.makeRings(points, null);
+		if (pointLists != null) {
+			for (List<Coord> ringPoints : pointLists) {
+				rings.add(new Ring(ringPoints, outer));
+			}
+		} else if (points.size() > 3) {
+			rings.add(new Ring(new ArrayList<Coord>(points.subList(0, points.size() - 1)), outer));
+		}
+	}
+
+	/**
+	 * Convert an area to its points. The caller must ensure that the area
+	 * is singular. Otherwise only the first part of the area is converted.
 	 * 
 	 * @param area
 	 *            the area
-	 * @param wayId
-	 *            the wayid for the new way
-	 * @return a new mkgmap way
+	 * @return the closed list of points, or null if the area is empty
 	 */
-	private Way singularAreaToWay(Area area, long wayId) {
+	private List<Coord> singularAreaToPoints(Area area) {
 		if (area.isEmpty()) {
-			if (log.isDebugEnabled()) {
-				log.debug("Empty area "+wayId+".", toBrowseURL());
-			}
 			return null;
 		}
 
-		Way w = null;
+		List<Coord> points = null;
 
 		float[] res = new float[6];
 		PathIterator pit = area.getPathIterator(null);
@@ -1225,15 +1419,15 @@ public class MultiPolygonRelation extends Relation {
 
 			switch (type) {
 			case PathIterator.SEG_MOVETO:
-				w = new Way(wayId);
-				w.addPoint(new Coord(Math.round(res[1]), Math.round(res[0])));
+				points = new ArrayList<Coord>();
+				points.add(new Coord(Math.round(res[1]), Math.round(res[0])));
 				break;
 			case PathIterator.SEG_LINETO:
-				w.addPoint(new Coord(Math.round(res[1]), Math.round(res[0])));
+				points.add(new Coord(Math.round(res[1]), Math.round(res[0])));
 				break;
 			case PathIterator.SEG_CLOSE:
-				w.addPoint(w.getPoints().get(0));
-				return w;
+				points.add(points.get(0));
+				return points;
 			default:
 				log.warn(toBrowseURL(),
 						"Unsupported path iterator type" + type,
@@ -1241,7 +1435,7 @@ public class MultiPolygonRelation extends Relation {
 			}
 			pit.next();
 		}
-		return w;
+		return points;
 	}
 
 	private boolean hasPolygonTags(JoinedWay way) {
@@ -1292,6 +1486,18 @@ public class MultiPolygonRelation extends Relation {
 			finishedMatrix.add(matrixRow);
 		}
 
+		// Index the polygons by the left edge of their bounds, so that the
+		// polygons that might be inside a polygon can be found without
+		// looking at all the others.  A polygon can only contain another if
+		// its bounds contain the other's bounds, all other pairs are known
+		// not to be contained without testing them.
+		long[] byLeftEdge = new long[polygonList.size()];
+		for (int i = 0; i < polygonList.size(); i++) {
+			byLeftEdge[i] = ((long) polygonList.get(i).getBounds().x << 32) | i;
+		}
+		Arrays.sort(byLeftEdge);
+
+		BitSet candidates = new BitSet();
 		for (int rowIndex = 0; rowIndex < polygonList.size(); rowIndex++) {
 			JoinedWay potentialOuterPolygon = polygonList.get(rowIndex);
 			BitSet containsColumns = containsMatrix.get(rowIndex);
@@ -1300,37 +1506,42 @@ public class MultiPolygonRelation extends Relation {
 			if (log.isDebugEnabled())
 				log.debug("check polygon", rowIndex);
 
-			// get all non calculated columns of the matrix
-			for (int colIndex = finishedCol.nextClearBit(0); colIndex >= 0
-					&& colIndex < polygonList.size(); colIndex = finishedCol
-					.nextClearBit(colIndex + 1)) {
+			Rectangle outerBounds = potentialOuterPolygon.getBounds();
+			candidates.clear();
+			int pos = -Arrays.binarySearch(byLeftEdge, ((long) outerBounds.x << 32) - 1) - 1;
+			for (; pos < byLeftEdge.length; pos++) {
+				int colIndex = (int) byLeftEdge[pos];
+				Rectangle innerBounds = polygonList.get(colIndex).getBounds();
+				if (innerBounds.x > outerBounds.x + outerBounds.width)
+					break;
+				if (outerBounds.contains(innerBounds))
+					candidates.set(colIndex);
+			}
+
+			// get all non calculated candidates in the order of the list
+			for (int colIndex = candidates.nextSetBit(0); colIndex >= 0; colIndex = candidates
+					.nextSetBit(colIndex + 1)) {
+				if (finishedCol.get(colIndex))
+					continue;
 
 				JoinedWay innerPolygon = polygonList.get(colIndex);
 
-				if (potentialOuterPolygon.getBounds().intersects(
-					innerPolygon.getBounds()) == false) {
-					// both polygons do not intersect
-					// we can flag both matrix elements as finished
+				boolean contains = contains(potentialOuterPolygon,
+					innerPolygon);
+
+				if (contains) {
+					containsColumns.set(colIndex);
+
+					// we also know that the inner polygon does not contain the
+					// outer polygon
+					// so we can set the finished bit for this matrix
+					// element
 					finishedMatrix.get(colIndex).set(rowIndex);
-					finishedMatrix.get(rowIndex).set(colIndex);
-				} else {
-					boolean contains = contains(potentialOuterPolygon,
-						innerPolygon);
-
-					if (contains) {
-						containsColumns.set(colIndex);
-
-						// we also know that the inner polygon does not contain the
-						// outer polygon
-						// so we can set the finished bit for this matrix
-						// element
-						finishedMatrix.get(colIndex).set(rowIndex);
-
-						// additionally we know that the outer polygon contains all
-						// polygons that are contained by the inner polygon
-						containsColumns.or(containsMatrix.get(colIndex));
-						finishedCol.or(containsColumns);
-					}
+
+					// additionally we know that the outer polygon contains all
+					// polygons that are contained by the inner polygon
+					containsColumns.or(containsMatrix.get(colIndex));
+					finishedCol.or(containsColumns);
 				}
 				// this matrix element is calculated now
 				finishedCol.set(colIndex);
@@ -1848,20 +2059,50 @@ public class MultiPolygonRelation extends Relation {
 		}
 	}
 
+	/**
+	 * An unclosed ring of points with its bounds. Outer rings go
+	 * anti-clockwise and holes clockwise.
+	 */
+	private static class Ring {
+		final List<Coord> points;
+		final Rectangle bounds;
+
+		public Ring(List<Coord> points, boolean outer) {
+			PolygonSplitter.orient(points, outer);
+			this.points = points;
+
+			int minLat = Integer.MAX_VALUE;
+			int minLong = Integer.MAX_VALUE;
+			int maxLat = Integer.MIN_VALUE;
+			int maxLong = Integer.MIN_VALUE;
+			for (Coord co : points) {
+				minLat = Math.min(minLat, co.getLatitude());
+				minLong = Math.min(minLong, co.getLongitude());
+				maxLat = Math.max(maxLat, co.getLatitude());
+				maxLong = Math.max(maxLong, co.getLongitude());
+			}
+			this.bounds = new Rectangle(minLong, minLat, maxLong - minLong, maxLat - minLat);
+		}
+	}
+
 	private static class AreaCutData {
-		Area outerArea;
-		List<Area> innerAreas;
+		final Ring outerRing;
+		final List<Ring> innerRings = new ArrayList<Ring>();
+
+		public AreaCutData(Ring outerRing) {
+			this.outerRing = outerRing;
+		}
 	}
 
 	private static class CutPoint implements Comparable<CutPoint>{
 		int startPoint = Integer.MAX_VALUE;
 		int stopPoint = Integer.MIN_VALUE;
-		TreeSet<Area> areas;
+		TreeSet<Ring> areas;
 		private final CoordinateAxis axis;
 
 		public CutPoint(CoordinateAxis axis) {
 			this.axis = axis;
-			this.areas = new TreeSet<Area>(
+			this.areas = new TreeSet<Ring>(
 					(axis == CoordinateAxis.LONGITUDE ? COMP_LONG_STOP : COMP_LAT_STOP));
 		}
 		
@@ -1873,12 +2114,16 @@ public class MultiPolygonRelation extends Relation {
 			return newCutPoint;
 		}
 
+		public CoordinateAxis getAxis() {
+			return axis;
+		}
+
 		public int getCutPoint() {
 			return startPoint + (stopPoint - startPoint) / 2;
 		}
 
-		public Rectangle getCutRectangleForArea(Area toCut, boolean firstRect) {
-			Rectangle areaRect = toCut.getBounds();
+		public Rectangle getCutRectangleForArea(Ring toCut, boolean firstRect) {
+			Rectangle areaRect = toCut.bounds;
 			if (axis == CoordinateAxis.LONGITUDE) {
 				int newWidth = getCutPoint()-areaRect.x;
 				if (firstRect) {
@@ -1896,11 +2141,11 @@ public class MultiPolygonRelation extends Relation {
 			}
 		}
 		
-		public Collection<Area> getAreas() {
+		public Collection<Ring> getAreas() {
 			return areas;
 		}
 
-		public void addArea(Area area) {
+		public void addArea(Ring area) {
 			// remove all areas that do not overlap with the new area
 			while (areas.isEmpty() == false
 					&& axis.getStop(areas.first()) < axis
@@ -1947,16 +2192,16 @@ public class MultiPolygonRelation extends Relation {
 
 		private final boolean useX;
 
-		public int getStart(Area area) {
-			return getStart(area.getBounds());
+		public int getStart(Ring ring) {
+			return getStart(ring.bounds);
 		}
 
 		public int getStart(Rectangle rect) {
 			return (useX ? rect.x : rect.y);
 		}
 
-		public int getStop(Area area) {
-			return getStop(area.getBounds());
+		public int getStop(Ring ring) {
+			return getStop(ring.bounds);
 		}
 
 		public int getStop(Rectangle rect) {
@@ -1965,26 +2210,26 @@ public class MultiPolygonRelation extends Relation {
 
 	}
 
-	private static final AreaComparator COMP_LONG_START = new AreaComparator(
+	private static final RingComparator COMP_LONG_START = new RingComparator(
 			true, CoordinateAxis.LONGITUDE);
-	private static final AreaComparator COMP_LONG_STOP = new AreaComparator(
+	private static final RingComparator COMP_LONG_STOP = new RingComparator(
 			false, CoordinateAxis.LONGITUDE);
-	private static final AreaComparator COMP_LAT_START = new AreaComparator(
+	private static final RingComparator COMP_LAT_START = new RingComparator(
 			true, CoordinateAxis.LATITUDE);
-	private static final AreaComparator COMP_LAT_STOP = new AreaComparator(
+	private static final RingComparator COMP_LAT_STOP = new RingComparator(
 			false, CoordinateAxis.LATITUDE);
 
-	private static class AreaComparator implements Comparator<Area> {
+	private static class RingComparator implements Comparator<Ring> {
 
 		private final CoordinateAxis axis;
 		private final boolean startPoint;
 
-		public AreaComparator(boolean startPoint, CoordinateAxis axis) {
+		public RingComparator(boolean startPoint, CoordinateAxis axis) {
 			this.startPoint = startPoint;
 			this.axis = axis;
 		}
 
-		public int compare(Area o1, Area o2) {
+		public int compare(Ring o1, Ring o2) {
 			if (o1 == o2) {
 				return 0;
 			}
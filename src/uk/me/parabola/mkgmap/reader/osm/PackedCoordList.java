@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * A list of points that is stored as arrays of latitudes and longitudes
+ * rather than as a Coord object for every point.
+ *
+ * The points of a way are added to it as they are read.  A point that
+ * already has a Coord, because it is shared with another way or a node,
+ * is added as that Coord and is always returned as it.  Any other point
+ * is a plain point, it is added as just its location and the id of its
+ * node, so that the reader can give it the Coord later if a way that is
+ * read after this one turns out to use the same node.
+ *
+ * Asking for a plain point makes a new Coord every time, which is not
+ * kept.  So anything that changes the points, or needs to get the same
+ * object each time, must copy the list first, see {@link Way#unpackPoints}.
+ * A plain point has a highway count of one, for the way that it is in.
+ */
+class PackedCoordList extends AbstractList<Coord> implements RandomAccess {
+	private static final int INITIAL_SIZE = 8;
+
+	private int[] lats = new int[INITIAL_SIZE];
+	private int[] lons = new int[INITIAL_SIZE];
+
+	// The points that have a Coord, the array is null until the first one
+	// is added.
+	private Coord[] coords;
+
+	// The node ids of the plain points, while the reader still needs them.
+	private long[] nodeIds;
+
+	private int size;
+
+	/**
+	 * Add a plain point to the end of the list.
+	 *
+	 * @param nodeId The id of the node that is at the point.
+	 * @param lat The latitude in map units.
+	 * @param lon The longitude in map units.
+	 */
+	void addNodePoint(long nodeId, int lat, int lon) {
+		if (size == lats.length)
+			grow();
+		if (nodeIds == null)
+			nodeIds = new long[lats.length];
+
+		lats[size] = lat;
+		lons[size] = lon;
+		nodeIds[size] = nodeId;
+		size++;
+		modCount++;
+	}
+
+	/**
+	 * Get the node id of a plain point.
+	 *
+	 * @return The id that it was added with, or 0 if the point has a Coord
+	 * or the ids have been dropped.
+	 */
+	long getNodeId(int index) {
+		checkIndex(index);
+		if (nodeIds == null || (coords != null && coords[index] != null))
+			return 0;
+		return nodeIds[index];
+	}
+
+	/**
+	 * Drop the node ids, and any room at the end of the arrays, once the
+	 * list is complete.
+	 */
+	void dropNodeIds() {
+		nodeIds = null;
+		if (size < lats.length) {
+			lats = copyOf(lats, size);
+			lons = copyOf(lons, size);
+			if (coords != null) {
+				Coord[] newCoords = new Coord[size];
+				System.arraycopy(coords, 0, newCoords, 0, size);
+				coords = newCoords;
+			}
+		}
+	}
+
+	public Coord get(int index) {
+		checkIndex(index);
+		if (coords != null && coords[index] != null)
+			return coords[index];
+
+		Coord co = new Coord(lats[index], lons[index]);
+		co.incHighwayCount();
+		return co;
+	}
+
+	public Coord set(int index, Coord co) {
+		Coord old = get(index);
+		if (coords == null)
+			coords = new Coord[lats.length];
+		coords[index] = co;
+		lats[index] = co.getLatitude();
+		lons[index] = co.getLongitude();
+		return old;
+	}
+
+	public void add(int index, Coord co) {
+		if (index < 0 || index > size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+		if (size == lats.length)
+			grow();
+		if (coords == null)
+			coords = new Coord[lats.length];
+
+		int n = size - index;
+		System.arraycopy(lats, index, lats, index + 1, n);
+		System.arraycopy(lons, index, lons, index + 1, n);
+		System.arraycopy(coords, index, coords, index + 1, n);
+		if (nodeIds != null)
+			System.arraycopy(nodeIds, index, nodeIds, index + 1, n);
+
+		lats[index] = co.getLatitude();
+		lons[index] = co.getLongitude();
+		coords[index] = co;
+		size++;
+		modCount++;
+	}
+
+	public Coord remove(int index) {
+		Coord old = get(index);
+
+		int n = size - index - 1;
+		System.arraycopy(lats, index + 1, lats, index, n);
+		System.arraycopy(lons, index + 1, lons, index, n);
+		if (coords != null) {
+			System.arraycopy(coords, index + 1, coords, index, n);
+			coords[size - 1] = null;
+		}
+		if (nodeIds != null)
+			System.arraycopy(nodeIds, index + 1, nodeIds, index, n);
+		size--;
+		modCount++;
+		return old;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+	private void grow() {
+		int newSize = size + (size >> 1) + 1;
+		lats = copyOf(lats, newSize);
+		lons = copyOf(lons, newSize);
+		if (coords != null) {
+			Coord[] newCoords = new Coord[newSize];
+			System.arraycopy(coords, 0, newCoords, 0, size);
+			coords = newCoords;
+		}
+		if (nodeIds != null) {
+			long[] newIds = new long[newSize];
+			System.arraycopy(nodeIds, 0, newIds, 0, size);
+			nodeIds = newIds;
+		}
+	}
+
+	private static int[] copyOf(int[] a, int newSize) {
+		int[] na = new int[newSize];
+		System.arraycopy(a, 0, na, 0, Math.min(a.length, newSize));
+		return na;
+	}
+}
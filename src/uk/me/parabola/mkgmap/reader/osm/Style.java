@@ -17,6 +17,7 @@
 package uk.me.parabola.mkgmap.reader.osm;
 
 import java.util.Properties;
+import java.util.Set;
 
 import uk.me.parabola.mkgmap.general.LineAdder;
 
@@ -67,6 +68,13 @@ public interface Style {
 	 */
 	public Rule getRelationRules();
 
+	/**
+	 * Get the names of the tags that can cause a way to be matched by one
+	 * of the line or polygon rules.  A way that has none of these tags will
+	 * not appear on the map, unless it is changed by a relation.
+	 */
+	public Set<String> getUsedWayTags();
+
 	/**
 	 * Get the overlay definitions.  Most styles will not use this.
 	 */
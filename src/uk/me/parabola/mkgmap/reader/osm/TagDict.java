@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A dictionary of tag keys that is shared by all elements, and all the
+ * tiles that are being made at the same time.
+ *
+ * Every key is given a small integer id, which is what {@link Tags} stores.
+ * The ids start at 1, so that zero can be used to mean no key.  Values
+ * are not kept here, as unlike keys there is no limit to the number of
+ * different ones.  They are pooled for each file that is read instead,
+ * see {@link TagValuePool}.
+ *
+ * All the methods may be called from any thread.
+ */
+public class TagDict {
+	private static final TagDict INSTANCE = new TagDict();
+
+	private final ConcurrentMap<String, Integer> keyIds = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] keys = new String[1024];
+	private int nextId = 1;
+
+	private TagDict() {
+	}
+
+	public static TagDict getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Get the id of a key, adding it to the dictionary if it is not
+	 * already there.
+	 *
+	 * @param key The tag key.
+	 * @return The id of the key, always greater than zero.
+	 */
+	public int xlate(String key) {
+		Integer id = keyIds.get(key);
+		if (id != null)
+			return id;
+		return add(key);
+	}
+
+	/**
+	 * Get the id of a key without adding it to the dictionary.
+	 *
+	 * @param key The tag key.
+	 * @return The id of the key, or zero if the key has never been used.
+	 */
+	public int lookup(String key) {
+		Integer id = keyIds.get(key);
+		if (id == null)
+			return 0;
+		return id;
+	}
+
+	/**
+	 * Get the key that has the given id.
+	 */
+	public String getKey(int id) {
+		return keys[id];
+	}
+
+	private synchronized int add(String key) {
+		// It may have been added by another thread since we looked
+		Integer id = keyIds.get(key);
+		if (id != null)
+			return id;
+
+		int newId = nextId++;
+		String[] k = keys;
+		if (newId >= k.length) {
+			String[] nk = new String[k.length * 2];
+			System.arraycopy(k, 0, nk, 0, k.length);
+			k = nk;
+		}
+		k[newId] = key;
+
+		// The array must be published before the id can be seen
+		keys = k;
+		keyIds.put(key, newId);
+		return newId;
+	}
+}
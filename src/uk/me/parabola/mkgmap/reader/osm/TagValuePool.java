@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one copy of each tag value that is read from a file, so that
+ * 'highway=residential' on a thousand ways holds one string for the value
+ * rather than a thousand, and so that equal values of different elements
+ * are usually the same instance and compare at once.
+ *
+ * The keys are kept for the whole run in {@link TagDict}, but a pool is
+ * made for each file that is loaded and is dropped when the load is
+ * finished.  Only the first maxSize different values are pooled, any
+ * after that are used as they are.
+ *
+ * It is not thread safe, it is only used by the thread reading the file.
+ */
+public class TagValuePool {
+	private final Map<String, String> values = new HashMap<String, String>();
+	private final int maxSize;
+
+	/**
+	 * @param maxSize The largest number of different values to keep.
+	 */
+	public TagValuePool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Get the pooled copy of a value.
+	 *
+	 * @param value The tag value, may be null.
+	 * @return A string that is equal to the value.  It is the same instance
+	 * for every equal value, unless the pool was full when it was first
+	 * seen.
+	 */
+	public String intern(String value) {
+		if (value == null)
+			return null;
+
+		String v = values.get(value);
+		if (v != null)
+			return v;
+
+		if (values.size() < maxSize)
+			values.put(value, value);
+		return value;
+	}
+
+	/**
+	 * The number of different values in the pool.
+	 */
+	public int size() {
+		return values.size();
+	}
+}
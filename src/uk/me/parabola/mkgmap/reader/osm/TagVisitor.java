@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+/**
+ * Called for each tag of an element by {@link Element#visitTags}.
+ *
+ * The key is given as its id in the {@link TagDict}, so that the tags can
+ * be looked at without making any strings.
+ */
+public interface TagVisitor {
+	/**
+	 * @param keyId The id of the key in the {@link TagDict}.
+	 * @param value The value of the tag.
+	 */
+	public void visit(int keyId, String value);
+}
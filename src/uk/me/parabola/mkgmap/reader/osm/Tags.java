@@ -33,6 +33,11 @@ import java.util.Map;
  * Performance of the whole application is unchanged compared with when
  * a regular HashMap was used.
  *
+ * The keys are stored as ids from the shared {@link TagDict}, so common
+ * keys are only held once however many elements use them.  The values
+ * that are read from a file are pooled by the reader with a
+ * {@link TagValuePool}, so common values are also only held once.
+ *
  * It doesn't fully behave the same way that a map would.
  *
  * @author Steve Ratcliffe
@@ -40,20 +45,34 @@ import java.util.Map;
 public class Tags implements Iterable<String> {
 	private static final int INIT_SIZE = 8;
 
+	private static final TagDict dict = TagDict.getInstance();
+
 	private short size;
 	private short capacity;
 
-	private String[] keys;
+	// The key ids from the TagDict, zero for an empty slot
+	private int[] keys;
 	private String[] values;
 
 	public Tags() {
-		keys = new String[INIT_SIZE];
+		keys = new int[INIT_SIZE];
 		values = new String[INIT_SIZE];
 		capacity = INIT_SIZE;
 	}
 
 	public String get(Object key) {
-		Integer ind = keyPos((String) key);
+		int id = dict.lookup((String) key);
+		if (id == 0)
+			return null;
+		return get(id);
+	}
+
+	/**
+	 * Get the value of a tag by its key id.
+	 * @param keyId The id of the key in the {@link TagDict}.
+	 */
+	public String get(int keyId) {
+		Integer ind = keyPos(keyId);
 		if (ind == null)
 			return null;
 
@@ -62,10 +81,11 @@ public class Tags implements Iterable<String> {
 
 	public String put(String key, String value) {
 		ensureSpace();
-		Integer ind = keyPos(key);
+		int id = dict.xlate(key);
+		Integer ind = keyPos(id);
 		if (ind == null)
 			assert false : "keyPos(" + key + ") returns null - size = " + size + ", capacity = " + capacity;
-		keys[ind] = key;
+		keys[ind] = id;
 
 		String old = values[ind];
 		if (old == null)
@@ -76,7 +96,10 @@ public class Tags implements Iterable<String> {
 	}
 
 	public String remove(Object key) {
-		Integer k = keyPos((String) key);
+		int id = dict.lookup((String) key);
+		if (id == 0)
+			return null;
+		Integer k = keyPos(id);
 
 		if (k != null) {
 			// because of the way this works, you can never remove keys
@@ -105,30 +128,33 @@ public class Tags implements Iterable<String> {
 	private void ensureSpace() {
 		while (size + 1 >= capacity) {
 			short ncap = (short) (capacity*2);
-			String[] okey = keys;
+			int[] okey = keys;
 			String[] oval = values;
-			keys = new String[ncap];
+			keys = new int[ncap];
 			values = new String[ncap];
 			capacity = ncap;
 			size = 0;
 			for (int i = 0; i < okey.length; i++) {
-				String k = okey[i];
+				int k = okey[i];
 				String v = oval[i]; // null if tag has been removed
-				if (k != null && v != null)
-					put(k, v);
+				if (k != 0 && v != null) {
+					Integer ind = keyPos(k);
+					keys[ind] = k;
+					values[ind] = v;
+					size++;
+				}
 			}
 		}
 		assert size < capacity;
 	}
 
-	private Integer keyPos(String key) {
-		int h = key.hashCode();
-		int k = h & (capacity - 1);
+	private Integer keyPos(int id) {
+		int k = (id * 0x9e3779b9 >>> 16) & (capacity - 1);
 
 		int i = k;
 		do {
-			String fk = keys[i];
-			if (fk == null || fk.equals(key))
+			int fk = keys[i];
+			if (fk == 0 || fk == id)
 				return i;
 			i++;
 			if (i >= capacity)
@@ -137,6 +163,17 @@ public class Tags implements Iterable<String> {
 		return null;
 	}
 
+	/**
+	 * Call the visitor for each tag.  Nothing is allocated, so this is the
+	 * way to look at all the tags when it is done for every element.
+	 */
+	public void visit(TagVisitor visitor) {
+		for (int i = 0; i < capacity; i++) {
+			if (values[i] != null)
+				visitor.visit(keys[i], values[i]);
+		}
+	}
+
 	/**
 	 * Iterates over the tags in a special way that is used to look up in
 	 * the rules.
@@ -181,9 +218,9 @@ public class Tags implements Iterable<String> {
 					for (int i = pos; i < capacity; i++) {
 						if (values[i] != null) {
 							//doWild = true;
-							wild = keys[i];
+							wild = dict.getKey(keys[i]);
 							pos = i+1;
-							return (keys[i] + "=" + values[i]);
+							return (wild + "=" + values[i]);
 						}
 					}
 					pos = capacity;
@@ -213,7 +250,7 @@ public class Tags implements Iterable<String> {
 			}
 
 			public Map.Entry<String, String> next() {
-				Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<String, String>(keys[pos], values[pos]);
+				Map.Entry<String, String> entry = new AbstractMap.SimpleEntry<String, String>(dict.getKey(keys[pos]), values[pos]);
 
 				pos++;
 				return entry;
@@ -230,11 +267,14 @@ public class Tags implements Iterable<String> {
 
 		int prefixLen = prefix.length();
 		for(int i = 0; i < capacity; ++i) {
-			if(keys[i] != null && keys[i].startsWith(prefix)) {
+			if (keys[i] == 0)
+				continue;
+			String key = dict.getKey(keys[i]);
+			if(key.startsWith(prefix)) {
 				if(removePrefix)
-					map.put(keys[i].substring(prefixLen), values[i]);
+					map.put(key.substring(prefixLen), values[i]);
 				else
-					map.put(keys[i], values[i]);
+					map.put(key, values[i]);
 			}
 		}
 
@@ -243,7 +283,7 @@ public class Tags implements Iterable<String> {
 	
 	public void removeAll() {
 		for (int i = 0; i < capacity; i++){
-			keys[i] = null;
+			keys[i] = 0;
 			values[i] = null;
 		}
 		size = 0;
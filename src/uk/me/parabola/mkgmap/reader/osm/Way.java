@@ -31,7 +31,7 @@ import uk.me.parabola.imgfmt.app.Coord;
  */
 public class Way extends Element {
 
-	private final List<Coord> points;
+	private List<Coord> points;
 
 	public Way(long id) {
 		points = new ArrayList<Coord>();
@@ -44,6 +44,8 @@ public class Way extends Element {
 	}
 
 	public Way copy() {
+		// the copy has the same points as this way
+		unpackPoints();
 		Way dup = new Way(getId(), new ArrayList<Coord>(points));
 		dup.setName(getName());
 		dup.copyTags(this);
@@ -60,6 +62,56 @@ public class Way extends Element {
 		return points;
 	}
 
+	/**
+	 * Make sure that the points of the way are kept as Coords, so that
+	 * each point is the same object every time it is asked for and any
+	 * change made to it is kept.  This has to be done before the points
+	 * of a way that was read from a file are changed, see
+	 * {@link PackedCoordList}.
+	 */
+	public void unpackPoints() {
+		if (points instanceof PackedCoordList)
+			points = new ArrayList<Coord>(points);
+	}
+
+	/**
+	 * Add a point that is the location of a node, without making a Coord
+	 * for it.  This is for the points of the ways that are read from a
+	 * file, see {@link PackedCoordList}.
+	 *
+	 * @param nodeId The id of the node.
+	 * @param lat The latitude in map units.
+	 * @param lon The longitude in map units.
+	 */
+	public void addPoint(long nodeId, int lat, int lon) {
+		if (!(points instanceof PackedCoordList)) {
+			PackedCoordList packed = new PackedCoordList();
+			packed.addAll(points);
+			points = packed;
+		}
+		((PackedCoordList) points).addNodePoint(nodeId, lat, lon);
+	}
+
+	/**
+	 * Get the node id of a point that was added with
+	 * {@link #addPoint(long, int, int)} and has not been given a Coord since.
+	 *
+	 * @return The node id, or 0 for any other point.
+	 */
+	public long getPointNodeId(int index) {
+		if (points instanceof PackedCoordList)
+			return ((PackedCoordList) points).getNodeId(index);
+		return 0;
+	}
+
+	/**
+	 * Forget the node ids of the points, once the way is complete.
+	 */
+	public void dropPointNodeIds() {
+		if (points instanceof PackedCoordList)
+			((PackedCoordList) points).dropNodeIds();
+	}
+
 	public boolean isBoolTag(String s) {
 		String val = getTag(s);
 		if (val == null)
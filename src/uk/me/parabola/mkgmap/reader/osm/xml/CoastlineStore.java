@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.imgfmt.Utils;
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.log.Logger;
+import uk.me.parabola.mkgmap.reader.osm.FakeIdGenerator;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The coastline read from the files given with the coastlinefile option,
+ * so that it does not have to be in every tile.
+ *
+ * The files are read only once for all the tiles that are made in a run.
+ * The coastline ways are joined together where they meet and then cut
+ * into short pieces, which are held in a grid so that each tile only has
+ * to look at the pieces that are near it.  A tile gets its own copy of
+ * those pieces; the points where two pieces meet are shared, just as the
+ * nodes where two ways meet are, so the pieces join up again in the same
+ * way as the coastline ways of the tile itself would.
+ */
+class CoastlineStore {
+	private static final Logger log = Logger.getLogger(CoastlineStore.class);
+
+	// The most points in a piece
+	private static final int PIECE_SIZE = 200;
+
+	// The size of a grid cell as a shift, about 1.4 degrees
+	private static final int CELL_SHIFT = 16;
+
+	private static final Map<String, CoastlineStore> stores = new HashMap<String, CoastlineStore>();
+
+	private final List<Coord[]> pieces = new ArrayList<Coord[]>();
+	private final List<int[]> pieceBounds = new ArrayList<int[]>();
+	private final Map<Long, List<Integer>> grid = new HashMap<Long, List<Integer>>();
+
+	private CoastlineStore() {
+	}
+
+	/**
+	 * Get the coastline from the given files, reading them if this is the
+	 * first time that they have been asked for.
+	 *
+	 * @param fileNames The value of the coastlinefile option, a comma
+	 * separated list of file names.
+	 */
+	static synchronized CoastlineStore getStore(String fileNames) {
+		CoastlineStore store = stores.get(fileNames);
+		if (store == null) {
+			store = new CoastlineStore();
+			List<List<Coord>> ways = new ArrayList<List<Coord>>();
+			for (String name : fileNames.split(","))
+				ways.addAll(read(name.trim()));
+			store.add(join(ways));
+			log.info("Coastline from", fileNames, "has", store.pieces.size(), "pieces");
+			stores.put(fileNames, store);
+		}
+		return store;
+	}
+
+	/**
+	 * Get the coastline that might cross the given area.
+	 *
+	 * @return New ways holding copies of the pieces of coastline whose
+	 * bounding box touches the area.
+	 */
+	List<Way> getCoastline(Area bounds) {
+		int minLat = bounds.getMinLat();
+		int maxLat = bounds.getMaxLat();
+		int minLon = bounds.getMinLong();
+		int maxLon = bounds.getMaxLong();
+
+		BitSet found = new BitSet();
+		for (int y = minLat >> CELL_SHIFT; y <= maxLat >> CELL_SHIFT; y++) {
+			for (int x = minLon >> CELL_SHIFT; x <= maxLon >> CELL_SHIFT; x++) {
+				List<Integer> cell = grid.get(cellKey(y, x));
+				if (cell != null) {
+					for (int i : cell)
+						found.set(i);
+				}
+			}
+		}
+
+		List<Way> ways = new ArrayList<Way>();
+		Map<Coord, Coord> copies = new IdentityHashMap<Coord, Coord>();
+		for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+			int[] b = pieceBounds.get(i);
+			if (b[0] > maxLat || b[1] < minLat || b[2] > maxLon || b[3] < minLon)
+				continue;
+
+			Coord[] piece = pieces.get(i);
+			Way w = new Way(FakeIdGenerator.makeFakeId());
+			for (Coord co : piece) {
+				Coord copy = copies.get(co);
+				if (copy == null) {
+					copy = new Coord(co.getLatitude(), co.getLongitude());
+					copies.put(co, copy);
+				}
+				w.addPoint(copy);
+			}
+			ways.add(w);
+		}
+		return ways;
+	}
+
+	/**
+	 * Cut the joined coastline into pieces and add them to the grid.
+	 */
+	private void add(List<List<Coord>> lines) {
+		for (List<Coord> line : lines) {
+			int start = 0;
+			int n = line.size();
+			while (start < n - 1) {
+				int end = Math.min(start + PIECE_SIZE, n);
+				addPiece(line.subList(start, end));
+				start = end - 1;
+			}
+		}
+	}
+
+	private void addPiece(List<Coord> points) {
+		int minLat = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (Coord co : points) {
+			minLat = Math.min(minLat, co.getLatitude());
+			maxLat = Math.max(maxLat, co.getLatitude());
+			minLon = Math.min(minLon, co.getLongitude());
+			maxLon = Math.max(maxLon, co.getLongitude());
+		}
+
+		Integer index = pieces.size();
+		pieces.add(points.toArray(new Coord[points.size()]));
+		pieceBounds.add(new int[] {minLat, maxLat, minLon, maxLon});
+
+		for (int y = minLat >> CELL_SHIFT; y <= maxLat >> CELL_SHIFT; y++) {
+			for (int x = minLon >> CELL_SHIFT; x <= maxLon >> CELL_SHIFT; x++) {
+				Long key = cellKey(y, x);
+				List<Integer> cell = grid.get(key);
+				if (cell == null) {
+					cell = new ArrayList<Integer>();
+					grid.put(key, cell);
+				}
+				cell.add(index);
+			}
+		}
+	}
+
+	private static Long cellKey(int y, int x) {
+		return ((long) y << 32) | (x & 0xffffffffL);
+	}
+
+	/**
+	 * Join the ways where the end of one is the start of another.  Each
+	 * chain is started from a way that does not follow any other, and then
+	 * what is left over must be rings, which are started anywhere.
+	 */
+	private static List<List<Coord>> join(List<List<Coord>> ways) {
+		Map<Coord, List<Coord>> byStart = new HashMap<Coord, List<Coord>>();
+		Set<Coord> ends = new HashSet<Coord>();
+		for (List<Coord> w : ways) {
+			Coord first = w.get(0);
+			Coord last = w.get(w.size() - 1);
+			if (first.equals(last))
+				continue;
+			byStart.put(first, w);
+			ends.add(last);
+		}
+
+		List<List<Coord>> joined = new ArrayList<List<Coord>>();
+		Set<List<Coord>> used = Collections.newSetFromMap(new IdentityHashMap<List<Coord>, Boolean>());
+		for (int pass = 0; pass < 2; pass++) {
+			for (List<Coord> w : ways) {
+				if (used.contains(w))
+					continue;
+				Coord first = w.get(0);
+				if (pass == 0 && ends.contains(first) && !first.equals(w.get(w.size() - 1)))
+					continue;
+
+				used.add(w);
+				List<Coord> line = new ArrayList<Coord>(w);
+				while (true) {
+					Coord last = line.get(line.size() - 1);
+					if (last.equals(line.get(0)))
+						break;
+					List<Coord> next = byStart.get(last);
+					if (next == null || used.contains(next))
+						break;
+					used.add(next);
+					line.addAll(next.subList(1, next.size()));
+				}
+				joined.add(line);
+			}
+		}
+		log.info("Joined", ways.size(), "coastline ways into", joined.size());
+		return joined;
+	}
+
+	/**
+	 * Read the coastline ways from an OSM file.
+	 */
+	private static List<List<Coord>> read(String name) {
+		log.info("Reading coastline from", name);
+		try {
+			SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+			SAXParser parser = parserFactory.newSAXParser();
+			CoastlineHandler handler = new CoastlineHandler();
+			InputStream is = Utils.openFile(name);
+			try {
+				parser.parse(is, handler);
+			} finally {
+				is.close();
+			}
+			return handler.ways;
+		} catch (IOException e) {
+			throw new ExitException("Could not read coastline file " + name, e);
+		} catch (SAXException e) {
+			throw new ExitException("Error parsing coastline file " + name, e);
+		} catch (ParserConfigurationException e) {
+			throw new ExitException("Internal error configuring xml parser", e);
+		}
+	}
+
+	/**
+	 * Keeps the ways that are tagged natural=coastline, including where
+	 * coastline is one of a list of values.
+	 */
+	private static class CoastlineHandler extends DefaultHandler {
+		private final Map<String, Coord> nodes = new HashMap<String, Coord>();
+		private final List<List<Coord>> ways = new ArrayList<List<Coord>>();
+
+		private List<Coord> currentWay;
+		private boolean isCoastline;
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+				throws SAXException
+		{
+			if (currentWay != null) {
+				if (qName.equals("nd")) {
+					Coord co = nodes.get(attributes.getValue("ref"));
+					if (co != null)
+						currentWay.add(co);
+				} else if (qName.equals("tag")) {
+					if ("natural".equals(attributes.getValue("k"))) {
+						for (String n : attributes.getValue("v").split(";")) {
+							if ("coastline".equals(n.trim()))
+								isCoastline = true;
+						}
+					}
+				}
+			} else if (qName.equals("node")) {
+				double lat = Double.parseDouble(attributes.getValue("lat"));
+				double lon = Double.parseDouble(attributes.getValue("lon"));
+				nodes.put(attributes.getValue("id"),
+						new Coord(Utils.toMapUnit(lat), Utils.toMapUnit(lon)));
+			} else if (qName.equals("way")) {
+				currentWay = new ArrayList<Coord>();
+				isCoastline = false;
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+				throws SAXException
+		{
+			if (currentWay != null && qName.equals("way")) {
+				if (isCoastline && currentWay.size() > 1)
+					ways.add(currentWay);
+				currentWay = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * Maps a Coord instance back to the id of the node that it came from.
+ *
+ * An identity map with open addressing into a Coord array and a parallel
+ * array of primitive ids, so that there is no boxed Long or entry object
+ * for each point.
+ */
+class CoordIdMap {
+	private Coord[] keys = new Coord[1 << 16];
+	private long[] values = new long[1 << 16];
+	private int size;
+
+	public void put(Coord co, long id) {
+		int i = slot(keys, co);
+		if (keys[i] == null) {
+			keys[i] = co;
+			if (++size > keys.length / 2 + keys.length / 4)
+				rehash();
+			i = slot(keys, co);
+		}
+		values[i] = id;
+	}
+
+	/**
+	 * Get the id of the node for the given point.
+	 *
+	 * @return The id, or zero if the point did not come from a node.
+	 */
+	public long get(Coord co) {
+		int i = slot(keys, co);
+		return keys[i] == null ? 0 : values[i];
+	}
+
+	private static int slot(Coord[] table, Coord co) {
+		int mask = table.length - 1;
+		int i = System.identityHashCode(co) & mask;
+		while (table[i] != null && table[i] != co)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private void rehash() {
+		Coord[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new Coord[oldKeys.length * 2];
+		values = new long[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int n = slot(keys, oldKeys[i]);
+				keys[n] = oldKeys[i];
+				values[n] = oldValues[i];
+			}
+		}
+	}
+}
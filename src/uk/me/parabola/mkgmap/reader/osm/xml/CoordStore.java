@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+/**
+ * Holds the location of every node read from the input, keyed by node id.
+ *
+ * This replaces a HashMap&lt;Long, Coord&gt;, which costs a boxed key, a map
+ * entry and a Coord for every node.  Here the ids and locations are kept in
+ * parallel primitive arrays and a Coord is only created when a node is
+ * actually looked up, after which the same Coord instance is always
+ * returned for that id.  That is important as ways that share a node must
+ * share the Coord too.
+ *
+ * The first way that uses a node does not need its Coord, unless something
+ * else has already asked for it, so it is just marked as used.  When a
+ * Coord is made for a node that is marked its highway count is one, for
+ * that way.
+ *
+ * Nodes in OSM files are nearly always in id order, so the ids are just
+ * appended and looked up with a binary search.  If they arrive out of
+ * order then the arrays are sorted before the next lookup.
+ */
+class CoordStore {
+	private static final int INITIAL_SIZE = 50000;
+
+	private long[] ids = new long[INITIAL_SIZE];
+	private int[] lats = new int[INITIAL_SIZE];
+	private int[] lons = new int[INITIAL_SIZE];
+	private Coord[] coords = new Coord[INITIAL_SIZE];
+	private boolean[] usedByWay = new boolean[INITIAL_SIZE];
+	private int size;
+	private boolean sorted = true;
+
+	/**
+	 * Save the location of a node.
+	 *
+	 * @param id The node id.
+	 * @param lat The latitude in map units.
+	 * @param lon The longitude in map units.
+	 */
+	public void put(long id, int lat, int lon) {
+		if (size > 0 && ids[size - 1] == id) {
+			// the same node again, the last one wins
+			size--;
+		} else if (size > 0 && ids[size - 1] > id) {
+			sorted = false;
+		}
+
+		if (size == ids.length)
+			grow();
+
+		ids[size] = id;
+		lats[size] = lat;
+		lons[size] = lon;
+		coords[size] = null;
+		usedByWay[size] = false;
+		size++;
+	}
+
+	/**
+	 * Get the location of a node.
+	 *
+	 * @param id The node id.
+	 * @return The Coord for the node, the same instance is returned every time
+	 * for the same id.  If the node has not been seen then null.
+	 */
+	public Coord get(long id) {
+		int i = indexOf(id);
+		if (i < 0)
+			return null;
+		return makeCoord(i);
+	}
+
+	/**
+	 * Get the Coord of the node at an index, making it if needed.
+	 *
+	 * @param index The index of the node, from {@link #indexOf}.
+	 */
+	public Coord makeCoord(int index) {
+		Coord co = coords[index];
+		if (co == null) {
+			co = new Coord(lats[index], lons[index]);
+			if (usedByWay[index])
+				co.incHighwayCount();
+			coords[index] = co;
+		}
+		return co;
+	}
+
+	/**
+	 * Get the Coord of the node at an index if it has been made.
+	 *
+	 * @param index The index of the node, from {@link #indexOf}.
+	 * @return The Coord or null if nothing has asked for it yet.
+	 */
+	public Coord coordAt(int index) {
+		return coords[index];
+	}
+
+	public int getLatitude(int index) {
+		return lats[index];
+	}
+
+	public int getLongitude(int index) {
+		return lons[index];
+	}
+
+	/**
+	 * Check if a way has used the node without making its Coord.
+	 */
+	public boolean isUsedByWay(int index) {
+		return usedByWay[index];
+	}
+
+	/**
+	 * Mark that a way has used the node without making its Coord.
+	 */
+	public void setUsedByWay(int index) {
+		usedByWay[index] = true;
+	}
+
+	/**
+	 * Replace the Coord that is returned for a node.  This is used when a
+	 * node needs to be represented by a subclass of Coord.  It has no effect
+	 * if the node has not been seen.
+	 *
+	 * @param id The node id.
+	 * @param co The replacement, it should have the same location.
+	 */
+	public void replace(long id, Coord co) {
+		int i = indexOf(id);
+		if (i >= 0)
+			coords[i] = co;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find a node.
+	 *
+	 * @param id The node id.
+	 * @return The index of the node, which can be given to the methods that
+	 * take one until the next node is put, or -1 if it has not been seen.
+	 */
+	public int indexOf(long id) {
+		if (size == 0)
+			return -1;
+
+		// The common case while reading nodes is looking up the one we
+		// have just been given.
+		if (ids[size - 1] == id)
+			return size - 1;
+
+		if (!sorted)
+			sort();
+
+		int lo = 0;
+		int hi = size - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long midId = ids[mid];
+			if (midId < id)
+				lo = mid + 1;
+			else if (midId > id)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private void grow() {
+		int newSize = ids.length * 2;
+
+		long[] newIds = new long[newSize];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		ids = newIds;
+
+		int[] newLats = new int[newSize];
+		System.arraycopy(lats, 0, newLats, 0, size);
+		lats = newLats;
+
+		int[] newLons = new int[newSize];
+		System.arraycopy(lons, 0, newLons, 0, size);
+		lons = newLons;
+
+		Coord[] newCoords = new Coord[newSize];
+		System.arraycopy(coords, 0, newCoords, 0, size);
+		coords = newCoords;
+
+		boolean[] newUsed = new boolean[newSize];
+		System.arraycopy(usedByWay, 0, newUsed, 0, size);
+		usedByWay = newUsed;
+	}
+
+	/**
+	 * Sort all the arrays into id order.  A simple quicksort with an
+	 * explicit stack, insertion sort is used for the short ranges.
+	 */
+	private void sort() {
+		int[] stack = new int[256];
+		int sp = 0;
+		stack[sp++] = 0;
+		stack[sp++] = size - 1;
+
+		while (sp > 0) {
+			int hi = stack[--sp];
+			int lo = stack[--sp];
+
+			if (hi - lo < 16) {
+				for (int i = lo + 1; i <= hi; i++) {
+					for (int j = i; j > lo && ids[j - 1] > ids[j]; j--)
+						swap(j - 1, j);
+				}
+				continue;
+			}
+
+			int mid = (lo + hi) >>> 1;
+			if (ids[mid] < ids[lo]) swap(mid, lo);
+			if (ids[hi] < ids[lo]) swap(hi, lo);
+			if (ids[hi] < ids[mid]) swap(hi, mid);
+			long pivot = ids[mid];
+
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (ids[i] < pivot)
+					i++;
+				while (ids[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+
+			// push the larger range first, so that the stack stays small
+			if (j - lo > hi - i) {
+				stack[sp++] = lo; stack[sp++] = j;
+				stack[sp++] = i; stack[sp++] = hi;
+			} else {
+				stack[sp++] = i; stack[sp++] = hi;
+				stack[sp++] = lo; stack[sp++] = j;
+			}
+		}
+		sorted = true;
+	}
+
+	private void swap(int a, int b) {
+		long id = ids[a]; ids[a] = ids[b]; ids[b] = id;
+		int lat = lats[a]; lats[a] = lats[b]; lats[b] = lat;
+		int lon = lons[a]; lons[a] = lons[b]; lons[b] = lon;
+		Coord co = coords[a]; coords[a] = coords[b]; coords[b] = co;
+		boolean used = usedByWay[a]; usedByWay[a] = usedByWay[b]; usedByWay[b] = used;
+	}
+}
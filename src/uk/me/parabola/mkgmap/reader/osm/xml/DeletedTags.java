@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.log.Logger;
+
+/**
+ * The tags that are to be deleted from the input, as read from the file
+ * given with the delete-tags-file option.  The file is in UTF-8, as the
+ * style files are.
+ *
+ * Each line of the file is TAG=VALUE or TAG=*.  If TAG ends in '*' then
+ * it matches any key that starts with the rest of it, so source:*=*
+ * deletes all the source:... tags.
+ *
+ * The patterns are held both as strings and as UTF-8 bytes, so that a
+ * reader that works on the raw input can check a tag before it makes any
+ * strings for it.
+ */
+class DeletedTags {
+	private static final Logger log = Logger.getLogger(DeletedTags.class);
+
+	private final Map<String, Pattern> patterns = new HashMap<String, Pattern>();
+	private final List<Pattern> prefixPatterns = new ArrayList<Pattern>();
+
+	// Hash table of the non-prefix patterns by key bytes
+	private Pattern[] table;
+
+	private DeletedTags() {
+	}
+
+	/**
+	 * Read the deleted tags file.
+	 *
+	 * @return The deleted tags, or null if there are none, including when
+	 * the file cannot be read.
+	 */
+	static DeletedTags read(String fileName) {
+		DeletedTags dt = new DeletedTags();
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+			String line;
+			while((line = br.readLine()) != null) {
+				line = line.trim();
+				if(line.length() > 0 &&
+				   !line.startsWith("#") &&
+				   !line.startsWith(";")) {
+					String[] parts = line.split("=");
+					if (parts.length == 2) {
+						dt.add(parts[0].trim(), parts[1].trim());
+					} else {
+						log.error("Ignoring bad line in deleted tags file: " + line);
+					}
+				}
+			}
+			br.close();
+		}
+		catch(FileNotFoundException e) {
+			log.error("Could not open delete tags file " + fileName);
+		}
+		catch(IOException e) {
+			log.error("Error reading delete tags file " + fileName);
+		}
+
+		if (dt.patterns.isEmpty() && dt.prefixPatterns.isEmpty())
+			return null;
+		dt.makeTable();
+		return dt;
+	}
+
+	private void add(String key, String value) {
+		boolean prefix = key.endsWith("*");
+		if (prefix)
+			key = key.substring(0, key.length() - 1);
+
+		Pattern p = null;
+		if (prefix) {
+			for (Pattern pp : prefixPatterns) {
+				if (pp.key.equals(key))
+					p = pp;
+			}
+		} else {
+			p = patterns.get(key);
+		}
+		if (p == null) {
+			p = new Pattern(key);
+			if (prefix)
+				prefixPatterns.add(p);
+			else
+				patterns.put(key, p);
+		}
+
+		if ("*".equals(value))
+			p.allValues = true;
+		else
+			p.addValue(value);
+	}
+
+	/**
+	 * Check if a tag is to be deleted.
+	 */
+	boolean isDeleted(String key, String val) {
+		Pattern p = patterns.get(key);
+		if (p != null && p.matches(val))
+			return true;
+
+		for (Pattern pp : prefixPatterns) {
+			if (key.startsWith(pp.key) && pp.matches(val))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a tag is to be deleted, given the UTF-8 bytes of its key and
+	 * value.  The bytes must not contain any xml entities.
+	 */
+	boolean isDeleted(byte[] buf, int keyStart, int keyEnd, int valStart, int valEnd) {
+		int h = hash(buf, keyStart, keyEnd) & (table.length - 1);
+		Pattern p;
+		while ((p = table[h]) != null) {
+			if (equal(p.keyBytes, buf, keyStart, keyEnd)) {
+				if (p.matches(buf, valStart, valEnd))
+					return true;
+				break;
+			}
+			h = (h + 1) & (table.length - 1);
+		}
+
+		for (Pattern pp : prefixPatterns) {
+			byte[] kb = pp.keyBytes;
+			if (keyEnd - keyStart >= kb.length
+					&& equal(kb, buf, keyStart, keyStart + kb.length)
+					&& pp.matches(buf, valStart, valEnd))
+				return true;
+		}
+		return false;
+	}
+
+	private void makeTable() {
+		int size = 16;
+		while (size < patterns.size() * 2)
+			size <<= 1;
+		table = new Pattern[size];
+		for (Pattern p : patterns.values()) {
+			int h = hash(p.keyBytes, 0, p.keyBytes.length) & (size - 1);
+			while (table[h] != null)
+				h = (h + 1) & (size - 1);
+			table[h] = p;
+		}
+	}
+
+	private static int hash(byte[] buf, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + buf[i];
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equal(byte[] b, byte[] buf, int start, int end) {
+		if (b.length != end - start)
+			return false;
+		for (int i = 0; i < b.length; i++) {
+			if (b[i] != buf[start + i])
+				return false;
+		}
+		return true;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The values to delete for one key.
+	 */
+	private static class Pattern {
+		private final String key;
+		private final byte[] keyBytes;
+		private boolean allValues;
+		private final List<String> values = new ArrayList<String>();
+		private final List<byte[]> valueBytes = new ArrayList<byte[]>();
+
+		Pattern(String key) {
+			this.key = key;
+			keyBytes = utf8(key);
+		}
+
+		void addValue(String value) {
+			values.add(value);
+			valueBytes.add(utf8(value));
+		}
+
+		boolean matches(String val) {
+			return allValues || values.contains(val);
+		}
+
+		boolean matches(byte[] buf, int start, int end) {
+			if (allValues)
+				return true;
+			for (byte[] vb : valueBytes) {
+				if (equal(vb, buf, start, end))
+					return true;
+			}
+			return false;
+		}
+	}
+}
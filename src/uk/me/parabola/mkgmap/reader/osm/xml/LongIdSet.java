@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.util.Arrays;
+
+/**
+ * A set of element ids held in a single long array.
+ *
+ * The ids are added in any order, then {@link #finish} is called which
+ * sorts them and removes duplicates.  After that it can be queried
+ * with {@link #contains}.
+ */
+class LongIdSet {
+	private long[] ids = new long[1024];
+	private int size;
+	private boolean finished;
+
+	public void add(long id) {
+		assert !finished;
+		if (size == ids.length) {
+			long[] newIds = new long[size * 2];
+			System.arraycopy(ids, 0, newIds, 0, size);
+			ids = newIds;
+		}
+		ids[size++] = id;
+	}
+
+	/**
+	 * Sort the ids and remove any duplicates.  No more ids can be added
+	 * afterwards.
+	 */
+	public void finish() {
+		Arrays.sort(ids, 0, size);
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (n == 0 || ids[n - 1] != ids[i])
+				ids[n++] = ids[i];
+		}
+		size = n;
+
+		// don't keep the unused part of the array
+		long[] newIds = new long[size];
+		System.arraycopy(ids, 0, newIds, 0, size);
+		ids = newIds;
+		finished = true;
+	}
+
+	public boolean contains(long id) {
+		assert finished;
+		return Arrays.binarySearch(ids, 0, size, id) >= 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Make a set of the ids in this set that are not in the other one.
+	 * Both sets must be finished.
+	 */
+	public LongIdSet without(LongIdSet other) {
+		assert finished && other.finished;
+		LongIdSet set = new LongIdSet();
+		for (int i = 0; i < size; i++) {
+			if (!other.contains(ids[i]))
+				set.add(ids[i]);
+		}
+		set.finish();
+		return set;
+	}
+
+	/**
+	 * Make a set of the ids that are in either this set or the other one.
+	 * Both sets must be finished.
+	 */
+	public LongIdSet union(LongIdSet other) {
+		assert finished && other.finished;
+		LongIdSet set = new LongIdSet();
+		for (int i = 0; i < size; i++)
+			set.add(ids[i]);
+		for (int i = 0; i < other.size; i++)
+			set.add(other.ids[i]);
+		set.finish();
+		return set;
+	}
+}
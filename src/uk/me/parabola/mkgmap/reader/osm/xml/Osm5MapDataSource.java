@@ -19,20 +19,16 @@ package uk.me.parabola.mkgmap.reader.osm.xml;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Properties;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
-import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.imgfmt.FormatException;
 import uk.me.parabola.imgfmt.Utils;
-import uk.me.parabola.mkgmap.osmstyle.StyleImpl;
-import uk.me.parabola.mkgmap.osmstyle.StyledConverter;
-import uk.me.parabola.mkgmap.osmstyle.eval.SyntaxException;
-import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
-import uk.me.parabola.mkgmap.reader.osm.Style;
+import uk.me.parabola.log.Logger;
 
 import org.xml.sax.SAXException;
 
@@ -47,6 +43,7 @@ import org.xml.sax.SAXException;
  * @author Steve Ratcliffe
  */
 public class Osm5MapDataSource extends OsmMapDataSource {
+	private static final Logger log = Logger.getLogger(Osm5MapDataSource.class);
 
 	public boolean isFileSupported(String name) {
 		// This is the default format so say supported if we get this far,
@@ -62,7 +59,6 @@ public class Osm5MapDataSource extends OsmMapDataSource {
 	 */
 	public void load(String name) throws FileNotFoundException, FormatException {
 		try {
-			InputStream is = Utils.openFile(name);
 			SAXParserFactory parserFactory = SAXParserFactory.newInstance();
 			parserFactory.setXIncludeAware(true);
 			parserFactory.setNamespaceAware(true);
@@ -78,7 +74,20 @@ public class Osm5MapDataSource extends OsmMapDataSource {
 				};
 				handler.setEndTask(task);
 				handler.setConverter(createStyler());
-				parser.parse(is, handler);
+
+				if (getConfig().getProperty("two-pass-load", false))
+					findUsedElements(name, parser, handler);
+				else if (getConfig().getProperty("drop-outside-bounds", null) != null)
+					findRelationMembers(name, parser, handler);
+
+				InputStream is = Utils.openFile(name);
+				if (getConfig().getProperty("fast-xml-reader", false)) {
+					OsmXmlReader reader = new OsmXmlReader(is, handler);
+					reader.parse();
+					handler.endDocument();
+				} else {
+					parser.parse(is, handler);
+				}
 			} catch (IOException e) {
 				throw new FormatException("Error reading file", e);
 			}
@@ -90,46 +99,67 @@ public class Osm5MapDataSource extends OsmMapDataSource {
 	}
 
 	/**
-	 * Create the appropriate converter from osm to garmin styles.
-	 *
-	 * The option --style-file give the location of an alternate file or
-	 * directory containing styles rather than the default built in ones.
-	 *
-	 * The option --style gives the name of a style, either one of the
-	 * built in ones or selects one from the given style-file.
+	 * Read through the file once to find the ways that can be used by the
+	 * style and the nodes that they need.  Only those are kept when the
+	 * file is read for real, which saves a lot of memory as most nodes
+	 * in a typical file are not used for anything.
 	 *
-	 * If there is no name given, but there is a file then the file should
-	 * just contain one style.
-	 *
-	 * @return An OsmConverter based on the command line options passed in.
+	 * If there are ways that are only used because they are relation
+	 * members, then the file is read one more time to get their nodes.
 	 */
-	private OsmConverter createStyler() {
+	private void findUsedElements(String name, SAXParser parser, Osm5XmlHandler handler)
+			throws IOException, SAXException
+	{
+		Set<String> usedTags = new HashSet<String>(getStyle().getUsedWayTags());
 
-		Properties props = getConfig();
-		String loc = props.getProperty("style-file");
-		if (loc == null)
-			loc = props.getProperty("map-features");
-		String name = props.getProperty("style");
+		// These are looked at before the style is used
+		usedTags.add("highway");
+		usedTags.add("route");
+		usedTags.add("natural");
 
-		if (loc == null && name == null)
-			name = "default";
+		UsedElementsHandler usedHandler = new UsedElementsHandler(usedTags);
+		readUsedElements(name, parser, usedHandler);
+		if (usedHandler.hasFakeIds()) {
+			log.warn("Element ids are not all numbers, cannot use two pass load");
+			return;
+		}
 
-		OsmConverter converter;
-		try {
-			// TODO: Move this routine, so that Style implementation reference is outside this package
-			Style style = new StyleImpl(loc, name);
-			style.applyOptionOverride(props);
-			setStyle(style);
-
-			converter = new StyledConverter(style, mapper, props);
-		} catch (SyntaxException e) {
-			System.err.println("Error in style: " + e.getMessage());
-			throw new ExitException("Could not open style " + name);
-		} catch (FileNotFoundException e) {
-			String name1 = (name != null)? name: loc;
-			throw new ExitException("Could not open style " + name1);
+		if (usedHandler.needsMemberPass()) {
+			usedHandler.startMemberPass();
+			readUsedElements(name, parser, usedHandler);
 		}
+		log.info("Two pass load: keeping", usedHandler.getUsedWays().size(), "ways and",
+				usedHandler.getUsedNodes().size(), "untagged nodes");
+		handler.setUsedElements(usedHandler.getUsedNodes(), usedHandler.getUsedWays());
+		handler.setRelationMembers(usedHandler.getMemberWays(), usedHandler.getMemberNodes());
+	}
 
-		return converter;
+	/**
+	 * Read through the file once to find the members of the relations,
+	 * so that elements outside the bounds can be dropped as soon as they
+	 * are read unless a relation needs them.
+	 */
+	private void findRelationMembers(String name, SAXParser parser, Osm5XmlHandler handler)
+			throws IOException, SAXException
+	{
+		UsedElementsHandler usedHandler = new UsedElementsHandler(null);
+		readUsedElements(name, parser, usedHandler);
+		if (usedHandler.hasFakeIds()) {
+			log.warn("Element ids are not all numbers, cannot find the relation members");
+			return;
+		}
+		handler.setRelationMembers(usedHandler.getMemberWays(), usedHandler.getMemberNodes());
+	}
+
+	private void readUsedElements(String name, SAXParser parser, UsedElementsHandler usedHandler)
+			throws IOException, SAXException
+	{
+		InputStream is = Utils.openFile(name);
+		try {
+			parser.parse(is, usedHandler);
+		} finally {
+			is.close();
+		}
+		parser.reset();
 	}
 }
@@ -16,27 +16,24 @@
  */
 package uk.me.parabola.mkgmap.reader.osm.xml;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import uk.me.parabola.imgfmt.ExitException;
+import uk.me.parabola.imgfmt.Utils;
 import uk.me.parabola.imgfmt.app.Area;
 import uk.me.parabola.imgfmt.app.Coord;
 import uk.me.parabola.imgfmt.app.Exit;
@@ -53,6 +50,7 @@ import uk.me.parabola.mkgmap.reader.osm.Node;
 import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
 import uk.me.parabola.mkgmap.reader.osm.Relation;
 import uk.me.parabola.mkgmap.reader.osm.RestrictionRelation;
+import uk.me.parabola.mkgmap.reader.osm.TagValuePool;
 import uk.me.parabola.mkgmap.reader.osm.Way;
 import uk.me.parabola.util.EnhancedProperties;
 
@@ -72,9 +70,33 @@ public class Osm5XmlHandler extends DefaultHandler {
 
 	private int mode;
 
-	private Map<Long, Coord> coordMap = new HashMap<Long, Coord>(50000);
-
-	private Map<Coord, Long> nodeIdMap = new IdentityHashMap<Coord, Long>();
+	private CoordStore coordMap = new CoordStore();
+
+	private CoordIdMap nodeIdMap;
+
+	// The values of the tags, so that each different value is only held
+	// once for this file.
+	private static final int MAX_POOLED_VALUES = 200000;
+	private TagValuePool valuePool = new TagValuePool(MAX_POOLED_VALUES);
+
+	// When set, only the nodes and ways in these sets are kept (apart from
+	// nodes that have tags).  See UsedElementsHandler.
+	private LongIdSet usedNodes;
+	private LongIdSet usedWays;
+
+	// The location of the current node when it is not in usedNodes.  It is
+	// only saved if the node turns out to have tags.
+	private boolean pendingNode;
+	private int pendingLat;
+	private int pendingLon;
+
+	// The area covered by the nodes, used for the map bounds when the
+	// file has no bounds.  Kept here rather than in the collector so that
+	// a Coord does not have to be made for every node.
+	private int nodeMinLat = Integer.MAX_VALUE;
+	private int nodeMinLon = Integer.MAX_VALUE;
+	private int nodeMaxLat = Integer.MIN_VALUE;
+	private int nodeMaxLon = Integer.MIN_VALUE;
 	private Map<Long, Node> nodeMap;
 	private Map<Long, Way> wayMap;
 	private Map<Long, Relation> relationMap;
@@ -84,6 +106,7 @@ public class Osm5XmlHandler extends DefaultHandler {
 	private final List<Node> exits = new ArrayList<Node>();
 	private final List<Way> motorways = new ArrayList<Way>();
 	private final List<Way> shoreline = new ArrayList<Way>();
+	private String coastlineFiles;
 
 	private static final int MODE_NODE = 1;
 	private static final int MODE_WAY = 2;
@@ -121,7 +144,39 @@ public class Osm5XmlHandler extends DefaultHandler {
 	private final Double minimumArcLength;
 	private final String frigRoundabouts;
 
-	private HashMap<String,Set<String>> deletedTags;
+	private DeletedTags deletedTags;
+
+	// When dropping elements outside the bounds, the margin in metres and
+	// the area (in map units) that elements must be in to be kept.
+	private final Double cullMargin;
+	private boolean culling;
+	private int cullMinLat;
+	private int cullMinLon;
+	private int cullMaxLat;
+	private int cullMaxLon;
+	// The current node is outside and not known to be a relation member
+	private boolean currentNodeOutside;
+	private boolean currentNodeCulled;
+	private int numCulledWays;
+	private int numCulledNodes;
+
+	// The ways and nodes that are members of relations, from a first pass
+	// over the file.  Those outside the bounds are kept, any others are
+	// dropped as soon as they are read.
+	private LongIdSet memberWays;
+	private LongIdSet memberNodes;
+
+	// Without the members, elements that are outside the bounds are set
+	// aside in case a relation uses them.  Nodes are also set aside when
+	// they might be linked to a way that is kept.
+	private final Map<Long, Way> culledWays = new HashMap<Long, Way>();
+	private final Map<Long, Node> culledNodes = new HashMap<Long, Node>();
+
+	// When there is more than one thread for multipolygons, they are
+	// resolved together at the end of the document rather than as they
+	// are read.
+	private final int mpThreads;
+	private final List<MultiPolygonRelation> pendingMultiPolygons = new ArrayList<MultiPolygonRelation>();
 
 	public Osm5XmlHandler(EnhancedProperties props) {
 		if(props.getProperty("make-all-cycleways", false)) {
@@ -133,6 +188,11 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 		linkPOIsToWays = props.getProperty("link-pois-to-ways", false);
 		ignoreBounds = props.getProperty("ignore-osm-bounds", false);
+		String dob = props.getProperty("drop-outside-bounds", null);
+		if (dob != null)
+			cullMargin = (dob.length() > 0)? Double.parseDouble(dob) : 0.0;
+		else
+			cullMargin = null;
 		String gs = props.getProperty("generate-sea", null);
 		generateSea = gs != null;
 		if(generateSea) {
@@ -167,17 +227,28 @@ public class Osm5XmlHandler extends DefaultHandler {
 			}
 		}
 
+		coastlineFiles = props.getProperty("coastlinefile", null);
+
 		String rsa = props.getProperty("remove-short-arcs", null);
 		if(rsa != null)
 			minimumArcLength = (rsa.length() > 0)? Double.parseDouble(rsa) : 0.0;
 		else
 			minimumArcLength = null;
+		// the node ids are only needed for messages about the
+		// coastline and short arcs
+		if (minimumArcLength != null || generateSea)
+			nodeIdMap = new CoordIdMap();
 		frigRoundabouts = props.getProperty("frig-roundabouts");
 		ignoreTurnRestrictions = props.getProperty("ignore-turn-restrictions", false);
 		reportUndefinedNodes = props.getProperty("report-undefined-nodes", false);
 		String deleteTagsFileName = props.getProperty("delete-tags-file");
 		if(deleteTagsFileName != null)
-			readDeleteTagsFile(deleteTagsFileName);
+			deletedTags = DeletedTags.read(deleteTagsFileName);
+		String mpt = props.getProperty("multipolygon-threads");
+		if (mpt != null)
+			mpThreads = (mpt.length() > 0) ? Integer.parseInt(mpt) : Runtime.getRuntime().availableProcessors();
+		else
+			mpThreads = 1;
 
 		if (props.getProperty("preserve-element-order", false)) {
 			nodeMap = new LinkedHashMap<Long, Node>(5000);
@@ -190,56 +261,21 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 	}
 
-	private void readDeleteTagsFile(String fileName) {
-		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new DataInputStream(new FileInputStream(fileName))));
-			deletedTags = new HashMap<String,Set<String>>();
-			String line;
-			while((line = br.readLine()) != null) {
-				line = line.trim();
-				if(line.length() > 0 && 
-				   !line.startsWith("#") &&
-				   !line.startsWith(";")) {
-					String[] parts = line.split("=");
-					if (parts.length == 2) {
-						parts[0] = parts[0].trim();
-						parts[1] = parts[1].trim();
-						if ("*".equals(parts[1])) {
-							deletedTags.put(parts[0], new HashSet<String>());
-						} else {
-							Set<String> vals = deletedTags.get(parts[0]);
-							if (vals == null)
-								vals = new HashSet<String>();
-							vals.add(parts[1]);
-							deletedTags.put(parts[0], vals);
-						}
-					} else {
-						log.error("Ignoring bad line in deleted tags file: " + line);
-					}
-				}
-			}
-			br.close();
-		}
-		catch(FileNotFoundException e) {
-			log.error("Could not open delete tags file " + fileName);
-		}
-		catch(IOException e) {
-			log.error("Error reading delete tags file " + fileName);
-		}
-
-		if(deletedTags != null && deletedTags.isEmpty())
-			deletedTags = null;
+	private boolean deleteTag(String key, String val) {
+		return deletedTags != null && deletedTags.isDeleted(key, val);
 	}
 
-	private boolean deleteTag(String key, String val) {
-		if(deletedTags != null) {
-			Set<String> vals = deletedTags.get(key);
-			if(vals != null && (vals.isEmpty() || vals.contains(val))) {
-				//				System.err.println("Deleting " + key + "=" + val);
-				return true;
-			}
-		}
-		return false;
+	/**
+	 * Get the tags that are to be deleted, so that a reader can check for
+	 * them itself before it makes any strings.  From then on the handler
+	 * does not check them again.
+	 *
+	 * @return The deleted tags, or null if there are none.
+	 */
+	DeletedTags takeDeletedTags() {
+		DeletedTags dt = deletedTags;
+		deletedTags = null;
+		return dt;
 	}
 
 	/**
@@ -278,17 +314,14 @@ public class Osm5XmlHandler extends DefaultHandler {
 				addWay(attributes.getValue("id"));
 			} else if (qName.equals("relation")) {
 				mode = MODE_RELATION;
-				currentRelation = new GeneralRelation(idVal(attributes.getValue("id")));
+				startRelation(idVal(attributes.getValue("id")));
 			} else if (qName.equals("bound")) {
 				mode = MODE_BOUND;
-				if(!ignoreBounds) {
-					String box = attributes.getValue("box");
-					setupBBoxFromBound(box);
-				}
+				addBound(attributes.getValue("box"));
 			} else if (qName.equals("bounds")) {
 				mode = MODE_BOUNDS;
-				if(!ignoreBounds)
-					setupBBoxFromBounds(attributes);
+				addBounds(attributes.getValue("minlat"), attributes.getValue("minlon"),
+						attributes.getValue("maxlat"), attributes.getValue("maxlon"));
 			}
 
 		} else if (mode == MODE_NODE) {
@@ -303,99 +336,151 @@ public class Osm5XmlHandler extends DefaultHandler {
 	private void startInRelation(String qName, Attributes attributes) {
 		if (qName.equals("member")) {
 			long id = idVal(attributes.getValue("ref"));
-			Element el;
-			String type = attributes.getValue("type");
-			if ("way".equals(type)){
-				el = wayMap.get(id);
-			} else if ("node".equals(type)) {
-				el = nodeMap.get(id);
-				if(el == null) {
-					// we didn't make a node for this point earlier,
-					// do it now (if it exists)
-					Coord co = coordMap.get(id);
-					if(co != null) {
-						el = new Node(id, co);
-						nodeMap.put(id, (Node)el);
-					}
-				}
-			} else if ("relation".equals(type)) {
-				el = relationMap.get(id);
-				if (el == null) {
-					// The relation may be defined later in the input.
-					// Defer the lookup.
-					Map.Entry<String,Relation> entry =
-						new AbstractMap.SimpleEntry<String,Relation>
-						(attributes.getValue("role"), currentRelation);
-
-					List<Map.Entry<String,Relation>> entries =
-						deferredRelationMap.get(id);
-					if (entries == null) {
-						entries = new ArrayList<Map.Entry<String,Relation>>();
-						deferredRelationMap.put(id, entries);
-					}
-
-					entries.add(entry);
-				}
-			} else
-				el = null;
-			if (el != null) // ignore non existing ways caused by splitting files
-				currentRelation.addElement(attributes.getValue("role"), el);
+			addMemberToRelation(attributes.getValue("type"), id, attributes.getValue("role"));
 		} else if (qName.equals("tag")) {
-			String key = attributes.getValue("k");
-			String val = attributes.getValue("v");
-			if(!deleteTag(key, val))
-				currentRelation.addTag(key, val);
+			relationTag(attributes.getValue("k"), attributes.getValue("v"));
 		}
 	}
 
+	void startRelation(long id) {
+		currentRelation = new GeneralRelation(id);
+	}
+
+	/**
+	 * Add a member to the current relation.
+	 *
+	 * @param type The member type, one of node, way or relation.
+	 * @param id The id of the member element.
+	 * @param role The role of the member within the relation.
+	 */
+	void addMemberToRelation(String type, long id, String role) {
+		Element el;
+		if ("way".equals(type)){
+			el = wayMap.get(id);
+			if (el == null) {
+				// it may have been dropped as it is outside the bounds,
+				// bring it back as it may be needed by the relation
+				Way way = culledWays.remove(id);
+				if (way != null) {
+					wayMap.put(id, way);
+					processWay(way);
+					el = way;
+				}
+			}
+		} else if ("node".equals(type)) {
+			el = nodeMap.get(id);
+			if (el == null) {
+				Node node = culledNodes.remove(id);
+				if (node != null) {
+					nodeMap.put(id, node);
+					el = node;
+				}
+			}
+			if(el == null) {
+				// we didn't make a node for this point earlier,
+				// do it now (if it exists)
+				Coord co = coordMap.get(id);
+				if(co != null) {
+					el = new Node(id, co);
+					nodeMap.put(id, (Node)el);
+				}
+			}
+		} else if ("relation".equals(type)) {
+			el = relationMap.get(id);
+			if (el == null) {
+				// The relation may be defined later in the input.
+				// Defer the lookup.
+				Map.Entry<String,Relation> entry =
+					new AbstractMap.SimpleEntry<String,Relation>
+					(role, currentRelation);
+
+				List<Map.Entry<String,Relation>> entries =
+					deferredRelationMap.get(id);
+				if (entries == null) {
+					entries = new ArrayList<Map.Entry<String,Relation>>();
+					deferredRelationMap.put(id, entries);
+				}
+
+				entries.add(entry);
+			}
+		} else
+			el = null;
+		if (el != null) // ignore non existing ways caused by splitting files
+			currentRelation.addElement(role, el);
+	}
+
+	void relationTag(String key, String val) {
+		if(!deleteTag(key, val))
+			currentRelation.addTag(key, valuePool.intern(val));
+	}
+
 	private void startInWay(String qName, Attributes attributes) {
 		if (qName.equals("nd")) {
 			long id = idVal(attributes.getValue("ref"));
 			addNodeToWay(id);
 		} else if (qName.equals("tag")) {
-			String key = attributes.getValue("k");
-			String val = attributes.getValue("v");
-			if(!deleteTag(key, val))
-				currentWay.addTag(key, val);
+			wayTag(attributes.getValue("k"), attributes.getValue("v"));
 		}
 	}
 
+	void wayTag(String key, String val) {
+		if (currentWay == null)
+			return;
+		if(!deleteTag(key, val))
+			currentWay.addTag(key, valuePool.intern(val));
+	}
+
 	private void startInNode(String qName, Attributes attributes) {
 		if (qName.equals("tag")) {
-			String key = attributes.getValue("k");
-			String val = attributes.getValue("v");
+			nodeTag(attributes.getValue("k"), attributes.getValue("v"));
+		}
+	}
 
-			if(deleteTag(key, val))
-				return;
+	void nodeTag(String key, String val) {
+		if(deleteTag(key, val))
+			return;
 
-			if("mkgmap:on-boundary".equals(key)) {
-				if("1".equals(val) || "true".equals(val) || "yes".equals(val)) {
-					Coord co = coordMap.get(currentElementId);
-					co.setOnBoundary(true);
-					co.incHighwayCount();
-				}
-				return;
+		if("mkgmap:on-boundary".equals(key)) {
+			if("1".equals(val) || "true".equals(val) || "yes".equals(val)) {
+				Coord co = currentNodeLocation();
+				co.setOnBoundary(true);
+				co.incHighwayCount();
 			}
+			return;
+		}
 
-			// We only want to create a full node for nodes that are POI's
-			// and not just point of a way.  Only create if it has tags that
-			// are not in a list of ignorable ones such as 'created_by'
-			if (currentNode != null || !key.equals("created_by")) {
-				if (currentNode == null) {
-					Coord co = coordMap.get(currentElementId);
-					currentNode = new Node(currentElementId, co);
-					nodeMap.put(currentElementId, currentNode);
+		// We only want to create a full node for nodes that are POI's
+		// and not just point of a way.  Only create if it has tags that
+		// are not in a list of ignorable ones such as 'created_by'
+		if (currentNode != null || !key.equals("created_by")) {
+			if (currentNode == null) {
+				if (currentNodeOutside && memberNodes != null && !linkPOIsToWays) {
+					// it would be clipped away and no relation needs it
+					if (!currentNodeCulled) {
+						currentNodeCulled = true;
+						numCulledNodes++;
+					}
+					return;
 				}
 
-				if((val.equals("motorway_junction") ||
-				    val.equals("services")) &&
-				   key.equals("highway")) {
-					exits.add(currentNode);
-					currentNode.addTag("osm:id", "" + currentElementId);
-				}
+				Coord co = currentNodeLocation();
+				currentNode = new Node(currentElementId, co);
+				if (currentNodeOutside) {
+					// set aside, it is used if a relation or a way
+					// needs it
+					culledNodes.put(currentElementId, currentNode);
+				} else
+					nodeMap.put(currentElementId, currentNode);
+			}
 
-				currentNode.addTag(key, val);
+			if((val.equals("motorway_junction") ||
+			    val.equals("services")) &&
+			   key.equals("highway")) {
+				exits.add(currentNode);
+				currentNode.addTag("osm:id", "" + currentElementId);
 			}
+
+			currentNode.addTag(key, valuePool.intern(val));
 		}
 	}
 
@@ -418,148 +503,14 @@ public class Osm5XmlHandler extends DefaultHandler {
 					throws SAXException
 	{
 		if (mode == MODE_NODE) {
-			if (qName.equals("node"))
+			if (qName.equals("node")) {
+				mode = 0;
 				endNode();
-
+			}
 		} else if (mode == MODE_WAY) {
 			if (qName.equals("way")) {
 				mode = 0;
-				String highway = currentWay.getTag("highway");
-				if(highway != null ||
-				   "ferry".equals(currentWay.getTag("route"))) {
-					boolean oneway = currentWay.isBoolTag("oneway");
-					// if the first or last Node of the Way has a
-					// FIXME attribute, disable dead-end-check for
-					// oneways
-					if (oneway &&
-						currentWayStartsWithFIXME ||
-						(currentNodeInWay != null &&
-						 (currentNodeInWay.getTag("FIXME") != null ||
-						  currentNodeInWay.getTag("fixme") != null))) {
-						currentWay.addTag("mkgmap:dead-end-check", "false");
-					}
-
-					// if the way is a roundabout but isn't already
-					// flagged as "oneway", flag it here
-					if("roundabout".equals(currentWay.getTag("junction"))) {
-						if(currentWay.getTag("oneway") == null) {
-							currentWay.addTag("oneway", "yes");
-						}
-						if(currentWay.getTag("mkgmap:frig_roundabout") == null) {
-							if(frigRoundabouts != null)
-								currentWay.addTag("mkgmap:frig_roundabout", frigRoundabouts);
-						}
-					}
-					String cycleway = currentWay.getTag("cycleway");
-					if(makeOppositeCycleways &&
-					   cycleway != null &&
-					   !"cycleway".equals(highway) &&
-					   oneway &&
-					   ("opposite".equals(cycleway) ||
-						"opposite_lane".equals(cycleway) ||
-						"opposite_track".equals(cycleway))) {
-						// what we have here is a oneway street
-						// that allows bicycle traffic in both
-						// directions -- to enable bicycle routing
-						// in the reverse direction, we synthesise
-						// a cycleway that has the same points as
-						// the original way
-						long cycleWayId = currentWay.getId() + CYCLEWAY_ID_OFFSET;
-						Way cycleWay = new Way(cycleWayId);
-						wayMap.put(cycleWayId, cycleWay);
-						// this reverses the direction of the way but
-						// that isn't really necessary as the cycleway
-						// isn't tagged as oneway
-						List<Coord> points = currentWay.getPoints();
-						for(int i = points.size() - 1; i >= 0; --i)
-							cycleWay.addPoint(points.get(i));
-						cycleWay.copyTags(currentWay);
-						//cycleWay.addTag("highway", "cycleway");
-						String name = currentWay.getTag("name");
-						if(name != null)
-							name += " (cycleway)";
-						else
-							name = "cycleway";
-						cycleWay.addTag("name", name);
-						cycleWay.addTag("oneway", "no");
-						cycleWay.addTag("access", "no");
-						cycleWay.addTag("bicycle", "yes");
-						cycleWay.addTag("foot", "no");
-						cycleWay.addTag("mkgmap:synthesised", "yes");
-						log.info("Making " + cycleway + " cycleway '" + cycleWay.getTag("name") + "'");
-					}
-					else if(makeCycleways &&
-							cycleway != null &&
-							!"cycleway".equals(highway) &&
-							("track".equals(cycleway) ||
-							 "lane".equals(cycleway) ||
-							 "both".equals(cycleway) ||
-							 "left".equals(cycleway) ||
-							 "right".equals(cycleway))) {
-						// what we have here is a highway with a
-						// separate track for cycles -- to enable
-						// bicycle routing, we synthesise a cycleway
-						// that has the same points as the original
-						// way
-						long cycleWayId = currentWay.getId() + CYCLEWAY_ID_OFFSET;
-						Way cycleWay = new Way(cycleWayId);
-						wayMap.put(cycleWayId, cycleWay);
-						List<Coord> points = currentWay.getPoints();
-						for (Coord point : points)
-							cycleWay.addPoint(point);
-						cycleWay.copyTags(currentWay);
-						if(currentWay.getTag("bicycle") == null)
-							currentWay.addTag("bicycle", "no");
-						//cycleWay.addTag("highway", "cycleway");
-						String name = currentWay.getTag("name");
-						if(name != null)
-							name += " (cycleway)";
-						else
-							name = "cycleway";
-						cycleWay.addTag("name", name);
-						cycleWay.addTag("access", "no");
-						cycleWay.addTag("bicycle", "yes");
-						cycleWay.addTag("foot", "no");
-						cycleWay.addTag("mkgmap:synthesised", "yes");
-						log.info("Making " + cycleway + " cycleway '" + cycleWay.getTag("name") + "'");
-					}
-				}
-				if("motorway".equals(highway) ||
-				   "trunk".equals(highway))
-					motorways.add(currentWay);
-				if(generateSea) {
-					String natural = currentWay.getTag("natural");
-					if(natural != null) {
-						if("coastline".equals(natural)) {
-							currentWay.deleteTag("natural");
-							shoreline.add(currentWay);
-						}
-						else if(natural.contains(";")) {
-							// cope with compound tag value
-							String others = null;
-							boolean foundCoastline = false;
-							for(String n : natural.split(";")) {
-								if("coastline".equals(n.trim()))
-									foundCoastline = true;
-								else if(others == null)
-									others = n;
-								else
-									others += ";" + n;
-							}
-							if(foundCoastline) {
-								currentWay.deleteTag("natural");
-								if(others != null)
-									currentWay.addTag("natural", others);
-								shoreline.add(currentWay);
-							}
-						}
-					}
-				}
-				currentNodeInWay = null;
-				currentWayStartsWithFIXME = false;
-				currentWay = null;
-				// ways are processed at the end of the document,
-				// may be changed by a Relation class
+				endWay();
 			}
 		} else if (mode == MODE_BOUND) {
 			if (qName.equals("bound"))
@@ -575,17 +526,188 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 	}
 
-	private void endNode() {
-		mode = 0;
+	void endWay() {
+		if (currentWay == null)
+			return;
+		String highway = currentWay.getTag("highway");
+		if(highway != null ||
+		   "ferry".equals(currentWay.getTag("route"))) {
+			boolean oneway = currentWay.isBoolTag("oneway");
+			// if the first or last Node of the Way has a
+			// FIXME attribute, disable dead-end-check for
+			// oneways
+			if (oneway &&
+				currentWayStartsWithFIXME ||
+				(currentNodeInWay != null &&
+				 (currentNodeInWay.getTag("FIXME") != null ||
+				  currentNodeInWay.getTag("fixme") != null))) {
+				currentWay.addTag("mkgmap:dead-end-check", "false");
+			}
+		}
+		long id = currentWay.getId();
+		if (culling && isOutsideBounds(currentWay)
+				&& (memberWays == null || !memberWays.contains(id)))
+		{
+			wayMap.remove(id);
+			if (memberWays == null) {
+				// set aside, it is processed if a relation needs it
+				culledWays.put(id, currentWay);
+			} else
+				numCulledWays++;
+		}
+		else
+			processWay(currentWay);
+		currentNodeInWay = null;
+		currentWayStartsWithFIXME = false;
+		currentWay = null;
+		// ways are processed at the end of the document,
+		// may be changed by a Relation class
+	}
 
+	/**
+	 * The rest of the work on a way once it has been read, that does not
+	 * depend on the nodes that were read with it.  A way that was dropped
+	 * as it is outside the bounds is processed here when a relation brings
+	 * it back.
+	 */
+	private void processWay(Way way) {
+		String highway = way.getTag("highway");
+		if(highway != null ||
+		   "ferry".equals(way.getTag("route"))) {
+			boolean oneway = way.isBoolTag("oneway");
+			// if the way is a roundabout but isn't already
+			// flagged as "oneway", flag it here
+			if("roundabout".equals(way.getTag("junction"))) {
+				if(way.getTag("oneway") == null) {
+					way.addTag("oneway", "yes");
+				}
+				if(way.getTag("mkgmap:frig_roundabout") == null) {
+					if(frigRoundabouts != null)
+						way.addTag("mkgmap:frig_roundabout", frigRoundabouts);
+				}
+			}
+			String cycleway = way.getTag("cycleway");
+			if(makeOppositeCycleways &&
+			   cycleway != null &&
+			   !"cycleway".equals(highway) &&
+			   oneway &&
+			   ("opposite".equals(cycleway) ||
+				"opposite_lane".equals(cycleway) ||
+				"opposite_track".equals(cycleway))) {
+				// what we have here is a oneway street
+				// that allows bicycle traffic in both
+				// directions -- to enable bicycle routing
+				// in the reverse direction, we synthesise
+				// a cycleway that has the same points as
+				// the original way
+				long cycleWayId = way.getId() + CYCLEWAY_ID_OFFSET;
+				Way cycleWay = new Way(cycleWayId);
+				shareWayPoints(way, true);
+				wayMap.put(cycleWayId, cycleWay);
+				// this reverses the direction of the way but
+				// that isn't really necessary as the cycleway
+				// isn't tagged as oneway
+				List<Coord> points = way.getPoints();
+				for(int i = points.size() - 1; i >= 0; --i)
+					cycleWay.addPoint(points.get(i));
+				cycleWay.copyTags(way);
+				//cycleWay.addTag("highway", "cycleway");
+				String name = way.getTag("name");
+				if(name != null)
+					name += " (cycleway)";
+				else
+					name = "cycleway";
+				cycleWay.addTag("name", name);
+				cycleWay.addTag("oneway", "no");
+				cycleWay.addTag("access", "no");
+				cycleWay.addTag("bicycle", "yes");
+				cycleWay.addTag("foot", "no");
+				cycleWay.addTag("mkgmap:synthesised", "yes");
+				log.info("Making " + cycleway + " cycleway '" + cycleWay.getTag("name") + "'");
+			}
+			else if(makeCycleways &&
+					cycleway != null &&
+					!"cycleway".equals(highway) &&
+					("track".equals(cycleway) ||
+					 "lane".equals(cycleway) ||
+					 "both".equals(cycleway) ||
+					 "left".equals(cycleway) ||
+					 "right".equals(cycleway))) {
+				// what we have here is a highway with a
+				// separate track for cycles -- to enable
+				// bicycle routing, we synthesise a cycleway
+				// that has the same points as the original
+				// way
+				long cycleWayId = way.getId() + CYCLEWAY_ID_OFFSET;
+				Way cycleWay = new Way(cycleWayId);
+				shareWayPoints(way, true);
+				wayMap.put(cycleWayId, cycleWay);
+				List<Coord> points = way.getPoints();
+				for (Coord point : points)
+					cycleWay.addPoint(point);
+				cycleWay.copyTags(way);
+				if(way.getTag("bicycle") == null)
+					way.addTag("bicycle", "no");
+				//cycleWay.addTag("highway", "cycleway");
+				String name = way.getTag("name");
+				if(name != null)
+					name += " (cycleway)";
+				else
+					name = "cycleway";
+				cycleWay.addTag("name", name);
+				cycleWay.addTag("access", "no");
+				cycleWay.addTag("bicycle", "yes");
+				cycleWay.addTag("foot", "no");
+				cycleWay.addTag("mkgmap:synthesised", "yes");
+				log.info("Making " + cycleway + " cycleway '" + cycleWay.getTag("name") + "'");
+			}
+		}
+		if("motorway".equals(highway) ||
+		   "trunk".equals(highway))
+			motorways.add(way);
+		if(generateSea) {
+			String natural = way.getTag("natural");
+			if(natural != null) {
+				if("coastline".equals(natural)) {
+					way.deleteTag("natural");
+					shoreline.add(way);
+				}
+				else if(natural.contains(";")) {
+					// cope with compound tag value
+					String others = null;
+					boolean foundCoastline = false;
+					for(String n : natural.split(";")) {
+						if("coastline".equals(n.trim()))
+							foundCoastline = true;
+						else if(others == null)
+							others = n;
+						else
+							others += ";" + n;
+					}
+					if(foundCoastline) {
+						way.deleteTag("natural");
+						if(others != null)
+							way.addTag("natural", others);
+						shoreline.add(way);
+					}
+				}
+			}
+		}
+	}
+
+	void endNode() {
+		pendingNode = false;
+		currentNodeOutside = false;
+		currentNodeCulled = false;
 		currentElementId = 0;
 		currentNode = null;
 	}
 
-	private void endRelation() {
+	void endRelation() {
 		String type = currentRelation.getTag("type");
 		if (type != null) {
 			if ("multipolygon".equals(type)) {
+				addNodeBounds();
 				Area mpBbox = (bbox != null ? bbox : ((MapDetails) collector).getBounds());
 				currentRelation = new MultiPolygonRelation(currentRelation, wayMap, mpBbox);
 			} else if("restriction".equals(type)) {
@@ -600,7 +722,10 @@ public class Osm5XmlHandler extends DefaultHandler {
 			long id = currentRelation.getId();
 
 			relationMap.put(id, currentRelation);
-			currentRelation.processElements();
+			if (mpThreads > 1 && currentRelation instanceof MultiPolygonRelation)
+				pendingMultiPolygons.add((MultiPolygonRelation) currentRelation);
+			else
+				currentRelation.processElements();
 
 			List<Map.Entry<String,Relation>> entries =
 				deferredRelationMap.remove(id);
@@ -612,6 +737,79 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 	}
 
+	/**
+	 * Resolve the multipolygons that were saved by endRelation, using
+	 * several threads.
+	 *
+	 * A multipolygon changes the tags of its own ways, so the ones that
+	 * share a way with another multipolygon are done on this thread in the
+	 * order they were read, while the others are done on the pool.  The
+	 * polygons they make are then added to the way map in the order that
+	 * the relations were read, so the result is the same as when they are
+	 * done one at a time.
+	 */
+	private void resolveMultiPolygons() {
+		if (pendingMultiPolygons.isEmpty())
+			return;
+
+		Map<Way, Integer> useCount = new IdentityHashMap<Way, Integer>();
+		for (MultiPolygonRelation mp : pendingMultiPolygons) {
+			for (Map.Entry<String, Element> member : mp.getElements()) {
+				if (member.getValue() instanceof Way) {
+					Way w = (Way) member.getValue();
+					Integer count = useCount.get(w);
+					useCount.put(w, count == null ? 1 : count + 1);
+				}
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(mpThreads);
+		List<Future<?>> results = new ArrayList<Future<?>>();
+		List<MultiPolygonRelation> sharing = new ArrayList<MultiPolygonRelation>();
+		for (final MultiPolygonRelation mp : pendingMultiPolygons) {
+			boolean shared = false;
+			for (Map.Entry<String, Element> member : mp.getElements()) {
+				if (member.getValue() instanceof Way && useCount.get(member.getValue()) > 1) {
+					shared = true;
+					break;
+				}
+			}
+
+			if (shared) {
+				sharing.add(mp);
+			} else {
+				results.add(pool.submit(new Runnable() {
+					public void run() {
+						mp.resolvePolygons();
+					}
+				}));
+			}
+		}
+
+		try {
+			for (MultiPolygonRelation mp : sharing)
+				mp.resolvePolygons();
+
+			for (Future<?> f : results)
+				f.get();
+		} catch (InterruptedException e) {
+			throw new ExitException("Interrupted while resolving multipolygons");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new ExitException("Error resolving multipolygons", cause);
+		} finally {
+			pool.shutdown();
+		}
+
+		for (MultiPolygonRelation mp : pendingMultiPolygons)
+			mp.addPolygonsToWayMap(true);
+		pendingMultiPolygons.clear();
+	}
+
 	/**
 	 * Receive notification of the end of the document.
 	 *
@@ -623,6 +821,15 @@ public class Osm5XmlHandler extends DefaultHandler {
 	 */
 	public void endDocument() throws SAXException {
 
+		addNodeBounds();
+
+		for (Way w : wayMap.values()) {
+			shareWayPoints(w, false);
+			w.dropPointNodeIds();
+		}
+
+		resolveMultiPolygons();
+
 		for (Node e : exits) {
 			String refTag = Exit.TAG_ROAD_REF;
 			if(e.getTag(refTag) == null) {
@@ -651,6 +858,12 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 
 		coordMap = null;
+		valuePool = null;
+		if (culling)
+			log.info("Dropped", numCulledWays + culledWays.size(), "ways and",
+					numCulledNodes + culledNodes.size(), "nodes that are outside the bounds");
+		culledWays.clear();
+		culledNodes.clear();
 
 		if(bbox != null && (generateSea || minimumArcLength != null))
 			makeBoundaryNodes();
@@ -664,12 +877,11 @@ public class Osm5XmlHandler extends DefaultHandler {
 		for (Node n : nodeMap.values())
 			converter.convertNode(n);
 
-		nodeMap = null;
-
 		if(minimumArcLength != null)
 			removeShortArcsByMergingNodes(minimumArcLength);
 
 		nodeIdMap = null;
+		nodeMap = null;
 
 		for (Way w: wayMap.values())
 			converter.convertWay(w);
@@ -707,14 +919,16 @@ public class Osm5XmlHandler extends DefaultHandler {
 			// to find the positions of the boundary nodes - loop runs
 			// backwards so we can safely insert points into way
 			for (int i = points.size() - 1; i >= 1; --i) {
-				Coord[] pair = { points.get(i - 1), points.get(i) };
+				Coord p0 = points.get(i - 1);
+				Coord p1 = points.get(i);
+				Coord[] pair = { p0, p1 };
 				Coord[] clippedPair = LineClipper.clip(bbox, pair);
 				// we're only interested in segments that touch the
 				// boundary
 				if(clippedPair != null) {
 					// the segment touches the boundary or is
 					// completely inside the bounding box
-					if(clippedPair[1] != points.get(i)) {
+					if(clippedPair[1] != p1) {
 						// the second point in the segment is outside
 						// of the boundary
 						assert clippedPair[1].getOnBoundary();
@@ -727,8 +941,12 @@ public class Osm5XmlHandler extends DefaultHandler {
 						if(!roadsReachBoundary && way.getTag("highway") != null)
 							roadsReachBoundary = true;
 					}
-					else if(clippedPair[1].getOnBoundary())
+					else if(clippedPair[1].getOnBoundary()) {
+						// the clipper has marked the point, make sure
+						// that the way keeps it
+						points.set(i, clippedPair[1]);
 						++numBoundaryNodesDetected;
+					}
 
 					if(clippedPair[1].getOnBoundary()) {
 						// the point is on the boundary so make sure
@@ -736,7 +954,7 @@ public class Osm5XmlHandler extends DefaultHandler {
 						clippedPair[1].incHighwayCount();
 					}
 
-					if(clippedPair[0] != points.get(i - 1)) {
+					if(clippedPair[0] != p0) {
 						// the first point in the segment is outside
 						// of the boundary
 						assert clippedPair[0].getOnBoundary();
@@ -749,8 +967,10 @@ public class Osm5XmlHandler extends DefaultHandler {
 						if(!roadsReachBoundary && way.getTag("highway") != null)
 							roadsReachBoundary = true;
 					}
-					else if(clippedPair[0].getOnBoundary())
+					else if(clippedPair[0].getOnBoundary()) {
+						points.set(i - 1, clippedPair[0]);
 						++numBoundaryNodesDetected;
+					}
 
 					if(clippedPair[0].getOnBoundary()) {
 						// the point is on the boundary so make sure
@@ -994,18 +1214,33 @@ public class Osm5XmlHandler extends DefaultHandler {
 			log.info("Removing short arcs - finished in " + pass + " passes (" + numNodesMerged + " nodes merged, " + numWaysDeleted + " ways deleted)");
 	}
 
-	private void setupBBoxFromBounds(Attributes xmlattr) {
+	/**
+	 * Set the bounding box from the attributes of a bounds element, unless
+	 * the user has asked for bounds to be ignored.
+	 */
+	void addBounds(String minlat, String minlon, String maxlat, String maxlon) {
+		if (ignoreBounds)
+			return;
 		try {
-			setBBox(Double.parseDouble(xmlattr.getValue("minlat")),
-					Double.parseDouble(xmlattr.getValue("minlon")),
-					Double.parseDouble(xmlattr.getValue("maxlat")),
-					Double.parseDouble(xmlattr.getValue("maxlon")));
+			setBBox(Double.parseDouble(minlat),
+					Double.parseDouble(minlon),
+					Double.parseDouble(maxlat),
+					Double.parseDouble(maxlon));
 		} catch (NumberFormatException e) {
 			// just ignore it
 			log.warn("NumberformatException: Cannot read bbox");
 		}
 	}
 
+	/**
+	 * Set the bounding box from the box attribute of a bound element,
+	 * unless the user has asked for bounds to be ignored.
+	 */
+	void addBound(String box) {
+		if (!ignoreBounds)
+			setupBBoxFromBound(box);
+	}
+
 	private void setupBBoxFromBound(String box) {
 		String[] f = box.split(",");
 		try {
@@ -1018,11 +1253,102 @@ public class Osm5XmlHandler extends DefaultHandler {
 		}
 	}
 
+	/**
+	 * Set the bounding box from a bounds record in the input, unless
+	 * the user has asked for bounds to be ignored.
+	 */
+	void addBounds(double minlat, double minlong,
+	               double maxlat, double maxlong) {
+		if (!ignoreBounds)
+			setBBox(minlat, minlong, maxlat, maxlong);
+	}
+
 	private void setBBox(double minlat, double minlong,
 	                     double maxlat, double maxlong) {
 
 		bbox = new Area(minlat, minlong, maxlat, maxlong);
 		converter.setBoundingBox(bbox);
+
+		if (cullMargin != null) {
+			// The margin is converted to map units using the length of a
+			// degree of latitude, it is made larger in longitude as the
+			// degrees are shorter away from the equator.
+			double marginDegrees = cullMargin / (40075016.686 / 360);
+			double maxAbsLat = Math.min(Math.max(Math.abs(minlat), Math.abs(maxlat)), 89);
+			double lonMarginDegrees = marginDegrees / Math.cos(Math.toRadians(maxAbsLat));
+			cullMinLat = Utils.toMapUnit(minlat - marginDegrees);
+			cullMaxLat = Utils.toMapUnit(maxlat + marginDegrees);
+			cullMinLon = Utils.toMapUnit(minlong - lonMarginDegrees);
+			cullMaxLon = Utils.toMapUnit(maxlong + lonMarginDegrees);
+			culling = true;
+		}
+	}
+
+	/**
+	 * Check if a point is outside the bounds (plus the margin).
+	 */
+	private boolean isOutsideBounds(int lat, int lon) {
+		return lat < cullMinLat || lat > cullMaxLat || lon < cullMinLon || lon > cullMaxLon;
+	}
+
+	/**
+	 * Check if a way lies completely outside the bounds (plus the margin).
+	 * It is checked using the bounding box of its points, so that a way
+	 * that crosses the area without having a point inside is still kept.
+	 */
+	private boolean isOutsideBounds(Way way) {
+		List<Coord> points = way.getPoints();
+		if (points.isEmpty())
+			return false;
+
+		int minLat = Integer.MAX_VALUE;
+		int minLon = Integer.MAX_VALUE;
+		int maxLat = Integer.MIN_VALUE;
+		int maxLon = Integer.MIN_VALUE;
+		for (Coord co : points) {
+			int lat = co.getLatitude();
+			int lon = co.getLongitude();
+			if (!isOutsideBounds(lat, lon))
+				return false;
+			minLat = Math.min(minLat, lat);
+			maxLat = Math.max(maxLat, lat);
+			minLon = Math.min(minLon, lon);
+			maxLon = Math.max(maxLon, lon);
+		}
+		return maxLat < cullMinLat || minLat > cullMaxLat || maxLon < cullMinLon || minLon > cullMaxLon;
+	}
+
+	/**
+	 * Give the points of a way that were read as just a location the Coord
+	 * of their node, where they need it.  That is when another way or a
+	 * node uses the same node, so that they all have the same object, and
+	 * for the first and last points of the way, as they are changed later
+	 * on.  The other points stay as just their location.
+	 *
+	 * @param way The way, it must have been read completely.
+	 * @param all Give every point its Coord, for when the points are going
+	 * to be shared with a new way.
+	 */
+	private void shareWayPoints(Way way, boolean all) {
+		List<Coord> points = way.getPoints();
+		int last = points.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			long id = way.getPointNodeId(i);
+			if (id == 0)
+				continue;
+
+			int index = coordMap.indexOf(id);
+			Coord co;
+			if (all || i == 0 || i == last)
+				co = coordMap.makeCoord(index);
+			else
+				co = coordMap.coordAt(index);
+			if (co != null) {
+				points.set(i, co);
+				if (nodeIdMap != null)
+					nodeIdMap.put(co, id);
+			}
+		}
 	}
 
 	/**
@@ -1039,33 +1365,125 @@ public class Osm5XmlHandler extends DefaultHandler {
 		try {
 			long id = idVal(sid);
 
-			Coord co = new Coord(Double.parseDouble(slat), Double.parseDouble(slon));
-			coordMap.put(id, co);
-			currentElementId = id;
-			if (bbox == null)
-				collector.addToBounds(co);
+			startNode(id, Double.parseDouble(slat), Double.parseDouble(slon));
 		} catch (NumberFormatException e) {
 			// ignore bad numeric data.
 		}
 	}
 
+	/**
+	 * Save the location of a node and make it the current node, so that
+	 * any tags that follow are attached to it.
+	 *
+	 * @param id The node id.
+	 * @param lat The latitude in degrees.
+	 * @param lon The longitude in degrees.
+	 */
+	void startNode(long id, double lat, double lon) {
+		startNode(id, Utils.toMapUnit(lat), Utils.toMapUnit(lon));
+	}
+
+	/**
+	 * Save node information with the location already in map units.
+	 */
+	void startNode(long id, int lat, int lon) {
+		currentElementId = id;
+		currentNodeOutside = culling && isOutsideBounds(lat, lon)
+				&& (memberNodes == null || !memberNodes.contains(id));
+		if (usedNodes == null || usedNodes.contains(id)) {
+			coordMap.put(id, lat, lon);
+		} else {
+			pendingNode = true;
+			pendingLat = lat;
+			pendingLon = lon;
+		}
+
+		if (bbox == null) {
+			if (lat < nodeMinLat)
+				nodeMinLat = lat;
+			if (lat > nodeMaxLat)
+				nodeMaxLat = lat;
+			if (lon < nodeMinLon)
+				nodeMinLon = lon;
+			if (lon > nodeMaxLon)
+				nodeMaxLon = lon;
+		}
+	}
+
+	/**
+	 * Pass the area covered by the nodes read so far to the collector.
+	 * This must be done before the collector's bounds are used.
+	 */
+	private void addNodeBounds() {
+		if (nodeMinLat > nodeMaxLat)
+			return;
+		collector.addToBounds(new Coord(nodeMinLat, nodeMinLon));
+		collector.addToBounds(new Coord(nodeMaxLat, nodeMaxLon));
+	}
+
+	/**
+	 * Get the location of the current node, saving it first if it was not
+	 * already saved because no way uses it.
+	 */
+	private Coord currentNodeLocation() {
+		if (pendingNode) {
+			coordMap.put(currentElementId, pendingLat, pendingLon);
+			pendingNode = false;
+		}
+		return coordMap.get(currentElementId);
+	}
+
 	private void addWay(String sid) {
 		try {
-			long id = idVal(sid);
-			currentWay = new Way(id);
-			wayMap.put(id, currentWay);
-			currentNodeInWay = null;
-			currentWayStartsWithFIXME = false;
+			startWay(idVal(sid));
 		} catch (NumberFormatException e) {
 			// ignore bad numeric data.
 		}
 	}
 
-	private void addNodeToWay(long id) {
-		Coord co = coordMap.get(id);
+	void startWay(long id) {
+		currentNodeInWay = null;
+		if (usedWays != null && !usedWays.contains(id)) {
+			// it can't appear on the map, so ignore it completely
+			currentWay = null;
+			return;
+		}
+		currentWay = new Way(id);
+		wayMap.put(id, currentWay);
+		currentWayStartsWithFIXME = false;
+	}
+
+	void addNodeToWay(long id) {
+		if (currentWay == null)
+			return;
+		int index = coordMap.indexOf(id);
 		currentNodeInWay = nodeMap.get(id);
+		if (currentNodeInWay == null && !culledNodes.isEmpty())
+			currentNodeInWay = culledNodes.get(id);
 		//co.incCount();
-		if (co != null) {
+		if (index >= 0) {
+			// See if the first Node of the Way has a FIXME attribute
+			if (currentWay.getPoints().isEmpty()) {
+				currentWayStartsWithFIXME = (currentNodeInWay != null &&
+											 (currentNodeInWay.getTag("FIXME") != null ||
+											  currentNodeInWay.getTag("fixme") != null));
+			}
+
+			Coord co = coordMap.coordAt(index);
+			if (co == null) {
+				if (!coordMap.isUsedByWay(index)) {
+					// nothing else has used the node so far, so just
+					// keep its location, the way is given the Coord
+					// later if it turns out to be shared
+					coordMap.setUsedByWay(index);
+					currentWay.addPoint(id, coordMap.getLatitude(index), coordMap.getLongitude(index));
+					return;
+				}
+
+				// another way has already used it
+				co = coordMap.makeCoord(index);
+			}
+
 			if(linkPOIsToWays) {
 				// if this Coord is also a POI, replace it with an
 				// equivalent CoordPOI that contains a reference to
@@ -1080,7 +1498,7 @@ public class Osm5XmlHandler extends DefaultHandler {
 							// the POI has one of the approved tags so
 							// replace the Coord with a CoordPOI
 							CoordPOI cp = new CoordPOI(co.getLatitude(), co.getLongitude());
-							coordMap.put(id, cp);
+							coordMap.replace(id, cp);
 							// we also have to jump through hoops to
 							// make a new version of Node because we
 							// can't replace the Coord that defines
@@ -1088,6 +1506,7 @@ public class Osm5XmlHandler extends DefaultHandler {
 							Node newNode = new Node(id, cp);
 							newNode.copyTags(currentNodeInWay);
 							nodeMap.put(id, newNode);
+							culledNodes.remove(id);
 							// tell the CoordPOI what node it's
 							// associated with
 							cp.setNode(newNode);
@@ -1108,22 +1527,36 @@ public class Osm5XmlHandler extends DefaultHandler {
 				}
 			}
 
-			// See if the first Node of the Way has a FIXME attribute
-			if (currentWay.getPoints().isEmpty()) {
-				currentWayStartsWithFIXME = (currentNodeInWay != null &&
-											 (currentNodeInWay.getTag("FIXME") != null ||
-											  currentNodeInWay.getTag("fixme") != null));
-			}
-
 			currentWay.addPoint(co);
 			co.incHighwayCount(); // nodes (way joins) will have highwayCount > 1
-			if (minimumArcLength != null || generateSea)
+			if (nodeIdMap != null)
 				nodeIdMap.put(co, id);
 		}
 		else if(reportUndefinedNodes && currentWay != null)
 			log.warn("Way " + currentWay.toBrowseURL() + " references undefined node " + id);
 	}
 
+	/**
+	 * Only keep the given nodes and ways, as found by a first pass over
+	 * the file.  Nodes with tags are kept whether they are in the set
+	 * or not.
+	 */
+	void setUsedElements(LongIdSet usedNodes, LongIdSet usedWays) {
+		this.usedNodes = usedNodes;
+		this.usedWays = usedWays;
+	}
+
+	/**
+	 * Give the ways and nodes that are members of relations, as found by
+	 * a first pass over the file.  Elements outside the bounds that are
+	 * not in these sets can then be dropped as soon as they are read,
+	 * rather than being kept until the end in case a relation needs them.
+	 */
+	void setRelationMembers(LongIdSet memberWays, LongIdSet memberNodes) {
+		this.memberWays = memberWays;
+		this.memberNodes = memberNodes;
+	}
+
 	public void setConverter(OsmConverter converter) {
 		this.converter = converter;
 	}
@@ -1142,7 +1575,7 @@ public class Osm5XmlHandler extends DefaultHandler {
 		super.fatalError(e);
 	}
 
-	private long idVal(String id) {
+	long idVal(String id) {
 		try {
 			// attempt to parse id as a number
 			return Long.parseLong(id);
@@ -1174,6 +1607,13 @@ public class Osm5XmlHandler extends DefaultHandler {
 			}
 		}
 
+		// the coastline from the coastline files is used instead of the
+		// coastline in the tile
+		if (coastlineFiles != null) {
+			shoreline.clear();
+			shoreline.addAll(CoastlineStore.getStore(coastlineFiles).getCoastline(seaBounds));
+		}
+
 		// clip all shoreline segments
 		List<Way> toBeRemoved = new ArrayList<Way>();
 		List<Way> toBeAdded = new ArrayList<Way>();
@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.log.Logger;
+
+/**
+ * Reads the OSM binary format (.osm.pbf) and passes each element to an
+ * {@link Osm5XmlHandler}, so that exactly the same processing is done as
+ * for XML input.
+ *
+ * The file is a sequence of independently compressed blobs.  Reading
+ * the raw blobs is done on the calling thread, but the inflating and the
+ * decoding of the string table of each blob is done on a pool of worker
+ * threads.  The decoded blocks are handed to the handler strictly in
+ * file order, so the handler itself is only ever called from one thread.
+ *
+ * @see <a href="http://wiki.openstreetmap.org/wiki/PBF_Format">PBF Format</a>
+ */
+class OsmBinHandler {
+	private static final Logger log = Logger.getLogger(OsmBinHandler.class);
+
+	// Limits from the format specification
+	private static final int MAX_HEADER_SIZE = 64 * 1024;
+	private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+	private static final List<String> SUPPORTED_FEATURES = Arrays.asList(
+			"OsmSchema-V0.6", "DenseNodes");
+
+	private static final String[] MEMBER_TYPES = {"node", "way", "relation"};
+
+	private final Osm5XmlHandler handler;
+	private final int nThreads;
+
+	OsmBinHandler(Osm5XmlHandler handler, int nThreads) {
+		this.handler = handler;
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Read the whole file, passing every element to the handler.
+	 *
+	 * @param is The input stream, positioned at the start of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public void parse(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+		try {
+			Blob blob;
+			while ((blob = readBlob(in)) != null) {
+				pending.add(pool.submit(blob));
+
+				// Keep enough work queued to use all the threads, but don't
+				// read ahead too far or the decoded blocks will use a lot
+				// of memory.
+				if (pending.size() > 2 * nThreads)
+					processBlock(pending.removeFirst());
+			}
+
+			while (!pending.isEmpty())
+				processBlock(pending.removeFirst());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void processBlock(Future<Block> future) throws IOException {
+		Block block;
+		try {
+			block = future.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while decoding pbf data");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new FormatException("Error decoding pbf data", cause);
+		}
+		block.process();
+	}
+
+	/**
+	 * Read the next header and blob from the file.  Nothing is decoded
+	 * here as that is done on a worker thread.
+	 *
+	 * @return The blob, or null at the end of the file.
+	 */
+	private Blob readBlob(DataInputStream in) throws IOException {
+		int headerSize;
+		try {
+			headerSize = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		if (headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+			throw new FormatException("Bad blob header size " + headerSize);
+
+		byte[] header = new byte[headerSize];
+		in.readFully(header);
+
+		String type = null;
+		int dataSize = 0;
+		ProtoBufReader pb = new ProtoBufReader(header);
+		while (pb.hasMore()) {
+			int key = pb.readKey();
+			switch (ProtoBufReader.field(key)) {
+			case 1:
+				type = pb.readString();
+				break;
+			case 3:
+				dataSize = pb.readInt();
+				break;
+			default:
+				pb.skip(key);
+			}
+		}
+		if (dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+			throw new FormatException("Bad blob size " + dataSize);
+
+		byte[] data = new byte[dataSize];
+		in.readFully(data);
+		return new Blob(type, data);
+	}
+
+	/**
+	 * A blob as read from the file.  Calling it decompresses it and
+	 * decodes enough of it for the handler to be driven from it.
+	 */
+	private class Blob implements Callable<Block> {
+		private final String type;
+		private final byte[] data;
+
+		Blob(String type, byte[] data) {
+			this.type = type;
+			this.data = data;
+		}
+
+		public Block call() {
+			byte[] raw = uncompress();
+			if ("OSMHeader".equals(type))
+				return new HeaderBlock(raw);
+			else if ("OSMData".equals(type))
+				return new DataBlock(raw);
+			else {
+				log.info("skipping unknown pbf blob type", type);
+				return new Block();
+			}
+		}
+
+		private byte[] uncompress() {
+			byte[] raw = null;
+			int rawSize = 0;
+			byte[] zlib = null;
+
+			ProtoBufReader pb = new ProtoBufReader(data);
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1:
+					raw = pb.readBytes();
+					break;
+				case 2:
+					rawSize = pb.readInt();
+					break;
+				case 3:
+					zlib = pb.readBytes();
+					break;
+				default:
+					pb.skip(key);
+				}
+			}
+
+			if (raw != null)
+				return raw;
+			if (zlib == null)
+				throw new FormatException("Unsupported pbf blob compression");
+			if (rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+				throw new FormatException("Bad uncompressed blob size " + rawSize);
+
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(zlib);
+				raw = new byte[rawSize];
+				int n = 0;
+				while (n < rawSize && !inflater.finished()) {
+					int count = inflater.inflate(raw, n, rawSize - n);
+					if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += count;
+				}
+				if (n != rawSize)
+					throw new FormatException("Truncated compressed pbf blob");
+			} catch (DataFormatException e) {
+				throw new FormatException("Corrupt compressed pbf blob", e);
+			} finally {
+				inflater.end();
+			}
+			return raw;
+		}
+	}
+
+	/**
+	 * A decoded blob.  The base class is used for blob types that we do
+	 * not know about and does nothing.
+	 */
+	private class Block {
+		void process() {
+		}
+	}
+
+	private class HeaderBlock extends Block {
+		private boolean haveBBox;
+		private double minLat, minLong, maxLat, maxLong;
+
+		HeaderBlock(byte[] raw) {
+			ProtoBufReader pb = new ProtoBufReader(raw);
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1:
+					readBBox(pb.readMessage());
+					break;
+				case 4:
+					String feature = pb.readString();
+					if (!SUPPORTED_FEATURES.contains(feature))
+						throw new FormatException("Unsupported pbf feature " + feature);
+					break;
+				default:
+					pb.skip(key);
+				}
+			}
+		}
+
+		private void readBBox(ProtoBufReader pb) {
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				double val = 1e-9 * pb.readSignedVarint();
+				switch (ProtoBufReader.field(key)) {
+				case 1: minLong = val; break;
+				case 2: maxLong = val; break;
+				case 3: maxLat = val; break;
+				case 4: minLat = val; break;
+				}
+			}
+			haveBBox = true;
+		}
+
+		void process() {
+			if (haveBBox)
+				handler.addBounds(minLat, minLong, maxLat, maxLong);
+		}
+	}
+
+	/**
+	 * A primitive block.  The string table is decoded on the worker thread
+	 * along with the decompression, the elements themselves are decoded
+	 * as they are passed to the handler.
+	 */
+	private class DataBlock extends Block {
+		private final List<ProtoBufReader> groups = new LinkedList<ProtoBufReader>();
+		private String[] strings = new String[0];
+
+		private int granularity = 100;
+		private long latOffset;
+		private long lonOffset;
+
+		DataBlock(byte[] raw) {
+			ProtoBufReader pb = new ProtoBufReader(raw);
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1:
+					readStringTable(pb.readMessage());
+					break;
+				case 2:
+					groups.add(pb.readMessage());
+					break;
+				case 17:
+					granularity = pb.readInt();
+					break;
+				case 19:
+					latOffset = pb.readVarint();
+					break;
+				case 20:
+					lonOffset = pb.readVarint();
+					break;
+				default:
+					pb.skip(key);
+				}
+			}
+		}
+
+		private void readStringTable(ProtoBufReader pb) {
+			List<String> list = new LinkedList<String>();
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				if (ProtoBufReader.field(key) == 1)
+					list.add(pb.readString());
+				else
+					pb.skip(key);
+			}
+			strings = list.toArray(new String[list.size()]);
+		}
+
+		void process() {
+			for (ProtoBufReader group : groups) {
+				while (group.hasMore()) {
+					int key = group.readKey();
+					switch (ProtoBufReader.field(key)) {
+					case 1:
+						processNode(group.readMessage());
+						break;
+					case 2:
+						processDenseNodes(group.readMessage());
+						break;
+					case 3:
+						processWay(group.readMessage());
+						break;
+					case 4:
+						processRelation(group.readMessage());
+						break;
+					default:
+						group.skip(key);
+					}
+				}
+			}
+		}
+
+		private double lat(long val) {
+			return 1e-9 * (latOffset + granularity * val);
+		}
+
+		private double lon(long val) {
+			return 1e-9 * (lonOffset + granularity * val);
+		}
+
+		private void processNode(ProtoBufReader pb) {
+			long id = 0;
+			long lat = 0;
+			long lon = 0;
+			ProtoBufReader keys = null;
+			ProtoBufReader vals = null;
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1: id = pb.readSignedVarint(); break;
+				case 2: keys = pb.readMessage(); break;
+				case 3: vals = pb.readMessage(); break;
+				case 8: lat = pb.readSignedVarint(); break;
+				case 9: lon = pb.readSignedVarint(); break;
+				default: pb.skip(key);
+				}
+			}
+
+			handler.startNode(id, lat(lat), lon(lon));
+			if (keys != null && vals != null) {
+				while (keys.hasMore() && vals.hasMore())
+					handler.nodeTag(strings[keys.readInt()], strings[vals.readInt()]);
+			}
+			handler.endNode();
+		}
+
+		private void processDenseNodes(ProtoBufReader pb) {
+			ProtoBufReader ids = null;
+			ProtoBufReader lats = null;
+			ProtoBufReader lons = null;
+			ProtoBufReader keysVals = null;
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1: ids = pb.readMessage(); break;
+				case 8: lats = pb.readMessage(); break;
+				case 9: lons = pb.readMessage(); break;
+				case 10: keysVals = pb.readMessage(); break;
+				default: pb.skip(key);
+				}
+			}
+			if (ids == null || lats == null || lons == null)
+				return;
+
+			// ids and coordinates are delta coded
+			long id = 0;
+			long lat = 0;
+			long lon = 0;
+			while (ids.hasMore()) {
+				id += ids.readSignedVarint();
+				lat += lats.readSignedVarint();
+				lon += lons.readSignedVarint();
+
+				handler.startNode(id, lat(lat), lon(lon));
+
+				// The tags of each node are a list of key,value string
+				// indexes terminated by a zero.
+				if (keysVals != null) {
+					while (keysVals.hasMore()) {
+						int k = keysVals.readInt();
+						if (k == 0)
+							break;
+						handler.nodeTag(strings[k], strings[keysVals.readInt()]);
+					}
+				}
+				handler.endNode();
+			}
+		}
+
+		private void processWay(ProtoBufReader pb) {
+			long id = 0;
+			ProtoBufReader keys = null;
+			ProtoBufReader vals = null;
+			ProtoBufReader refs = null;
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1: id = pb.readVarint(); break;
+				case 2: keys = pb.readMessage(); break;
+				case 3: vals = pb.readMessage(); break;
+				case 8: refs = pb.readMessage(); break;
+				default: pb.skip(key);
+				}
+			}
+
+			handler.startWay(id);
+			if (refs != null) {
+				long ref = 0;
+				while (refs.hasMore()) {
+					ref += refs.readSignedVarint();
+					handler.addNodeToWay(ref);
+				}
+			}
+			if (keys != null && vals != null) {
+				while (keys.hasMore() && vals.hasMore())
+					handler.wayTag(strings[keys.readInt()], strings[vals.readInt()]);
+			}
+			handler.endWay();
+		}
+
+		private void processRelation(ProtoBufReader pb) {
+			long id = 0;
+			ProtoBufReader keys = null;
+			ProtoBufReader vals = null;
+			ProtoBufReader roles = null;
+			ProtoBufReader memIds = null;
+			ProtoBufReader types = null;
+			while (pb.hasMore()) {
+				int key = pb.readKey();
+				switch (ProtoBufReader.field(key)) {
+				case 1: id = pb.readVarint(); break;
+				case 2: keys = pb.readMessage(); break;
+				case 3: vals = pb.readMessage(); break;
+				case 8: roles = pb.readMessage(); break;
+				case 9: memIds = pb.readMessage(); break;
+				case 10: types = pb.readMessage(); break;
+				default: pb.skip(key);
+				}
+			}
+
+			handler.startRelation(id);
+			if (roles != null && memIds != null && types != null) {
+				long memId = 0;
+				while (memIds.hasMore()) {
+					memId += memIds.readSignedVarint();
+					String role = strings[roles.readInt()];
+					int type = types.readInt();
+					if (type >= 0 && type < MEMBER_TYPES.length)
+						handler.addMemberToRelation(MEMBER_TYPES[type], memId, role);
+				}
+			}
+			if (keys != null && vals != null) {
+				while (keys.hasMore() && vals.hasMore())
+					handler.relationTag(strings[keys.readInt()], strings[vals.readInt()]);
+			}
+			handler.endRelation();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.imgfmt.Utils;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Read an OpenStreetMap data file in the binary .osm.pbf format.
+ *
+ * The elements are passed to the same handler that is used for the XML
+ * format, so the result is exactly as if the equivalent .osm file had
+ * been read.
+ */
+public class OsmBinMapDataSource extends OsmMapDataSource {
+
+	public boolean isFileSupported(String name) {
+		return name.endsWith(".pbf");
+	}
+
+	/**
+	 * Load the .osm.pbf file and produce the intermediate format.
+	 *
+	 * @param name The filename to read.
+	 * @throws FileNotFoundException If the file does not exist.
+	 */
+	public void load(String name) throws FileNotFoundException, FormatException {
+		InputStream is = Utils.openFile(name);
+
+		Osm5XmlHandler handler = new Osm5XmlHandler(getConfig());
+		handler.setCollector(mapper);
+		Runnable task = new Runnable() {
+			public void run() {
+				addBackground();
+			}
+		};
+		handler.setEndTask(task);
+		handler.setConverter(createStyler());
+
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		OsmBinHandler binHandler = new OsmBinHandler(handler, nThreads);
+		try {
+			try {
+				binHandler.parse(is);
+			} finally {
+				is.close();
+			}
+			handler.endDocument();
+		} catch (IOException e) {
+			throw new FormatException("Error reading file", e);
+		} catch (SAXException e) {
+			throw new FormatException("Error processing file", e);
+		}
+	}
+}
@@ -16,10 +16,18 @@
  */
 package uk.me.parabola.mkgmap.reader.osm.xml;
 
+import java.io.FileNotFoundException;
+import java.util.Properties;
+
+import uk.me.parabola.imgfmt.ExitException;
 import uk.me.parabola.log.Logger;
 import uk.me.parabola.mkgmap.general.LevelInfo;
 import uk.me.parabola.mkgmap.general.LoadableMapDataSource;
+import uk.me.parabola.mkgmap.osmstyle.StyleImpl;
+import uk.me.parabola.mkgmap.osmstyle.StyledConverter;
+import uk.me.parabola.mkgmap.osmstyle.eval.SyntaxException;
 import uk.me.parabola.mkgmap.reader.MapperBasedMapDataSource;
+import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
 import uk.me.parabola.mkgmap.reader.osm.Style;
 
 /**
@@ -92,4 +100,51 @@ public abstract class OsmMapDataSource extends MapperBasedMapDataSource
 	protected void setStyle(Style style) {
 		this.style = style;
 	}
+
+	protected Style getStyle() {
+		return style;
+	}
+
+	/**
+	 * Create the appropriate converter from osm to garmin styles.
+	 *
+	 * The option --style-file give the location of an alternate file or
+	 * directory containing styles rather than the default built in ones.
+	 *
+	 * The option --style gives the name of a style, either one of the
+	 * built in ones or selects one from the given style-file.
+	 *
+	 * If there is no name given, but there is a file then the file should
+	 * just contain one style.
+	 *
+	 * @return An OsmConverter based on the command line options passed in.
+	 */
+	protected OsmConverter createStyler() {
+
+		Properties props = getConfig();
+		String loc = props.getProperty("style-file");
+		if (loc == null)
+			loc = props.getProperty("map-features");
+		String name = props.getProperty("style");
+
+		if (loc == null && name == null)
+			name = "default";
+
+		OsmConverter converter;
+		try {
+			// TODO: Move this routine, so that Style implementation reference is outside this package
+			Style style = StyleImpl.readStyle(loc, name, props);
+			setStyle(style);
+
+			converter = new StyledConverter(style, mapper, props);
+		} catch (SyntaxException e) {
+			System.err.println("Error in style: " + e.getMessage());
+			throw new ExitException("Could not open style " + name);
+		} catch (FileNotFoundException e) {
+			String name1 = (name != null)? name: loc;
+			throw new ExitException("Could not open style " + name1);
+		}
+
+		return converter;
+	}
 }
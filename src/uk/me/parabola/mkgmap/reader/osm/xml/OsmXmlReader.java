@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.imgfmt.Utils;
+
+/**
+ * A reader for OSM XML files that works directly on the bytes of the
+ * file, as an alternative to a general purpose SAX parser.
+ *
+ * Only the things that appear in OSM files are understood: elements,
+ * attributes, the predefined and character entities, comments and
+ * processing instructions.  Attributes are located within the input buffer
+ * and only the ones that are actually needed are converted.  Ids and
+ * coordinates are parsed straight from the bytes, strings are only made
+ * for tag keys and values and relation member types and roles.  Tags that
+ * are in the delete tags file are checked on the bytes and dropped
+ * without making any strings.
+ *
+ * The results are passed to the same element level methods of
+ * {@link Osm5XmlHandler} that are used for the SAX parser, so the map that
+ * is produced is the same.  The file must be in UTF-8.
+ */
+class OsmXmlReader {
+	private static final int BUF_SIZE = 64 * 1024;
+
+	private static final int MODE_NODE = 1;
+	private static final int MODE_WAY = 2;
+	private static final int MODE_RELATION = 3;
+
+	// What ends a piece of markup
+	private static final int END_TAG = 0;
+	private static final int END_COMMENT = 1;
+	private static final int END_PI = 2;
+	private static final int END_CDATA = 3;
+	private static final int END_DECL = 4;
+
+	private static final byte[] NODE = bytes("node");
+	private static final byte[] WAY = bytes("way");
+	private static final byte[] ND = bytes("nd");
+	private static final byte[] TAG = bytes("tag");
+	private static final byte[] RELATION = bytes("relation");
+	private static final byte[] MEMBER = bytes("member");
+	private static final byte[] BOUND = bytes("bound");
+	private static final byte[] BOUNDS = bytes("bounds");
+
+	private static final byte[] ID = bytes("id");
+	private static final byte[] LAT = bytes("lat");
+	private static final byte[] LON = bytes("lon");
+	private static final byte[] REF = bytes("ref");
+	private static final byte[] K = bytes("k");
+	private static final byte[] V = bytes("v");
+	private static final byte[] TYPE = bytes("type");
+	private static final byte[] ROLE = bytes("role");
+	private static final byte[] BOX = bytes("box");
+	private static final byte[] MINLAT = bytes("minlat");
+	private static final byte[] MINLON = bytes("minlon");
+	private static final byte[] MAXLAT = bytes("maxlat");
+	private static final byte[] MAXLON = bytes("maxlon");
+	private static final byte[] ENCODING = bytes("encoding");
+
+	private static final byte[] AMP = bytes("amp");
+	private static final byte[] LT = bytes("lt");
+	private static final byte[] GT = bytes("gt");
+	private static final byte[] QUOT = bytes("quot");
+	private static final byte[] APOS = bytes("apos");
+
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+	};
+
+	private final InputStream in;
+	private final Osm5XmlHandler handler;
+
+	private byte[] buf = new byte[BUF_SIZE];
+	private int pos;
+	private int lim;
+
+	private int mode;
+
+	// The attributes of the current element.  For each one there is
+	// the start and end of the name and the start and end of the value.
+	private int[] attrs = new int[4 * 8];
+	private int nattrs;
+
+	private char[] chars = new char[256];
+
+	// Tags to drop before any strings are made for them
+	private final DeletedTags deletedTags;
+
+	OsmXmlReader(InputStream in, Osm5XmlHandler handler) {
+		this.in = in;
+		this.handler = handler;
+		deletedTags = handler.takeDeletedTags();
+	}
+
+	/**
+	 * Read the whole file, calling the handler for each element.
+	 */
+	public void parse() throws IOException {
+		while (findMarkup()) {
+			if (!ensure(2))
+				throw new FormatException("Unexpected end of file");
+
+			byte b = buf[pos + 1];
+			if (b == '?') {
+				int end = markupEnd(END_PI);
+				processingInstruction(end);
+				pos = end + 1;
+			} else if (b == '!') {
+				int kind = END_DECL;
+				if (ensure(4) && buf[pos + 2] == '-' && buf[pos + 3] == '-')
+					kind = END_COMMENT;
+				else if (ensure(3) && buf[pos + 2] == '[')
+					kind = END_CDATA;
+				pos = markupEnd(kind) + 1;
+			} else if (b == '/') {
+				int end = markupEnd(END_TAG);
+				int nameEnd = nameEnd(pos + 2, end);
+				endElement(pos + 2, nameEnd);
+				pos = end + 1;
+			} else {
+				int end = markupEnd(END_TAG);
+				boolean empty = buf[end - 1] == '/';
+				int nameEnd = nameEnd(pos + 1, end);
+				parseAttributes(nameEnd, empty ? end - 1 : end);
+				startElement(pos + 1, nameEnd);
+				if (empty)
+					endElement(pos + 1, nameEnd);
+				pos = end + 1;
+			}
+		}
+
+		if (mode != 0)
+			throw new FormatException("Unexpected end of file");
+	}
+
+	private void startElement(int start, int end) {
+		if (mode == 0) {
+			if (nameIs(start, end, NODE)) {
+				mode = MODE_NODE;
+				int id = findAttr(ID);
+				int lat = findAttr(LAT);
+				int lon = findAttr(LON);
+				if (id >= 0 && lat >= 0 && lon >= 0) {
+					try {
+						handler.startNode(idValue(id), mapUnitValue(lat), mapUnitValue(lon));
+					} catch (NumberFormatException e) {
+						// ignore bad numeric data.
+					}
+				}
+			} else if (nameIs(start, end, WAY)) {
+				mode = MODE_WAY;
+				handler.startWay(idValue(findAttr(ID)));
+			} else if (nameIs(start, end, RELATION)) {
+				mode = MODE_RELATION;
+				handler.startRelation(idValue(findAttr(ID)));
+			} else if (nameIs(start, end, BOUNDS)) {
+				handler.addBounds(stringValue(findAttr(MINLAT)), stringValue(findAttr(MINLON)),
+						stringValue(findAttr(MAXLAT)), stringValue(findAttr(MAXLON)));
+			} else if (nameIs(start, end, BOUND)) {
+				handler.addBound(stringValue(findAttr(BOX)));
+			}
+		} else if (nameIs(start, end, TAG)) {
+			int k = findAttr(K);
+			int v = findAttr(V);
+			if (deletedTags != null && isDeleted(k, v))
+				return;
+
+			String key = stringValue(k);
+			String val = stringValue(v);
+			if (mode == MODE_NODE)
+				handler.nodeTag(key, val);
+			else if (mode == MODE_WAY)
+				handler.wayTag(key, val);
+			else
+				handler.relationTag(key, val);
+		} else if (mode == MODE_WAY) {
+			if (nameIs(start, end, ND))
+				handler.addNodeToWay(idValue(findAttr(REF)));
+		} else if (mode == MODE_RELATION) {
+			if (nameIs(start, end, MEMBER)) {
+				String type = stringValue(findAttr(TYPE));
+				long id = idValue(findAttr(REF));
+				handler.addMemberToRelation(type, id, stringValue(findAttr(ROLE)));
+			}
+		}
+	}
+
+	private void endElement(int start, int end) {
+		if (mode == MODE_NODE) {
+			if (nameIs(start, end, NODE)) {
+				mode = 0;
+				handler.endNode();
+			}
+		} else if (mode == MODE_WAY) {
+			if (nameIs(start, end, WAY)) {
+				mode = 0;
+				handler.endWay();
+			}
+		} else if (mode == MODE_RELATION) {
+			if (nameIs(start, end, RELATION)) {
+				mode = 0;
+				handler.endRelation();
+			}
+		}
+	}
+
+	/**
+	 * Check if a tag is in the deleted tags.  This is done on the bytes of
+	 * the attributes unless they need decoding.
+	 */
+	private boolean isDeleted(int k, int v) {
+		if (k < 0 || v < 0)
+			return false;
+
+		int keyStart = attrs[k * 4 + 2];
+		int keyEnd = attrs[k * 4 + 3];
+		int valStart = attrs[v * 4 + 2];
+		int valEnd = attrs[v * 4 + 3];
+		if (isPlain(keyStart, keyEnd) && isPlain(valStart, valEnd))
+			return deletedTags.isDeleted(buf, keyStart, keyEnd, valStart, valEnd);
+		else
+			return deletedTags.isDeleted(stringValue(k), stringValue(v));
+	}
+
+	/**
+	 * Check that an attribute value has no entities or white space that
+	 * would be changed when it is made into a string.
+	 */
+	private boolean isPlain(int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (b == '&' || b == '\t' || b == '\n' || b == '\r')
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check the xml declaration for an encoding that we can't read.
+	 */
+	private void processingInstruction(int end) {
+		int nameEnd = nameEnd(pos + 2, end);
+		if (nameEnd - (pos + 2) != 3 || buf[pos + 2] != 'x' || buf[pos + 3] != 'm' || buf[pos + 4] != 'l')
+			return;
+
+		parseAttributes(nameEnd, end - 1);
+		String encoding = stringValue(findAttr(ENCODING));
+		if (encoding != null && !encoding.equalsIgnoreCase("UTF-8") && !encoding.equalsIgnoreCase("US-ASCII"))
+			throw new FormatException("Cannot read files in " + encoding + " encoding with the fast xml reader");
+	}
+
+	/**
+	 * Move to the next '<' in the input.
+	 * @return False if the end of the file was reached first.
+	 */
+	private boolean findMarkup() throws IOException {
+		while (true) {
+			for (int i = pos; i < lim; i++) {
+				if (buf[i] == '<') {
+					pos = i;
+					return true;
+				}
+			}
+			pos = lim;
+			if (!fill())
+				return false;
+		}
+	}
+
+	/**
+	 * Find the end of the markup that starts at the current position,
+	 * reading more of the file if necessary.
+	 *
+	 * @param kind What kind of markup it is, which decides how it ends.
+	 * @return The index of the final '>' in the buffer.
+	 */
+	private int markupEnd(int kind) throws IOException {
+		int i = pos + 1;
+		byte quote = 0;
+		int depth = 0;
+		while (true) {
+			if (i >= lim) {
+				int off = i - pos;
+				if (!fill())
+					throw new FormatException("Unexpected end of file");
+				i = pos + off;
+				continue;
+			}
+
+			byte b = buf[i];
+			if (quote != 0) {
+				if (b == quote)
+					quote = 0;
+			} else if (b == '>') {
+				switch (kind) {
+				case END_TAG:
+					return i;
+				case END_COMMENT:
+					if (i - pos >= 6 && buf[i - 1] == '-' && buf[i - 2] == '-')
+						return i;
+					break;
+				case END_PI:
+					if (i - pos >= 3 && buf[i - 1] == '?')
+						return i;
+					break;
+				case END_CDATA:
+					if (i - pos >= 11 && buf[i - 1] == ']' && buf[i - 2] == ']')
+						return i;
+					break;
+				case END_DECL:
+					if (depth == 0)
+						return i;
+					break;
+				}
+			} else if (kind == END_TAG || kind == END_DECL) {
+				if (b == '"' || b == '\'')
+					quote = b;
+				else if (b == '[')
+					depth++;
+				else if (b == ']')
+					depth--;
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * Make sure that there are at least n bytes available from the current
+	 * position.
+	 */
+	private boolean ensure(int n) throws IOException {
+		while (lim - pos < n) {
+			if (!fill())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read more of the file into the buffer.  The bytes from the current
+	 * position are kept and moved to the start of the buffer; if they fill
+	 * it then the buffer is made larger.
+	 *
+	 * @return False if there was nothing more to read.
+	 */
+	private boolean fill() throws IOException {
+		int remaining = lim - pos;
+		if (remaining == buf.length) {
+			byte[] newBuf = new byte[buf.length * 2];
+			System.arraycopy(buf, pos, newBuf, 0, remaining);
+			buf = newBuf;
+		} else if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, remaining);
+		}
+		pos = 0;
+		lim = remaining;
+
+		int n = in.read(buf, lim, buf.length - lim);
+		if (n <= 0)
+			return false;
+		lim += n;
+		return true;
+	}
+
+	private int nameEnd(int start, int end) {
+		int i = start;
+		while (i < end && !isSpace(buf[i]) && buf[i] != '/' && buf[i] != '>')
+			i++;
+		return i;
+	}
+
+	private boolean nameIs(int start, int end, byte[] name) {
+		if (end - start != name.length)
+			return false;
+		for (int i = 0; i < name.length; i++) {
+			if (buf[start + i] != name[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the positions of all the attributes between start and end.
+	 */
+	private void parseAttributes(int start, int end) {
+		nattrs = 0;
+		int i = start;
+		while (true) {
+			while (i < end && isSpace(buf[i]))
+				i++;
+			if (i >= end)
+				return;
+
+			int nameStart = i;
+			while (i < end && buf[i] != '=' && !isSpace(buf[i]))
+				i++;
+			int nameEnd = i;
+
+			while (i < end && buf[i] != '"' && buf[i] != '\'')
+				i++;
+			if (i >= end)
+				throw new FormatException("Bad attribute in xml");
+			byte quote = buf[i++];
+
+			int valStart = i;
+			while (i < end && buf[i] != quote)
+				i++;
+			if (i >= end)
+				throw new FormatException("Bad attribute in xml");
+
+			if (nattrs * 4 == attrs.length) {
+				int[] newAttrs = new int[attrs.length * 2];
+				System.arraycopy(attrs, 0, newAttrs, 0, attrs.length);
+				attrs = newAttrs;
+			}
+			int a = nattrs * 4;
+			attrs[a] = nameStart;
+			attrs[a + 1] = nameEnd;
+			attrs[a + 2] = valStart;
+			attrs[a + 3] = i;
+			nattrs++;
+			i++;
+		}
+	}
+
+	/**
+	 * Find an attribute of the current element.
+	 * @return The attribute's index, or -1 if there is no such attribute.
+	 */
+	private int findAttr(byte[] name) {
+		for (int n = 0; n < nattrs; n++) {
+			if (nameIs(attrs[n * 4], attrs[n * 4 + 1], name))
+				return n;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the value of an attribute as a string, decoding UTF-8 and any
+	 * entities and normalising white space as an xml parser would.
+	 *
+	 * @param n The attribute index, may be -1.
+	 * @return The value, null if the attribute was not present.
+	 */
+	private String stringValue(int n) {
+		if (n < 0)
+			return null;
+
+		int start = attrs[n * 4 + 2];
+		int end = attrs[n * 4 + 3];
+
+		// the value can never have more characters than bytes
+		if (chars.length < end - start)
+			chars = new char[end - start];
+
+		int len = 0;
+		int i = start;
+		while (i < end) {
+			int b = buf[i++] & 0xff;
+			if (b < 0x80) {
+				if (b == '&') {
+					int semi = i;
+					while (semi < end && buf[semi] != ';')
+						semi++;
+					if (semi == end)
+						throw new FormatException("Bad entity in xml");
+					len = appendEntity(i, semi, len);
+					i = semi + 1;
+				} else if (b == '\r') {
+					chars[len++] = ' ';
+					if (i < end && buf[i] == '\n')
+						i++;
+				} else if (b == '\t' || b == '\n') {
+					chars[len++] = ' ';
+				} else {
+					chars[len++] = (char) b;
+				}
+			} else if ((b & 0xe0) == 0xc0 && i < end) {
+				chars[len++] = (char) (((b & 0x1f) << 6) | (buf[i++] & 0x3f));
+			} else if ((b & 0xf0) == 0xe0 && i + 1 < end) {
+				chars[len++] = (char) (((b & 0x0f) << 12) | ((buf[i] & 0x3f) << 6) | (buf[i + 1] & 0x3f));
+				i += 2;
+			} else if ((b & 0xf8) == 0xf0 && i + 2 < end) {
+				int cp = ((b & 0x07) << 18) | ((buf[i] & 0x3f) << 12) | ((buf[i + 1] & 0x3f) << 6) | (buf[i + 2] & 0x3f);
+				i += 3;
+				len += Character.toChars(cp, chars, len);
+			} else {
+				chars[len++] = '\ufffd';
+			}
+		}
+		return new String(chars, 0, len);
+	}
+
+	/**
+	 * Decode the entity whose name is between start and end and add it
+	 * to the character buffer.
+	 */
+	private int appendEntity(int start, int end, int len) {
+		int n = end - start;
+		if (n > 1 && buf[start] == '#') {
+			int cp = 0;
+			int radix = 10;
+			int i = start + 1;
+			if (buf[i] == 'x') {
+				radix = 16;
+				i++;
+			}
+			for (; i < end; i++) {
+				int d = Character.digit((char) buf[i], radix);
+				if (d < 0)
+					throw new FormatException("Bad character reference in xml");
+				cp = cp * radix + d;
+			}
+			return len + Character.toChars(cp, chars, len);
+		}
+
+		char c;
+		if (nameIs(start, end, AMP))
+			c = '&';
+		else if (nameIs(start, end, LT))
+			c = '<';
+		else if (nameIs(start, end, GT))
+			c = '>';
+		else if (nameIs(start, end, QUOT))
+			c = '"';
+		else if (nameIs(start, end, APOS))
+			c = '\'';
+		else
+			throw new FormatException("Unknown entity in xml");
+		chars[len] = c;
+		return len + 1;
+	}
+
+	/**
+	 * Get the value of an id attribute.  Ids that are not plain numbers
+	 * are passed to the handler to be given a fake id, in the same way as
+	 * for the SAX parser.
+	 */
+	private long idValue(int n) {
+		if (n < 0)
+			return handler.idVal(null);
+
+		int start = attrs[n * 4 + 2];
+		int end = attrs[n * 4 + 3];
+		int i = start;
+		boolean neg = false;
+		if (i < end && buf[i] == '-') {
+			neg = true;
+			i++;
+		}
+
+		// anything unusual (including numbers too big for a long) is
+		// handled by the string conversion
+		if (i == end || end - i > 18)
+			return handler.idVal(stringValue(n));
+
+		long val = 0;
+		for (; i < end; i++) {
+			int d = buf[i] - '0';
+			if (d < 0 || d > 9)
+				return handler.idVal(stringValue(n));
+			val = val * 10 + d;
+		}
+		return neg ? -val : val;
+	}
+
+	/**
+	 * Convert a latitude or longitude attribute in degrees to map units.
+	 *
+	 * The usual forms with up to 15 significant digits are converted
+	 * without making a string.  The number of degrees is calculated exactly
+	 * as Double.parseDouble would, as the mantissa and the power of ten are
+	 * both exact doubles and the division is correctly rounded.  So the
+	 * map units are the same as when going through the string.
+	 */
+	private int mapUnitValue(int n) {
+		int start = attrs[n * 4 + 2];
+		int end = attrs[n * 4 + 3];
+		int i = start;
+		boolean neg = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+			neg = buf[i] == '-';
+			i++;
+		}
+
+		long mant = 0;
+		int ndigits = 0;
+		int scale = -1;
+		for (; i < end; i++) {
+			byte b = buf[i];
+			if (b >= '0' && b <= '9') {
+				mant = mant * 10 + (b - '0');
+				if (++ndigits > 15)
+					return Utils.toMapUnit(Double.parseDouble(stringValue(n)));
+				if (scale >= 0)
+					scale++;
+			} else if (b == '.' && scale < 0) {
+				scale = 0;
+			} else {
+				return Utils.toMapUnit(Double.parseDouble(stringValue(n)));
+			}
+		}
+		if (ndigits == 0)
+			throw new NumberFormatException("No digits in coordinate");
+
+		double d = mant;
+		if (scale > 0)
+			d /= POW10[scale];
+		return Utils.toMapUnit(neg ? -d : d);
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+	}
+
+	private static byte[] bytes(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) s.charAt(i);
+		return b;
+	}
+}
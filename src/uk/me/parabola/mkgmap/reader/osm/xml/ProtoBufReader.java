@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.UnsupportedEncodingException;
+
+import uk.me.parabola.imgfmt.FormatException;
+
+/**
+ * A minimal reader for the protocol buffer wire format, just enough to
+ * decode the messages that make up an OSM binary (.pbf) file.
+ *
+ * It works on a byte array that has already been read into memory and
+ * never copies the data; embedded messages are read by creating another
+ * reader over a part of the same array.
+ */
+class ProtoBufReader {
+	static final int WIRE_VARINT = 0;
+	static final int WIRE_FIXED64 = 1;
+	static final int WIRE_LENGTH = 2;
+	static final int WIRE_FIXED32 = 5;
+
+	private final byte[] buf;
+	private int pos;
+	private final int end;
+
+	ProtoBufReader(byte[] buf) {
+		this(buf, 0, buf.length);
+	}
+
+	ProtoBufReader(byte[] buf, int off, int len) {
+		this.buf = buf;
+		this.pos = off;
+		this.end = off + len;
+	}
+
+	boolean hasMore() {
+		return pos < end;
+	}
+
+	/**
+	 * Read the key of the next field.
+	 * @return The key, use {@link #field} and {@link #wireType} to split it.
+	 */
+	int readKey() {
+		return (int) readVarint();
+	}
+
+	static int field(int key) {
+		return key >>> 3;
+	}
+
+	static int wireType(int key) {
+		return key & 7;
+	}
+
+	long readVarint() {
+		long result = 0;
+		int shift = 0;
+		while (shift < 64) {
+			if (pos >= end)
+				throw new FormatException("Truncated varint in pbf data");
+			byte b = buf[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return result;
+			shift += 7;
+		}
+		throw new FormatException("Malformed varint in pbf data");
+	}
+
+	/**
+	 * Read a zig-zag encoded signed value (sint32 and sint64 fields).
+	 */
+	long readSignedVarint() {
+		long v = readVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	int readInt() {
+		return (int) readVarint();
+	}
+
+	/**
+	 * Read the header of a length delimited field and return a reader
+	 * over its contents.  This is used for both embedded messages and
+	 * packed repeated fields.
+	 */
+	ProtoBufReader readMessage() {
+		int len = readLength();
+		ProtoBufReader r = new ProtoBufReader(buf, pos, len);
+		pos += len;
+		return r;
+	}
+
+	String readString() {
+		int len = readLength();
+		try {
+			String s = new String(buf, pos, len, "UTF-8");
+			pos += len;
+			return s;
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new FormatException("No UTF-8 support", e);
+		}
+	}
+
+	byte[] readBytes() {
+		int len = readLength();
+		byte[] b = new byte[len];
+		System.arraycopy(buf, pos, b, 0, len);
+		pos += len;
+		return b;
+	}
+
+	/**
+	 * Skip over the value of a field that we are not interested in.
+	 * @param key The key that was read for the field.
+	 */
+	void skip(int key) {
+		switch (wireType(key)) {
+		case WIRE_VARINT:
+			readVarint();
+			break;
+		case WIRE_FIXED64:
+			pos += 8;
+			break;
+		case WIRE_LENGTH:
+			int len = readLength();
+			pos += len;
+			break;
+		case WIRE_FIXED32:
+			pos += 4;
+			break;
+		default:
+			throw new FormatException("Unsupported wire type " + wireType(key) + " in pbf data");
+		}
+	}
+
+	private int readLength() {
+		int len = readInt();
+		if (len < 0 || pos + len > end)
+			throw new FormatException("Bad field length in pbf data");
+		return len;
+	}
+}
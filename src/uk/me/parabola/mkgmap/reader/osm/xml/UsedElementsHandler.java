@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * The first pass of a two pass load.  The file is read without creating
+ * any elements to find out which ways can appear on the map and which
+ * nodes are referenced by them.
+ *
+ * A way is used if it has one of the given tags or if it is a member of a
+ * relation.  A node is used if it is part of a used way or is a member of
+ * a relation.  Nodes that have tags are always read in the second pass
+ * anyway, so they don't have to be included here.
+ *
+ * The relations come after the ways in the file, so a way that is only
+ * used because it is a relation member is not known about until the end.
+ * Rather than keep the nodes of every unused way until then, the file
+ * is read once more to get the nodes of just those ways, see
+ * {@link #startMemberPass}.  This is only needed if there are any.
+ *
+ * The relation members are also kept for --drop-outside-bounds, so that
+ * ways and nodes outside the bounds can be dropped as soon as they are read
+ * unless a relation needs them.  When that is the only reason for the pass
+ * the handler is made without any tags and it just finds the members.
+ */
+class UsedElementsHandler extends DefaultHandler {
+	private final Set<String> usedTags;
+
+	private final LongIdSet usedNodes = new LongIdSet();
+	private LongIdSet usedWays = new LongIdSet();
+	private final LongIdSet memberWays = new LongIdSet();
+	private final LongIdSet memberNodes = new LongIdSet();
+
+	// The relation members that are not used for themselves, found at the
+	// end of the first pass.
+	private LongIdSet memberOnlyWays;
+	private boolean memberPass;
+
+	// The node references of the current way
+	private long[] wayNodes = new long[256];
+	private int nWayNodes;
+	private long currentWayId;
+	private boolean currentWayUsed;
+	private boolean inWay;
+	private boolean inRelation;
+	private boolean fakeIds;
+
+	/**
+	 * @param usedTags The tags that make a way used, or null if only the
+	 * relation members are wanted.
+	 */
+	UsedElementsHandler(Set<String> usedTags) {
+		this.usedTags = usedTags;
+	}
+
+	public void startElement(String uri, String localName, String qName, Attributes attributes)
+			throws SAXException
+	{
+		if (inWay) {
+			if (qName.equals("nd")) {
+				if (nWayNodes == wayNodes.length) {
+					long[] a = new long[nWayNodes * 2];
+					System.arraycopy(wayNodes, 0, a, 0, nWayNodes);
+					wayNodes = a;
+				}
+				wayNodes[nWayNodes++] = idVal(attributes.getValue("ref"));
+			} else if (qName.equals("tag") && !memberPass) {
+				if (usedTags.contains(attributes.getValue("k")))
+					currentWayUsed = true;
+			}
+		} else if (inRelation) {
+			if (qName.equals("member")) {
+				String type = attributes.getValue("type");
+				long id = idVal(attributes.getValue("ref"));
+				if ("way".equals(type))
+					memberWays.add(id);
+				else if ("node".equals(type)) {
+					usedNodes.add(id);
+					memberNodes.add(id);
+				}
+			}
+		} else if (qName.equals("way") && usedTags != null) {
+			inWay = true;
+			currentWayId = idVal(attributes.getValue("id"));
+			currentWayUsed = memberPass && memberOnlyWays.contains(currentWayId);
+			nWayNodes = 0;
+		} else if (qName.equals("relation") && !memberPass) {
+			inRelation = true;
+		}
+	}
+
+	public void endElement(String uri, String localName, String qName)
+			throws SAXException
+	{
+		if (inWay && qName.equals("way")) {
+			inWay = false;
+			if (currentWayUsed) {
+				if (!memberPass)
+					usedWays.add(currentWayId);
+				for (int i = 0; i < nWayNodes; i++)
+					usedNodes.add(wayNodes[i]);
+			}
+		} else if (inRelation && qName.equals("relation")) {
+			inRelation = false;
+		}
+	}
+
+	/**
+	 * At the end of the first pass, find the relation members that
+	 * were not already used.  If there are none, then we are done.
+	 */
+	public void endDocument() throws SAXException {
+		if (!memberPass) {
+			memberWays.finish();
+			memberNodes.finish();
+			if (usedTags == null)
+				return;
+
+			usedWays.finish();
+			memberOnlyWays = memberWays.without(usedWays);
+			usedWays = usedWays.union(memberOnlyWays);
+			if (memberOnlyWays.size() > 0)
+				return;
+		}
+
+		memberOnlyWays = null;
+		usedNodes.finish();
+	}
+
+	/**
+	 * If some relation members were not used for themselves, then their
+	 * nodes are not known yet and the file must be read again with this
+	 * handler.
+	 *
+	 * @return True if another pass is needed.
+	 */
+	public boolean needsMemberPass() {
+		return memberOnlyWays != null;
+	}
+
+	/**
+	 * Get ready to read the file again to get the nodes of the ways that
+	 * are only used as relation members.
+	 */
+	public void startMemberPass() {
+		memberPass = true;
+	}
+
+	/**
+	 * If there were any ids that are not numbers, then the elements
+	 * can't be matched up in the second pass and so the results of this
+	 * pass should not be used.
+	 */
+	public boolean hasFakeIds() {
+		return fakeIds;
+	}
+
+	public LongIdSet getUsedNodes() {
+		return usedNodes;
+	}
+
+	public LongIdSet getUsedWays() {
+		return usedWays;
+	}
+
+	public LongIdSet getMemberWays() {
+		return memberWays;
+	}
+
+	public LongIdSet getMemberNodes() {
+		return memberNodes;
+	}
+
+	private long idVal(String id) {
+		try {
+			return Long.parseLong(id);
+		} catch (NumberFormatException e) {
+			// Ids that are not numbers are given fake ids in the second
+			// pass, they can't be matched here.
+			fakeIds = true;
+			return 0;
+		}
+	}
+}
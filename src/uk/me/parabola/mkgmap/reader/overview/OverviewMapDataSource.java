@@ -148,6 +148,10 @@ public class OverviewMapDataSource extends MapperBasedMapDataSource
 		getRoadNetwork().addThroughRoute(junctionNodeId, roadIdA, roadIdB);
 	}
 
+	public void setDriveOnLeft(boolean dol) {
+		getRoadNetwork().setDriveOnLeft(dol);
+	}
+
 	public int getShift() {
 		return 24 - (topBits - 1);
 	}
@@ -21,6 +21,7 @@ import java.util.List;
 
 import uk.me.parabola.mkgmap.general.LoadableMapDataSource;
 import uk.me.parabola.mkgmap.reader.osm.xml.Osm5MapDataSource;
+import uk.me.parabola.mkgmap.reader.osm.xml.OsmBinMapDataSource;
 import uk.me.parabola.mkgmap.reader.polish.PolishMapDataSource;
 import uk.me.parabola.mkgmap.reader.test.ElementTestDataSource;
 
@@ -42,6 +43,7 @@ public class MapReader {
 
 		loaders.add(ElementTestDataSource.class);
 		loaders.add(PolishMapDataSource.class);
+		loaders.add(OsmBinMapDataSource.class);
 		loaders.add(Osm5MapDataSource.class);
 	}
 
@@ -0,0 +1,568 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decompresses a bzip2 file, using several threads.
+ *
+ * The decoding of each block is done in two parts.  The huffman and move
+ * to front decoding has to be done in order, as the end of a block can
+ * only be found by decoding it.  This is done on a reader thread.  The
+ * rest, which is undoing the Burrows-Wheeler transform and the initial run
+ * length encoding and checking the CRC, is where most of the time goes and
+ * each block is independent, so the blocks are handed to a pool of threads
+ * for that part.  The decoded blocks are returned in order.
+ *
+ * Files that consist of several bzip2 streams one after another, as
+ * produced by parallel compressors, are read as a whole.
+ */
+public class BZip2InputStream extends InputStream {
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long EOS_MAGIC = 0x177245385090L;
+
+	private static final int RUNA = 0;
+	private static final int RUNB = 1;
+	private static final int MAX_GROUPS = 6;
+	private static final int GROUP_SIZE = 50;
+	private static final int MAX_CODE_LEN = 20;
+	private static final int MAX_SELECTORS = 18002;
+
+	private static final int[] CRC_TABLE = new int[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int c = i << 24;
+			for (int j = 0; j < 8; j++)
+				c = (c & 0x80000000) != 0 ? (c << 1) ^ 0x04c11db7 : c << 1;
+			CRC_TABLE[i] = c;
+		}
+	}
+
+	// A finished future that marks the end of the data
+	private static final Future<byte[]> END = new FutureTask<byte[]>(new Callable<byte[]>() {
+		public byte[] call() {
+			return null;
+		}
+	});
+	static {
+		((FutureTask<byte[]>) END).run();
+	}
+
+	private final InputStream in;
+	private final byte[] inBuf = new byte[64 * 1024];
+	private int inPos;
+	private int inLim;
+
+	private long bitBuf;
+	private int bitCount;
+
+	private int blockSize;
+	private int combinedCrc;
+
+	private final ExecutorService executor;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Thread reader;
+
+	private byte[] current;
+	private int currentPos;
+	private boolean finished;
+	private volatile boolean closed;
+
+	/**
+	 * Start decompressing the given stream.  The stream header is read
+	 * straight away so that a file that is not bzip2 is detected here.
+	 *
+	 * @param in The compressed data.
+	 * @param nThreads The number of threads that blocks will be decoded on.
+	 * @throws IOException If the stream cannot be read or is not bzip2.
+	 */
+	public BZip2InputStream(InputStream in, int nThreads) throws IOException {
+		this.in = in;
+		if (!readStreamHeader())
+			throw new IOException("Not a bzip2 file");
+
+		executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bzip2-decoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		blocks = new ArrayBlockingQueue<Future<byte[]>>(nThreads * 2);
+
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readBlocks();
+			}
+		}, "bzip2-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public int read() throws IOException {
+		if (!ensureData())
+			return -1;
+		return current[currentPos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureData())
+			return -1;
+
+		int n = Math.min(len, current.length - currentPos);
+		System.arraycopy(current, currentPos, b, off, n);
+		currentPos += n;
+		return n;
+	}
+
+	public int available() {
+		return current == null ? 0 : current.length - currentPos;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		executor.shutdownNow();
+		in.close();
+	}
+
+	/**
+	 * Make sure that there is some decoded data to return, waiting for the
+	 * next block if necessary.
+	 *
+	 * @return False at the end of the data.
+	 */
+	private boolean ensureData() throws IOException {
+		while (current == null || currentPos >= current.length) {
+			if (finished)
+				return false;
+
+			try {
+				current = blocks.take().get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while decompressing");
+			} catch (ExecutionException e) {
+				finished = true;
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				IOException ioe = new IOException("Error decompressing bzip2 data");
+				ioe.initCause(cause);
+				throw ioe;
+			}
+
+			currentPos = 0;
+			if (current == null) {
+				finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The body of the reader thread.  Read each block and pass it to the
+	 * pool for the rest of the decoding.  Any error is passed on to be
+	 * thrown from read().
+	 */
+	private void readBlocks() {
+		try {
+			try {
+				while (!closed) {
+					long magic = ((long) bits(24) << 24) | bits(24);
+					if (magic == BLOCK_MAGIC) {
+						final Block block = readBlock();
+						combinedCrc = ((combinedCrc << 1) | (combinedCrc >>> 31)) ^ block.storedCrc;
+						blocks.put(executor.submit(new Callable<byte[]>() {
+							public byte[] call() throws IOException {
+								return block.decode();
+							}
+						}));
+					} else if (magic == EOS_MAGIC) {
+						int storedCrc = bits(32);
+						if (storedCrc != combinedCrc)
+							throw new IOException("bzip2 stream CRC error");
+
+						// There may be another stream following
+						bitCount &= ~7;
+						if (!readStreamHeader())
+							break;
+					} else {
+						throw new IOException("Bad bzip2 block header");
+					}
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable t) {
+				// Anything at all must be passed on, or the reader would
+				// wait for the next block forever.
+				blocks.put(failed(t));
+			}
+			blocks.put(END);
+		} catch (InterruptedException e) {
+			// closed, nothing more to do
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Read the header at the start of a stream.
+	 *
+	 * @return False if there is no more data, or the data that follows is not
+	 * another stream.
+	 */
+	private boolean readStreamHeader() throws IOException {
+		int b = readByte();
+		if (b != 'B')
+			return false;
+		if (readByte() != 'Z' || readByte() != 'h')
+			return false;
+		int level = readByte() - '0';
+		if (level < 1 || level > 9)
+			return false;
+
+		blockSize = level * 100000;
+		combinedCrc = 0;
+		return true;
+	}
+
+	/**
+	 * Read a block, doing the huffman, move to front and second run length
+	 * decoding.
+	 */
+	private Block readBlock() throws IOException {
+		Block block = new Block();
+		block.storedCrc = bits(32);
+		if (bits(1) != 0)
+			throw new IOException("Randomised bzip2 blocks are not supported");
+		block.origPtr = bits(24);
+
+		// The symbols that are used in the block
+		byte[] seqToUnseq = new byte[256];
+		int nInUse = 0;
+		int inUse16 = bits(16);
+		for (int i = 0; i < 16; i++) {
+			if ((inUse16 & (0x8000 >>> i)) != 0) {
+				int inUse = bits(16);
+				for (int j = 0; j < 16; j++) {
+					if ((inUse & (0x8000 >>> j)) != 0)
+						seqToUnseq[nInUse++] = (byte) (i * 16 + j);
+				}
+			}
+		}
+		if (nInUse == 0)
+			throw new IOException("Bad bzip2 data, no symbols used");
+		int alphaSize = nInUse + 2;
+
+		// Which of the huffman tables is used for each group of symbols
+		int nGroups = bits(3);
+		if (nGroups < 2 || nGroups > MAX_GROUPS)
+			throw new IOException("Bad bzip2 data, number of tables");
+		int nSelectors = bits(15);
+		if (nSelectors < 1)
+			throw new IOException("Bad bzip2 data, number of selectors");
+
+		byte[] groupMtf = new byte[MAX_GROUPS];
+		for (int i = 0; i < nGroups; i++)
+			groupMtf[i] = (byte) i;
+		byte[] selectors = new byte[Math.min(nSelectors, MAX_SELECTORS)];
+		for (int i = 0; i < nSelectors; i++) {
+			int j = 0;
+			while (bits(1) != 0) {
+				j++;
+				if (j >= nGroups)
+					throw new IOException("Bad bzip2 data, selector");
+			}
+			byte v = groupMtf[j];
+			for (; j > 0; j--)
+				groupMtf[j] = groupMtf[j - 1];
+			groupMtf[0] = v;
+			if (i < MAX_SELECTORS)
+				selectors[i] = v;
+		}
+		nSelectors = selectors.length;
+
+		// The huffman tables themselves
+		HuffmanTable[] tables = new HuffmanTable[nGroups];
+		byte[] lengths = new byte[alphaSize];
+		for (int t = 0; t < nGroups; t++) {
+			int len = bits(5);
+			for (int s = 0; s < alphaSize; s++) {
+				while (true) {
+					if (len < 1 || len > MAX_CODE_LEN)
+						throw new IOException("Bad bzip2 data, code length");
+					if (bits(1) == 0)
+						break;
+					len += bits(1) == 0 ? 1 : -1;
+				}
+				lengths[s] = (byte) len;
+			}
+			tables[t] = new HuffmanTable(lengths, alphaSize);
+		}
+
+		// Now the symbols
+		int[] tt = new int[blockSize];
+		int[] counts = new int[256];
+		byte[] mtf = new byte[256];
+		for (int i = 0; i < 256; i++)
+			mtf[i] = (byte) i;
+
+		int eob = nInUse + 1;
+		int nblock = 0;
+		int groupIndex = -1;
+		int groupPos = 0;
+		HuffmanTable table = null;
+		int runLength = 0;
+		int runWeight = 1;
+		while (true) {
+			if (groupPos == 0) {
+				if (++groupIndex >= nSelectors)
+					throw new IOException("Bad bzip2 data, too many symbols");
+				groupPos = GROUP_SIZE;
+				table = tables[selectors[groupIndex]];
+			}
+			groupPos--;
+
+			int sym = table.decode();
+			if (sym == RUNA || sym == RUNB) {
+				runLength += (sym + 1) * runWeight;
+				runWeight <<= 1;
+				if (runLength > blockSize)
+					throw new IOException("Bad bzip2 data, run too long");
+				continue;
+			}
+
+			if (runLength > 0) {
+				if (nblock + runLength > blockSize)
+					throw new IOException("Bad bzip2 data, block too long");
+				int b = seqToUnseq[mtf[0] & 0xff] & 0xff;
+				counts[b] += runLength;
+				while (runLength-- > 0)
+					tt[nblock++] = b;
+				runLength = 0;
+				runWeight = 1;
+			}
+
+			if (sym == eob)
+				break;
+
+			if (nblock >= blockSize)
+				throw new IOException("Bad bzip2 data, block too long");
+			int idx = sym - 1;
+			byte v = mtf[idx];
+			System.arraycopy(mtf, 0, mtf, 1, idx);
+			mtf[0] = v;
+			int b = seqToUnseq[v & 0xff] & 0xff;
+			counts[b]++;
+			tt[nblock++] = b;
+		}
+
+		if (block.origPtr < 0 || block.origPtr >= nblock)
+			throw new IOException("Bad bzip2 data, origin pointer");
+
+		block.tt = tt;
+		block.nblock = nblock;
+		block.counts = counts;
+		return block;
+	}
+
+	private int readByte() throws IOException {
+		if (inPos >= inLim) {
+			inLim = in.read(inBuf, 0, inBuf.length);
+			inPos = 0;
+			if (inLim <= 0)
+				return -1;
+		}
+		return inBuf[inPos++] & 0xff;
+	}
+
+	/**
+	 * Read up to 32 bits.
+	 */
+	private int bits(int n) throws IOException {
+		while (bitCount < n) {
+			int b = readByte();
+			if (b < 0)
+				throw new EOFException("Unexpected end of bzip2 data");
+			bitBuf = (bitBuf << 8) | b;
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (int) ((bitBuf >>> bitCount) & ((1L << n) - 1));
+	}
+
+	private static Future<byte[]> failed(final Throwable t) {
+		FutureTask<byte[]> f = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() throws Exception {
+				if (t instanceof Exception)
+					throw (Exception) t;
+				throw (Error) t;
+			}
+		});
+		f.run();
+		return f;
+	}
+
+	/**
+	 * Decoding table for one of the huffman codes of a block.
+	 */
+	private class HuffmanTable {
+		private final int minLen;
+		private final int[] limit = new int[MAX_CODE_LEN + 2];
+		private final int[] base = new int[MAX_CODE_LEN + 2];
+		private final int[] perm;
+
+		HuffmanTable(byte[] lengths, int alphaSize) {
+			int min = MAX_CODE_LEN;
+			int max = 0;
+			for (int i = 0; i < alphaSize; i++) {
+				min = Math.min(min, lengths[i]);
+				max = Math.max(max, lengths[i]);
+			}
+			minLen = min;
+
+			// The symbols in code order
+			perm = new int[alphaSize];
+			int pp = 0;
+			for (int len = min; len <= max; len++) {
+				for (int s = 0; s < alphaSize; s++) {
+					if (lengths[s] == len)
+						perm[pp++] = s;
+				}
+			}
+
+			// The number of codes of each length, then the first index
+			for (int i = 0; i < alphaSize; i++)
+				base[lengths[i] + 1]++;
+			for (int i = 1; i < base.length; i++)
+				base[i] += base[i - 1];
+
+			int vec = 0;
+			for (int len = min; len <= max; len++) {
+				vec += base[len + 1] - base[len];
+				limit[len] = vec - 1;
+				vec <<= 1;
+			}
+			for (int len = max + 1; len < limit.length; len++)
+				limit[len] = Integer.MAX_VALUE;
+			for (int len = min + 1; len <= max; len++)
+				base[len] = ((limit[len - 1] + 1) << 1) - base[len];
+		}
+
+		int decode() throws IOException {
+			int len = minLen;
+			int code = bits(len);
+			while (code > limit[len]) {
+				if (++len > MAX_CODE_LEN)
+					throw new IOException("Bad bzip2 data, huffman code");
+				code = (code << 1) | bits(1);
+			}
+			int idx = code - base[len];
+			if (idx < 0 || idx >= perm.length)
+				throw new IOException("Bad bzip2 data, huffman code");
+			return perm[idx];
+		}
+	}
+
+	/**
+	 * A block that has been read, but where the Burrows-Wheeler transform
+	 * has not been undone.
+	 */
+	private static class Block {
+		private int storedCrc;
+		private int origPtr;
+		private int[] tt;
+		private int nblock;
+		private int[] counts;
+
+		/**
+		 * Undo the transform and the first run length encoding and check
+		 * the CRC.
+		 *
+		 * @return The decoded bytes of the block.
+		 */
+		byte[] decode() throws IOException {
+			int[] cftab = new int[256];
+			int sum = 0;
+			for (int i = 0; i < 256; i++) {
+				cftab[i] = sum;
+				sum += counts[i];
+			}
+			for (int i = 0; i < nblock; i++) {
+				int b = tt[i] & 0xff;
+				tt[cftab[b]++] |= i << 8;
+			}
+
+			byte[] out = new byte[nblock + (nblock >> 2)];
+			int len = 0;
+			int crc = 0xffffffff;
+			int last = -1;
+			int run = 0;
+			int tPos = tt[origPtr] >>> 8;
+			for (int k = 0; k < nblock; k++) {
+				tPos = tt[tPos];
+				int b = tPos & 0xff;
+				tPos >>>= 8;
+
+				int n = 1;
+				if (run == 4) {
+					// this is a count of extra copies of the last byte
+					n = b;
+					b = last;
+					run = 0;
+					last = -1;
+				} else if (b == last) {
+					run++;
+				} else {
+					run = 1;
+					last = b;
+				}
+
+				if (len + n > out.length) {
+					byte[] newOut = new byte[Math.max(len + n, out.length + (out.length >> 1))];
+					System.arraycopy(out, 0, newOut, 0, len);
+					out = newOut;
+				}
+				for (int i = 0; i < n; i++) {
+					out[len++] = (byte) b;
+					crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ b) & 0xff];
+				}
+			}
+			tt = null;
+
+			if (~crc != storedCrc)
+				throw new IOException("bzip2 block CRC error");
+
+			if (len == out.length)
+				return out;
+			byte[] result = new byte[len];
+			System.arraycopy(out, 0, result, 0, len);
+			return result;
+		}
+	}
+}
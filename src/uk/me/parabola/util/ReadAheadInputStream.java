@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another stream on a separate thread, keeping a few buffers ahead
+ * of the reader.
+ *
+ * This is used for compressed files, so that the decompression happens at
+ * the same time as the data is being parsed instead of the parser having
+ * to wait for it.
+ */
+public class ReadAheadInputStream extends InputStream {
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_CHUNKS = 16;
+
+	private final InputStream in;
+	private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<Chunk>(MAX_CHUNKS);
+	private final Thread reader;
+
+	private Chunk current;
+	private int currentPos;
+	private boolean finished;
+
+	public ReadAheadInputStream(InputStream in) {
+		this.in = in;
+
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readChunks();
+			}
+		}, "read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public int read() throws IOException {
+		if (!ensureData())
+			return -1;
+		return current.buf[currentPos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!ensureData())
+			return -1;
+
+		int n = Math.min(len, current.len - currentPos);
+		System.arraycopy(current.buf, currentPos, b, off, n);
+		currentPos += n;
+		return n;
+	}
+
+	public int available() {
+		return current == null ? 0 : current.len - currentPos;
+	}
+
+	/**
+	 * Stop the reading thread, it closes the underlying stream when it
+	 * finishes.
+	 */
+	public void close() {
+		finished = true;
+		reader.interrupt();
+	}
+
+	private boolean ensureData() throws IOException {
+		while (current == null || currentPos >= current.len) {
+			if (finished)
+				return false;
+
+			try {
+				current = chunks.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading");
+			}
+			currentPos = 0;
+
+			if (current.error != null) {
+				finished = true;
+				throw current.error;
+			}
+			if (current.len < 0) {
+				finished = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The body of the reading thread.  Fill buffers until the end of the
+	 * stream, which is marked with an empty chunk.
+	 *
+	 * Whatever goes wrong, a chunk with the error is always queued, as
+	 * otherwise the reader would wait for the next chunk forever.
+	 */
+	private void readChunks() {
+		try {
+			try {
+				while (true) {
+					Chunk chunk = new Chunk();
+					chunk.buf = new byte[CHUNK_SIZE];
+
+					// fill the whole buffer if possible, as the inflater
+					// often returns much less than was asked for
+					int len = 0;
+					while (len < CHUNK_SIZE) {
+						int n = in.read(chunk.buf, len, CHUNK_SIZE - len);
+						if (n < 0)
+							break;
+						len += n;
+					}
+					if (len == 0)
+						break;
+					chunk.len = len;
+					chunks.put(chunk);
+					if (len < CHUNK_SIZE)
+						break;
+				}
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable t) {
+				chunks.put(failed(t));
+				return;
+			}
+
+			Chunk end = new Chunk();
+			end.len = -1;
+			chunks.put(end);
+		} catch (InterruptedException e) {
+			// closed, nothing more to do
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static Chunk failed(Throwable t) {
+		Chunk chunk = new Chunk();
+		if (t instanceof IOException) {
+			chunk.error = (IOException) t;
+		} else {
+			chunk.error = new IOException("Error reading file");
+			chunk.error.initCause(t);
+		}
+		return chunk;
+	}
+
+	private static class Chunk {
+		private byte[] buf;
+		private int len;
+		private IOException error;
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.general;
+
+import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PolygonClipperTest {
+
+	/**
+	 * A polygon that is all inside is not changed.
+	 */
+	@Test
+	public void testInside() {
+		Area a = new Area(0, 0, 100, 100);
+		List<Coord> poly = square(10, 10, 20);
+		assertNull(PolygonClipper.clip(a, poly));
+	}
+
+	/**
+	 * A square that overlaps one corner of the box.
+	 */
+	@Test
+	public void testCorner() {
+		Area a = new Area(0, 0, 100, 100);
+		List<List<Coord>> result = PolygonClipper.clip(a, square(-50, -50, 100));
+		assertEquals("one polygon", 1, result.size());
+
+		List<Coord> piece = result.get(0);
+		assertEquals("closed", piece.get(0), piece.get(piece.size() - 1));
+		assertEquals("area", 2 * 50 * 50, Math.abs(area(piece)));
+	}
+
+	/**
+	 * A U shape that has both of its arms cut off by the box, giving
+	 * two separate polygons.
+	 */
+	@Test
+	public void testSplit() {
+		Area a = new Area(0, 0, 100, 100);
+		List<Coord> u = Arrays.asList(
+				new Coord(50, 10),
+				new Coord(50, 20),
+				new Coord(150, 20),
+				new Coord(150, 80),
+				new Coord(50, 80),
+				new Coord(50, 90),
+				new Coord(200, 90),
+				new Coord(200, 10),
+				new Coord(50, 10));
+		List<List<Coord>> result = PolygonClipper.clip(a, u);
+		assertEquals("two polygons", 2, result.size());
+		for (List<Coord> piece : result)
+			assertEquals("area", 2 * 50 * 10, Math.abs(area(piece)));
+	}
+
+	/**
+	 * A polygon that is all outside gives nothing.
+	 */
+	@Test
+	public void testOutside() {
+		Area a = new Area(0, 0, 100, 100);
+		List<List<Coord>> result = PolygonClipper.clip(a, square(200, 200, 20));
+		assertTrue(result.isEmpty());
+	}
+
+	/**
+	 * Compare against java.awt.geom.Area for random star shaped polygons
+	 * in both directions.
+	 */
+	@Test
+	public void testSameAsArea() {
+		Random r = new Random(1);
+		Area a = new Area(1000, 1000, 2000, 2000);
+		for (int n = 0; n < 500; n++) {
+			// Keep the angle between points under 180 degrees, so that the
+			// polygon can't cross itself.
+			int nPoints = 4 + r.nextInt(40);
+			double[] angles = new double[nPoints];
+			for (int i = 0; i < nPoints; i++)
+				angles[i] = (i + 0.9 * r.nextDouble()) * 2 * Math.PI / nPoints;
+
+			int cLat = 500 + r.nextInt(2000);
+			int cLon = 500 + r.nextInt(2000);
+			List<Coord> poly = new ArrayList<Coord>();
+			for (double ang : angles) {
+				double len = 100 + r.nextInt(1000);
+				poly.add(new Coord(cLat + (int) (len * Math.sin(ang)), cLon + (int) (len * Math.cos(ang))));
+			}
+			if (r.nextBoolean())
+				java.util.Collections.reverse(poly);
+			poly.add(poly.get(0));
+
+			List<List<Coord>> result = PolygonClipper.clipToBox(a, poly);
+			assertNotNull("clipped", result);
+
+			java.awt.geom.Area expected = toArea(Arrays.asList(poly));
+			expected.intersect(toArea(Arrays.asList(square(1000, 1000, 1000))));
+			java.awt.geom.Area got = toArea(result);
+
+			// The crossing points are rounded to the nearest unit, which
+			// moves each cut edge by up to half a unit along its length.
+			double tolerance = 4000;
+			assertEquals("area of polygon " + n, areaOf(expected), areaOf(got), tolerance);
+
+			java.awt.geom.Area diff = (java.awt.geom.Area) expected.clone();
+			diff.exclusiveOr(got);
+			assertTrue("same shape " + n, areaOf(diff) <= tolerance);
+		}
+	}
+
+	private static List<Coord> square(int lat, int lon, int size) {
+		return Arrays.asList(
+				new Coord(lat, lon),
+				new Coord(lat + size, lon),
+				new Coord(lat + size, lon + size),
+				new Coord(lat, lon + size),
+				new Coord(lat, lon));
+	}
+
+	private static long area(List<Coord> ring) {
+		long sum = 0;
+		for (int i = 1; i < ring.size(); i++) {
+			Coord p = ring.get(i - 1);
+			Coord c = ring.get(i);
+			sum += (long) p.getLongitude() * c.getLatitude() - (long) c.getLongitude() * p.getLatitude();
+		}
+		return sum;
+	}
+
+	private static java.awt.geom.Area toArea(List<List<Coord>> rings) {
+		java.awt.geom.Area area = new java.awt.geom.Area();
+		for (List<Coord> ring : rings) {
+			Polygon p = new Polygon();
+			for (Coord co : ring)
+				p.addPoint(co.getLongitude(), co.getLatitude());
+			area.add(new java.awt.geom.Area(p));
+		}
+		return area;
+	}
+
+	private static double areaOf(java.awt.geom.Area area) {
+		double[] res = new double[6];
+		double total = 0;
+		double sum = 0;
+		double startX = 0, startY = 0, lastX = 0, lastY = 0;
+		for (java.awt.geom.PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+			int type = pit.currentSegment(res);
+			if (type == java.awt.geom.PathIterator.SEG_MOVETO) {
+				startX = lastX = res[0];
+				startY = lastY = res[1];
+				sum = 0;
+			} else if (type == java.awt.geom.PathIterator.SEG_LINETO) {
+				sum += lastX * res[1] - res[0] * lastY;
+				lastX = res[0];
+				lastY = res[1];
+			} else if (type == java.awt.geom.PathIterator.SEG_CLOSE) {
+				sum += lastX * startY - startX * lastY;
+				total += Math.abs(sum);
+			}
+		}
+		return total / 2;
+	}
+}
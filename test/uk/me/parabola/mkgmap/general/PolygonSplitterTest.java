@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.general;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The rings are given as longitude, latitude pairs.
+ */
+public class PolygonSplitterTest {
+
+	/**
+	 * Holes that touch each other or the outer ring, at a point or along
+	 * an edge, are accepted.
+	 */
+	@Test
+	public void testTouching() {
+		// at a point
+		assertTrue(PolygonSplitter.prepareRings(rings(
+				outer(0, 0, 100, 0, 100, 100, 0, 100),
+				hole(10, 10, 40, 10, 40, 40, 10, 40),
+				hole(40, 40, 70, 40, 70, 70, 40, 70))));
+
+		// along part of an edge, the point where the second hole starts
+		// is added to the first
+		List<Coord> hole1 = hole(10, 10, 40, 10, 40, 50, 10, 50);
+		assertTrue(PolygonSplitter.prepareRings(rings(
+				outer(0, 0, 100, 0, 100, 100, 0, 100),
+				hole1,
+				hole(40, 20, 70, 20, 70, 60, 40, 60))));
+		assertEquals(5, hole1.size());
+		assertTrue(hole1.contains(new Coord(20, 40)));
+
+		// a hole with a point on the outer ring
+		List<Coord> outer = outer(0, 0, 100, 0, 100, 100, 0, 100);
+		assertTrue(PolygonSplitter.prepareRings(rings(
+				outer,
+				hole(50, 0, 70, 50, 50, 100, 30, 50))));
+		assertEquals("points added to the outer ring", 6, outer.size());
+	}
+
+	/**
+	 * Rings that cross, or that overlap where they touch, are rejected.
+	 */
+	@Test
+	public void testCrossing() {
+		assertFalse(PolygonSplitter.prepareRings(rings(
+				outer(0, 0, 100, 0, 100, 100, 0, 100),
+				hole(10, 10, 50, 10, 50, 50, 10, 50),
+				hole(30, 30, 70, 30, 70, 70, 30, 70))));
+
+		// a hole that is partly outside
+		assertFalse(PolygonSplitter.prepareRings(rings(
+				outer(0, 0, 100, 0, 100, 100, 0, 100),
+				hole(50, 50, 150, 50, 150, 60, 50, 60))));
+
+		// holes that overlap at a point where they touch
+		assertFalse(PolygonSplitter.prepareRings(rings(
+				outer(0, 0, 100, 0, 100, 100, 0, 100),
+				hole(50, 50, 70, 10, 80, 30),
+				hole(50, 50, 75, 5, 90, 20))));
+	}
+
+	/**
+	 * A way that touches itself is split where it touches, one that
+	 * crosses itself is left for Area.
+	 */
+	@Test
+	public void testMakeRings() {
+		// two squares joined at a corner
+		List<List<Coord>> result = PolygonSplitter.makeRings(closed(
+				0, 0, 10, 0, 10, 10, 20, 10, 20, 20, 10, 20, 10, 10, 0, 10), null);
+		assertEquals(2, result.size());
+		for (List<Coord> ring : result) {
+			assertEquals(4, ring.size());
+			assertEquals("anti-clockwise", 200, PolygonClipper.signedArea(ring));
+		}
+
+		// a bow tie
+		assertNull(PolygonSplitter.makeRings(closed(0, 0, 20, 20, 20, 0, 0, 10), null));
+	}
+
+	/**
+	 * The part of a way that is inside the box.
+	 */
+	@Test
+	public void testMakeRingsClipped() {
+		Area bbox = new Area(0, 0, 50, 50);
+		List<List<Coord>> result = PolygonSplitter.makeRings(closed(
+				-10, -10, 100, -10, 100, 100, -10, 100), bbox);
+		assertEquals(1, result.size());
+		assertEquals(2 * 50 * 50, PolygonClipper.signedArea(result.get(0)));
+	}
+
+	/**
+	 * Cutting through a hole takes it out, and the pieces on the two sides
+	 * add up to the polygon.
+	 */
+	@Test
+	public void testCut() {
+		List<Coord> outer = outer(0, 0, 100, 0, 100, 100, 0, 100);
+		List<Coord> hole = hole(20, 20, 60, 20, 60, 60, 20, 60);
+		assertTrue(PolygonSplitter.prepareRings(rings(outer, hole)));
+
+		long total = 0;
+		for (boolean below : new boolean[] {true, false}) {
+			List<List<Coord>> pieces = new ArrayList<List<Coord>>();
+			List<List<Coord>> holesLeft = new ArrayList<List<Coord>>();
+			assertTrue(PolygonSplitter.cut(outer, Collections.singletonList(hole),
+					true, 40, below, pieces, holesLeft));
+			assertEquals("one piece", 1, pieces.size());
+			assertTrue("hole is gone", holesLeft.isEmpty());
+			for (Coord co : pieces.get(0)) {
+				if (below)
+					assertTrue(co.getLongitude() <= 40);
+				else
+					assertTrue(co.getLongitude() >= 40);
+			}
+			total += PolygonClipper.signedArea(pieces.get(0));
+		}
+		assertEquals(2 * (100 * 100 - 40 * 40), total);
+	}
+
+	/**
+	 * A hole that goes across the outer ring splits it in two.
+	 */
+	@Test
+	public void testCutSplits() {
+		List<Coord> outer = outer(0, 0, 100, 0, 100, 100, 0, 100);
+		List<Coord> hole = hole(50, 0, 70, 50, 50, 100, 30, 50);
+		assertTrue(PolygonSplitter.prepareRings(rings(outer, hole)));
+
+		List<List<Coord>> pieces = new ArrayList<List<Coord>>();
+		List<List<Coord>> holesLeft = new ArrayList<List<Coord>>();
+		assertTrue(PolygonSplitter.cut(outer, Collections.singletonList(hole),
+				false, 20, true, pieces, holesLeft));
+		assertEquals("two pieces", 2, pieces.size());
+		assertTrue(holesLeft.isEmpty());
+	}
+
+	/**
+	 * A line that only touches a hole leaves it as a hole.
+	 */
+	@Test
+	public void testCutTouching() {
+		List<Coord> outer = outer(0, 0, 100, 0, 100, 100, 0, 100);
+		List<Coord> hole = hole(40, 20, 60, 20, 60, 60, 40, 60);
+		assertTrue(PolygonSplitter.prepareRings(rings(outer, hole)));
+
+		List<List<Coord>> pieces = new ArrayList<List<Coord>>();
+		List<List<Coord>> holesLeft = new ArrayList<List<Coord>>();
+		assertTrue(PolygonSplitter.cut(outer, Collections.singletonList(hole),
+				true, 40, false, pieces, holesLeft));
+		assertEquals(1, pieces.size());
+		assertEquals(2 * 60 * 100, PolygonClipper.signedArea(pieces.get(0)));
+		assertEquals(1, holesLeft.size());
+		assertEquals(-2 * 20 * 40, PolygonClipper.signedArea(holesLeft.get(0)));
+	}
+
+	@Test
+	public void testEncloses() {
+		List<Coord> outer = outer(0, 0, 100, 0, 100, 100, 0, 100);
+		assertTrue(PolygonSplitter.encloses(outer, hole(10, 10, 20, 10, 20, 20)));
+		assertFalse(PolygonSplitter.encloses(outer, hole(110, 10, 120, 10, 120, 20)));
+
+		// every point is on the outer ring
+		assertTrue(PolygonSplitter.encloses(outer, hole(0, 0, 100, 100, 0, 100)));
+		assertFalse(PolygonSplitter.encloses(outer(0, 0, 100, 0, 100, 100),
+				hole(0, 0, 100, 100, 0, 100)));
+	}
+
+	private static List<List<Coord>> rings(List<Coord>... rings) {
+		return Arrays.asList(rings);
+	}
+
+	private static List<Coord> outer(int... xy) {
+		List<Coord> ring = points(xy);
+		PolygonSplitter.orient(ring, true);
+		return ring;
+	}
+
+	private static List<Coord> hole(int... xy) {
+		List<Coord> ring = points(xy);
+		PolygonSplitter.orient(ring, false);
+		return ring;
+	}
+
+	private static List<Coord> closed(int... xy) {
+		List<Coord> ring = points(xy);
+		ring.add(ring.get(0));
+		return ring;
+	}
+
+	private static List<Coord> points(int... xy) {
+		List<Coord> ring = new ArrayList<Coord>();
+		for (int i = 0; i < xy.length; i += 2)
+			ring.add(new Coord(xy[i + 1], xy[i]));
+		return ring;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.Rule;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saving and loading compiled styles.
+ */
+public class CompiledStyleTest {
+	private File dir;
+	private File styleDir;
+	private File cacheDir;
+
+	/**
+	 * The style is saved the first time, and the saved copy is used the
+	 * next time without being written again.
+	 */
+	@Test
+	public void testSavedStyleUsed() throws IOException {
+		StyleImpl s1 = CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		File file = savedFile();
+		assertNotNull("style saved", file);
+		file.setLastModified(10000);
+
+		StyleImpl s2 = CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		assertEquals("saved style not written again", 10000, file.lastModified());
+		assertTrue("a new copy", s1 != s2);
+
+		assertEquals("type from loaded style", 0x3, getFirstType(s2.getWayRules(), "highway", "primary").getType());
+		assertEquals("type from action", 0x12, getFirstType(s2.getWayRules(), "highway", "other").getType());
+		assertEquals("info", "test", s2.getInfo().getSummary());
+	}
+
+	/**
+	 * When one of the style files changes the saved copy is not used.
+	 */
+	@Test
+	public void testChangedStyle() throws IOException {
+		CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		File file = savedFile();
+		file.setLastModified(10000);
+
+		writeFile("lines", "highway=primary [0x5]\n");
+		StyleImpl s = CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		assertTrue("saved again", file.lastModified() != 10000);
+		assertEquals("type from changed style", 0x5, getFirstType(s.getWayRules(), "highway", "primary").getType());
+	}
+
+	/**
+	 * A file that did not exist before is added to the style.
+	 */
+	@Test
+	public void testAddedFile() throws IOException {
+		CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		savedFile().setLastModified(10000);
+
+		writeFile("polygons", "natural=wood [0x50]\n");
+		StyleImpl s = CompiledStyle.getStyle(cacheDir.getPath(), styleDir.getPath(), null);
+		assertTrue("saved again", savedFile().lastModified() != 10000);
+		assertEquals("type from new file", 0x50, getFirstType(s.getWayRules(), "natural", "wood").getType());
+	}
+
+	/**
+	 * A style that has been loaded is the same as the one it was saved from,
+	 * including the base style that it is derived from.
+	 */
+	@Test
+	public void testLoadedSameAsRead() throws IOException {
+		StyleImpl s1 = CompiledStyle.getStyle(cacheDir.getPath(), "classpath:teststyles", "derived");
+		StyleImpl s2 = CompiledStyle.getStyle(cacheDir.getPath(), "classpath:teststyles", "derived");
+		assertTrue("a new copy", s1 != s2);
+
+		assertEquals("style", dump(s1), dump(s2));
+		assertEquals("way rules", s1.getWayRules().toString(), s2.getWayRules().toString());
+		assertEquals("used tags", s1.getUsedWayTags(), s2.getUsedWayTags());
+		assertEquals("overridden", 0x22, getFirstType(s2.getWayRules(), "overridden", "xyz").getType());
+	}
+
+	private String dump(StyleImpl style) {
+		StringWriter sw = new StringWriter();
+		style.dumpToFile(sw);
+		return sw.toString();
+	}
+
+	private File savedFile() {
+		File[] files = cacheDir.listFiles();
+		if (files == null || files.length != 1)
+			return null;
+		return files[0];
+	}
+
+	private GType getFirstType(Rule rs, String key, String value) {
+		Way el = new Way(1);
+		el.addTag(key, value);
+
+		final List<GType> types = new ArrayList<GType>();
+		rs.resolveType(el, new TypeResult() {
+			public void add(Element el, GType type) {
+				types.add(type);
+			}
+		});
+		if (types.isEmpty())
+			return null;
+		else
+			return types.get(0);
+	}
+
+	private void writeFile(String name, String contents) throws IOException {
+		FileWriter w = new FileWriter(new File(styleDir, name));
+		try {
+			w.write(contents);
+		} finally {
+			w.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("mkgmap", "test");
+		dir.delete();
+		styleDir = new File(dir, "style");
+		styleDir.mkdirs();
+		cacheDir = new File(dir, "cache");
+
+		writeFile("version", "0\n");
+		writeFile("info", "summary: test\n");
+		writeFile("lines", "highway=primary [0x3]\n"
+				+ "highway=other {set is_a_road = yes; }\n"
+				+ "is_a_road=yes [0x12]\n");
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files)
+				delete(c);
+		}
+		f.delete();
+	}
+}
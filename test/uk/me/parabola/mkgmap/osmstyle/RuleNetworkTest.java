@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.me.parabola.mkgmap.general.LevelInfo;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.Rule;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rule sets that use a {@link RuleNetwork} must give the same results as
+ * those that don't.
+ */
+public class RuleNetworkTest {
+
+	/**
+	 * A test that is in several rules is only kept once.
+	 */
+	@Test
+	public void testTestsShared() {
+		RuleSet rs = makeRuleSet("highway=primary & access!=private [0x1]" +
+				"highway=secondary & access!=private [0x2]" +
+				"highway=* & access!=private & highway!=track [0x3]");
+
+		RuleNetwork net = new RuleNetwork(toArray(rs));
+		assertEquals("number of different tests", 5, net.getTestCount());
+	}
+
+	@Test
+	public void testFirstMatch() {
+		String rules = "highway=* & access!=private [0x1]" +
+				"highway=primary [0x2]";
+
+		Way el = new Way(1);
+		el.addTag("highway", "primary");
+		el.addTag("access", "private");
+		checkSame(rules, el, 0x2);
+	}
+
+	/**
+	 * A test that was false must be done again after an action has
+	 * changed the tags.
+	 */
+	@Test
+	public void testTagChangedByAction() {
+		String rules = "highway=motorway & blue!=true {set blue=true;}" +
+				"blue=true & highway=motorway [0x1]" +
+				"highway=motorway [0x2]";
+
+		Way el = new Way(1);
+		el.addTag("highway", "motorway");
+		checkSame(rules, el, 0x1);
+	}
+
+	/**
+	 * The value of a tag that was fetched before an action changed it must
+	 * be fetched again.
+	 */
+	@Test
+	public void testValueChangedByAction() {
+		String rules = "highway=track {set highway=path;}" +
+				"highway=track [0x1]" +
+				"highway=footway {set highway=cycleway;} [0x2 continue propagate]" +
+				"highway=path [0x3]";
+
+		Way el = new Way(1);
+		el.addTag("highway", "track");
+		checkSame(rules, el, 0x3);
+
+		el = new Way(1);
+		el.addTag("highway", "footway");
+		checkSame(rules + "highway=cycleway [0x4]", el, 0x2, 0x4);
+	}
+
+	/**
+	 * Each tag is fetched from the element only once, however many tests
+	 * there are on it.
+	 */
+	@Test
+	public void testTagFetchedOnce() {
+		String rules = "highway=primary & maxspeed>100 [0x1]" +
+				"highway=* & maxspeed<30 & maxspeed!=20 [0x2]" +
+				"highway=* & highway ~ 'sec.*' | highway=tertiary [0x3]" +
+				"highway=secondary & maxspeed=* [0x4]";
+
+		RuleSet plain = makeRuleSet(rules);
+		plain.prepare();
+		RuleSet joined = makeRuleSet(rules);
+		joined.makeNetwork();
+		for (RuleSet rs : new RuleSet[] {plain, joined}) {
+			final Map<Integer, Integer> fetched = new HashMap<Integer, Integer>();
+			Way el = new Way(1) {
+				public String getTag(int keyId) {
+					Integer n = fetched.get(keyId);
+					fetched.put(keyId, n == null ? 1 : n + 1);
+					return super.getTag(keyId);
+				}
+			};
+			el.addTag("highway", "secondary");
+			el.addTag("maxspeed", "40");
+
+			List<GType> list = resolveList(rs, el);
+			assertEquals(1, list.size());
+			assertEquals(0x3, list.get(0).getType());
+			assertEquals("tags fetched", 2, fetched.size());
+			for (int n : fetched.values())
+				assertEquals("times fetched", 1, n);
+		}
+	}
+
+	/**
+	 * Only the first part of an OR expression that matches is used.
+	 */
+	@Test
+	public void testOrExpression() {
+		String rules = "a=1 | b=2 {set c='${c}x'}" +
+				"c=0x [0x1]" +
+				"c=0xx [0x2]";
+
+		Way el = new Way(1);
+		el.addTag("a", "1");
+		el.addTag("b", "2");
+		el.addTag("c", "0");
+		checkSame(rules, el, 0x1);
+	}
+
+	@Test
+	public void testContinue() {
+		String rules = "highway=footway {set surface=good;} [0x1 continue]" +
+				"surface=good [0x20]" +
+				"surface=bad [0x30]";
+
+		Way el = new Way(1);
+		el.addTag("highway", "footway");
+		el.addTag("surface", "bad");
+		checkSame(rules, el, 0x1, 0x30);
+	}
+
+	@Test
+	public void testContinuePropagate() {
+		String rules = "highway=footway {set surface=good;} [0x1 continue propagate]" +
+				"surface=good [0x20]" +
+				"surface=bad [0x30]";
+
+		Way el = new Way(1);
+		el.addTag("highway", "footway");
+		el.addTag("surface", "bad");
+		checkSame(rules, el, 0x1, 0x20);
+	}
+
+	/**
+	 * Resolve a copy of the element with and without the network, and check
+	 * that the results are the expected ones in both cases.
+	 */
+	private void checkSame(String rules, Way el, int... expected) {
+		RuleSet plain = makeRuleSet(rules);
+		plain.prepare();
+		RuleSet joined = makeRuleSet(rules);
+		joined.makeNetwork();
+
+		Way el2 = el.copy();
+		List<GType> plainList = resolveList(plain, el);
+		List<GType> joinedList = resolveList(joined, el2);
+
+		assertEquals("number of results", expected.length, plainList.size());
+		assertEquals("number of results with network", expected.length, joinedList.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("result " + i, expected[i], plainList.get(i).getType());
+			assertEquals("result with network " + i, expected[i], joinedList.get(i).getType());
+		}
+		assertEquals("tags", el.toString(), el2.toString());
+	}
+
+	private static Rule[] toArray(RuleSet rs) {
+		List<Rule> list = new ArrayList<Rule>();
+		for (Rule r : rs)
+			list.add(r);
+		return list.toArray(new Rule[list.size()]);
+	}
+
+	private List<GType> resolveList(RuleSet rs, Way el) {
+		final List<GType> list = new ArrayList<GType>();
+		rs.resolveType(el, new TypeResult() {
+			public void add(Element el, GType type) {
+				list.add(type);
+			}
+		});
+		return list;
+	}
+
+	private RuleSet makeRuleSet(String in) {
+		RuleSet rs = new RuleSet();
+		RuleFileReader rr = new RuleFileReader(GType.POLYLINE, LevelInfo.createFromString("0:24 1:20 2:18 3:16 4:14"), rs);
+		rr.load(new StringReader(in), "string");
+		return rs;
+	}
+}
@@ -340,6 +340,63 @@ public class RuleSetTest {
 		assertEquals("second element", 0x6, list.get(1).getType());
 	}
 
+	/**
+	 * The rules for the different tags are tried in the order of the
+	 * rule file, not grouped by tag.
+	 */
+	@Test
+	public void testRulesFromSeveralTagsInOrder() {
+		RuleSet rs = makeRuleSet("a=1 [0x1 continue]" +
+				"b=* [0x2 continue]" +
+				"a=* [0x3 continue]" +
+				"b=2 [0x4 continue]" +
+				"c=3 [0x5 continue]" +
+				"a=1 [0x6]");
+
+		Way el = new Way(1);
+		el.addTag("a", "1");
+		el.addTag("b", "2");
+
+		List<GType> list = resolveList(rs, el);
+		assertEquals("number of results", 5, list.size());
+		int[] expected = {1, 2, 3, 4, 6};
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("result " + i, expected[i], list.get(i).getType());
+	}
+
+	/**
+	 * An element can be resolved from within the result of another one,
+	 * which must not disturb the first.
+	 */
+	@Test
+	public void testResolveWithinResult() {
+		final RuleSet rs = makeRuleSet("a=1 [0x1 continue]" +
+				"b=2 [0x2 continue]" +
+				"a=1 [0x3]");
+
+		final Way other = new Way(2);
+		other.addTag("b", "2");
+		final List<GType> inner = new ArrayList<GType>();
+
+		Way el = new Way(1);
+		el.addTag("a", "1");
+		el.addTag("b", "2");
+
+		final List<GType> list = new ArrayList<GType>();
+		rs.resolveType(el, new TypeResult() {
+			public void add(Element e, GType type) {
+				list.add(type);
+				if (inner.isEmpty())
+					inner.addAll(resolveList(rs, other));
+			}
+		});
+
+		assertEquals("outer results", 3, list.size());
+		assertEquals("last outer result", 3, list.get(2).getType());
+		assertEquals("inner results", 1, inner.size());
+		assertEquals("inner result", 2, inner.get(0).getType());
+	}
+
 	private List<GType> resolveList(RuleSet rs, Way el) {
 		final List<GType> list = new ArrayList<GType>();
 		rs.resolveType(el, new TypeResult() {
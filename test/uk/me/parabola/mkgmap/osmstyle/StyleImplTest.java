@@ -18,7 +18,9 @@ package uk.me.parabola.mkgmap.osmstyle;
 
 import java.io.FileNotFoundException;
 import java.io.OutputStreamWriter;
+import java.util.Properties;
 
+import uk.me.parabola.mkgmap.reader.osm.Style;
 import uk.me.parabola.mkgmap.reader.osm.StyleInfo;
 
 import static org.junit.Assert.*;
@@ -61,6 +63,24 @@ public class StyleImplTest {
 		assertNotNull("read style ok", style);
 	}
 
+	/**
+	 * A style is only read once for the same options, and is not shared
+	 * when an option that overrides the style is different.
+	 */
+	@Test
+	public void testReadStyleShared() throws FileNotFoundException {
+		Properties props = new Properties();
+		Style s1 = StyleImpl.readStyle(STYLE_LOC, "simple", props);
+		Style s2 = StyleImpl.readStyle(STYLE_LOC, "simple", new Properties());
+		assertSame("same style", s1, s2);
+		assertSame("same way rules", s1.getWayRules(), s2.getWayRules());
+
+		props.setProperty("name-tag-list", "ref");
+		Style s3 = StyleImpl.readStyle(STYLE_LOC, "simple", props);
+		assertTrue("different name-tag-list", s1 != s3);
+		assertArrayEquals("name tag list", new String[] {"ref"}, s3.getNameTagList());
+	}
+
 	/**
 	 * The case when a style name does not exist.  This has always worked in
 	 * the way you would expect - there is an error if it does not exist.
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.imgfmt.app.CoordNode;
+import uk.me.parabola.mkgmap.general.MapCollector;
+import uk.me.parabola.mkgmap.general.MapLine;
+import uk.me.parabola.mkgmap.general.MapPoint;
+import uk.me.parabola.mkgmap.general.MapRoad;
+import uk.me.parabola.mkgmap.general.MapShape;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The results must be the same, and in the same order, however many
+ * threads do the styling.
+ */
+public class StylePipelineTest {
+	// Enough for many batches, and for the queue of batches to fill up
+	private static final int COUNT = 5000;
+
+	/**
+	 * Each element gives none, one or two results, and the workers take
+	 * different times over them so that they finish out of order.
+	 */
+	@Test
+	public void testSameOrder() {
+		Recorder direct = new Recorder();
+		StylePipeline.Styler styler = new TestStyler(-1);
+		for (int i = 0; i < COUNT; i++)
+			styler.style(new Way(i), direct);
+
+		assertEquals(COUNT - 1, direct.results.size());
+		assertEquals(direct.results, runPipeline(styler, 1));
+		assertEquals(direct.results, runPipeline(styler, 4));
+	}
+
+	/**
+	 * An exception in a worker is thrown on the thread that collects the
+	 * results, and everything before it has been collected in order.
+	 */
+	@Test
+	public void testWorkerException() {
+		int bad = 3001;
+		Recorder rec = new Recorder();
+		StylePipeline pipeline = new StylePipeline(new TestStyler(bad), rec, 4);
+		try {
+			for (int i = 0; i < COUNT; i++)
+				pipeline.add(new Way(i));
+			pipeline.flush();
+			fail("no exception");
+		} catch (IllegalArgumentException e) {
+			assertEquals("bad element " + bad, e.getMessage());
+		}
+
+		Recorder direct = new Recorder();
+		StylePipeline.Styler styler = new TestStyler(-1);
+		for (int i = 0; i < COUNT; i++)
+			styler.style(new Way(i), direct);
+
+		int n = rec.results.size();
+		assertTrue("results before the exception", n > 0);
+		assertEquals(direct.results.subList(0, n), rec.results);
+		assertFalse("nothing from the failed element", rec.results.contains(bad + ":1"));
+	}
+
+	/**
+	 * The converter makes the same lines, in the same order, with and
+	 * without style threads.
+	 */
+	@Test
+	public void testConverter() throws FileNotFoundException {
+		List<String> single = convert("1");
+		assertEquals(COUNT + 2 * (COUNT / 5), single.size());
+		assertEquals(single, convert("4"));
+	}
+
+	private static List<String> runPipeline(StylePipeline.Styler styler, int nThreads) {
+		Recorder rec = new Recorder();
+		StylePipeline pipeline = new StylePipeline(styler, rec, nThreads);
+		for (int i = 0; i < COUNT; i++)
+			pipeline.add(new Way(i));
+		pipeline.shutdown();
+		return rec.results;
+	}
+
+	private static List<String> convert(String threads) throws FileNotFoundException {
+		final List<String> lines = new ArrayList<String>();
+		MapCollector coll = new MapCollector() {
+			public void addToBounds(Coord p) { }
+
+			public void addPoint(MapPoint point) { }
+
+			public void addLine(MapLine line) {
+				lines.add(line.getType() + " " + line.getPoints().get(0));
+			}
+
+			public void addShape(MapShape shape) { }
+
+			public void addRoad(MapRoad road) {
+				addLine(road);
+			}
+
+			public void addRestriction(CoordNode fromNode, CoordNode toNode, CoordNode viaNode, byte exceptMask) { }
+
+			public void addThroughRoute(long junctionNodeId, long roadIdA, long roadIdB) { }
+
+			public void setDriveOnLeft(boolean dol) { }
+		};
+
+		Properties props = new Properties();
+		props.setProperty("style-threads", threads);
+		StyledConverter converter = new StyledConverter(new StyleImpl("classpath:teststyles", "simple"),
+				coll, props);
+
+		String[][] tags = {
+				{"highway", "primary"},
+				{"highway", "overlay"},
+				{"highway", "other"},
+				{"x", "z"},
+				{"overridden", "xyz"},
+		};
+		for (int i = 0; i < COUNT; i++) {
+			Way way = new Way(i);
+			way.addPoint(new Coord(i, 100));
+			way.addPoint(new Coord(i, 102));
+			String[] tag = tags[i % tags.length];
+			way.addTag(tag[0], tag[1]);
+			converter.convertWay(way);
+		}
+		converter.end();
+		return lines;
+	}
+
+	/**
+	 * Gives element n (n % 3) results, and waits a little on some of them.
+	 */
+	private static class TestStyler implements StylePipeline.Styler {
+		private final long bad;
+
+		TestStyler(long bad) {
+			this.bad = bad;
+		}
+
+		public void style(Element el, TypeResult result) {
+			long id = el.getId();
+			if (id == bad)
+				throw new IllegalArgumentException("bad element " + id);
+			if (id % 7 == 0)
+				Thread.yield();
+			if (id % 97 == 0) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			for (int i = 0; i < id % 3; i++)
+				result.add(el, new GType(GType.POLYLINE, "0x" + (i + 1)));
+		}
+	}
+
+	private static class Recorder implements TypeResult {
+		private final List<String> results = new ArrayList<String>();
+		private final Thread thread = Thread.currentThread();
+
+		public void add(Element el, GType type) {
+			assertSame("collected on the calling thread", thread, Thread.currentThread());
+			results.add(el.getId() + ":" + type.getType());
+		}
+	}
+}
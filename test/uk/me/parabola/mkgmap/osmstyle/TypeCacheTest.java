@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.mkgmap.general.LevelInfo;
+import uk.me.parabola.mkgmap.reader.osm.Element;
+import uk.me.parabola.mkgmap.reader.osm.GType;
+import uk.me.parabola.mkgmap.reader.osm.TypeResult;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for remembering the types found for a set of tags.
+ */
+public class TypeCacheTest {
+
+	/**
+	 * The second element with the same tags uses the saved types, even if
+	 * the tags were added in a different order.
+	 */
+	@Test
+	public void testSameTags() {
+		RuleSet rs = makeRuleSet("highway=primary & oneway=yes [0x1 continue]" +
+				"highway=primary [0x2]");
+
+		Way w1 = new Way(1);
+		w1.addTag("highway", "primary");
+		w1.addTag("oneway", "yes");
+		List<GType> l1 = resolveList(rs, w1);
+
+		Way w2 = new Way(2);
+		w2.addTag("oneway", "yes");
+		w2.addTag("highway", "primary");
+		List<GType> l2 = resolveList(rs, w2);
+
+		assertEquals("hits", 1, rs.getCache().getHits());
+		assertEquals("same types", l1, l2);
+		assertEquals("number of types", 2, l2.size());
+	}
+
+	@Test
+	public void testDifferentValue() {
+		RuleSet rs = makeRuleSet("highway=primary [0x2]" +
+				"highway=secondary [0x3]");
+
+		Way w1 = new Way(1);
+		w1.addTag("highway", "primary");
+		resolveList(rs, w1);
+
+		Way w2 = new Way(2);
+		w2.addTag("highway", "secondary");
+		List<GType> l2 = resolveList(rs, w2);
+
+		assertEquals("hits", 0, rs.getCache().getHits());
+		assertEquals("type", 3, l2.get(0).getType());
+	}
+
+	/**
+	 * When the element has no type, that is remembered too.
+	 */
+	@Test
+	public void testNoMatch() {
+		RuleSet rs = makeRuleSet("highway=primary [0x2]");
+
+		Way w1 = new Way(1);
+		w1.addTag("building", "yes");
+		resolveList(rs, w1);
+		Way w2 = new Way(2);
+		w2.addTag("building", "yes");
+		List<GType> l2 = resolveList(rs, w2);
+
+		assertEquals("hits", 1, rs.getCache().getHits());
+		assertTrue("no types", l2.isEmpty());
+	}
+
+	/**
+	 * If a rule with actions matches, then the result is not saved, as the
+	 * actions have to run on every element.
+	 */
+	@Test
+	public void testActionsNotSaved() {
+		RuleSet rs = makeRuleSet("highway=primary {set name='${ref}'}" +
+				"highway=primary [0x2]");
+
+		Way w1 = new Way(1);
+		w1.addTag("highway", "primary");
+		w1.addTag("ref", "A1");
+		resolveList(rs, w1);
+
+		Way w2 = new Way(2);
+		w2.addTag("highway", "primary");
+		w2.addTag("ref", "A1");
+		List<GType> l2 = resolveList(rs, w2);
+
+		assertEquals("hits", 0, rs.getCache().getHits());
+		assertEquals("type", 2, l2.get(0).getType());
+		assertEquals("action run on second element", "A1", w2.getTag("name"));
+	}
+
+	private List<GType> resolveList(RuleSet rs, Way el) {
+		final List<GType> list = new ArrayList<GType>();
+		rs.resolveType(el, new TypeResult() {
+			public void add(Element el, GType type) {
+				list.add(type);
+			}
+		});
+		return list;
+	}
+
+	private RuleSet makeRuleSet(String in) {
+		RuleSet rs = new RuleSet();
+		RuleFileReader rr = new RuleFileReader(GType.POLYLINE, LevelInfo.createFromString("0:24 1:20 2:18 3:16 4:14"), rs);
+		rr.load(new StringReader(in), "string");
+		rs.prepare();
+		rs.makeCache(100);
+		return rs;
+	}
+}
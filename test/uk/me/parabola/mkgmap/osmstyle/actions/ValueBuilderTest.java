@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.actions;
+
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ValueBuilderTest {
+
+	@Test
+	public void testConstant() {
+		ValueBuilder vb = new ValueBuilder("fixed");
+		assertEquals("fixed", vb.build(makeWay(), null));
+	}
+
+	@Test
+	public void testSubstitution() {
+		ValueBuilder vb = new ValueBuilder("${name} (${ref})");
+		assertEquals("High Street (A1)", vb.build(makeWay(), null));
+	}
+
+	/**
+	 * If any tag is missing, then there is no value, even if the earlier
+	 * parts were found.
+	 */
+	@Test
+	public void testMissingTag() {
+		ValueBuilder vb = new ValueBuilder("${name} ${missing}");
+		assertNull(vb.build(makeWay(), null));
+
+		// The next value is not affected by what was left over
+		vb = new ValueBuilder("${ref}-${ref}");
+		assertEquals("A1-A1", vb.build(makeWay(), null));
+	}
+
+	/**
+	 * The same builder used on different elements gives the value for each
+	 * element.
+	 */
+	@Test
+	public void testReused() {
+		ValueBuilder vb = new ValueBuilder("${ref}");
+		Way w = makeWay();
+		w.addTag("ref", "B2");
+		assertEquals("A1", vb.build(makeWay(), null));
+		assertEquals("B2", vb.build(w, null));
+		assertEquals("A1", vb.build(makeWay(), null));
+	}
+
+	@Test
+	public void testLocalElement() {
+		ValueBuilder vb = new ValueBuilder("${name} $(ref)");
+		Way local = new Way(2);
+		local.addTag("ref", "M4");
+		assertEquals("High Street M4", vb.build(makeWay(), local));
+	}
+
+	@Test
+	public void testConvert() {
+		ValueBuilder vb = new ValueBuilder("${ele|conv:m=>ft}");
+		Way w = makeWay();
+		w.addTag("ele", "100");
+		assertEquals("328", vb.build(w, null));
+
+		w.addTag("ele", "-100");
+		assertEquals("-328", vb.build(w, null));
+
+		w.addTag("ele", "100.5");
+		assertEquals("330", vb.build(w, null));
+	}
+
+	/**
+	 * A value that is not a number is left alone by the conversion.
+	 */
+	@Test
+	public void testConvertNotNumber() {
+		ValueBuilder vb = new ValueBuilder("${ele|conv:m=>ft}");
+		Way w = makeWay();
+		w.addTag("ele", "high");
+		assertEquals("high", vb.build(w, null));
+	}
+
+	private Way makeWay() {
+		Way w = new Way(1);
+		w.addTag("name", "High Street");
+		w.addTag("ref", "A1");
+		return w;
+	}
+}
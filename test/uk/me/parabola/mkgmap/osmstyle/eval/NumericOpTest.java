@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.eval;
+
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The parsed tag values are cached, the results must be the same as if
+ * every value was parsed each time.
+ */
+public class NumericOpTest {
+
+	/**
+	 * Several tests on the same tag of an element, with different values
+	 * and units, all use the one parsed value.
+	 */
+	@Test
+	public void testSeveralOps() {
+		Way el = new Way(1);
+		el.addTag("maxspeed", "50 mph");
+		el.addTag("maxweight", "7.5");
+
+		NumericOp gt40 = op(new GTOp(), "maxspeed", "40");
+		NumericOp gt50 = op(new GTOp(), "maxspeed", "50mph");
+		NumericOp gte50 = op(new GTEOp(), "maxspeed", "50 km/h");
+		NumericOp lt60 = op(new LTOp(), "maxspeed", "60");
+		NumericOp lte49 = op(new LTEOp(), "maxspeed", "49mph");
+		NumericOp weight = op(new GTEOp(), "maxweight", "7");
+
+		TagValues values = new TagValues();
+		values.setElement(el);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(gt40.eval(el));
+			assertFalse(gt50.eval(el));
+			assertTrue(gte50.eval(el));
+			assertTrue(lt60.eval(el));
+			assertFalse(lte49.eval(el));
+			assertTrue(weight.eval(el));
+
+			assertTrue(gt40.eval(values));
+			assertFalse(gt50.eval(values));
+			assertTrue(gte50.eval(values));
+			assertTrue(lt60.eval(values));
+			assertFalse(lte49.eval(values));
+			assertTrue(weight.eval(values));
+		}
+	}
+
+	/**
+	 * Many different values, more than the cache holds, so that they
+	 * replace each other.
+	 */
+	@Test
+	public void testManyValues() {
+		NumericOp gt = op(new GTOp(), "population", "500");
+		NumericOp lte = op(new LTEOp(), "population", "500");
+		Way[] ways = new Way[100];
+		for (int i = 0; i < ways.length; i++) {
+			ways[i] = new Way(i);
+			ways[i].addTag("population", String.valueOf(i * 10));
+		}
+
+		for (int n = 0; n < 3; n++) {
+			for (int i = 0; i < ways.length; i++) {
+				assertEquals("gt " + i, i * 10 > 500, gt.eval(ways[i]));
+				assertEquals("lte " + i, i * 10 <= 500, lte.eval(ways[i]));
+			}
+		}
+	}
+
+	/**
+	 * The tag is changed between the tests, the new value must be used.
+	 */
+	@Test
+	public void testTagChanged() {
+		Way el = new Way(1);
+		NumericOp op = op(new GTOp(), "maxspeed", "40");
+		TagValues values = new TagValues();
+		values.setElement(el);
+
+		el.addTag("maxspeed", "30");
+		assertFalse(op.eval(el));
+		assertFalse(op.eval(values));
+
+		el.addTag("maxspeed", "50");
+		assertTrue(op.eval(el));
+		values.clear();
+		assertTrue(op.eval(values));
+
+		el.addTag("maxspeed", "none");
+		assertFalse(op.eval(el));
+		values.clear();
+		assertFalse(op.eval(values));
+
+		el.addTag("maxspeed", "50");
+		assertTrue(op.eval(el));
+
+		el.deleteTag("maxspeed");
+		assertFalse(op.eval(el));
+		values.clear();
+		assertFalse(op.eval(values));
+	}
+
+	/**
+	 * Each thread has its own cache, so one thread does not see the values
+	 * that another one parsed.
+	 */
+	@Test
+	public void testThreads() throws InterruptedException {
+		final NumericOp op = op(new LTOp(), "ele", "100");
+		final boolean[] ok = new boolean[2];
+		Thread[] threads = new Thread[2];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					Way el = new Way(id);
+					boolean good = true;
+					for (int i = 0; i < 10000; i++) {
+						int ele = (i * 7 + id * 13) % 200;
+						el.addTag("ele", ele + "m");
+						good &= op.eval(el) == (ele < 100);
+					}
+					ok[id] = good;
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+
+		assertTrue(ok[0]);
+		assertTrue(ok[1]);
+	}
+
+	private static NumericOp op(NumericOp op, String key, String value) {
+		op.setFirst(new ValueOp(key));
+		op.setSecond(new ValueOp(value));
+		return op;
+	}
+}
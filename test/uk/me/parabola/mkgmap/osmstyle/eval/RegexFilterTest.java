@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.osmstyle.eval;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The filters must never disagree with the regular expression.
+ */
+public class RegexFilterTest {
+
+	@Test
+	public void testContains() {
+		RegexFilter f = RegexFilter.create(".*(Bus|Tram).*");
+		assertEquals(RegexFilter.MATCH, f.test("Tramway Road"));
+		assertEquals(RegexFilter.MATCH, f.test("Bus"));
+		assertEquals(RegexFilter.NO_MATCH, f.test("High Street"));
+	}
+
+	/**
+	 * The .* does not match a line break, so the regular expression is
+	 * needed for such a value.
+	 */
+	@Test
+	public void testLineBreak() {
+		RegexFilter f = RegexFilter.create(".*pizza.*");
+		assertEquals(RegexFilter.UNKNOWN, f.test("pizza\nkebab"));
+		assertFalse(Pattern.matches(".*pizza.*", "pizza\nkebab"));
+	}
+
+	@Test
+	public void testPrefix() {
+		RegexFilter f = RegexFilter.create("grade[2-6]");
+		assertEquals(RegexFilter.NO_MATCH, f.test("good"));
+		assertEquals(RegexFilter.NO_MATCH, f.test("grade"));
+		assertEquals(RegexFilter.UNKNOWN, f.test("grade3"));
+	}
+
+	@Test
+	public void testSuffixAndWords() {
+		RegexFilter f = RegexFilter.create(".*(mountain|alpine)_hiking");
+		assertEquals(RegexFilter.NO_MATCH, f.test("hiking"));
+		assertEquals(RegexFilter.NO_MATCH, f.test("demanding_mountain"));
+		assertEquals(RegexFilter.NO_MATCH, f.test("demanding_hiking"));
+		assertEquals(RegexFilter.UNKNOWN, f.test("demanding_alpine_hiking"));
+	}
+
+	@Test
+	public void testInnerInOrder() {
+		RegexFilter f = RegexFilter.create("a.b.*cd\\.e[0-9]+f");
+		assertEquals(RegexFilter.NO_MATCH, f.test("axbcdxe1f"));
+		assertEquals(RegexFilter.NO_MATCH, f.test("axb1f"));
+		assertEquals(RegexFilter.UNKNOWN, f.test("axbzzcd.e12f"));
+	}
+
+	@Test
+	public void testNotUnderstood() {
+		assertNull("anchors", RegexFilter.create("^abc$"));
+		assertNull("flags", RegexFilter.create("(?i)abc"));
+		assertNull("top level choice", RegexFilter.create("abc|def"));
+		assertNull("back reference", RegexFilter.create("(a)\\1"));
+		assertNull("possessive", RegexFilter.create(".*+abc"));
+		assertNull("nothing to test", RegexFilter.create(".*"));
+	}
+
+	/**
+	 * A character outside the basic plane is two chars in a string, a
+	 * quantifier after it applies to both of them.
+	 */
+	@Test
+	public void testSupplementary() {
+		String[] regexes = {
+				"a\uD83D\uDE00?b", ".*\uD83D\uDE00+", "\\\uD83D\uDE00?x",
+				"\uD83D\uDE00?x", "\uD83D\uDE00{2}", "(\uD83D\uDE00|b)?c", ".*\uD83D\uDE00.*",
+		};
+		String[] values = {
+				"", "\uD83D", "\uDE00", "\uD83D\uDE00", "ab", "a\uD83D\uDE00b", "a\uD83Db",
+				"x", "\uD83D\uDE00x", "\uD83D\uDE00\uD83D\uDE00", "c", "\uD83D\uDE00c", "bc",
+				"xx\uD83D\uDE00", "\uD83D\uDE00\uDE00",
+		};
+		checkSameAsRegex(regexes, values);
+	}
+
+	/**
+	 * Compare against the regular expression for lots of expressions and
+	 * values.
+	 */
+	@Test
+	public void testSameAsRegex() {
+		String[] regexes = {
+				"abc", ".*abc", "abc.*", ".*abc.*", "(ab|c)", ".*(ab|c)", "a+bc", "a?bc",
+				"(a|b)?c", "(ab)+c", "a.c", "[ab]c.*", "a{2}b", "(?:a|bc).*c", ".*?b",
+				"\\.a.*", "a(b|)c", "(a.*b|c)d", ".+a", "a\\db",
+		};
+		String[] values = {
+				"", "a", "b", "c", "ab", "abc", "aabc", "bc", "xabcx", "aab", "a.c", "ac",
+				"abbc", "ababc", "a1b", ".ab", "cd", "abd", "a\nbc", "abc\n", "\nabc",
+		};
+		checkSameAsRegex(regexes, values);
+	}
+
+	private static void checkSameAsRegex(String[] regexes, String[] values) {
+		for (String re : regexes) {
+			RegexFilter f = RegexFilter.create(re);
+			assertNotNull(re, f);
+			Pattern p = Pattern.compile(re);
+			for (String v : values) {
+				boolean expected = p.matcher(v).matches();
+				int res = f.test(v);
+				if (res != RegexFilter.UNKNOWN)
+					assertEquals(re + " on '" + v + "'", expected, res == RegexFilter.MATCH);
+			}
+		}
+	}
+}
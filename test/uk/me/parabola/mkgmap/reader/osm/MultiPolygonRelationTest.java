@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.awt.Polygon;
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The holes are cut out of a multipolygon in integer coordinates where
+ * possible.  The pieces must cover exactly what java.awt.geom.Area gives
+ * for the same rings, without overlapping and without holes.
+ *
+ * The rings are given as longitude, latitude pairs.
+ */
+public class MultiPolygonRelationTest {
+	private static final uk.me.parabola.imgfmt.app.Area BBOX =
+			new uk.me.parabola.imgfmt.app.Area(-1000, -1000, 2000, 2000);
+
+	private final Map<Long, Way> wayMap = new HashMap<Long, Way>();
+	private final GeneralRelation rel = new GeneralRelation(1);
+	private long nextId = 100;
+
+	/**
+	 * Two holes that touch at a corner.
+	 */
+	@Test
+	public void testTouchingAtPoint() {
+		int[] outer = square(0, 0, 100);
+		int[] hole1 = square(10, 10, 30);
+		int[] hole2 = square(40, 40, 30);
+		addWay("outer", outer);
+		addWay("inner", hole1);
+		addWay("inner", hole2);
+
+		checkPieces(BBOX, 0, subtract(outer, hole1, hole2));
+	}
+
+	/**
+	 * Two holes that share part of an edge.
+	 */
+	@Test
+	public void testTouchingAlongEdge() {
+		int[] outer = square(0, 0, 100);
+		int[] hole1 = {10, 10, 40, 10, 40, 50, 10, 50};
+		int[] hole2 = {40, 20, 70, 20, 70, 60, 40, 60};
+		addWay("outer", outer);
+		addWay("inner", hole1);
+		addWay("inner", hole2);
+
+		checkPieces(BBOX, 0, subtract(outer, hole1, hole2));
+	}
+
+	/**
+	 * Holes that touch each other all the way round enclose a part of the
+	 * outer polygon, which must be kept.
+	 */
+	@Test
+	public void testEnclosedByHoles() {
+		int[] outer = square(0, 0, 100);
+		int[] left = {10, 10, 30, 10, 30, 90, 10, 90};
+		int[] right = {70, 10, 90, 10, 90, 90, 70, 90};
+		int[] bottom = {30, 10, 70, 10, 70, 30, 30, 30};
+		int[] top = {30, 70, 70, 70, 70, 90, 30, 90};
+		addWay("outer", outer);
+		addWay("inner", left);
+		addWay("inner", right);
+		addWay("inner", bottom);
+		addWay("inner", top);
+
+		Area expected = subtract(outer, left, right, bottom, top);
+		List<Way> pieces = checkPieces(BBOX, 0, expected);
+		assertTrue("middle is kept", expected.contains(50, 50));
+		assertTrue("more than one piece", pieces.size() > 1);
+	}
+
+	/**
+	 * A hole that reaches across the outer polygon, touching it on both
+	 * sides, splits it in two.
+	 */
+	@Test
+	public void testHoleSplitsOuter() {
+		int[] outer = square(0, 0, 100);
+		int[] hole = {50, 0, 70, 50, 50, 100, 30, 50};
+		addWay("outer", outer);
+		addWay("inner", hole);
+
+		checkPieces(BBOX, 0, subtract(outer, hole));
+	}
+
+	/**
+	 * An island in a hole, which has a hole of its own.
+	 */
+	@Test
+	public void testNested() {
+		int[] outer = square(0, 0, 100);
+		int[] hole = square(10, 10, 80);
+		int[] island = square(30, 30, 40);
+		int[] islandHole = square(40, 40, 20);
+		addWay("outer", outer);
+		addWay("inner", hole);
+		addWay("outer", island);
+		addWay("inner", islandHole);
+
+		Area expected = subtract(outer, hole);
+		expected.add(subtract(island, islandHole));
+		checkPieces(BBOX, 0, expected);
+	}
+
+	/**
+	 * Holes that cross each other can't be cut in integer coordinates, but
+	 * must still be cut out.
+	 */
+	@Test
+	public void testCrossingHoles() {
+		int[] outer = square(0, 0, 100);
+		int[] hole1 = square(10, 10, 40);
+		int[] hole2 = square(30, 30, 40);
+		addWay("outer", outer);
+		addWay("inner", hole1);
+		addWay("inner", hole2);
+
+		checkPieces(BBOX, 0, subtract(outer, hole1, hole2));
+	}
+
+	/**
+	 * The outer polygon and a hole go over the edge of the tile.
+	 */
+	@Test
+	public void testClipped() {
+		int[] outer = square(0, 0, 100);
+		int[] hole1 = square(50, 20, 20);
+		int[] hole2 = square(10, 20, 20);
+		addWay("outer", outer);
+		addWay("inner", hole1);
+		addWay("inner", hole2);
+
+		Area expected = subtract(outer, hole1, hole2);
+		expected.intersect(new Area(new java.awt.Rectangle(0, 0, 60, 60)));
+		checkPieces(new uk.me.parabola.imgfmt.app.Area(0, 0, 60, 60), 0, expected);
+	}
+
+	/**
+	 * Holes that are not square to the axes, so that the points where the
+	 * cut lines cross them are rounded.
+	 */
+	@Test
+	public void testSloping() {
+		int[] outer = {0, 0, 1000, 100, 900, 1000, 50, 900};
+		int[] hole1 = {100, 150, 400, 200, 300, 450};
+		int[] hole2 = {500, 500, 800, 450, 700, 800, 450, 750};
+		int[] hole3 = {150, 600, 350, 550, 400, 800};
+		addWay("outer", outer);
+		addWay("inner", hole1);
+		addWay("inner", hole2);
+		addWay("inner", hole3);
+
+		// Each point where a cut line crosses an edge moves by up to
+		// half a unit.
+		checkPieces(BBOX, 2000, subtract(outer, hole1, hole2, hole3));
+	}
+
+	/**
+	 * Rectangular holes on a grid, many of which touch each other.
+	 */
+	@Test
+	public void testRandom() {
+		Random random = new Random(5);
+		for (int n = 0; n < 20; n++) {
+			MultiPolygonRelationTest test = new MultiPolygonRelationTest();
+			int[] outer = square(0, 0, 1000);
+			test.addWay("outer", outer);
+			Area expected = new Area(polygon(outer));
+			for (int x = 100; x < 900; x += 100) {
+				for (int y = 100; y < 900; y += 100) {
+					if (random.nextInt(3) != 0)
+						continue;
+					int[] hole;
+					if (random.nextBoolean()) {
+						hole = square(x, y, 100);
+					} else {
+						int x1 = x + random.nextInt(50);
+						int y1 = y + random.nextInt(50);
+						hole = new int[] {x1, y1, x + 100, y1, x + 100, y + 100, x1, y + 100};
+					}
+					test.addWay("inner", hole);
+					expected.subtract(new Area(polygon(hole)));
+				}
+			}
+			test.checkPieces(BBOX, 0, expected);
+		}
+	}
+
+	private void addWay(String role, int[] ring) {
+		Way way = new Way(nextId++);
+		for (int i = 0; i < ring.length; i += 2)
+			way.addPoint(new Coord(ring[i + 1], ring[i]));
+		way.addPoint(way.getPoints().get(0));
+		wayMap.put(way.getId(), way);
+		rel.addElement(role, way);
+	}
+
+	/**
+	 * Resolve the relation and check the pieces that it makes.
+	 *
+	 * @param tolerance How much the area covered may differ from what is
+	 * expected.
+	 * @return The pieces.
+	 */
+	private List<Way> checkPieces(uk.me.parabola.imgfmt.app.Area bbox, double tolerance, Area expected) {
+		rel.addTag("type", "multipolygon");
+		rel.addTag("natural", "water");
+		MultiPolygonRelation mp = new MultiPolygonRelation(rel, wayMap, bbox);
+		mp.processElements();
+
+		List<Way> pieces = new ArrayList<Way>();
+		Area covered = new Area();
+		double sum = 0;
+		for (Way way : wayMap.values()) {
+			if (!FakeIdGenerator.isFakeId(way.getId()))
+				continue;
+			pieces.add(way);
+			assertEquals("tag copied", "water", way.getTag("natural"));
+
+			List<Coord> points = way.getPoints();
+			assertSame("closed", points.get(0), points.get(points.size() - 1));
+			Polygon p = new Polygon();
+			for (Coord co : points)
+				p.addPoint(co.getLongitude(), co.getLatitude());
+			Area a = new Area(p);
+			assertTrue("no holes in a piece", a.isSingular());
+			sum += area(a);
+			covered.add(a);
+		}
+
+		assertEquals("pieces do not overlap", area(covered), sum, 0.001);
+		Area diff = (Area) covered.clone();
+		diff.exclusiveOr(expected);
+		assertEquals("same as Area", 0, area(diff), tolerance + 0.001);
+		return pieces;
+	}
+
+	private static Area subtract(int[] outer, int[]... holes) {
+		Area area = new Area(polygon(outer));
+		for (int[] hole : holes)
+			area.subtract(new Area(polygon(hole)));
+		return area;
+	}
+
+	private static int[] square(int x, int y, int size) {
+		return new int[] {x, y, x + size, y, x + size, y + size, x, y + size};
+	}
+
+	private static Polygon polygon(int[] ring) {
+		Polygon p = new Polygon();
+		for (int i = 0; i < ring.length; i += 2)
+			p.addPoint(ring[i], ring[i + 1]);
+		return p;
+	}
+
+	/**
+	 * The area that is covered, the holes in an Area go the other way
+	 * round to the outer parts.
+	 */
+	private static double area(Area area) {
+		double sum = 0;
+		double[] res = new double[6];
+		double startX = 0, startY = 0, lastX = 0, lastY = 0;
+		for (PathIterator pit = area.getPathIterator(null); !pit.isDone(); pit.next()) {
+			switch (pit.currentSegment(res)) {
+			case PathIterator.SEG_MOVETO:
+				startX = lastX = res[0];
+				startY = lastY = res[1];
+				break;
+			case PathIterator.SEG_LINETO:
+				sum += lastX * res[1] - res[0] * lastY;
+				lastX = res[0];
+				lastY = res[1];
+				break;
+			case PathIterator.SEG_CLOSE:
+				sum += lastX * startY - startX * lastY;
+				lastX = startX;
+				lastY = startY;
+				break;
+			default:
+				fail("curved segment");
+			}
+		}
+		return Math.abs(sum / 2);
+	}
+}
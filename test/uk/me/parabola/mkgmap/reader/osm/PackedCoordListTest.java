@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackedCoordListTest {
+
+	/**
+	 * Plain points come back with the location and node id that they were
+	 * added with.
+	 */
+	@Test
+	public void testRoundTrip() {
+		PackedCoordList list = new PackedCoordList();
+		for (int i = 0; i < 100; i++)
+			list.addNodePoint(1000 + i, i * 10, -i * 20);
+
+		assertEquals(100, list.size());
+		for (int i = 0; i < 100; i++) {
+			Coord co = list.get(i);
+			assertEquals(i * 10, co.getLatitude());
+			assertEquals(-i * 20, co.getLongitude());
+			assertEquals(1, co.getHighwayCount());
+			assertEquals(1000 + i, list.getNodeId(i));
+		}
+
+		list.dropNodeIds();
+		assertEquals(100, list.size());
+		assertEquals(new Coord(990, -1980), list.get(99));
+		assertEquals(0, list.getNodeId(99));
+	}
+
+	/**
+	 * A point that was added as a Coord is always the same object, so
+	 * everything set on it is kept.  A plain point is a new Coord each time.
+	 */
+	@Test
+	public void testFlags() {
+		Coord shared = new Coord(5, 6);
+		shared.incHighwayCount();
+		shared.incHighwayCount();
+		shared.setOnBoundary(true);
+		shared.preserved(true);
+		CoordPOI poi = new CoordPOI(7, 8);
+
+		PackedCoordList list = new PackedCoordList();
+		list.addNodePoint(1, 1, 2);
+		list.add(shared);
+		list.add(poi);
+		list.addNodePoint(4, 3, 4);
+
+		assertSame(shared, list.get(1));
+		assertEquals(2, list.get(1).getHighwayCount());
+		assertTrue(list.get(1).getOnBoundary());
+		assertTrue(list.get(1).preserved());
+		assertSame(poi, list.get(2));
+		assertEquals(0, list.getNodeId(1));
+		assertEquals(4, list.getNodeId(3));
+
+		Coord plain = list.get(0);
+		assertNotSame(plain, list.get(0));
+		assertEquals(plain, list.get(0));
+		assertFalse(plain.getOnBoundary());
+		assertFalse(plain.preserved());
+		plain.preserved(true);
+		assertFalse("not kept", list.get(0).preserved());
+	}
+
+	/**
+	 * Setting a point gives it a Coord, the points around it are not
+	 * changed.
+	 */
+	@Test
+	public void testSet() {
+		PackedCoordList list = new PackedCoordList();
+		for (int i = 0; i < 5; i++)
+			list.addNodePoint(i + 1, i, i);
+
+		Coord co = list.get(2);
+		co.setOnBoundary(true);
+		Coord old = list.set(2, co);
+		assertEquals(co, old);
+		assertSame(co, list.get(2));
+		assertTrue(list.get(2).getOnBoundary());
+		assertEquals(0, list.getNodeId(2));
+
+		assertEquals(2, list.getNodeId(1));
+		assertEquals(4, list.getNodeId(3));
+		assertEquals(new Coord(3, 3), list.get(3));
+	}
+
+	/**
+	 * Adding and removing in the middle moves the node ids with the points.
+	 */
+	@Test
+	public void testAddRemove() {
+		PackedCoordList list = new PackedCoordList();
+		for (int i = 0; i < 5; i++)
+			list.addNodePoint(i + 1, i, i);
+
+		Coord extra = new Coord(100, 100);
+		list.add(2, extra);
+		assertEquals(6, list.size());
+		assertSame(extra, list.get(2));
+		assertEquals(2, list.getNodeId(1));
+		assertEquals(3, list.getNodeId(3));
+		assertEquals(new Coord(4, 4), list.get(5));
+
+		assertEquals(new Coord(0, 0), list.remove(0));
+		assertEquals(5, list.size());
+		assertSame(extra, list.get(1));
+		assertEquals(2, list.getNodeId(0));
+		assertEquals(5, list.getNodeId(4));
+	}
+
+	@Test
+	public void testSubList() {
+		PackedCoordList list = new PackedCoordList();
+		for (int i = 0; i < 10; i++)
+			list.addNodePoint(i + 1, i, i);
+
+		List<Coord> sub = list.subList(2, 5);
+		assertEquals(3, sub.size());
+		assertEquals(new Coord(2, 2), sub.get(0));
+		assertEquals(new Coord(4, 4), sub.get(2));
+
+		Coord co = new Coord(50, 50);
+		sub.set(1, co);
+		assertSame(co, list.get(3));
+
+		sub.clear();
+		assertEquals(7, list.size());
+		assertEquals(new Coord(1, 1), list.get(1));
+		assertEquals(new Coord(5, 5), list.get(2));
+		assertEquals(6, list.getNodeId(2));
+	}
+
+	/**
+	 * Once unpacked the points of a way are kept.
+	 */
+	@Test
+	public void testUnpack() {
+		Way way = new Way(1);
+		way.addPoint(11, 1, 1);
+		way.addPoint(12, 2, 2);
+		way.addPoint(13, 3, 3);
+		assertEquals(12, way.getPointNodeId(1));
+
+		way.unpackPoints();
+		List<Coord> points = way.getPoints();
+		assertSame(points.get(1), points.get(1));
+		points.get(1).incHighwayCount();
+		assertEquals(2, points.get(1).getHighwayCount());
+		assertEquals(0, way.getPointNodeId(1));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagDictTest {
+	private final TagDict dict = TagDict.getInstance();
+
+	@Test
+	public void testXlate() {
+		int id = dict.xlate("tagdict-test-key");
+		assertTrue("id is not zero", id > 0);
+		assertEquals("same id again", id, dict.xlate("tagdict-test-key"));
+		assertEquals("lookup", id, dict.lookup("tagdict-test-key"));
+		assertEquals("key from id", "tagdict-test-key", dict.getKey(id));
+
+		assertTrue("different key", id != dict.xlate("tagdict-test-other"));
+	}
+
+	/**
+	 * Looking up a key does not add it.
+	 */
+	@Test
+	public void testLookupUnknown() {
+		assertEquals(0, dict.lookup("tagdict-test-never-added"));
+		assertEquals(0, dict.lookup("tagdict-test-never-added"));
+	}
+
+	/**
+	 * Enough keys to make the dictionary grow.
+	 */
+	@Test
+	public void testManyKeys() {
+		int[] ids = new int[5000];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = dict.xlate("tagdict-many-" + i);
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals("tagdict-many-" + i, dict.getKey(ids[i]));
+			assertEquals(ids[i], dict.lookup("tagdict-many-" + i));
+		}
+	}
+
+	/**
+	 * Several threads adding the same keys at once all get the same id
+	 * for each key, and no two keys get the same id.
+	 */
+	@Test
+	public void testThreads() throws Exception {
+		final int nkeys = 2000;
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] results = new Future<?>[4];
+			for (int t = 0; t < results.length; t++) {
+				results[t] = pool.submit(new Callable<int[]>() {
+					public int[] call() {
+						int[] ids = new int[nkeys];
+						for (int i = 0; i < nkeys; i++)
+							ids[i] = dict.xlate("tagdict-thread-" + i);
+						return ids;
+					}
+				});
+			}
+
+			int[] first = (int[]) results[0].get();
+			for (Future<?> f : results) {
+				int[] ids = (int[]) f.get();
+				for (int i = 0; i < nkeys; i++)
+					assertEquals("key " + i, first[i], ids[i]);
+			}
+
+			Set<Integer> seen = new HashSet<Integer>();
+			for (int i = 0; i < nkeys; i++) {
+				assertTrue("unique id", seen.add(first[i]));
+				assertEquals("tagdict-thread-" + i, dict.getKey(first[i]));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The values are not kept in the dictionary, an element holds the
+	 * string that it was given.
+	 */
+	@Test
+	public void testValueNotReplaced() {
+		String v1 = new String("yes");
+		String v2 = new String("yes");
+
+		Tags t1 = new Tags();
+		t1.put("tagdict-value", v1);
+		Tags t2 = new Tags();
+		t2.put("tagdict-value", v2);
+
+		assertSame(v1, t1.get("tagdict-value"));
+		assertSame(v2, t2.get("tagdict-value"));
+	}
+}
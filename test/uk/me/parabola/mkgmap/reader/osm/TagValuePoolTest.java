@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagValuePoolTest {
+
+	/**
+	 * Equal values give the same instance.
+	 */
+	@Test
+	public void testIntern() {
+		TagValuePool pool = new TagValuePool(10);
+		String v1 = new String("residential");
+		String v2 = new String("residential");
+
+		assertSame(v1, pool.intern(v1));
+		assertSame(v1, pool.intern(v2));
+		assertEquals(1, pool.size());
+
+		String other = new String("primary");
+		assertSame(other, pool.intern(other));
+		assertEquals(2, pool.size());
+	}
+
+	@Test
+	public void testNull() {
+		TagValuePool pool = new TagValuePool(10);
+		assertNull(pool.intern(null));
+		assertEquals(0, pool.size());
+	}
+
+	/**
+	 * Once the pool is full, new values are returned as they are, but the
+	 * values already in it are still shared.
+	 */
+	@Test
+	public void testBounded() {
+		TagValuePool pool = new TagValuePool(100);
+		String first = new String("value0");
+		pool.intern(first);
+		for (int i = 1; i < 1000; i++)
+			pool.intern("value" + i);
+		assertEquals(100, pool.size());
+
+		String late = new String("value500");
+		assertSame("not pooled", late, pool.intern(late));
+		assertEquals(100, pool.size());
+
+		assertSame("pooled before it was full", first, pool.intern(new String("value0")));
+	}
+
+	/**
+	 * Tags holds the pooled instance that it is given.
+	 */
+	@Test
+	public void testSharedByTags() {
+		TagValuePool pool = new TagValuePool(10);
+		Tags t1 = new Tags();
+		t1.put("highway", pool.intern(new String("residential")));
+		Tags t2 = new Tags();
+		t2.put("highway", pool.intern(new String("residential")));
+
+		assertSame(t1.get("highway"), t2.get("highway"));
+	}
+}
@@ -17,7 +17,9 @@
 package uk.me.parabola.mkgmap.reader.osm;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -97,6 +99,31 @@ public class TagsTest {
 		}
 	}
 
+	/**
+	 * Visiting gives each tag that has not been removed, with the key id
+	 * from the dictionary.
+	 */
+	@Test
+	public void testVisit() {
+		Tags tags = smallSetTags();
+		tags.remove("b");
+
+		final Map<String, String> seen = new HashMap<String, String>();
+		tags.visit(new TagVisitor() {
+			public void visit(int keyId, String value) {
+				seen.put(TagDict.getInstance().getKey(keyId), value);
+			}
+		});
+
+		assertEquals("number of tags", SMALL_SET.length - 1, seen.size());
+		for (String[] ss : SMALL_SET) {
+			if (ss[0].equals("b"))
+				assertNull(seen.get(ss[0]));
+			else
+				assertEquals("value of " + ss[0], ss[1], seen.get(ss[0]));
+		}
+	}
+
 	/**
 	 * Create tags initialised with SMALL_SET.
 	 */
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The positions in the files are given in map units, which are written
+ * in degrees so that they are read back exactly.
+ */
+public class CoastlineStoreTest {
+	// The size of a grid cell in the store
+	private static final int CELL = 1 << 16;
+
+	private static final Area ALL = new Area(-10 * CELL, -10 * CELL, 10 * CELL, 10 * CELL);
+
+	private final StringBuilder osm = new StringBuilder();
+	private final List<File> files = new ArrayList<File>();
+
+	@After
+	public void tearDown() {
+		for (File f : files)
+			f.delete();
+	}
+
+	/**
+	 * Ways that follow on from each other are joined into one, whatever
+	 * order they are in, and so are the ways that make up a ring.
+	 */
+	@Test
+	public void testJoin() throws IOException {
+		for (int i = 1; i <= 6; i++)
+			node(i, 1000 * i, 1000 * i);
+		way(10, "coastline", 5, 6);
+		way(11, "coastline", 1, 2, 3);
+		way(12, "water;coastline", 3, 4, 5);
+		way(13, "water", 1, 6);
+
+		node(20, 100, 0);
+		node(21, 200, 0);
+		node(22, 200, 100);
+		node(23, 100, 100);
+		way(30, "coastline", 20, 21, 22);
+		way(31, "coastline", 22, 23, 20);
+
+		List<Way> ways = store().getCoastline(ALL);
+		assertEquals(2, ways.size());
+
+		List<Coord> line = ways.get(0).getPoints();
+		assertEquals(6, line.size());
+		for (int i = 0; i < 6; i++)
+			assertEquals(new Coord(1000 * (i + 1), 1000 * (i + 1)), line.get(i));
+
+		List<Coord> ring = ways.get(1).getPoints();
+		assertEquals(5, ring.size());
+		assertSame("ring is closed", ring.get(0), ring.get(4));
+	}
+
+	/**
+	 * A long way is cut into pieces, which share the points where they
+	 * meet.
+	 */
+	@Test
+	public void testPieces() throws IOException {
+		long[] ids = new long[450];
+		for (int i = 0; i < ids.length; i++) {
+			node(i + 1, 10 * i, 0);
+			ids[i] = i + 1;
+		}
+		way(1000, "coastline", ids);
+
+		List<Way> ways = store().getCoastline(ALL);
+		assertEquals(3, ways.size());
+		assertEquals(200, ways.get(0).getPoints().size());
+		assertEquals(200, ways.get(1).getPoints().size());
+		assertEquals(52, ways.get(2).getPoints().size());
+		for (int i = 0; i < 2; i++) {
+			List<Coord> points = ways.get(i).getPoints();
+			assertSame(points.get(points.size() - 1), ways.get(i + 1).getPoints().get(0));
+		}
+	}
+
+	/**
+	 * A piece is found when its bounds touch the area, from whichever grid
+	 * cell the area is in.
+	 */
+	@Test
+	public void testGridEdges() throws IOException {
+		// inside the second cell along
+		node(1, 100, CELL + 10);
+		node(2, 200, CELL + 50);
+		way(10, "coastline", 1, 2);
+
+		// across the cells either side of zero longitude
+		node(3, 5 * CELL, -20);
+		node(4, 5 * CELL, 20);
+		way(11, "coastline", 3, 4);
+
+		// along the bottom edge of a cell
+		node(5, 2 * CELL, 1000);
+		node(6, 2 * CELL, 2000);
+		way(12, "coastline", 5, 6);
+
+		CoastlineStore store = store();
+		Coord first = new Coord(100, CELL + 10);
+		checkFound(store, new Area(0, 0, 1000, CELL + 10), first);
+		checkFound(store, new Area(0, CELL + 50, 1000, 2 * CELL), first);
+		checkFound(store, new Area(200, CELL + 20, 1000, CELL + 30), first);
+		checkNotFound(store, new Area(0, 0, 1000, CELL + 9), first);
+		checkNotFound(store, new Area(0, 0, 1000, CELL - 1), first);
+		checkNotFound(store, new Area(201, 0, 1000, 2 * CELL), first);
+
+		first = new Coord(5 * CELL, -20);
+		checkFound(store, new Area(5 * CELL - 10, -100, 5 * CELL + 10, -10), first);
+		checkFound(store, new Area(5 * CELL - 10, 10, 5 * CELL + 10, 100), first);
+		checkFound(store, new Area(5 * CELL - 10, -CELL, 5 * CELL, -20), first);
+		checkNotFound(store, new Area(5 * CELL - 10, -100, 5 * CELL - 1, 100), first);
+		checkNotFound(store, new Area(5 * CELL - 10, 21, 5 * CELL + 10, 100), first);
+
+		first = new Coord(2 * CELL, 1000);
+		checkFound(store, new Area(CELL, 0, 2 * CELL, 3000), first);
+		checkFound(store, new Area(2 * CELL, 0, 3 * CELL, 3000), first);
+		checkNotFound(store, new Area(CELL, 0, 2 * CELL - 1, 3000), first);
+		checkNotFound(store, new Area(2 * CELL + 1, 0, 3 * CELL, 3000), first);
+	}
+
+	/**
+	 * Each tile gets its own ways and points, so nothing that is done to
+	 * them changes what the next tile gets.
+	 */
+	@Test
+	public void testCopies() throws IOException {
+		long[] ids = new long[300];
+		for (int i = 0; i < ids.length; i++) {
+			node(i + 1, 10 * i, 10 * i);
+			ids[i] = i + 1;
+		}
+		way(1000, "coastline", ids);
+		CoastlineStore store = store();
+
+		List<Way> ways1 = store.getCoastline(ALL);
+		List<Way> ways2 = store.getCoastline(ALL);
+		assertEquals(2, ways1.size());
+		assertEquals(2, ways2.size());
+
+		List<Coord> points1 = ways1.get(0).getPoints();
+		List<Coord> points2 = ways2.get(0).getPoints();
+		assertNotSame(ways1.get(0), ways2.get(0));
+		assertNotSame(points1, points2);
+		Coord join1 = points1.get(points1.size() - 1);
+		Coord join2 = points2.get(points2.size() - 1);
+		assertEquals(join1, join2);
+		assertNotSame(join1, join2);
+
+		int count = join2.getHighwayCount();
+		join1.incHighwayCount();
+		join1.setOnBoundary(true);
+		points1.remove(0);
+		points1.add(new Coord(0, 0));
+
+		List<Way> ways3 = store.getCoastline(ALL);
+		List<Coord> points3 = ways3.get(0).getPoints();
+		assertEquals(200, points3.size());
+		assertEquals(new Coord(0, 0), points3.get(0));
+		Coord join3 = points3.get(points3.size() - 1);
+		assertEquals(count, join3.getHighwayCount());
+		assertFalse(join3.getOnBoundary());
+		assertSame(join3, ways3.get(1).getPoints().get(0));
+	}
+
+	private static void checkFound(CoastlineStore store, Area area, Coord first) {
+		assertTrue(area + " finds " + first, find(store, area, first));
+	}
+
+	private static void checkNotFound(CoastlineStore store, Area area, Coord first) {
+		assertFalse(area + " does not find " + first, find(store, area, first));
+	}
+
+	private static boolean find(CoastlineStore store, Area area, Coord first) {
+		for (Way w : store.getCoastline(area)) {
+			if (w.getPoints().get(0).equals(first))
+				return true;
+		}
+		return false;
+	}
+
+	private void node(long id, int lat, int lon) {
+		osm.append("<node id='").append(id)
+				.append("' lat='").append(lat * 360.0 / (1 << 24))
+				.append("' lon='").append(lon * 360.0 / (1 << 24))
+				.append("'/>\n");
+	}
+
+	private void way(long id, String natural, long... nodes) {
+		osm.append("<way id='").append(id).append("'>");
+		for (long n : nodes)
+			osm.append("<nd ref='").append(n).append("'/>");
+		osm.append("<tag k='natural' v='").append(natural).append("'/></way>\n");
+	}
+
+	/**
+	 * Write out the file and read it in to a new store.
+	 */
+	private CoastlineStore store() throws IOException {
+		File file = File.createTempFile("mkgmap", ".osm");
+		files.add(file);
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		w.write("<?xml version='1.0' encoding='UTF-8'?>\n<osm version='0.6'>\n");
+		w.write(osm.toString());
+		w.write("</osm>\n");
+		w.close();
+		return CoastlineStore.getStore(file.getPath());
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.util.Random;
+
+import uk.me.parabola.imgfmt.app.Coord;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoordStoreTest {
+
+	@Test
+	public void testInOrder() {
+		CoordStore store = new CoordStore();
+		for (int i = 1; i <= 100000; i++)
+			store.put(i * 3, i, -i);
+
+		assertEquals(100000, store.size());
+		Coord co = store.get(300);
+		assertEquals(100, co.getLatitude());
+		assertEquals(-100, co.getLongitude());
+		assertNull(store.get(301));
+	}
+
+	/**
+	 * Ways that share a node must get the same Coord.
+	 */
+	@Test
+	public void testSameInstance() {
+		CoordStore store = new CoordStore();
+		store.put(10, 1, 2);
+		store.put(20, 3, 4);
+
+		assertSame(store.get(10), store.get(10));
+		assertNotSame(store.get(10), store.get(20));
+	}
+
+	@Test
+	public void testOutOfOrder() {
+		CoordStore store = new CoordStore();
+		long[] ids = {50, 7, 1000, -3, 42, 8, 999, 1, 60};
+		for (long id : ids)
+			store.put(id, (int) id, (int) id * 2);
+
+		// the last one added is always found
+		assertEquals(60, store.get(60).getLatitude());
+
+		for (long id : ids) {
+			Coord co = store.get(id);
+			assertEquals(id, co.getLatitude());
+			assertEquals(id * 2, co.getLongitude());
+		}
+
+		// adding more after the sort
+		store.put(5, 5, 10);
+		assertEquals(10, store.get(5).getLongitude());
+		assertEquals(2000, store.get(1000).getLongitude());
+	}
+
+	@Test
+	public void testShuffled() {
+		CoordStore store = new CoordStore();
+		Random rand = new Random(1);
+		long[] ids = new long[100000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = rand.nextInt(1000000);
+			store.put(ids[i], (int) ids[i], 0);
+		}
+		for (long id : ids)
+			assertEquals(id, store.get(id).getLatitude());
+	}
+
+	@Test
+	public void testReplace() {
+		CoordStore store = new CoordStore();
+		store.put(1, 10, 20);
+		store.put(2, 30, 40);
+
+		Coord co = new Coord(30, 40);
+		store.replace(2, co);
+		assertSame(co, store.get(2));
+	}
+
+	@Test
+	public void testIdMap() {
+		CoordIdMap map = new CoordIdMap();
+		Coord[] coords = new Coord[200000];
+		for (int i = 0; i < coords.length; i++) {
+			// all equal, only the identity differs
+			coords[i] = new Coord(1, 1);
+			map.put(coords[i], i + 1);
+		}
+		for (int i = 0; i < coords.length; i++)
+			assertEquals(i + 1, map.get(coords[i]));
+		assertEquals(0, map.get(new Coord(1, 1)));
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every tag is checked both as strings and as the bytes of an attribute,
+ * the way that the fast xml reader does, and both must give the same
+ * answer.
+ */
+public class DeletedTagsTest {
+	private static final String PATTERNS = "# comment\n" +
+			"highway=proposed\n" +
+			"highway=construction\n" +
+			"created_by=*\n" +
+			"source:*=*\n" +
+			"note*=FIXME\n" +
+			"name=Caf\u00e9\n";
+
+	private File file;
+	private DeletedTags dt;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("mkgmap", "deltags");
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		w.write(PATTERNS);
+		w.close();
+		dt = DeletedTags.read(file.getPath());
+		assertNotNull(dt);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testExactKey() {
+		checkDeleted("highway", "proposed");
+		checkDeleted("highway", "construction");
+		checkKept("highway", "primary");
+		checkKept("highway", "");
+
+		checkDeleted("created_by", "JOSM");
+		checkDeleted("created_by", "");
+		checkDeleted("name", "Caf\u00e9");
+		checkKept("name", "Cafe");
+	}
+
+	@Test
+	public void testPrefixKey() {
+		checkDeleted("source:name", "survey");
+		checkDeleted("source:ref:note", "x");
+		checkDeleted("notes", "FIXME");
+		checkDeleted("note:en", "FIXME");
+		checkKept("note:en", "fixme");
+		checkKept("note", "FIXME later");
+	}
+
+	/**
+	 * A key that is the prefix with nothing after it is matched.
+	 */
+	@Test
+	public void testBarePrefix() {
+		checkDeleted("source:", "survey");
+		checkDeleted("note", "FIXME");
+	}
+
+	/**
+	 * Keys that start the same way as a deleted key, or that it starts
+	 * with, are kept.
+	 */
+	@Test
+	public void testSharedStart() {
+		checkKept("highways", "proposed");
+		checkKept("highwa", "proposed");
+		checkKept("created", "JOSM");
+		checkKept("created_by:note", "JOSM");
+		checkKept("created_byx", "JOSM");
+		checkKept("source", "survey");
+		checkKept("sources", "survey");
+		checkKept("sourc", "survey");
+		checkKept("not", "FIXME");
+		checkKept("name:en", "Caf\u00e9");
+		checkKept("", "proposed");
+	}
+
+	/**
+	 * There is nothing to check when the file has no patterns.
+	 */
+	@Test
+	public void testEmpty() throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		w.write("# nothing\n\n; nothing either\n");
+		w.close();
+		assertNull(DeletedTags.read(file.getPath()));
+	}
+
+	private void checkDeleted(String key, String val) {
+		assertTrue(key + '=' + val, dt.isDeleted(key, val));
+		assertTrue("bytes " + key + '=' + val, isDeletedBytes(key, val));
+	}
+
+	private void checkKept(String key, String val) {
+		assertFalse(key + '=' + val, dt.isDeleted(key, val));
+		assertFalse("bytes " + key + '=' + val, isDeletedBytes(key, val));
+	}
+
+	/**
+	 * Check the tag as the reader would, with the key and value in the
+	 * middle of the bytes of the whole element.
+	 */
+	private boolean isDeletedBytes(String key, String val) {
+		try {
+			String start = "<tag k='";
+			String mid = "' v='";
+			byte[] buf = (start + key + mid + val + "'/>").getBytes("UTF-8");
+			int keyStart = start.length();
+			int keyEnd = keyStart + key.getBytes("UTF-8").length;
+			int valStart = keyEnd + mid.length();
+			int valEnd = valStart + val.getBytes("UTF-8").length;
+			return dt.isDeleted(buf, keyStart, keyEnd, valStart, valEnd);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.mkgmap.general.MapDetails;
+import uk.me.parabola.mkgmap.reader.osm.Node;
+import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
+import uk.me.parabola.mkgmap.reader.osm.Relation;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+import uk.me.parabola.util.EnhancedProperties;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for --drop-outside-bounds.
+ */
+public class DropOutsideBoundsTest {
+	// Way 10 is inside the bounds.  Way 11 is a roundabout outside the
+	// bounds that is used by relation 20, way 12 is outside and not used.
+	// Node 4 is outside the bounds and is the via node of the relation,
+	// node 6 is outside and not used, node 7 is inside.  Way 13 is about
+	// 1.1km north of the bounds.  Way 14 crosses the bounds and has a
+	// gate, node 15, outside them.
+	private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+			"<osm version='0.6'>\n" +
+			"<bounds minlat='51.0' minlon='-1.0' maxlat='51.1' maxlon='-0.9'/>\n" +
+			"<node id='1' lat='51.05' lon='-0.95'/>\n" +
+			"<node id='2' lat='51.06' lon='-0.95'/>\n" +
+			"<node id='3' lat='52.00' lon='-0.95'/>\n" +
+			"<node id='4' lat='52.01' lon='-0.95'><tag k='highway' v='traffic_signals'/></node>\n" +
+			"<node id='5' lat='52.01' lon='-0.96'/>\n" +
+			"<node id='6' lat='52.02' lon='-0.95'><tag k='amenity' v='pub'/></node>\n" +
+			"<node id='7' lat='51.07' lon='-0.95'><tag k='amenity' v='cafe'/></node>\n" +
+			"<node id='8' lat='51.11' lon='-0.95'/>\n" +
+			"<node id='9' lat='51.11' lon='-0.96'/>\n" +
+			"<node id='15' lat='50.99' lon='-0.95'><tag k='barrier' v='gate'/></node>\n" +
+			"<way id='10'><nd ref='1'/><nd ref='2'/><tag k='highway' v='primary'/></way>\n" +
+			"<way id='11'><nd ref='3'/><nd ref='4'/><nd ref='5'/><nd ref='3'/>" +
+			"<tag k='highway' v='primary'/><tag k='junction' v='roundabout'/></way>\n" +
+			"<way id='12'><nd ref='3'/><nd ref='5'/><tag k='highway' v='service'/></way>\n" +
+			"<way id='13'><nd ref='8'/><nd ref='9'/><tag k='highway' v='service'/></way>\n" +
+			"<way id='14'><nd ref='1'/><nd ref='15'/><tag k='highway' v='track'/></way>\n" +
+			"<relation id='20'>" +
+			"<member type='way' ref='11' role='from'/><member type='node' ref='4' role='via'/>" +
+			"<tag k='type' v='route'/></relation>\n" +
+			"</osm>\n";
+
+	@Test
+	public void testDropped() throws Exception {
+		Converter converter = load("", false);
+
+		assertNotNull("inside", converter.ways.get(10L));
+		assertNull("outside", converter.ways.get(12L));
+		assertNull("outside", converter.ways.get(13L));
+	}
+
+	/**
+	 * A way that a relation brings back gets the same processing as any
+	 * other way.
+	 */
+	@Test
+	public void testRestoredWayProcessed() throws Exception {
+		Converter converter = load("", false);
+
+		Way roundabout = converter.ways.get(11L);
+		assertNotNull("relation member", roundabout);
+		assertEquals("yes", roundabout.getTag("oneway"));
+	}
+
+	/**
+	 * Tagged nodes outside the bounds are dropped, unless they are
+	 * relation members, which keep their tags.
+	 */
+	@Test
+	public void testNodes() throws Exception {
+		Converter converter = load("", false);
+
+		Node via = converter.nodes.get(4L);
+		assertNotNull(via);
+		assertEquals("traffic_signals", via.getTag("highway"));
+		assertNull("outside", converter.nodes.get(6L));
+		assertNotNull("inside", converter.nodes.get(7L));
+		assertNull("outside", converter.nodes.get(15L));
+		assertNotNull("crosses", converter.ways.get(14L));
+	}
+
+	/**
+	 * The same, when the relation members are known from a first pass,
+	 * so that the elements are dropped as they are read.
+	 */
+	@Test
+	public void testWithMembers() throws Exception {
+		Converter converter = load("", true);
+
+		assertNotNull("inside", converter.ways.get(10L));
+		assertNull("outside", converter.ways.get(12L));
+		assertNull("outside", converter.ways.get(13L));
+
+		Way roundabout = converter.ways.get(11L);
+		assertNotNull("relation member", roundabout);
+		assertEquals("yes", roundabout.getTag("oneway"));
+
+		Node via = converter.nodes.get(4L);
+		assertNotNull(via);
+		assertEquals("traffic_signals", via.getTag("highway"));
+		assertNull("outside", converter.nodes.get(6L));
+		assertNotNull("inside", converter.nodes.get(7L));
+		assertNull("outside", converter.nodes.get(15L));
+	}
+
+	/**
+	 * A node outside the bounds is still linked to a way that is kept.
+	 */
+	@Test
+	public void testLinkedPOI() throws Exception {
+		Converter converter = load("", true, "link-pois-to-ways");
+
+		Way track = converter.ways.get(14L);
+		assertNotNull(track);
+		assertEquals("true", track.getTag("mkgmap:way-has-pois"));
+		assertNotNull("linked", converter.nodes.get(15L));
+		assertNull("outside", converter.nodes.get(6L));
+	}
+
+	/**
+	 * Elements within the margin around the bounds are kept.
+	 */
+	@Test
+	public void testMargin() throws Exception {
+		Converter converter = load("2000", true);
+		assertNotNull("in margin", converter.ways.get(13L));
+		assertNull("outside", converter.ways.get(12L));
+
+		converter = load("500", true);
+		assertNull("beyond margin", converter.ways.get(13L));
+	}
+
+	private static Converter load(String margin, boolean findMembers, String... options) throws Exception {
+		EnhancedProperties props = new EnhancedProperties();
+		props.setProperty("drop-outside-bounds", margin);
+		for (String opt : options)
+			props.setProperty(opt, "");
+		Osm5XmlHandler handler = new Osm5XmlHandler(props);
+		Converter converter = new Converter();
+		handler.setConverter(converter);
+		handler.setCollector(new MapDetails());
+		handler.setEndTask(new Runnable() {
+			public void run() {
+			}
+		});
+
+		SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+		if (findMembers) {
+			UsedElementsHandler members = new UsedElementsHandler(null);
+			parser.parse(new ByteArrayInputStream(OSM.getBytes("UTF-8")), members);
+			parser.reset();
+			handler.setRelationMembers(members.getMemberWays(), members.getMemberNodes());
+		}
+		parser.parse(new ByteArrayInputStream(OSM.getBytes("UTF-8")), handler);
+		return converter;
+	}
+
+	/**
+	 * Just keeps the ways and nodes that it is given.
+	 */
+	private static class Converter implements OsmConverter {
+		private final Map<Long, Way> ways = new HashMap<Long, Way>();
+		private final Map<Long, Node> nodes = new HashMap<Long, Node>();
+
+		public void convertWay(Way way) {
+			ways.put(way.getId(), way);
+		}
+
+		public void convertNode(Node node) {
+			nodes.put(node.getId(), node);
+		}
+
+		public void convertRelation(Relation relation) {
+		}
+
+		public void setBoundingBox(Area bbox) {
+		}
+
+		public void end() {
+		}
+	}
+}
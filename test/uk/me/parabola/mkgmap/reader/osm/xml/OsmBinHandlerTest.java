@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.imgfmt.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for reading pbf files, using small files that are made by hand.
+ */
+public class OsmBinHandlerTest {
+
+	/**
+	 * Dense nodes have delta coded ids and coordinates, and their tags are
+	 * in one list with a zero after the tags of each node.
+	 */
+	@Test
+	public void testDenseNodes() throws IOException {
+		ProtoBufWriter dense = new ProtoBufWriter()
+				.packedDelta(1, 100, 101, 106)
+				.packedDelta(8, 515000000, 515000010, 514999990)
+				.packedDelta(9, -1000000, -1000020, 2000000)
+				.packed(10, 1, 2, 3, 4, 0, 0, 1, 2, 0);
+		ProtoBufWriter block = dataBlock(new ProtoBufWriter().message(2, dense),
+				"", "amenity", "pub", "name", "The Crown");
+
+		List<String> calls = read(block);
+		assertEquals(Arrays.asList(
+				node(100, 51.5, -0.1),
+				"  amenity=pub",
+				"  name=The Crown",
+				"end node",
+				node(101, 51.500001, -0.100002),
+				"end node",
+				node(106, 51.499999, 0.2),
+				"  amenity=pub",
+				"end node"), calls);
+	}
+
+	/**
+	 * Dense nodes with no tags at all leave out the key and value list.
+	 */
+	@Test
+	public void testDenseNodesNoTags() throws IOException {
+		ProtoBufWriter dense = new ProtoBufWriter()
+				.packedDelta(1, -5, -3)
+				.packedDelta(8, 10, 20)
+				.packedDelta(9, 30, 40);
+
+		List<String> calls = read(dataBlock(new ProtoBufWriter().message(2, dense), ""));
+		assertEquals(Arrays.asList(
+				node(-5, 1e-6, 3e-6),
+				"end node",
+				node(-3, 2e-6, 4e-6),
+				"end node"), calls);
+	}
+
+	/**
+	 * The coordinates are scaled by the granularity and then the offset
+	 * is added.
+	 */
+	@Test
+	public void testGranularityAndOffset() throws IOException {
+		ProtoBufWriter dense = new ProtoBufWriter()
+				.packedDelta(1, 1)
+				.packedDelta(8, 1000)
+				.packedDelta(9, -2000);
+		ProtoBufWriter group = new ProtoBufWriter().message(2, dense);
+		ProtoBufWriter block = new ProtoBufWriter()
+				.message(1, new ProtoBufWriter().string(1, ""))
+				.message(2, group)
+				.varint(17, 1000)
+				.varint(19, 50000000000L)
+				.varint(20, 8000000000L);
+
+		List<String> calls = read(block);
+		assertEquals(node(1, 50.001, 7.998), calls.get(0));
+	}
+
+	@Test
+	public void testPlainNode() throws IOException {
+		ProtoBufWriter node = new ProtoBufWriter()
+				.signed(1, -42)
+				.packed(2, 1)
+				.packed(3, 2)
+				.signed(8, 515000000)
+				.signed(9, -1000000);
+		List<String> calls = read(dataBlock(new ProtoBufWriter().message(1, node),
+				"", "place", "village"));
+
+		assertEquals(Arrays.asList(
+				node(-42, 51.5, -0.1),
+				"  place=village",
+				"end node"), calls);
+	}
+
+	/**
+	 * The node references of a way are delta coded.
+	 */
+	@Test
+	public void testWay() throws IOException {
+		ProtoBufWriter way = new ProtoBufWriter()
+				.varint(1, 7)
+				.packed(2, 1, 3)
+				.packed(3, 2, 4)
+				.packedDelta(8, 10, 11, 8, 10);
+		List<String> calls = read(dataBlock(new ProtoBufWriter().message(3, way),
+				"", "highway", "primary", "ref", "A1"));
+
+		assertEquals(Arrays.asList(
+				"way 7",
+				"  nd 10",
+				"  nd 11",
+				"  nd 8",
+				"  nd 10",
+				"  highway=primary",
+				"  ref=A1",
+				"end way"), calls);
+	}
+
+	@Test
+	public void testRelation() throws IOException {
+		ProtoBufWriter rel = new ProtoBufWriter()
+				.varint(1, 99)
+				.packed(2, 1)
+				.packed(3, 2)
+				.packed(8, 3, 4, 0)
+				.packedDelta(9, 10, 200, 5)
+				.packed(10, 0, 1, 2);
+		List<String> calls = read(dataBlock(new ProtoBufWriter().message(4, rel),
+				"", "type", "multipolygon", "outer", "inner"));
+
+		assertEquals(Arrays.asList(
+				"relation 99",
+				"  member node 10 outer",
+				"  member way 200 inner",
+				"  member relation 5 ",
+				"  type=multipolygon",
+				"end relation"), calls);
+	}
+
+	@Test
+	public void testHeader() throws IOException {
+		ProtoBufWriter bbox = new ProtoBufWriter()
+				.signed(1, -1500000000L)
+				.signed(2, 2250000000L)
+				.signed(3, 52000000000L)
+				.signed(4, 51000000000L);
+		ProtoBufWriter header = new ProtoBufWriter()
+				.message(1, bbox)
+				.string(4, "OsmSchema-V0.6")
+				.string(4, "DenseNodes")
+				.string(16, "a writer");
+
+		RecordingHandler handler = new RecordingHandler();
+		new OsmBinHandler(handler, 1).parse(new ByteArrayInputStream(
+				ProtoBufWriter.fileBlock("OSMHeader", header, false)));
+		assertEquals(Arrays.asList("bounds 51.0 -1.5 52.0 2.25"), handler.getCalls());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testUnsupportedFeature() throws IOException {
+		ProtoBufWriter header = new ProtoBufWriter()
+				.string(4, "OsmSchema-V0.6")
+				.string(4, "HistoricalInformation");
+		new OsmBinHandler(new RecordingHandler(), 1).parse(new ByteArrayInputStream(
+				ProtoBufWriter.fileBlock("OSMHeader", header, false)));
+	}
+
+	/**
+	 * The elements are given to the handler in file order, whatever order
+	 * the blocks are decoded in, and compressed and uncompressed blocks
+	 * give the same result.
+	 */
+	@Test
+	public void testManyBlocks() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < 50; i++) {
+			ProtoBufWriter dense = new ProtoBufWriter()
+					.packedDelta(1, 2 * i, 2 * i + 1)
+					.packedDelta(8, i, i)
+					.packedDelta(9, i, i);
+			byte[] b = ProtoBufWriter.fileBlock("OSMData",
+					dataBlock(new ProtoBufWriter().message(2, dense), ""), i % 2 == 0);
+			out.write(b, 0, b.length);
+		}
+
+		RecordingHandler handler = new RecordingHandler();
+		new OsmBinHandler(handler, 4).parse(new ByteArrayInputStream(out.toByteArray()));
+		List<String> calls = handler.getCalls();
+		assertEquals(200, calls.size());
+		for (int i = 0; i < 100; i++)
+			assertTrue(calls.get(2 * i), calls.get(2 * i).startsWith("node " + i + ' '));
+	}
+
+	/**
+	 * A blob type that we don't know about is skipped.
+	 */
+	@Test
+	public void testUnknownBlob() throws IOException {
+		ProtoBufWriter way = new ProtoBufWriter().varint(1, 3);
+		byte[] unknown = ProtoBufWriter.fileBlock("OSMSomething", new ProtoBufWriter().varint(1, 1), false);
+		byte[] data = ProtoBufWriter.fileBlock("OSMData", dataBlock(new ProtoBufWriter().message(3, way), ""), true);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(unknown, 0, unknown.length);
+		out.write(data, 0, data.length);
+
+		RecordingHandler handler = new RecordingHandler();
+		new OsmBinHandler(handler, 2).parse(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(Arrays.asList("way 3", "end way"), handler.getCalls());
+	}
+
+	/**
+	 * Make a primitive block with the default granularity and no offsets.
+	 */
+	private static ProtoBufWriter dataBlock(ProtoBufWriter group, String... strings) {
+		ProtoBufWriter table = new ProtoBufWriter();
+		for (String s : strings)
+			table.string(1, s);
+		return new ProtoBufWriter().message(1, table).message(2, group);
+	}
+
+	private static List<String> read(ProtoBufWriter block) throws IOException {
+		RecordingHandler handler = new RecordingHandler();
+		byte[] file = ProtoBufWriter.fileBlock("OSMData", block, true);
+		new OsmBinHandler(handler, 1).parse(new ByteArrayInputStream(file));
+		return handler.getCalls();
+	}
+
+	private static String node(long id, double lat, double lon) {
+		return "node " + id + ' ' + Utils.toMapUnit(lat) + ' ' + Utils.toMapUnit(lon);
+	}
+}
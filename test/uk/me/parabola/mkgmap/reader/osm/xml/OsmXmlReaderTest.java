@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.SAXParserFactory;
+
+import uk.me.parabola.imgfmt.FormatException;
+import uk.me.parabola.imgfmt.Utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fast xml reader must make exactly the same calls to the handler as
+ * the SAX parser does.
+ */
+public class OsmXmlReaderTest {
+	private static final String HEAD = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+			"<osm version='0.6' generator='test'>\n";
+	private static final String TAIL = "</osm>\n";
+
+	// The fake ids start at 2^62
+	private static final Pattern FAKE_ID = Pattern.compile("\\b46116860\\d{11}\\b");
+
+	@Test
+	public void testElements() throws Exception {
+		checkSame(HEAD +
+				"<bounds minlat='51.0' minlon='-1.5' maxlat='52.0' maxlon='2.25'/>\n" +
+				"<bound box='51.0,-1.5,52.0,2.25' origin='test'/>\n" +
+				"<node id='1' lat='51.5' lon='-0.1' version='2'/>\n" +
+				"<node id='-2' lat='51.6' lon='0.1'>\n" +
+				"  <tag k='amenity' v='pub'/>\n" +
+				"  <tag k='name' v='The Crown'/>\n" +
+				"</node>\n" +
+				"<way id='10'>\n" +
+				"  <nd ref='1'/>\n" +
+				"  <nd ref='-2'/>\n" +
+				"  <tag k='highway' v='primary'/>\n" +
+				"</way>\n" +
+				"<relation id='20'>\n" +
+				"  <member type='way' ref='10' role='outer'/>\n" +
+				"  <member type='node' ref='1' role=''/>\n" +
+				"  <tag k='type' v='multipolygon'/>\n" +
+				"</relation>\n" +
+				TAIL);
+	}
+
+	/**
+	 * The predefined entities and character references are decoded in
+	 * attribute values.
+	 */
+	@Test
+	public void testEntities() throws Exception {
+		List<String> calls = checkSame(HEAD +
+				"<node id='1' lat='51.5' lon='-0.1'>\n" +
+				"  <tag k='name' v='Fish &amp; Chips &lt;&gt; &quot;x&quot; &apos;y&apos;'/>\n" +
+				"  <tag k='name:fr' v='Caf&#233; &#xe9;t&#xE9; &#x1F600;'/>\n" +
+				"  <tag k=\"note\" v=\"it's &gt; 2\"/>\n" +
+				"</node>\n" +
+				TAIL);
+		assertEquals("  name=Fish & Chips <> \"x\" 'y'", calls.get(1));
+		assertEquals("  name:fr=Café été 😀", calls.get(2));
+	}
+
+	/**
+	 * Tabs and line breaks in attribute values become spaces, but not when
+	 * they come from character references.
+	 */
+	@Test
+	public void testWhiteSpaceInAttributes() throws Exception {
+		List<String> calls = checkSame(HEAD +
+				"<node id='1' lat='51.5' lon='-0.1'>\n" +
+				"  <tag k='a' v='one\ttwo\nthree\r\nfour\rfive'/>\n" +
+				"  <tag k='b' v='one&#9;two&#10;three'/>\n" +
+				"  <tag\n\tk = 'c'\r\n v\t=\t\"x\" />\n" +
+				"</node>\n" +
+				TAIL);
+		assertEquals("  a=one two three four five", calls.get(1));
+		assertEquals("  b=one\ttwo\nthree", calls.get(2));
+		assertEquals("  c=x", calls.get(3));
+	}
+
+	/**
+	 * Comments, CDATA sections, processing instructions and a document
+	 * type declaration are all skipped, even if they look like elements.
+	 */
+	@Test
+	public void testSkippedMarkup() throws Exception {
+		List<String> calls = checkSame("<?xml version='1.0' encoding='UTF-8'?>\n" +
+				"<!DOCTYPE osm [ <!ELEMENT osm ANY> ]>\n" +
+				"<osm version='0.6'>\n" +
+				"<!-- <node id='98' lat='1' lon='1'/> not a node -->\n" +
+				"<?some-instruction <node id='97'/> ?>\n" +
+				"<node id='1' lat='51.5' lon='-0.1'>\n" +
+				"<![CDATA[ <node id='99' lat='1' lon='1'/> ]]>\n" +
+				"  <tag k='x' v='a > b'/>\n" +
+				"</node>\n" +
+				TAIL);
+		assertEquals(3, calls.size());
+		assertEquals("  x=a > b", calls.get(1));
+	}
+
+	/**
+	 * Values with characters of all the UTF-8 lengths.
+	 */
+	@Test
+	public void testUtf8() throws Exception {
+		checkSame(HEAD +
+				"<node id='1' lat='51.5' lon='-0.1'>\n" +
+				"  <tag k='name' v='Straße Αθήνα 東京 😀'/>\n" +
+				"  <tag k='é' v='é'/>\n" +
+				"</node>\n" +
+				TAIL);
+	}
+
+	/**
+	 * Ids that are not numbers are given the same fake ids by both.
+	 */
+	@Test
+	public void testOddIds() throws Exception {
+		checkSame(HEAD +
+				"<node id='n1' lat='51.5' lon='-0.1'/>\n" +
+				"<node id='99999999999999999999' lat='51.5' lon='-0.1'/>\n" +
+				"<node id='-9223372036854775808' lat='51.5' lon='-0.1'/>\n" +
+				"<way id='w1'><nd ref='n1'/></way>\n" +
+				TAIL);
+	}
+
+	/**
+	 * The coordinates are converted without making strings in the usual
+	 * cases, but must still give the same result as Double.parseDouble.
+	 */
+	@Test
+	public void testCoordinates() throws Exception {
+		String[] coords = {
+				"0", "-0", "0.0", "+1.5", "-1.5", "51.5", "-0.1", ".5", "5.",
+				"179.9999999", "-179.9999999", "89.99999999999999",
+				"51.50000000000000001", "1e2", "1.5E-3", "000051.5000",
+				"0.000000021457672119140625", "12.345678901234567890",
+		};
+		StringBuilder sb = new StringBuilder(HEAD);
+		for (int i = 0; i < coords.length; i++)
+			sb.append(node(i, coords[i], coords[coords.length - 1 - i]));
+
+		Random rand = new Random(1234);
+		for (int i = 0; i < 5000; i++)
+			sb.append(node(1000 + i, randomCoord(rand, 90), randomCoord(rand, 180)));
+		sb.append(TAIL);
+
+		List<String> calls = checkSame(sb.toString());
+		for (int i = 0; i < coords.length; i++) {
+			String expected = "node " + i + ' ' + Utils.toMapUnit(Double.parseDouble(coords[i])) +
+					' ' + Utils.toMapUnit(Double.parseDouble(coords[coords.length - 1 - i]));
+			assertEquals(coords[i], expected, calls.get(2 * i));
+		}
+	}
+
+	/**
+	 * Elements and values that cross the end of the read buffer, and a
+	 * value that is larger than the buffer.
+	 */
+	@Test
+	public void testLongInput() throws Exception {
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+			big.append((char) ('a' + i % 26));
+
+		StringBuilder sb = new StringBuilder(HEAD);
+		for (int i = 0; i < 3000; i++) {
+			sb.append("<node id='").append(i).append("' lat='51.").append(i).append("' lon='-0.").append(i).append("'>");
+			sb.append("<tag k='name' v='node number ").append(i).append(" &amp; more'/>");
+			if (i == 1500)
+				sb.append("<tag k='big' v='").append(big).append("'/>");
+			sb.append("</node>\n");
+		}
+		sb.append(TAIL);
+		checkSame(sb.toString());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testOtherEncoding() throws IOException {
+		String osm = "<?xml version='1.0' encoding='ISO-8859-1'?>\n<osm></osm>\n";
+		new OsmXmlReader(new ByteArrayInputStream(osm.getBytes("ISO-8859-1")), new RecordingHandler()).parse();
+	}
+
+	@Test(expected = FormatException.class)
+	public void testTruncated() throws IOException {
+		String osm = HEAD + "<node id='1' lat='51.5' lon='-0.1'><tag k='a' v='b'/>";
+		new OsmXmlReader(new ByteArrayInputStream(osm.getBytes("UTF-8")), new RecordingHandler()).parse();
+	}
+
+	private static String node(int id, String lat, String lon) {
+		return "<node id='" + id + "' lat='" + lat + "' lon='" + lon + "'/>\n";
+	}
+
+	private static String randomCoord(Random rand, int max) {
+		StringBuilder sb = new StringBuilder();
+		if (rand.nextBoolean())
+			sb.append('-');
+		sb.append(rand.nextInt(max));
+		int places = rand.nextInt(18);
+		if (places > 0) {
+			sb.append('.');
+			for (int i = 0; i < places; i++)
+				sb.append((char) ('0' + rand.nextInt(10)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The fake ids for ids that are not numbers come from a counter that
+	 * is shared by every handler, so they are numbered in the order that
+	 * they first appear before comparing.
+	 */
+	private static List<String> fakeIds(List<String> calls) {
+		Map<String, String> ids = new HashMap<String, String>();
+		List<String> result = new ArrayList<String>();
+		for (String call : calls) {
+			Matcher m = FAKE_ID.matcher(call);
+			StringBuffer sb = new StringBuffer();
+			while (m.find()) {
+				String fake = ids.get(m.group());
+				if (fake == null) {
+					fake = "fake" + ids.size();
+					ids.put(m.group(), fake);
+				}
+				m.appendReplacement(sb, fake);
+			}
+			m.appendTail(sb);
+			result.add(sb.toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Read the input with both the SAX parser and the fast reader and
+	 * check that they called the handler in exactly the same way.
+	 *
+	 * @return The calls that were made.
+	 */
+	private static List<String> checkSame(String osm) throws Exception {
+		byte[] bytes = osm.getBytes("UTF-8");
+
+		RecordingHandler saxHandler = new RecordingHandler();
+		SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(bytes), saxHandler);
+
+		RecordingHandler fastHandler = new RecordingHandler();
+		new OsmXmlReader(new ByteArrayInputStream(bytes), fastHandler).parse();
+
+		List<String> expected = fakeIds(saxHandler.getCalls());
+		List<String> calls = fakeIds(fastHandler.getCalls());
+		for (int i = 0; i < Math.min(expected.size(), calls.size()); i++)
+			assertEquals("call " + i, expected.get(i), calls.get(i));
+		assertEquals("number of calls", expected.size(), calls.size());
+		return calls;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import uk.me.parabola.imgfmt.FormatException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProtoBufReaderTest {
+
+	@Test
+	public void testVarint() {
+		byte[] b = new ProtoBufWriter()
+				.varint(1, 1)
+				.varint(2, 300)
+				.varint(3, Long.MAX_VALUE)
+				.varint(4, -1)
+				.toByteArray();
+
+		ProtoBufReader pb = new ProtoBufReader(b);
+		checkKey(pb, 1, ProtoBufReader.WIRE_VARINT);
+		assertEquals(1, pb.readVarint());
+		checkKey(pb, 2, ProtoBufReader.WIRE_VARINT);
+		assertEquals(300, pb.readVarint());
+		checkKey(pb, 3, ProtoBufReader.WIRE_VARINT);
+		assertEquals(Long.MAX_VALUE, pb.readVarint());
+
+		// negative values of int32 and int64 fields are ten bytes long
+		checkKey(pb, 4, ProtoBufReader.WIRE_VARINT);
+		assertEquals(-1, pb.readInt());
+		assertFalse(pb.hasMore());
+	}
+
+	@Test
+	public void testSigned() {
+		long[] vals = {0, -1, 1, -64, 64, Integer.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE};
+		ProtoBufWriter w = new ProtoBufWriter();
+		for (long v : vals)
+			w.signed(1, v);
+
+		ProtoBufReader pb = new ProtoBufReader(w.toByteArray());
+		for (long v : vals) {
+			pb.readKey();
+			assertEquals(v, pb.readSignedVarint());
+		}
+	}
+
+	@Test
+	public void testString() {
+		byte[] b = new ProtoBufWriter().string(1, "Straße 東京").toByteArray();
+		ProtoBufReader pb = new ProtoBufReader(b);
+		checkKey(pb, 1, ProtoBufReader.WIRE_LENGTH);
+		assertEquals("Straße 東京", pb.readString());
+	}
+
+	/**
+	 * An embedded message is read separately, and the outer reader carries
+	 * on after it.
+	 */
+	@Test
+	public void testMessage() {
+		ProtoBufWriter inner = new ProtoBufWriter().varint(1, 5).string(2, "x");
+		byte[] b = new ProtoBufWriter().message(1, inner).varint(2, 7).toByteArray();
+
+		ProtoBufReader pb = new ProtoBufReader(b);
+		pb.readKey();
+		ProtoBufReader msg = pb.readMessage();
+		msg.readKey();
+		assertEquals(5, msg.readVarint());
+		msg.readKey();
+		assertEquals("x", msg.readString());
+		assertFalse(msg.hasMore());
+
+		checkKey(pb, 2, ProtoBufReader.WIRE_VARINT);
+		assertEquals(7, pb.readVarint());
+	}
+
+	@Test
+	public void testPacked() {
+		byte[] b = new ProtoBufWriter().packed(1, 1, 200, 70000).toByteArray();
+		ProtoBufReader pb = new ProtoBufReader(b);
+		pb.readKey();
+		ProtoBufReader packed = pb.readMessage();
+		assertEquals(1, packed.readInt());
+		assertEquals(200, packed.readInt());
+		assertEquals(70000, packed.readInt());
+		assertFalse(packed.hasMore());
+	}
+
+	/**
+	 * Fields of every wire type can be skipped.
+	 */
+	@Test
+	public void testSkip() {
+		byte[] b = new ProtoBufWriter()
+				.varint(1, 123456789)
+				.fixed64(2, -1)
+				.string(3, "skip me")
+				.fixed32(4, 42)
+				.varint(5, 99)
+				.toByteArray();
+
+		ProtoBufReader pb = new ProtoBufReader(b);
+		for (int i = 1; i <= 4; i++) {
+			int key = pb.readKey();
+			assertEquals(i, ProtoBufReader.field(key));
+			pb.skip(key);
+		}
+		checkKey(pb, 5, ProtoBufReader.WIRE_VARINT);
+		assertEquals(99, pb.readVarint());
+	}
+
+	@Test(expected = FormatException.class)
+	public void testTruncatedVarint() {
+		ProtoBufReader pb = new ProtoBufReader(new byte[] {(byte) 0x80, (byte) 0x80});
+		pb.readVarint();
+	}
+
+	@Test(expected = FormatException.class)
+	public void testLengthPastEnd() {
+		byte[] b = new ProtoBufWriter().string(1, "abcdef").toByteArray();
+		ProtoBufReader pb = new ProtoBufReader(b, 0, b.length - 1);
+		pb.readKey();
+		pb.readString();
+	}
+
+	private static void checkKey(ProtoBufReader pb, int field, int wireType) {
+		int key = pb.readKey();
+		assertEquals("field", field, ProtoBufReader.field(key));
+		assertEquals("wire type", wireType, ProtoBufReader.wireType(key));
+	}
+}
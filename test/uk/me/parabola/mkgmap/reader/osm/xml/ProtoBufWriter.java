@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes protocol buffer messages, so that the tests can make small pbf
+ * files by hand.
+ */
+class ProtoBufWriter {
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	ProtoBufWriter varint(int field, long val) {
+		key(field, ProtoBufReader.WIRE_VARINT);
+		writeVarint(val);
+		return this;
+	}
+
+	/**
+	 * A zig-zag encoded field, for sint32 and sint64.
+	 */
+	ProtoBufWriter signed(int field, long val) {
+		return varint(field, zigzag(val));
+	}
+
+	ProtoBufWriter bytes(int field, byte[] b) {
+		key(field, ProtoBufReader.WIRE_LENGTH);
+		writeVarint(b.length);
+		out.write(b, 0, b.length);
+		return this;
+	}
+
+	ProtoBufWriter string(int field, String s) {
+		return bytes(field, utf8(s));
+	}
+
+	ProtoBufWriter message(int field, ProtoBufWriter msg) {
+		return bytes(field, msg.toByteArray());
+	}
+
+	ProtoBufWriter packed(int field, long... vals) {
+		ProtoBufWriter w = new ProtoBufWriter();
+		for (long v : vals)
+			w.writeVarint(v);
+		return message(field, w);
+	}
+
+	ProtoBufWriter packedSigned(int field, long... vals) {
+		ProtoBufWriter w = new ProtoBufWriter();
+		for (long v : vals)
+			w.writeVarint(zigzag(v));
+		return message(field, w);
+	}
+
+	/**
+	 * Packed, zig-zag and delta coded, as used for ids and coordinates.
+	 */
+	ProtoBufWriter packedDelta(int field, long... vals) {
+		long[] deltas = new long[vals.length];
+		long last = 0;
+		for (int i = 0; i < vals.length; i++) {
+			deltas[i] = vals[i] - last;
+			last = vals[i];
+		}
+		return packedSigned(field, deltas);
+	}
+
+	ProtoBufWriter fixed32(int field, int val) {
+		key(field, ProtoBufReader.WIRE_FIXED32);
+		for (int i = 0; i < 4; i++)
+			out.write(val >>> (8 * i));
+		return this;
+	}
+
+	ProtoBufWriter fixed64(int field, long val) {
+		key(field, ProtoBufReader.WIRE_FIXED64);
+		for (int i = 0; i < 8; i++)
+			out.write((int) (val >>> (8 * i)));
+		return this;
+	}
+
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+	/**
+	 * Make a whole file block: the length, the blob header and the blob.
+	 *
+	 * @param type OSMHeader or OSMData.
+	 * @param block The uncompressed block.
+	 * @param compress Use zlib compression for the blob.
+	 */
+	static byte[] fileBlock(String type, ProtoBufWriter block, boolean compress) {
+		byte[] raw = block.toByteArray();
+		ProtoBufWriter blob = new ProtoBufWriter();
+		if (compress) {
+			Deflater deflater = new Deflater();
+			deflater.setInput(raw);
+			deflater.finish();
+			byte[] buf = new byte[raw.length + 64];
+			int len = deflater.deflate(buf);
+			deflater.end();
+			byte[] zlib = new byte[len];
+			System.arraycopy(buf, 0, zlib, 0, len);
+			blob.varint(2, raw.length).bytes(3, zlib);
+		} else {
+			blob.bytes(1, raw);
+		}
+		byte[] data = blob.toByteArray();
+
+		byte[] header = new ProtoBufWriter().string(1, type).varint(3, data.length).toByteArray();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int n = header.length;
+		out.write(n >>> 24);
+		out.write(n >>> 16);
+		out.write(n >>> 8);
+		out.write(n);
+		out.write(header, 0, header.length);
+		out.write(data, 0, data.length);
+		return out.toByteArray();
+	}
+
+	private void key(int field, int wireType) {
+		writeVarint((field << 3) | wireType);
+	}
+
+	private void writeVarint(long val) {
+		while ((val & ~0x7fL) != 0) {
+			out.write((int) ((val & 0x7f) | 0x80));
+			val >>>= 7;
+		}
+		out.write((int) val);
+	}
+
+	private static long zigzag(long val) {
+		return (val << 1) ^ (val >> 63);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.me.parabola.util.EnhancedProperties;
+
+/**
+ * A handler that just writes down each element call that a reader makes,
+ * so that the readers can be tested without building a map.
+ */
+class RecordingHandler extends Osm5XmlHandler {
+	private final List<String> calls = new ArrayList<String>();
+
+	RecordingHandler() {
+		super(new EnhancedProperties());
+	}
+
+	List<String> getCalls() {
+		return calls;
+	}
+
+	void addBounds(String minlat, String minlon, String maxlat, String maxlon) {
+		calls.add("bounds " + minlat + ' ' + minlon + ' ' + maxlat + ' ' + maxlon);
+	}
+
+	void addBounds(double minlat, double minlong, double maxlat, double maxlong) {
+		calls.add("bounds " + minlat + ' ' + minlong + ' ' + maxlat + ' ' + maxlong);
+	}
+
+	void addBound(String box) {
+		calls.add("bound " + box);
+	}
+
+	// The version with degrees is not overridden, it converts them to map
+	// units and calls this one.
+	void startNode(long id, int lat, int lon) {
+		calls.add("node " + id + ' ' + lat + ' ' + lon);
+	}
+
+	void nodeTag(String key, String val) {
+		calls.add("  " + key + '=' + val);
+	}
+
+	void endNode() {
+		calls.add("end node");
+	}
+
+	void startWay(long id) {
+		calls.add("way " + id);
+	}
+
+	void addNodeToWay(long id) {
+		calls.add("  nd " + id);
+	}
+
+	void wayTag(String key, String val) {
+		calls.add("  " + key + '=' + val);
+	}
+
+	void endWay() {
+		calls.add("end way");
+	}
+
+	void startRelation(long id) {
+		calls.add("relation " + id);
+	}
+
+	void addMemberToRelation(String type, long id, String role) {
+		calls.add("  member " + type + ' ' + id + ' ' + role);
+	}
+
+	void relationTag(String key, String val) {
+		calls.add("  " + key + '=' + val);
+	}
+
+	void endRelation() {
+		calls.add("end relation");
+	}
+
+	/**
+	 * Nothing is done at the end of the document, there is no map.
+	 */
+	public void endDocument() {
+	}
+}
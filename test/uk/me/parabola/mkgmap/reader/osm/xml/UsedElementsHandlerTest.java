@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.mkgmap.reader.osm.xml;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import uk.me.parabola.imgfmt.app.Area;
+import uk.me.parabola.imgfmt.app.Coord;
+import uk.me.parabola.mkgmap.general.MapDetails;
+import uk.me.parabola.mkgmap.reader.osm.Node;
+import uk.me.parabola.mkgmap.reader.osm.OsmConverter;
+import uk.me.parabola.mkgmap.reader.osm.Relation;
+import uk.me.parabola.mkgmap.reader.osm.Way;
+import uk.me.parabola.util.EnhancedProperties;
+
+import org.junit.Test;
+import org.xml.sax.helpers.DefaultHandler;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the two pass load.
+ */
+public class UsedElementsHandlerTest {
+	// Way 10 and 11 are roads that share node 3.  Way 12 is not used by the
+	// style but shares node 4 with way 11.  Way 13 has no tags but is used
+	// by the relation, way 14 is not used at all.  Node 9 has tags but is
+	// not in any way.
+	private static final String OSM = "<?xml version='1.0' encoding='UTF-8'?>\n" +
+			"<osm version='0.6'>\n" +
+			"<node id='1' lat='51.00' lon='-1.00'/>\n" +
+			"<node id='2' lat='51.01' lon='-1.00'/>\n" +
+			"<node id='3' lat='51.02' lon='-1.00'/>\n" +
+			"<node id='4' lat='51.02' lon='-1.01'/>\n" +
+			"<node id='5' lat='51.03' lon='-1.01'/>\n" +
+			"<node id='6' lat='51.04' lon='-1.02'/>\n" +
+			"<node id='7' lat='51.05' lon='-1.02'/>\n" +
+			"<node id='8' lat='51.06' lon='-1.03'/>\n" +
+			"<node id='9' lat='51.07' lon='-1.03'><tag k='amenity' v='pub'/></node>\n" +
+			"<way id='10'><nd ref='1'/><nd ref='2'/><nd ref='3'/><tag k='highway' v='primary'/></way>\n" +
+			"<way id='11'><nd ref='3'/><nd ref='4'/><tag k='highway' v='residential'/></way>\n" +
+			"<way id='12'><nd ref='4'/><nd ref='5'/><tag k='building' v='yes'/></way>\n" +
+			"<way id='13'><nd ref='6'/><nd ref='7'/></way>\n" +
+			"<way id='14'><nd ref='8'/><nd ref='5'/></way>\n" +
+			"<relation id='20'>" +
+			"<member type='way' ref='13' role=''/><member type='node' ref='8' role='stop'/>" +
+			"<tag k='type' v='route'/></relation>\n" +
+			"</osm>\n";
+
+	@Test
+	public void testUsedElements() throws Exception {
+		UsedElementsHandler used = new UsedElementsHandler(Collections.singleton("highway"));
+		parse(OSM, used);
+
+		// Way 13 is only used by the relation, so its nodes are not known
+		// after the first pass.
+		assertTrue("member pass needed", used.needsMemberPass());
+		used.startMemberPass();
+		parse(OSM, used);
+		assertFalse(used.needsMemberPass());
+
+		checkContains("ways", used.getUsedWays(), 10, 11, 13);
+		checkMissing("ways", used.getUsedWays(), 12, 14);
+		checkContains("nodes", used.getUsedNodes(), 1, 2, 3, 4, 6, 7, 8);
+		checkMissing("nodes", used.getUsedNodes(), 5, 9);
+	}
+
+	/**
+	 * When all the relation members are used anyway, the file is only
+	 * read once.
+	 */
+	@Test
+	public void testNoMemberPass() throws Exception {
+		UsedElementsHandler used = new UsedElementsHandler(
+				new HashSet<String>(Arrays.asList("highway", "building")));
+		parse(OSM.replace("<way id='13'>", "<way id='13'><tag k='highway' v='path'/>"), used);
+
+		assertFalse(used.needsMemberPass());
+		checkContains("ways", used.getUsedWays(), 10, 11, 12, 13);
+		checkMissing("ways", used.getUsedWays(), 14);
+		checkContains("nodes", used.getUsedNodes(), 1, 2, 3, 4, 5, 6, 7, 8);
+		checkMissing("nodes", used.getUsedNodes(), 9);
+	}
+
+	/**
+	 * Without any tags only the relation members are found, and there is
+	 * never a member pass.
+	 */
+	@Test
+	public void testMembersOnly() throws Exception {
+		UsedElementsHandler used = new UsedElementsHandler(null);
+		parse(OSM, used);
+
+		assertFalse(used.needsMemberPass());
+		checkContains("ways", used.getMemberWays(), 13);
+		checkMissing("ways", used.getMemberWays(), 10, 11, 12, 14);
+		checkContains("nodes", used.getMemberNodes(), 8);
+		checkMissing("nodes", used.getMemberNodes(), 1, 6, 7, 9);
+	}
+
+	/**
+	 * Load the file using the results of the first pass.  Only the used
+	 * ways are converted, and the way that was dropped no longer makes
+	 * node 4 shared.
+	 */
+	@Test
+	public void testLoad() throws Exception {
+		UsedElementsHandler used = new UsedElementsHandler(Collections.singleton("highway"));
+		parse(OSM, used);
+		used.startMemberPass();
+		parse(OSM, used);
+
+		Osm5XmlHandler handler = new Osm5XmlHandler(new EnhancedProperties());
+		handler.setUsedElements(used.getUsedNodes(), used.getUsedWays());
+		WayConverter converter = new WayConverter();
+		handler.setConverter(converter);
+		handler.setCollector(new MapDetails());
+		handler.setEndTask(new Runnable() {
+			public void run() {
+			}
+		});
+		parse(OSM, handler);
+
+		assertEquals("ways", Arrays.asList(10L, 11L, 13L), converter.getIds());
+		// the relation member and the node with tags
+		assertEquals("nodes", Arrays.asList(8L, 9L), converter.getNodeIds());
+
+		List<Coord> road = converter.getWay(10).getPoints();
+		assertEquals("shared by two roads", 2, road.get(2).getHighwayCount());
+		List<Coord> residential = converter.getWay(11).getPoints();
+		assertSame(road.get(2), residential.get(0));
+		assertEquals("shared with dropped way", 1, residential.get(1).getHighwayCount());
+		assertEquals("relation member", 2, converter.getWay(13).getPoints().size());
+	}
+
+	private static void parse(String osm, DefaultHandler handler) throws Exception {
+		SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+		parser.parse(new ByteArrayInputStream(osm.getBytes("UTF-8")), handler);
+	}
+
+	private static void checkContains(String msg, LongIdSet set, long... ids) {
+		for (long id : ids)
+			assertTrue(msg + " contains " + id, set.contains(id));
+	}
+
+	private static void checkMissing(String msg, LongIdSet set, long... ids) {
+		for (long id : ids)
+			assertFalse(msg + " does not contain " + id, set.contains(id));
+	}
+
+	/**
+	 * Just keeps the ways and nodes that it is given.
+	 */
+	private static class WayConverter implements OsmConverter {
+		private final Map<Long, Way> ways = new LinkedHashMap<Long, Way>();
+		private final List<Long> nodeIds = new ArrayList<Long>();
+
+		public void convertWay(Way way) {
+			ways.put(way.getId(), way);
+		}
+
+		public void convertNode(Node node) {
+			nodeIds.add(node.getId());
+		}
+
+		public void convertRelation(Relation relation) {
+		}
+
+		public void setBoundingBox(Area bbox) {
+		}
+
+		public void end() {
+		}
+
+		List<Long> getIds() {
+			return new ArrayList<Long>(ways.keySet());
+		}
+
+		List<Long> getNodeIds() {
+			return nodeIds;
+		}
+
+		Way getWay(long id) {
+			return ways.get(id);
+		}
+	}
+}
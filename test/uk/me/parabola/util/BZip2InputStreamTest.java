@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+
+public class BZip2InputStreamTest {
+	// "hello hello hello hello world\n" three times
+	private static final byte[] HELLO = {
+			66, 90, 104, 57, 49, 65, 89, 38, 83, 89, 56, -119, 34, 127, 0, 0,
+			16, 81, -128, 0, 16, 64, 0, 6, 68, -112, -128, 32, 0, 49, 6, 76,
+			64, -118, -125, -55, 27, 104, 53, -96, -11, -120, 99, -128, -64,
+			31, 56, -57, -30, -18, 72, -89, 10, 18, 7, 17, 36, 79, -32
+	};
+
+	// "second stream"
+	private static final byte[] SECOND = {
+			66, 90, 104, 57, 49, 65, 89, 38, 83, 89, -16, -109, -105, -5, 0, 0,
+			5, 17, -128, 64, 0, 46, 3, -100, 0, 32, 0, 49, 0, -45, 77, 4, 1,
+			-93, 37, 91, 14, 32, -14, 72, 120, -69, -110, 41, -62, -124, -121,
+			-124, -100, -65, -40
+	};
+
+	@Test
+	public void testDecode() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 3; i++)
+			sb.append("hello hello hello hello world\n");
+
+		assertEquals(sb.toString(), decode(HELLO));
+	}
+
+	/**
+	 * Files with several streams are read as a whole.
+	 */
+	@Test
+	public void testMultiStream() throws IOException {
+		byte[] both = new byte[HELLO.length + SECOND.length];
+		System.arraycopy(HELLO, 0, both, 0, HELLO.length);
+		System.arraycopy(SECOND, 0, both, HELLO.length, SECOND.length);
+
+		String s = decode(both);
+		assertTrue("first stream", s.startsWith("hello hello"));
+		assertTrue("second stream", s.endsWith("world\nsecond stream"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorrupt() throws IOException {
+		byte[] bad = HELLO.clone();
+		bad[30] ^= 0x10;
+		decode(bad);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotBzip2() throws IOException {
+		decode(new byte[] {'h', 'e', 'l', 'l', 'o'});
+	}
+
+	private String decode(byte[] data) throws IOException {
+		InputStream is = new BZip2InputStream(new ByteArrayInputStream(data), 2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[7];
+		int n;
+		while ((n = is.read(buf, 0, buf.length)) > 0)
+			out.write(buf, 0, n);
+		is.close();
+		return out.toString("US-ASCII");
+	}
+}
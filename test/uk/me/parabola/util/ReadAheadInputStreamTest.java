@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2010.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 or
+ * version 2 as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * General Public License for more details.
+ */
+package uk.me.parabola.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadInputStreamTest {
+
+	/**
+	 * Read more than several chunks, in pieces of an odd size.
+	 */
+	@Test
+	public void testRead() throws IOException {
+		byte[] data = new byte[1000000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (i * 31);
+
+		InputStream is = new ReadAheadInputStream(new ByteArrayInputStream(data));
+		assertTrue(Arrays.equals(data, readAll(is)));
+		assertEquals(-1, is.read());
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		InputStream is = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]));
+		assertEquals(-1, is.read());
+	}
+
+	@Test(expected = IOException.class)
+	public void testIOException() throws IOException {
+		readAll(new ReadAheadInputStream(new FailingInputStream(new IOException("test"))));
+	}
+
+	/**
+	 * Any other failure is also passed on to the reader, rather than
+	 * leaving it waiting for more data.
+	 */
+	@Test
+	public void testRuntimeException() {
+		RuntimeException e = new IllegalStateException("test");
+		try {
+			readAll(new ReadAheadInputStream(new FailingInputStream(e)));
+			fail("no exception");
+		} catch (IOException ioe) {
+			assertSame(e, ioe.getCause());
+		}
+	}
+
+	@Test
+	public void testError() {
+		Error e = new Error("test");
+		try {
+			readAll(new ReadAheadInputStream(new FailingInputStream(e)));
+			fail("no exception");
+		} catch (IOException ioe) {
+			assertSame(e, ioe.getCause());
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1001];
+		int n;
+		while ((n = is.read(buf)) > 0)
+			out.write(buf, 0, n);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns some data and then fails with the given exception.
+	 */
+	private static class FailingInputStream extends InputStream {
+		private final Throwable failure;
+		private int count;
+
+		FailingInputStream(Throwable failure) {
+			this.failure = failure;
+		}
+
+		public int read() throws IOException {
+			if (count++ < 100000)
+				return 'x';
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			throw (Error) failure;
+		}
+	}
+}